@@ -0,0 +1,30 @@
+@echo off
+rem Creates a class data sharing (AppCDS) archive of GBT-UBT-Tool.jar from a training run, so later runs start faster.
+rem Needs a Java 13 (or later) runtime. Run it from the directory holding the jar with the arguments of a typical run:
+rem   cds-archive.bat "./l1b_sample.n1" ... "FALSE" "./DEM.tif" [options]
+rem then start the tool with the archive (the jar path must be the same as in the training run):
+rem   java -XX:SharedArchiveFile=GBT-UBT-Tool.jsa -jar GBT-UBT-Tool.jar ...
+rem JAVA_OPTS (e.g. -Xmx8g), GBT_UBT_JAR and GBT_UBT_CDS override the JVM options, jar and archive file.
+setlocal
+if "%GBT_UBT_JAR%"=="" set GBT_UBT_JAR=GBT-UBT-Tool.jar
+if "%GBT_UBT_CDS%"=="" set GBT_UBT_CDS=GBT-UBT-Tool.jsa
+rem The tool runs on Java 7, the archive of the application classes needs Java 13 (-XX:ArchiveClassesAtExit)
+set JAVA_VERSION=
+for /f "tokens=3" %%v in ('java %JAVA_OPTS% -version 2^>^&1 ^| findstr /i "version"') do set JAVA_VERSION=%%~v
+set JAVA_MAJOR=0
+for /f "tokens=1,2 delims=.-_" %%a in ("%JAVA_VERSION%") do (
+    set "JAVA_MAJOR=%%a"
+    set "JAVA_MINOR=%%b"
+)
+if "%JAVA_MAJOR%"=="1" set "JAVA_MAJOR=%JAVA_MINOR%"
+if %JAVA_MAJOR% LSS 13 (
+    echo No CDS archive written, a Java 13 ^(or later^) runtime is needed ^(found %JAVA_VERSION%^)
+    exit /b 1
+)
+java %JAVA_OPTS% -XX:ArchiveClassesAtExit="%GBT_UBT_CDS%" -jar "%GBT_UBT_JAR%" %*
+if errorlevel 1 exit /b 1
+if not exist "%GBT_UBT_CDS%" (
+    echo No CDS archive written
+    exit /b 1
+)
+echo CDS archive written to %GBT_UBT_CDS%
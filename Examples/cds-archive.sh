@@ -0,0 +1,25 @@
+#!/bin/sh
+# Creates a class data sharing (AppCDS) archive of GBT-UBT-Tool.jar from a training run, so later runs start faster.
+# Needs a Java 13 (or later) runtime. Run it from the directory holding the jar with the arguments of a typical run:
+#   ./cds-archive.sh "./l1b_sample.n1" ... "FALSE" "./DEM.tif" [options]
+# then start the tool with the archive (the jar path must be the same as in the training run):
+#   java -XX:SharedArchiveFile=GBT-UBT-Tool.jsa -jar GBT-UBT-Tool.jar ...
+# JAVA_OPTS (e.g. -Xmx8g), GBT_UBT_JAR and GBT_UBT_CDS override the JVM options, jar and archive file.
+JAR=${GBT_UBT_JAR:-GBT-UBT-Tool.jar}
+ARCHIVE=${GBT_UBT_CDS:-GBT-UBT-Tool.jsa}
+# The tool runs on Java 7, the archive of the application classes needs Java 13 (-XX:ArchiveClassesAtExit)
+VERSION=$(java $JAVA_OPTS -version 2>&1 | sed -n 's/.* version "\([0-9]*\)\.\{0,1\}\([0-9]*\).*/\1 \2/p' | head -n 1)
+MAJOR=${VERSION%% *}
+if [ "$MAJOR" = "1" ]; then
+    MAJOR=${VERSION#* }
+fi
+if [ -z "$MAJOR" ] || [ "$MAJOR" -lt 13 ]; then
+    echo "No CDS archive written, a Java 13 (or later) runtime is needed (found $(java -version 2>&1 | head -n 1))"
+    exit 1
+fi
+java $JAVA_OPTS -XX:ArchiveClassesAtExit="$ARCHIVE" -jar "$JAR" "$@" || exit 1
+if [ ! -f "$ARCHIVE" ]; then
+    echo "No CDS archive written"
+    exit 1
+fi
+echo "CDS archive written to $ARCHIVE"
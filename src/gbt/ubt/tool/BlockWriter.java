@@ -0,0 +1,228 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class BlockWriter {
+    /* This class is the writer stage of the .h5/.nc output: the worker threads publish each completed row block to a
+     * bounded queue and a dedicated thread writes the blocks in row order while the following blocks are computed,
+     * so the output is written during the computation rather than after it.
+     *
+     * Blocks completed out of sequence are held until the blocks before them are written. A worker may only start
+     * a block within WINDOW_BLOCKS_PER_PROCESSOR * processors blocks of the next block to write, which bounds the
+     * number of block results held in memory and makes the workers wait (backpressure) when the writer falls behind.
+     * The lowest unwritten block is always within the window, so the workers cannot all wait on each other.
+     */
+
+    private static final int WINDOW_BLOCKS_PER_PROCESSOR = 2;
+    private static final long JOIN_TIMEOUT_MINUTES = 10;
+    private static final long PUBLISH_POLL_MILLISECONDS = 100;
+
+    private final InputParameters parameters;
+    private final HDFWriter hdfWriter;
+    private final NetCDF4Writer netCDFWriter;
+    private final int blockCount;
+    private final int window;
+    private final BlockingQueue<PublishedBlock> queue;
+    private final Thread thread;
+    private final Object progress = new Object();
+    private int writtenBlocks = 0;
+    private volatile Throwable failure;
+    private volatile boolean stopped = false; // writer thread ended, admit & publish no longer wait for it
+
+    // Metrics
+    private final AtomicLong stallNanos = new AtomicLong();
+    private long idleNanos = 0;
+    private long writeNanos = 0;
+    private int reorderedBlocks = 0;
+    private int maximumHeldBlocks = 0;
+    private int missingBlocks = 0;
+
+    private static class PublishedBlock {
+
+        final int index;
+        final ResultArena results;
+        final int firstRow;
+        final int rows;
+
+        PublishedBlock(int index, ResultArena results, int firstRow, int rows) {
+            this.index = index;
+            this.results = results;
+            this.firstRow = firstRow;
+            this.rows = rows;
+        }
+    }
+
+    private BlockWriter(InputParameters parameters, HDFWriter hdfWriter, NetCDF4Writer netCDFWriter, int blockCount, int processors) {
+        this.parameters = parameters;
+        this.hdfWriter = hdfWriter;
+        this.netCDFWriter = netCDFWriter;
+        this.blockCount = blockCount;
+        this.window = Math.max(2, WINDOW_BLOCKS_PER_PROCESSOR * processors);
+        this.queue = new ArrayBlockingQueue<>(window);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Writer");
+    }
+
+    static BlockWriter start(InputParameters parameters, ProductContext product, Set<ResultVariable> variables, Set<ResultVariable> packedVariables, CompactEncoding compact, int maxX, int maxY, int minX, int minY, int blockCount, int processors) throws Exception {
+        HDFWriter hdfWriter = null;
+        NetCDF4Writer netCDFWriter = null;
+        if (parameters.outputFileLocation.contains(".h5")) {
+            hdfWriter = HDFWriter.create(parameters, variables, packedVariables, compact, maxX, maxY, minX, minY);
+            if (hdfWriter == null) {
+                throw new Exception("HDF5 library not available");
+            }
+        } else {
+            netCDFWriter = NetCDF4Writer.create(parameters, product, variables, packedVariables, compact, maxX, maxY, minX, minY);
+        }
+        BlockWriter writer = new BlockWriter(parameters, hdfWriter, netCDFWriter, blockCount, processors);
+        System.out.println("Writing the output as the row blocks complete (up to " + writer.window + " blocks held)");
+        writer.thread.start();
+        return writer;
+    }
+
+    void admit(int block) throws InterruptedException {
+        // Waits until the block is within the window of the next block to write
+        synchronized (progress) {
+            if (block < writtenBlocks + window) {
+                return;
+            }
+            long start = System.nanoTime();
+            while (block >= writtenBlocks + window && !stopped) {
+                progress.wait();
+            }
+            stallNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    void publish(int block, ResultArena results, int firstRow, int rows) throws InterruptedException {
+        // Hands a completed block to the writer, results is null for a block that failed (left as zeros in the output)
+        long start = System.nanoTime();
+        PublishedBlock published = new PublishedBlock(block, results, firstRow, rows);
+        while (!queue.offer(published, PUBLISH_POLL_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+            if (stopped) {
+                // The writer thread ended (see drain), the block cannot be written
+                return;
+            }
+        }
+        long waited = System.nanoTime() - start;
+        if (waited > 1000000L) {
+            stallNanos.addAndGet(waited);
+        }
+    }
+
+    private void drain() {
+        // Any error ending the writer is recorded and releases the workers waiting in admit or publish
+        try {
+            drainBlocks();
+        } catch (Throwable ex) {
+            System.out.println("Writer stopped: " + ex);
+            failure = ex;
+        } finally {
+            synchronized (progress) {
+                stopped = true;
+                progress.notifyAll();
+            }
+        }
+    }
+
+    private void drainBlocks() {
+        Map<Integer, PublishedBlock> held = new HashMap<>();
+        for (int next = 0; next < blockCount; next++) {
+            try {
+                while (!held.containsKey(next)) {
+                    long start = System.nanoTime();
+                    PublishedBlock published = queue.take();
+                    idleNanos += System.nanoTime() - start;
+                    held.put(published.index, published);
+                    if (published.index != next) {
+                        reorderedBlocks++;
+                    }
+                    maximumHeldBlocks = Math.max(maximumHeldBlocks, held.size());
+                }
+            } catch (InterruptedException ex) {
+                failure = ex;
+                return;
+            }
+            PublishedBlock block = held.remove(next);
+            if (block.results == null) {
+                missingBlocks++;
+            } else if (block.rows > 0 && failure == null) {
+                // After a write error the blocks are still taken so the workers are never blocked
+                long start = System.nanoTime();
+                try {
+                    if (hdfWriter != null) {
+                        hdfWriter.writeRows(block.results, block.firstRow, block.rows);
+                    } else {
+                        netCDFWriter.writeRows(block.results, block.firstRow, block.rows);
+                    }
+                } catch (Exception | LinkageError ex) {
+                    System.out.println("Error writing output rows " + block.firstRow + " to " + (block.firstRow + block.rows - 1));
+                    System.out.println(ex.getMessage());
+                    failure = ex;
+                }
+                writeNanos += System.nanoTime() - start;
+            }
+            synchronized (progress) {
+                writtenBlocks++;
+                progress.notifyAll();
+            }
+        }
+    }
+
+    void finish() throws Exception {
+        // Waits for the writer to write every block, closes the output and reports the overlap
+        thread.join(TimeUnit.MINUTES.toMillis(JOIN_TIMEOUT_MINUTES));
+        if (thread.isAlive()) {
+            thread.interrupt();
+            throw new Exception("Writer did not finish within " + JOIN_TIMEOUT_MINUTES + " minutes of the last row block");
+        }
+        if (hdfWriter != null) {
+            hdfWriter.close(parameters);
+        } else {
+            netCDFWriter.close();
+        }
+        System.out.println(String.format("Writer stage: %d blocks written in %.1f s, writer waited %.1f s for blocks, workers stalled %.1f s by backpressure, %d blocks completed out of order (up to %d held)",
+                blockCount - missingBlocks, writeNanos / 1.0e9, idleNanos / 1.0e9, stallNanos.get() / 1.0e9, reorderedBlocks, maximumHeldBlocks));
+        if (failure instanceof Exception) {
+            throw (Exception) failure;
+        } else if (failure != null) {
+            throw new Exception("Error writing output", failure);
+        }
+    }
+}
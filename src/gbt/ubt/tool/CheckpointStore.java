@@ -0,0 +1,300 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class CheckpointStore {
+    /* This class persists the results of each completed row block (thread) to a checkpoint directory (--checkpoint),
+     * so a rerun after a crash or timeout only computes the missing blocks before writing the output.
+     *
+     * Each block is held in block_<first row>.bin: a header, the raw rows of every variable as stored in the
+     * ResultArena (stored type, native byte order) and a CRC32 of everything before it. The block is written to a
+     * temporary file and renamed into place, then added to manifest.txt (also replaced by rename), so a block is only
+     * ever reused if it was written completely.
+     *
+     * The manifest records a fingerprint of the inputs and processing parameters, checkpoints from a run with a
+     * different fingerprint are discarded.
+     */
+
+    private static final int MAGIC = 0x47425543; // "GBUC"
+    private static final int VERSION = 1;
+    private static final String MANIFEST = "manifest.txt";
+    private static final int COPY_BUFFER_BYTES = 1 << 20;
+
+    private final File directory;
+    private final String fingerprint;
+    private final Map<Integer, Integer> completedBlocks = new TreeMap<>();
+
+    private CheckpointStore(File directory, String fingerprint) {
+        this.directory = directory;
+        this.fingerprint = fingerprint;
+    }
+
+    static CheckpointStore open(String location, String fingerprint) throws IOException {
+        File directory = new File(location);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create checkpoint directory " + location);
+        }
+        CheckpointStore store = new CheckpointStore(directory, fingerprint);
+        File manifest = new File(directory, MANIFEST);
+        if (manifest.exists()) {
+            if (!store.readManifest(manifest)) {
+                System.out.println("Checkpoints in " + location + " are from different inputs or parameters, discarding them");
+                store.completedBlocks.clear();
+                store.discard();
+            }
+        }
+        return store;
+    }
+
+    static String fingerprint(InputParameters parameters, Set<ResultVariable> variables, Set<ResultVariable> packedVariables, int minX, int maxX, int minY, int maxY) {
+        /* Everything that changes the computed rows: the input files (path, size & modification time), the parsed
+         characterisation & FOV data, the processing parameters, the image window, the row blocks and the stored variables.
+         The output file and format are not included, a checkpoint can be reused for a different output.
+         */
+        StringBuilder description = new StringBuilder();
+        description.append("version=").append(parameters.toolVersion).append('\n');
+        appendFile(description, parameters.inputFileLocation);
+        if (parameters.orthorectify) {
+            appendFile(description, parameters.DEMFilename);
+        }
+        description.append("pixels=").append(parameters.firstNadirPixel).append(',').append(parameters.firstForwardPixel).append('\n');
+        description.append("fov=").append(parameters.FOVMeasurementDataBandName).append('\n');
+        description.append("extent=").append(parameters.pixelIFOVReportingExtent).append('\n');
+        description.append("corner=").append(parameters.cornerReferenceFlag).append('\n');
+        description.append("topography=").append(parameters.topographicFlag).append(',').append(parameters.topographyHomogenity);
+        if (parameters.denseTopography) {
+            description.append(",dense");
+        }
+        description.append('\n');
+        description.append("orthorectify=").append(parameters.orthorectify).append('\n');
+        if (parameters.orbitProjections) {
+            description.append("orbitFOV=true\n");
+        }
+        description.append("window=").append(minX).append(',').append(maxX).append(',').append(minY).append(',').append(maxY).append('\n');
+        description.append("rowsPerThread=").append(parameters.rowsPerThread).append('\n');
+        description.append("variables=").append(variables).append('\n');
+        description.append("packed=").append(packedVariables).append('\n');
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(description.toString().getBytes(StandardCharsets.UTF_8));
+            ByteBuffer angles = ByteBuffer.allocate(8 * (parameters.alongTrackAngle.length + parameters.acrossTrackAngle.length + parameters.ifov1D.length));
+            angles.asDoubleBuffer().put(parameters.alongTrackAngle).put(parameters.acrossTrackAngle).put(parameters.ifov1D);
+            digest.update(angles.array());
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static void appendFile(StringBuilder description, String location) {
+        File file = new File(location);
+        description.append("file=").append(file.getAbsolutePath()).append(',').append(file.length()).append(',').append(file.lastModified()).append('\n');
+    }
+
+    synchronized int getCompletedBlockCount() {
+        return completedBlocks.size();
+    }
+
+    boolean restore(ResultArena results, int firstRow, int rowCount) {
+        // Returns true if the rows were read from a complete checkpoint of the block
+        synchronized (this) {
+            Integer rows = completedBlocks.get(firstRow);
+            if (rows == null || rows != rowCount) {
+                return false;
+            }
+        }
+        File blockFile = blockFile(firstRow);
+        CRC32 crc = new CRC32();
+        try (DataInputStream input = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(blockFile)), crc))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION || !input.readUTF().equals(fingerprint)) {
+                throw new IOException("Header mismatch");
+            }
+            boolean littleEndian = input.readBoolean();
+            if (littleEndian != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)) {
+                throw new IOException("Written with a different byte order");
+            }
+            if (input.readInt() != firstRow || input.readInt() != rowCount || input.readInt() != results.getColumns()) {
+                throw new IOException("Block dimensions mismatch");
+            }
+            int numberOfVariables = input.readInt();
+            if (numberOfVariables != results.getVariables().size()) {
+                throw new IOException("Variables mismatch");
+            }
+            int rowBytes = results.getColumns() * 8;
+            byte[] buffer = new byte[Math.max(rowBytes, COPY_BUFFER_BYTES - COPY_BUFFER_BYTES % rowBytes)];
+            for (ResultVariable variable : results.getVariables()) {
+                if (input.readInt() != variable.ordinal() || input.readInt() != results.getType(variable).ordinal()) {
+                    throw new IOException("Variables mismatch");
+                }
+                int rowsPerCopy = buffer.length / (results.getColumns() * results.getType(variable).size);
+                for (int row = firstRow; row < firstRow + rowCount; row += rowsPerCopy) {
+                    int count = Math.min(rowsPerCopy, firstRow + rowCount - row);
+                    int length = count * results.getColumns() * results.getType(variable).size;
+                    input.readFully(buffer, 0, length);
+                    results.putRows(variable, row, count, ByteBuffer.wrap(buffer, 0, length));
+                }
+            }
+            // The CRC covers everything read so far, read the stored value without updating it
+            long expected = crc.getValue();
+            byte[] stored = new byte[8];
+            input.readFully(stored);
+            if (ByteBuffer.wrap(stored).getLong() != expected) {
+                throw new IOException("CRC mismatch");
+            }
+            return true;
+        } catch (IOException ex) {
+            /* Rows already copied are overwritten when the block is recomputed */
+            System.out.println("Checkpoint " + blockFile.getName() + " is unusable (" + ex.getMessage() + "), recomputing");
+            synchronized (this) {
+                completedBlocks.remove(firstRow);
+            }
+            return false;
+        }
+    }
+
+    void save(ResultArena results, int firstRow, int rowCount) throws IOException {
+        File blockFile = blockFile(firstRow);
+        File tempFile = new File(directory, blockFile.getName() + ".partial");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(tempFile)) {
+            DataOutputStream output = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(file), crc));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(fingerprint);
+            output.writeBoolean(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+            output.writeInt(firstRow);
+            output.writeInt(rowCount);
+            output.writeInt(results.getColumns());
+            output.writeInt(results.getVariables().size());
+            int rowBytes = results.getColumns() * 8;
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(rowBytes, COPY_BUFFER_BYTES - COPY_BUFFER_BYTES % rowBytes));
+            for (ResultVariable variable : results.getVariables()) {
+                output.writeInt(variable.ordinal());
+                output.writeInt(results.getType(variable).ordinal());
+                int rowsPerCopy = buffer.capacity() / (results.getColumns() * results.getType(variable).size);
+                for (int row = firstRow; row < firstRow + rowCount; row += rowsPerCopy) {
+                    int count = Math.min(rowsPerCopy, firstRow + rowCount - row);
+                    buffer.clear();
+                    results.copyRows(variable, row, count, buffer);
+                    output.write(buffer.array(), 0, buffer.position());
+                }
+            }
+            output.flush();
+            output.writeLong(crc.getValue());
+            output.flush();
+            // Make sure the block is on disk before it is renamed into place
+            file.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), blockFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            completedBlocks.put(firstRow, rowCount);
+            writeManifest();
+        }
+    }
+
+    private File blockFile(int firstRow) {
+        return new File(directory, "block_" + firstRow + ".bin");
+    }
+
+    private boolean readManifest(File manifest) throws IOException {
+        // Returns false if the manifest belongs to a different run
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+            boolean matched = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("fingerprint=")) {
+                    matched = line.substring("fingerprint=".length()).equals(fingerprint);
+                } else if (line.startsWith("block=")) {
+                    String[] block = line.substring("block=".length()).split(" ");
+                    completedBlocks.put(Integer.valueOf(block[0]), Integer.valueOf(block[1]));
+                }
+            }
+            return matched;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            return false;
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        File manifest = new File(directory, MANIFEST);
+        File tempFile = new File(directory, MANIFEST + ".partial");
+        try (FileOutputStream file = new FileOutputStream(tempFile)) {
+            Writer writer = new OutputStreamWriter(file, StandardCharsets.UTF_8);
+            writer.write("# GBT-UBT-Tool checkpoint manifest, one line per completed block: block=<first row> <rows>\n");
+            writer.write("fingerprint=" + fingerprint + "\n");
+            for (Map.Entry<Integer, Integer> block : completedBlocks.entrySet()) {
+                writer.write("block=" + block.getKey() + " " + block.getValue() + "\n");
+            }
+            writer.flush();
+            file.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void discard() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if ((name.startsWith("block_") || name.startsWith(MANIFEST)) && !file.delete()) {
+                throw new IOException("Unable to remove old checkpoint " + file.getPath());
+            }
+        }
+    }
+}
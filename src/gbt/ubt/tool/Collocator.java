@@ -0,0 +1,362 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class Collocator {
+    /* This class finds, for each nadir view pixel, the forward view pixels whose ungridded footprints overlap it
+     * (--collocate). It runs once the geolocation of the whole output window is in the result arena and fills the
+     * COLLOCATION_VARIABLES: the MATCHES forward pixels with the largest overlap, as their index in the output grid
+     * (row * columns + column, -1 if none) and the fraction of the nadir footprint they cover.
+     *
+     * The footprints are rectangles of the FOV along & across track extent centred on the ungridded pixel positions,
+     * both aligned with the local track direction (from the nadir pixels of the rows either side).
+     *
+     * The forward footprints are hashed into a grid of CELL_DEGREES latitude cells (longitude cells widened with
+     * latitude to stay about as wide as they are tall), then each nadir footprint probes the cells it covers, so the
+     * cost is linear in the number of pixels. The image is processed in bands of BAND_ROWS rows in parallel, each band
+     * hashing the forward pixels of its rows and MARGIN_ROWS rows either side (the ungridded forward positions of a
+     * gridded pixel are within a few rows of the nadir ones).
+     */
+
+    static final int MATCHES = 4;
+    private static final int BAND_ROWS = 256;
+    private static final int MARGIN_ROWS = 8;
+    private static final double CELL_DEGREES = 0.01;
+    private static final double KM_PER_DEGREE = 111.195;
+    private static final ResultVariable[] NADIR_FOOTPRINT = {ResultVariable.NADIR_LATITUDE, ResultVariable.NADIR_LONGITUDE, ResultVariable.NADIR_ALONG_TRACK, ResultVariable.NADIR_ACROSS_TRACK, ResultVariable.NADIR_PIXEL_NUMBER};
+    private static final ResultVariable[] FORWARD_FOOTPRINT = {ResultVariable.FORWARD_LATITUDE, ResultVariable.FORWARD_LONGITUDE, ResultVariable.FORWARD_ALONG_TRACK, ResultVariable.FORWARD_ACROSS_TRACK, ResultVariable.FORWARD_PIXEL_NUMBER};
+
+    private final ResultArena results;
+    private final List<List<Double>> pixelProjectionMap;
+    private final int rows;
+    private final int columns;
+
+    private Collocator(ResultArena results, List<List<Double>> pixelProjectionMap) {
+        this.results = results;
+        this.pixelProjectionMap = pixelProjectionMap;
+        this.rows = results.getRows();
+        this.columns = results.getColumns();
+    }
+
+    static void collocate(ResultArena results, List<List<Double>> pixelProjectionMap, int threads) throws InterruptedException, ExecutionException {
+        System.out.println("Collocating nadir and forward view pixels");
+        long start = System.nanoTime();
+        final Collocator collocator = new Collocator(results, pixelProjectionMap);
+        ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> bands = new ArrayList<>();
+        try {
+            for (int row = 0; row < collocator.rows; row += BAND_ROWS) {
+                final int firstRow = row;
+                final int lastRow = Math.min(collocator.rows, row + BAND_ROWS);
+                bands.add(threadPool.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return collocator.collocateBand(firstRow, lastRow);
+                    }
+                }));
+            }
+            long matches = 0;
+            for (Future<Long> band : bands) {
+                matches += band.get();
+            }
+            System.out.println(String.format("Collocation: %d nadir/forward matches in %.1f s", matches, (System.nanoTime() - start) / 1.0e9));
+        } finally {
+            threadPool.shutdownNow();
+        }
+    }
+
+    private long collocateBand(int firstRow, int lastRow) {
+        // Hash the forward footprints of the band and its margins
+        int hashFirstRow = Math.max(0, firstRow - MARGIN_ROWS);
+        int hashLastRow = Math.min(rows, lastRow + MARGIN_ROWS);
+        CellHash hash = new CellHash((hashLastRow - hashFirstRow) * columns * 2);
+        // The forward footprints are kept while the band is probed
+        double[] forwardFootprints = new double[(hashLastRow - hashFirstRow) * columns * 4];
+        double[] footprint = new double[4];
+        for (int row = hashFirstRow; row < hashLastRow; row++) {
+            for (int column = 0; column < columns; column++) {
+                if (!getFootprint(false, row, column, footprint)) {
+                    continue;
+                }
+                int pixel = row * columns + column;
+                System.arraycopy(footprint, 0, forwardFootprints, (pixel - hashFirstRow * columns) * 4, 4);
+                double radius = Math.hypot(footprint[2], footprint[3]) / 2.0;
+                int firstLatitudeCell = latitudeCell(footprint[0] - radius / KM_PER_DEGREE);
+                int lastLatitudeCell = latitudeCell(footprint[0] + radius / KM_PER_DEGREE);
+                for (int latitudeCell = firstLatitudeCell; latitudeCell <= lastLatitudeCell; latitudeCell++) {
+                    int[] longitudeCells = longitudeCells(latitudeCell, footprint[0], footprint[1], radius);
+                    for (int k = 0; k < longitudeCells.length; k++) {
+                        hash.add(key(latitudeCell, longitudeCells[k]), pixel);
+                    }
+                }
+            }
+        }
+
+        // Probe with each nadir footprint and keep the largest overlaps
+        long matches = 0;
+        double[] forward = new double[4];
+        int[] candidates = new int[64];
+        int[] bestPixels = new int[MATCHES];
+        double[] bestWeights = new double[MATCHES];
+        for (int row = firstRow; row < lastRow; row++) {
+            for (int column = 0; column < columns; column++) {
+                Arrays.fill(bestPixels, -1);
+                Arrays.fill(bestWeights, 0.0);
+                if (getFootprint(true, row, column, footprint)) {
+                    double heading = trackHeading(row, column);
+                    double[] frame = {Math.cos(heading), Math.sin(heading), KM_PER_DEGREE * Math.cos(Math.toRadians(footprint[0]))};
+                    double radius = Math.hypot(footprint[2], footprint[3]) / 2.0;
+                    int candidateCount = 0;
+                    int firstLatitudeCell = latitudeCell(footprint[0] - radius / KM_PER_DEGREE);
+                    int lastLatitudeCell = latitudeCell(footprint[0] + radius / KM_PER_DEGREE);
+                    for (int latitudeCell = firstLatitudeCell; latitudeCell <= lastLatitudeCell; latitudeCell++) {
+                        for (int longitudeCell : longitudeCells(latitudeCell, footprint[0], footprint[1], radius)) {
+                            for (int entry = hash.first(key(latitudeCell, longitudeCell)); entry >= 0; entry = hash.next(entry)) {
+                                int pixel = hash.pixel(entry);
+                                boolean seen = false;
+                                for (int k = 0; k < candidateCount && !seen; k++) {
+                                    seen = candidates[k] == pixel;
+                                }
+                                if (seen) {
+                                    continue;
+                                }
+                                if (candidateCount == candidates.length) {
+                                    candidates = Arrays.copyOf(candidates, 2 * candidateCount);
+                                }
+                                candidates[candidateCount++] = pixel;
+                                System.arraycopy(forwardFootprints, (pixel - hashFirstRow * columns) * 4, forward, 0, 4);
+                                double weight = overlap(footprint, forward, frame);
+                                if (weight > bestWeights[MATCHES - 1]) {
+                                    insert(bestPixels, bestWeights, pixel, weight);
+                                }
+                            }
+                        }
+                    }
+                }
+                for (int k = 0; k < MATCHES; k++) {
+                    results.put(ResultVariable.COLLOCATED_PIXELS[k], row, column, bestPixels[k]);
+                    results.put(ResultVariable.COLLOCATED_WEIGHTS[k], row, column, bestWeights[k]);
+                    if (bestPixels[k] >= 0) {
+                        matches++;
+                    }
+                }
+            }
+        }
+        return matches;
+    }
+
+    private boolean getFootprint(boolean nadir, int row, int column, double[] footprint) {
+        // Latitude, longitude, along & across track extent (km) of the pixel, false for fill values
+        ResultVariable[] variables = FORWARD_FOOTPRINT;
+        if (nadir) {
+            variables = NADIR_FOOTPRINT;
+        }
+        footprint[0] = results.get(variables[0], row, column);
+        if (footprint[0] < -90.0) {
+            return false;
+        }
+        footprint[1] = results.get(variables[1], row, column);
+        if (results.contains(variables[2])) {
+            footprint[2] = results.get(variables[2], row, column);
+            footprint[3] = results.get(variables[3], row, column);
+        } else {
+            // Compact output, the extent comes from the instrument pixel number
+            List<Double> projection = pixelProjectionMap.get((int) results.get(variables[4], row, column));
+            footprint[2] = projection.get(0);
+            footprint[3] = projection.get(1);
+        }
+        return footprint[2] > 0.0 && footprint[3] > 0.0;
+    }
+
+    private double trackHeading(int row, int column) {
+        // Along track direction (radians clockwise from north) from the nadir pixels of the rows either side, or of this row if a side is a fill value
+        int before = Math.max(0, row - 1);
+        int after = Math.min(rows - 1, row + 1);
+        double latitude1 = results.get(ResultVariable.NADIR_LATITUDE, before, column);
+        double latitude2 = results.get(ResultVariable.NADIR_LATITUDE, after, column);
+        if (latitude1 < -90.0) {
+            before = row;
+            latitude1 = results.get(ResultVariable.NADIR_LATITUDE, row, column);
+        }
+        if (latitude2 < -90.0) {
+            after = row;
+            latitude2 = results.get(ResultVariable.NADIR_LATITUDE, row, column);
+        }
+        if (before == after) {
+            return 0.0;
+        }
+        double north = latitude2 - latitude1;
+        double east = wrap(results.get(ResultVariable.NADIR_LONGITUDE, after, column) - results.get(ResultVariable.NADIR_LONGITUDE, before, column)) * Math.cos(Math.toRadians((latitude1 + latitude2) / 2.0));
+        return Math.atan2(east, north);
+    }
+
+    private static double overlap(double[] nadir, double[] forward, double[] frame) {
+        /* Fraction of the nadir footprint covered by the forward footprint, both aligned with the track.
+         frame holds the cosine & sine of the track heading and the km per degree of longitude at the nadir pixel.
+         */
+        double north = (forward[0] - nadir[0]) * KM_PER_DEGREE;
+        double east = wrap(forward[1] - nadir[1]) * frame[2];
+        double along = north * frame[0] + east * frame[1];
+        double across = east * frame[0] - north * frame[1];
+        double alongOverlap = Math.min(nadir[2] / 2.0, along + forward[2] / 2.0) - Math.max(-nadir[2] / 2.0, along - forward[2] / 2.0);
+        double acrossOverlap = Math.min(nadir[3] / 2.0, across + forward[3] / 2.0) - Math.max(-nadir[3] / 2.0, across - forward[3] / 2.0);
+        if (alongOverlap <= 0.0 || acrossOverlap <= 0.0) {
+            return 0.0;
+        }
+        return (alongOverlap * acrossOverlap) / (nadir[2] * nadir[3]);
+    }
+
+    private static void insert(int[] pixels, double[] weights, int pixel, double weight) {
+        // Insert in decreasing weight order, dropping the smallest
+        int k = MATCHES - 1;
+        while (k > 0 && weights[k - 1] < weight) {
+            pixels[k] = pixels[k - 1];
+            weights[k] = weights[k - 1];
+            k--;
+        }
+        pixels[k] = pixel;
+        weights[k] = weight;
+    }
+
+    private static int latitudeCell(double latitude) {
+        return (int) Math.floor((latitude + 90.0) / CELL_DEGREES);
+    }
+
+    private static int[] longitudeCells(int latitudeCell, double latitude, double longitude, double radius) {
+        /* The longitude cells of the latitude cell within radius (km) of the position. The cells of a latitude cell
+         are CELL_DEGREES / cos(latitude) wide (whole cells around the globe), the cell numbers wrap at 180 degrees.
+         */
+        double cellLatitude = Math.min(89.0, Math.abs(latitudeCell * CELL_DEGREES - 90.0 + CELL_DEGREES / 2.0));
+        int cellsAround = (int) Math.max(1, Math.floor(360.0 * Math.cos(Math.toRadians(cellLatitude)) / CELL_DEGREES));
+        double cellWidth = 360.0 / cellsAround;
+        double longitudeRadius = radius / (KM_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(Math.min(89.0, Math.abs(latitude))))));
+        int first = (int) Math.floor((longitude - longitudeRadius + 180.0) / cellWidth);
+        int last = (int) Math.floor((longitude + longitudeRadius + 180.0) / cellWidth);
+        if (last - first + 1 >= cellsAround) {
+            first = 0;
+            last = cellsAround - 1;
+        }
+        int[] cells = new int[last - first + 1];
+        for (int k = 0; k < cells.length; k++) {
+            cells[k] = ((first + k) % cellsAround + cellsAround) % cellsAround;
+        }
+        return cells;
+    }
+
+    private static long key(int latitudeCell, int longitudeCell) {
+        return ((long) latitudeCell << 32) | longitudeCell;
+    }
+
+    private static double wrap(double longitudeDifference) {
+        return longitudeDifference - 360.0 * Math.floor((longitudeDifference + 180.0) / 360.0);
+    }
+
+    private static class CellHash {
+        /* Open addressing table from cell key to the first entry of the cell, the entries of a cell are chained */
+
+        private long[] keys;
+        private int[] heads;
+        private int size;
+        private int[] pixels;
+        private int[] nexts;
+        private int entries;
+
+        CellHash(int expectedEntries) {
+            int capacity = Integer.highestOneBit(Math.max(16, expectedEntries)) * 2;
+            keys = new long[capacity];
+            heads = new int[capacity];
+            Arrays.fill(heads, -1);
+            pixels = new int[Math.max(16, expectedEntries)];
+            nexts = new int[pixels.length];
+        }
+
+        void add(long key, int pixel) {
+            if (entries == pixels.length) {
+                pixels = Arrays.copyOf(pixels, 2 * entries);
+                nexts = Arrays.copyOf(nexts, 2 * entries);
+            }
+            if (2 * (size + 1) > keys.length) {
+                rehash();
+            }
+            int slot = slot(key);
+            if (heads[slot] < 0) {
+                keys[slot] = key;
+                size++;
+            }
+            pixels[entries] = pixel;
+            nexts[entries] = heads[slot];
+            heads[slot] = entries;
+            entries++;
+        }
+
+        int first(long key) {
+            return heads[slot(key)];
+        }
+
+        int next(int entry) {
+            return nexts[entry];
+        }
+
+        int pixel(int entry) {
+            return pixels[entry];
+        }
+
+        private int slot(long key) {
+            // Linear probing from a mixed hash of the key, an empty slot has head -1
+            long mixed = key * 0x9E3779B97F4A7C15L;
+            int slot = (int) (mixed >>> 40) & (keys.length - 1);
+            while (heads[slot] >= 0 && keys[slot] != key) {
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            return slot;
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            int[] oldHeads = heads;
+            keys = new long[2 * oldKeys.length];
+            heads = new int[2 * oldHeads.length];
+            Arrays.fill(heads, -1);
+            for (int k = 0; k < oldKeys.length; k++) {
+                if (oldHeads[k] >= 0) {
+                    int slot = slot(oldKeys[k]);
+                    keys[slot] = oldKeys[k];
+                    heads[slot] = oldHeads[k];
+                }
+            }
+        }
+    }
+}
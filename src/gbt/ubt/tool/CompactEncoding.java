@@ -0,0 +1,119 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.util.List;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class CompactEncoding {
+    /* This class holds the lookup tables of the compact output mode.
+     * The pixel acquisition time only depends on the instrument scan and pixel numbers (scan time + pixel offset) and the
+     * FOV projection only on the instrument pixel number, so instead of the per pixel values the output holds the scan and
+     * pixel numbers of each pixel, the time of each instrument scan and the FOV projection of each instrument pixel number.
+     * The expansion below reproduces the values (and fill values) of the full output exactly.
+     */
+
+    static final String GROUP = "Instrument_Indices";
+    static final String SCAN_TIME = "Scan_Time";
+    static final String FOV_ALONG_TRACK = "FOV_Along_Track";
+    static final String FOV_ACROSS_TRACK = "FOV_Across_Track";
+    static final String FIRST_SCAN_NUMBER = "first_scan_number";
+
+    private final int firstScanNumber;
+    private final double[] scanTimes;
+    private final float[] alongTrack;
+    private final float[] acrossTrack;
+
+    CompactEncoding(int firstScanNumber, double[] scanTimes, float[] alongTrack, float[] acrossTrack) {
+        this.firstScanNumber = firstScanNumber;
+        this.scanTimes = scanTimes;
+        this.alongTrack = alongTrack;
+        this.acrossTrack = acrossTrack;
+    }
+
+    static CompactEncoding create(int[] scanNumberRange, int s0, N1ADSReader.ScanPixelADS scanPixelADS, List<List<Double>> pixelProjectionMap) {
+        // Solve the time of every scan in the range
+        int firstScanNumber = Math.max(1, scanNumberRange[0]);
+        int numberOfScans = Math.max(0, scanNumberRange[1] - firstScanNumber + 1);
+        double[] scanTimes = new double[numberOfScans];
+        for (int k = 0; k < numberOfScans; k++) {
+            scanTimes[k] = PixelCoordinateInterpolator.solveScanTime(firstScanNumber + k, s0, scanPixelADS);
+        }
+        // The FOV projection of every instrument pixel number, stored as in the full output (float)
+        float[] alongTrack = new float[pixelProjectionMap.size()];
+        float[] acrossTrack = new float[pixelProjectionMap.size()];
+        for (int p = 0; p < pixelProjectionMap.size(); p++) {
+            alongTrack[p] = (float) (double) pixelProjectionMap.get(p).get(0);
+            acrossTrack[p] = (float) (double) pixelProjectionMap.get(p).get(1);
+        }
+        return new CompactEncoding(firstScanNumber, scanTimes, alongTrack, acrossTrack);
+    }
+
+    int getFirstScanNumber() {
+        return firstScanNumber;
+    }
+
+    double[] getScanTimes() {
+        return scanTimes;
+    }
+
+    float[] getAlongTrack() {
+        return alongTrack;
+    }
+
+    float[] getAcrossTrack() {
+        return acrossTrack;
+    }
+
+    double acquisitionTime(boolean nadir, int scan, int pixel) {
+        /* Fill values as Calculator: -999999.0 no data, -888888.0 nadir scans <= 32 */
+        if (scan == 0 || pixel == 0) {
+            return -999999.0;
+        }
+        if (nadir && scan <= 32) {
+            return -888888.0;
+        }
+        int index = scan - firstScanNumber;
+        if (index < 0 || index >= scanTimes.length) {
+            return -999999.0;
+        }
+        return scanTimes[index] + PixelCoordinateInterpolator.pixelTimeOffset(pixel);
+    }
+
+    float alongTrack(int pixel) {
+        if (pixel < 0 || pixel >= alongTrack.length) {
+            return -999999.0f;
+        }
+        return alongTrack[pixel];
+    }
+
+    float acrossTrack(int pixel) {
+        if (pixel < 0 || pixel >= acrossTrack.length) {
+            return -999999.0f;
+        }
+        return acrossTrack[pixel];
+    }
+}
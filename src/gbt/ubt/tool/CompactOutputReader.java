@@ -0,0 +1,178 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+public class CompactOutputReader implements Closeable {
+    /* This class expands the acquisition times and FOV projections of a compact output file (--compact) on demand,
+     * using the instrument scan & pixel numbers of each pixel and the lookup tables (see CompactEncoding).
+     * Both the HDF5 (.h5) and netCDF4 (.nc) outputs are read with the netCDF Java library.
+     *
+     * Usage: java -cp GBT-UBT-Tool.jar gbt.ubt.tool.CompactOutputReader <output-file> <[ix,iy]>
+     * prints the expanded values of output pixel ix (across track), iy (along track)
+     */
+
+    private final NetcdfFile file;
+    private final CompactEncoding encoding;
+
+    private CompactOutputReader(NetcdfFile file, CompactEncoding encoding) {
+        this.file = file;
+        this.encoding = encoding;
+    }
+
+    public static CompactOutputReader open(String location) throws IOException {
+        NetcdfFile file = NetcdfFile.open(location);
+        try {
+            Variable scanTimes = findVariable(file, CompactEncoding.SCAN_TIME);
+            Attribute firstScanNumber = scanTimes.findAttribute(CompactEncoding.FIRST_SCAN_NUMBER);
+            if (firstScanNumber == null) {
+                throw new IOException("Missing attribute " + CompactEncoding.FIRST_SCAN_NUMBER + " in " + location);
+            }
+            CompactEncoding encoding = new CompactEncoding(firstScanNumber.getNumericValue().intValue(),
+                    (double[]) scanTimes.read().get1DJavaArray(double.class),
+                    (float[]) findVariable(file, CompactEncoding.FOV_ALONG_TRACK).read().get1DJavaArray(float.class),
+                    (float[]) findVariable(file, CompactEncoding.FOV_ACROSS_TRACK).read().get1DJavaArray(float.class));
+            return new CompactOutputReader(file, encoding);
+        } catch (IOException | RuntimeException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    private static Variable findVariable(NetcdfFile file, String name) throws IOException {
+        Variable variable = file.findVariable(CompactEncoding.GROUP + "/" + name);
+        if (variable == null) {
+            throw new IOException("Not a compact output file, missing " + CompactEncoding.GROUP + "/" + name);
+        }
+        return variable;
+    }
+
+    public boolean hasView(boolean nadir) {
+        // False for the view not written by a single view run (--view)
+        String name = ResultVariable.FORWARD_SCAN_NUMBER.datasetName;
+        if (nadir) {
+            name = ResultVariable.NADIR_SCAN_NUMBER.datasetName;
+        }
+        return file.findVariable(CompactEncoding.GROUP + "/" + name) != null;
+    }
+
+    public double[] readAcquisitionTimes(boolean nadir, int firstRow, int rowCount) throws IOException {
+        /* Returns the acquisition times (MJD2000) of the output rows, row major */
+        int[] scans = readIndices(nadir, true, firstRow, rowCount);
+        int[] pixels = readIndices(nadir, false, firstRow, rowCount);
+        double[] times = new double[scans.length];
+        for (int k = 0; k < scans.length; k++) {
+            times[k] = encoding.acquisitionTime(nadir, scans[k], pixels[k]);
+        }
+        return times;
+    }
+
+    public float[] readAlongTrack(boolean nadir, int firstRow, int rowCount) throws IOException {
+        /* Returns the FOV projection along track (km) of the output rows, row major */
+        int[] pixels = readIndices(nadir, false, firstRow, rowCount);
+        float[] extent = new float[pixels.length];
+        for (int k = 0; k < pixels.length; k++) {
+            extent[k] = encoding.alongTrack(pixels[k]);
+        }
+        return extent;
+    }
+
+    public float[] readAcrossTrack(boolean nadir, int firstRow, int rowCount) throws IOException {
+        /* Returns the FOV projection across track (km) of the output rows, row major */
+        int[] pixels = readIndices(nadir, false, firstRow, rowCount);
+        float[] extent = new float[pixels.length];
+        for (int k = 0; k < pixels.length; k++) {
+            extent[k] = encoding.acrossTrack(pixels[k]);
+        }
+        return extent;
+    }
+
+    private int[] readIndices(boolean nadir, boolean scanNumbers, int firstRow, int rowCount) throws IOException {
+        ResultVariable variable;
+        if (nadir) {
+            variable = ResultVariable.NADIR_PIXEL_NUMBER;
+            if (scanNumbers) {
+                variable = ResultVariable.NADIR_SCAN_NUMBER;
+            }
+        } else {
+            variable = ResultVariable.FORWARD_PIXEL_NUMBER;
+            if (scanNumbers) {
+                variable = ResultVariable.FORWARD_SCAN_NUMBER;
+            }
+        }
+        Variable indices = findVariable(file, variable.datasetName);
+        int[] shape = indices.getShape();
+        try {
+            Array section = indices.read(new int[]{firstRow, 0}, new int[]{rowCount, shape[1]});
+            int[] values = new int[(int) section.getSize()];
+            for (int k = 0; k < values.length; k++) {
+                values[k] = section.getInt(k);
+            }
+            return values;
+        } catch (InvalidRangeException ex) {
+            throw new IOException("Rows " + firstRow + " to " + (firstRow + rowCount - 1) + " are outside the output", ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Usage: CompactOutputReader <output-file> <[ix,iy]>");
+            System.exit(1);
+        }
+        String[] pixel = args[1].replace("[", "").replace("]", "").split(",");
+        int ix = Integer.parseInt(pixel[0].trim());
+        int iy = Integer.parseInt(pixel[1].trim());
+        try (CompactOutputReader reader = CompactOutputReader.open(args[0])) {
+            String[] views = {"Nadir", "Forward"};
+            for (String view : views) {
+                boolean nadir = view.equals("Nadir");
+                if (!reader.hasView(nadir)) {
+                    continue;
+                }
+                System.out.println(view + " acquisition time (MJD2000): " + reader.readAcquisitionTimes(nadir, iy, 1)[ix]);
+                System.out.println(view + " FOV along track (km): " + reader.readAlongTrack(nadir, iy, 1)[ix]);
+                System.out.println(view + " FOV across track (km): " + reader.readAcrossTrack(nadir, iy, 1)[ix]);
+            }
+        } catch (IOException | RuntimeException ex) {
+            System.out.println(ex.getMessage());
+            System.out.println("Error reading compact output");
+            System.exit(1);
+        }
+    }
+}
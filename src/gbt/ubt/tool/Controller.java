@@ -1,424 +1,675 @@
-/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
- * 
- * Copyright (C) 2015 Telespazio VEGA UK Ltd
- * 
- * This file is part of the AATSR GBT-UBT-Tool.
- * 
- * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
- * it under the terms of the GNU General Public License as published by
- * the Free Software Foundation, either version 3 of the License, or
- * (at your option) any later version.
- * 
- * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- * 
- * You should have received a copy of the GNU General Public License
- * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
- * 
- */
-
-package gbt.ubt.tool;
-
-import com.bc.ceres.glevel.MultiLevelImage;
-import java.io.File;
-import java.io.IOException;
-//import java.io.BufferedInputStream;
-//import java.io.File;
-//import java.io.FileInputStream;
-//import java.io.FileOutputStream;
-//import java.io.ObjectInputStream;
-//import java.io.ObjectOutputStream;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.RunnableFuture;
-import java.util.concurrent.TimeUnit;
-import org.esa.beam.framework.dataio.ProductIO;
-import org.esa.beam.framework.dataio.ProductReader;
-import org.esa.beam.framework.datamodel.Band;
-import org.esa.beam.framework.datamodel.MetadataAttribute;
-import org.esa.beam.framework.datamodel.MetadataElement;
-import org.esa.beam.framework.datamodel.Product;
-import org.esa.beam.framework.datamodel.ProductData;
-import org.esa.beam.framework.datamodel.ProductNodeGroup;
-import org.esa.beam.util.logging.BeamLogManager;
-import org.orekit.errors.OrekitException;
-import org.orekit.propagation.BoundedPropagator;
-
-/**
- *
- * @author ABeaton, Telespazio VEGA UK Ltd 30/10/2013
- *
- * Contact: alasdhair(dot)beaton(at)telespazio(dot)com
- *
- */
-public class Controller {
-    /* This class is the main class of the GBT-UBT-Tool and sets up and controls the execution of the entire process.
-     * 
-     * 
-     * Ungrids AATSR L1B products and extracts geolocation data
-     * 
-     * INPUTS
-     * ATSR level 1B product (Envisat Data Product (.N1) format)
-     * L1B Characterisation File (binary)
-     * AATSR FOV Calibration Measurement File (ASCII (.SFV) format)
-     * (OPTIONAL) GlobalDigital Elevation Model for Orthorectification (GeoTIFF (.tif) format)
-     * 
-     * OUTPUTS
-     * Extracted un-gridded geolocation, acquisition time & channel Field of View Map (HDF5 (.h5) or NetCDF4 CF (.nc) formats)
-     * 
-     * Usage: gbt2ubt <aatsr-product> <l1b-characterisation-file> <fov-measurement-file> <output-file(.h5/.nc)> <rows-per-CPU-thread> <IFOV-reporting-extent-fraction> <Trim-end-of-product> <Pixel Reference> <Topography> <Topo-Relation> <Ortho> <DEM> OPT<[ix,iy]> OPT<[jx,jy]> 
-     * Example: java -jar GBT-UBT-Tool.jar "./l1b_sample.n1" "./ATS_CH1_AXVIEC20120615_105541_20020301_000000_20200101_000000" "./FOV_measurements/10310845.SFV" "./output.nc" "1000" "0.4" "TRUE" "Corner" "FALSE" "0.05" "TRUE" "./DEM/global/gt30_global.tif" "[0,0]" "[511,2559]"
-     * 
-     * Uses the BEAM Java API 4.11, available @ (http://www.brockmann-consult.de/cms/web/beam/releases)
-     * Uses the Java HDF5 Interface (JHI5), available @ (http://www.hdfgroup.org/hdf-java-html/)
-     * Uses the Java NetCDF Interface, available @ (http://www.unidata.ucar.edu/software/thredds/current/netcdf-java/documentation.htm)
-     * Uses the Orekit 7.0 space dynamics library (for orthorectification), available @ (https://www.orekit.org/download.html)
-     */
-
-    /**
-     * @param args the command line arguments: 
-     * args[0] = (A)ATSR-1/2 product 
-     * args[1] = L1B characterisation file 
-     * args[2] = AATSR FOV calibration measurement file
-     * args[3] = output file (either hdf5 or netcdf4 cf depending on file extension)
-     * args[4] = rows assigned per CPU thread 
-     * args[5] = extent of IFOV to report as distance in pixel projection
-     * args[6] = boolean to allow user to trim image rows of product where no ADS available
-     * args[7] = to where the pixel coordinates are reference Centre/Corner
-     * args[8] = boolean to apply topographic corrections to tie points
-     * args[9] = distance (image coordinates) pixel can be from tie-point to have topo correction applied
-     * args[10]= boolean to orthorectify using an external DEM
-     * args[11]= location of external Global DEM GeoTIFF (Note dummy parameter must be passed if orthorectify set FALSE)
-     * args[12]= optional argument to convert pixel ix, iy
-     * args[13]= optional argument used with args[11] to convert array of pixels [ix,iy], [jx,jy]
-     */
-    private static InputParameters parameters;
-
-    public static void main(String[] args) {
-        System.out.println("AATSR Pixel Ungridding Tool Version 1.6");
-
-        //Check that the input array is the right length
-        checkInputs(args);
-
-        // Parse the inputs and set up the activity
-        parameters = new InputParameters();
-        parameters.parse(args);
-        parameters.toolVersion = "1.6";
-        processProduct();
-
-        System.out.println("Processing Complete");
-        System.out.println("Output file written to: " + System.getProperty("user.dir") + parameters.outputFileLocation);
-        System.exit(0);
-    }
-
-    private static void checkInputs(String[] args) {
-        if (args.length < 12 || args.length > 14) {
-            System.out.println("Check Program Inputs");
-            System.out.println("Usage: gbt2ubt <aatsr-product> <l1b-characterisation-file> <fov-measurement-file> <output-file(.h5/.nc)> <rows-per-CPU-thread> <IFOV-reporting-extent-fraction> <Trim-end-of-product> <Pixel Reference> <Topography> <Topo-relation> <Ortho> <DEM> OPT<[ix,iy]> OPT<[jx,jy]>");
-            System.exit(1);
-        }
-    }
-
-    private static void processProduct() {
-        // This method sets up the parallelism, calls the calculation tool and collates the results prior to output
-        try {
-            System.out.println("Calculating Pixel Geolocation, Sample Times & FOV");
-
-            // Mask some warnings
-            BeamLogManager.removeRootLoggerHandlers();
-            System.setProperty("com.sun.media.jai.disableMediaLib", "true");
-
-            // Get the ADS from the product
-            Product readProduct = ProductIO.readProduct(parameters.inputFileLocation);
-            MetadataElement metadataRoot = readProduct.getMetadataRoot();
-            final ProductNodeGroup<MetadataElement> NADIR_VIEW_SCAN_PIX_NUM_ADS_Records = metadataRoot.getElement("NADIR_VIEW_SCAN_PIX_NUM_ADS").getElementGroup();
-            final ProductNodeGroup<MetadataElement> FWARD_VIEW_SCAN_PIX_NUM_ADS_Records = metadataRoot.getElement("FWARD_VIEW_SCAN_PIX_NUM_ADS").getElementGroup();
-            final ProductNodeGroup<MetadataElement> SCAN_PIXEL_X_AND_Y_ADS_Records = metadataRoot.getElement("SCAN_PIXEL_X_AND_Y_ADS").getElementGroup();
-            final ProductNodeGroup<MetadataElement> GEOLOCATION_ADS_Records = metadataRoot.getElement("GEOLOCATION_ADS").getElementGroup();
-
-            // Get the dimensions of the product using one of the bands
-            Band band = readProduct.getBand("btemp_nadir_1200");
-            MultiLevelImage sourceImage = band.getSourceImage();
-
-            int maxXValue;
-            int maxY;
-            int minXValue = 0;
-            int minYValue = 0;
-
-            // If subseting the product, set the min/max dimensions according to input
-            if (parameters.subsetFlag == true) {
-                maxXValue = parameters.x2;
-                maxY = parameters.y2;
-                minXValue = parameters.x1;
-                minYValue = parameters.y1;
-            } else {
-                maxXValue = sourceImage.getMaxX();
-                maxY = sourceImage.getMaxY();
-            }
-            final int maxX = maxXValue;
-            final int minX = minXValue;
-            final int minY = minYValue;
-
-            if (maxX > sourceImage.getMaxX()) {
-                System.out.println("Check input X coordinate");
-            }
-
-            if (maxY > sourceImage.getMaxY()) {
-                System.out.println("Check input Y coordinate");
-            }
-
-            if (parameters.trimProductEndWhereNoADS && !parameters.subsetFlag) {
-                // If true, trim product for image rows where no ADS is available
-                // (ATSR-1/2 have less image rows than ADS cover)
-                int a = 32 * SCAN_PIXEL_X_AND_Y_ADS_Records.getNodeCount() + 32;
-                int b = 32 * GEOLOCATION_ADS_Records.getNodeCount() + 32;
-                int c = 32 * NADIR_VIEW_SCAN_PIX_NUM_ADS_Records.getNodeCount() + 32;
-                int d = 32 * FWARD_VIEW_SCAN_PIX_NUM_ADS_Records.getNodeCount() + 32;
-                maxY = GeolocationInterpolator.getMinValue(a, b, c, d);
-                if (maxY > sourceImage.getMaxY()){
-                    maxY = sourceImage.getMaxY();
-                }
-                System.out.println("Number of image rows covered by ADS: "+maxY+" / "+sourceImage.getMaxY());
-            }
-
-            // Get list of GeoLocation ADS scanYCoords (Seems to be very expensive so only compute once)
-            final List<Double> scanYCoords = new ArrayList<>();
-            for (int k = 0; k < GEOLOCATION_ADS_Records.getNodeCount(); k++) {
-                MetadataElement GeoAdsRecord = GEOLOCATION_ADS_Records.get(k);
-                scanYCoords.add(GeoAdsRecord.getAttributeDouble("img_scan_y"));
-            }
-
-            /* Get the scan number of the first record of the scanPixelADS */
-            MetadataElement firstRecord = SCAN_PIXEL_X_AND_Y_ADS_Records.get(0);
-            MetadataAttribute instr_scan_num = firstRecord.getAttributeAt(2);
-            ProductData data = instr_scan_num.getData();
-
-            final int s0 = data.getElemInt();
-
-            readProduct.closeIO();
-
-            // Get the pixel projection map (along and across track extent) for all 2000 pixels
-            // This assumes spherical earth geometry & constant platform altitude
-            final List<List<Double>> pixelProjectionMap = new ArrayList<>();
-            Calculator.getConstantPixelProjection(parameters, pixelProjectionMap);
-
-            // Compute the ephemeris of the satellite for image orthorectification
-            final BoundedPropagator ephemeris = Orthorectifier.generateEphemeris(parameters);
-
-            // Load DEM from external file
-            Band heightData = null;
-            if (parameters.orthorectify) {
-                System.out.println("Loading DEM: " + parameters.DEMFilename);
-                File dem = new File(parameters.DEMFilename);
-                if (dem.canRead()) {
-                    ProductReader productReader = ProductIO.getProductReader("GeoTIFF");
-                    Product demData = productReader.readProductNodes(dem, null);
-                    heightData = demData.getBandAt(0);
-                } else {
-                    System.out.println("Could not read DEM file. Currently only a global GeoTIFF \".tif\" is supported");
-                    throw new RuntimeException();
-                }
-            }
-            final Band DEM = heightData;
-
-            // Get number of available processsors and create threads for each one
-            final int availableProcessors = Runtime.getRuntime().availableProcessors();
-            System.out.println("Number of available processors: " + availableProcessors);
-            ExecutorService threadPool = Executors.newFixedThreadPool(availableProcessors);
-
-            // Assign number of image rows per thread
-            final int rowsPerThread = parameters.rowsPerThread;
-
-            // Calculate required number of normal (i.e. full length threads)
-            final int numberOfFullThreads = (int) Math.floor((double) (maxY - minY) / (double) rowsPerThread);
-            System.out.println("Image broken down into " + (numberOfFullThreads + 1) + " threads");
-            // Assign number of image rows for final short thread
-            final int rowsInFinalThread = (maxY - minY) - (numberOfFullThreads * (rowsPerThread));
-
-            // Check all image rows assigned
-            if (((numberOfFullThreads * rowsPerThread) + rowsInFinalThread) != (maxY - minY)) {
-                System.out.println("Failed to calculate number of image rows per thread");
-                throw new RuntimeException();
-            }
-            final InputParameters finalParameters = parameters;
-            List<RunnableFuture> tasks = new ArrayList<>();
-
-            // Create task for each thread, use calculator to compute results and return thread storage location as tempResult
-            for (int i = 0; i < numberOfFullThreads; i++) {
-                final int j = i;
-                RunnableFuture task = new FutureTask(new Callable<double[][][]>() {
-                    @Override
-                    public double[][][] call() {
-                        double[][][] tempResult = new double[rowsPerThread][maxX - minX][10];
-                        String threadName = "Thread_" + String.valueOf(j);
-                        int startingScanNumber = j * rowsPerThread + minY;
-                        try {
-                            Calculator.unGrid(tempResult, startingScanNumber, rowsPerThread, minX, maxX, s0, NADIR_VIEW_SCAN_PIX_NUM_ADS_Records, FWARD_VIEW_SCAN_PIX_NUM_ADS_Records, SCAN_PIXEL_X_AND_Y_ADS_Records, GEOLOCATION_ADS_Records, scanYCoords, threadName, finalParameters, pixelProjectionMap, ephemeris, DEM);
-                        } catch (Exception ex) {
-                            System.out.println(threadName + " crash");
-                            ex.printStackTrace(System.out);
-                            System.out.println(ex.getMessage());
-                        }
-                        // This commented code is for serialising the results to a temporary file and is currently unused
-//                        try {
-//                            threadName += ".temp";
-//                            ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(threadName));
-//                            out.writeObject(tempResult);
-//                            out.close();
-//                        } catch (Exception ex) {
-//                            System.out.println(threadName + " crash");
-//                            System.out.println(ex.getMessage());
-//                        }
-                        return tempResult;
-                    }
-                });
-                tasks.add(task);
-                try {
-                    Future<?> submit = threadPool.submit(task);
-                    if (submit.isCancelled()) {
-                        System.out.println("Worker thread cancelled prematurely");
-                    }
-                } catch (Exception ex) {
-                    System.out.println("Unable to submit task to thread");
-                    throw new RuntimeException();
-                }
-            }
-            // Set up task for final (shorter) thread
-            RunnableFuture finalTask = new FutureTask(new Callable<double[][][]>() {
-                @Override
-                public double[][][] call() {
-                    double[][][] tempResult = new double[rowsInFinalThread][maxX - minX][10];
-                    String threadName = "Thread_final";
-                    int startingScanNumber = rowsPerThread * (numberOfFullThreads) + minY;
-                    try {
-                        Calculator.unGrid(tempResult, startingScanNumber, rowsInFinalThread, minX, maxX, s0, NADIR_VIEW_SCAN_PIX_NUM_ADS_Records, FWARD_VIEW_SCAN_PIX_NUM_ADS_Records, SCAN_PIXEL_X_AND_Y_ADS_Records, GEOLOCATION_ADS_Records, scanYCoords, threadName, finalParameters, pixelProjectionMap, ephemeris, DEM);
-                    } catch (Exception ex) {
-                        System.out.println(threadName + " crash");
-                        ex.printStackTrace(System.out);
-                        System.out.println(ex.getMessage());
-                    }
-                    // This commented code is for serialising the results to a temporary file and is currently unused
-//                    try {
-//                        threadName += ".temp";
-//                        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(threadName));
-//                        out.writeObject(tempResult);
-//                        out.close();
-//                    } catch (Exception ex) {
-//                        System.out.println(threadName + " crash");
-//                        System.out.println(ex.getMessage());
-//                    }
-                    return tempResult;
-                }
-            });
-            Future<?> submit = threadPool.submit(finalTask);
-            if (submit.isCancelled()) {
-                System.out.println("Final thread cancelled prematurely");
-            }
-
-            // Wait for threads to finish computations (max limit 60 mins)
-            try {
-                threadPool.shutdown();
-                threadPool.awaitTermination(60, TimeUnit.MINUTES);
-            } catch (InterruptedException ex) {
-                System.out.println(ex.getMessage());
-            }
-
-
-
-            /* Create an array structure for properties of each pixel
-             Imagine 2D arrays representing pixels across track by along track, stacked into 3D
-             The 2D arrays contain pixel values for:
-             0- Nadir View Latitude
-             1- Nadir View Longitude
-             2- Forward View Latitude
-             3- Forward View Longitude
-             4- Nadir View Acquisition Times
-             5- Forward View Acquisition Times
-             6- Nadir View Pixel Field of View (FOV) Across Track
-             7- Nadir View Pixel FOV Along Track     
-             8- Forward View Pixel FOV Across Track
-             9- Forward View Pixel FOV Along Track
-             */
-            double[][][] pixelPositions = new double[maxY - minY][maxX - minX][10];
-            // Get the computation results and place them in the final array for ouput
-            if (threadPool.isTerminated()) {
-                try {
-                    int n = 0;
-                    for (RunnableFuture task : tasks) {
-                        // This commented code is for returning the serialised results from a temp file and is currently unused
-//                        String tempFile = (String) task.get();
-//                        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(tempFile)));
-//                        double[][][] result = (double[][][]) in.readObject();
-                        double[][][] result = (double[][][]) task.get();
-                        for (int i = 0; i < result.length; i++) {
-                            for (int j = 0; j < result[0].length; j++) {
-                                pixelPositions[n + i][j][0] = result[i][j][0];
-                                pixelPositions[n + i][j][1] = result[i][j][1];
-                                pixelPositions[n + i][j][2] = result[i][j][5];
-                                pixelPositions[n + i][j][3] = result[i][j][6];
-                                pixelPositions[n + i][j][4] = result[i][j][2];
-                                pixelPositions[n + i][j][5] = result[i][j][7];
-                                pixelPositions[n + i][j][6] = result[i][j][3];
-                                pixelPositions[n + i][j][7] = result[i][j][4];
-                                pixelPositions[n + i][j][8] = result[i][j][8];
-                                pixelPositions[n + i][j][9] = result[i][j][9];
-                            }
-                        }
-                        n += result.length;
-//                        in.close();
-                    }
-                    // This commented code is for returning the serialised results from a temp file and is currently unused
-//                    String tempFile = (String) finalTask.get();
-//                    ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(tempFile)));
-//                    double[][][] result = (double[][][]) in.readObject();
-                    double[][][] result = (double[][][]) finalTask.get();
-                    for (int i = 0; i < result.length; i++) {
-                        for (int j = 0; j < result[0].length; j++) {
-                            pixelPositions[n + i][j][0] = result[i][j][0];
-                            pixelPositions[n + i][j][1] = result[i][j][1];
-                            pixelPositions[n + i][j][2] = result[i][j][5];
-                            pixelPositions[n + i][j][3] = result[i][j][6];
-                            pixelPositions[n + i][j][4] = result[i][j][2];
-                            pixelPositions[n + i][j][5] = result[i][j][7];
-                            pixelPositions[n + i][j][6] = result[i][j][3];
-                            pixelPositions[n + i][j][7] = result[i][j][4];
-                            pixelPositions[n + i][j][8] = result[i][j][8];
-                            pixelPositions[n + i][j][9] = result[i][j][9];
-                        }
-                    }
-//                    in.close();
-                } catch (InterruptedException | ExecutionException ex) {
-                    System.out.println(ex.getMessage());
-                }
-            }
-            // This commented code is for removing the serialised results from a temp file and is currently unused
-//            /* Remove the temporary result files */
-//            for (RunnableFuture task : tasks) {
-//                File filename = new File((String) task.get());
-//                filename.deleteOnExit();
-//            }
-//            File filename = new File((String) finalTask.get());
-//            filename.deleteOnExit();
-
-            if (parameters.outputFileLocation.contains(".h5")){
-                HDFWriter.writeDataTofile(parameters, pixelPositions, maxX, maxY, minX, minY);
-            } else{
-                NetCDF4Writer.writeDataTofile(parameters, pixelPositions, maxX, maxY, minX, minY);
-            }
-
-        } catch (IOException | OrekitException | RuntimeException ex) {
-            System.out.println(ex.getCause());
-            System.out.println(ex.fillInStackTrace());
-            System.out.println("Error in setup");
-            System.exit(1);
-        }
-    }
-}
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ * 
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ * 
+ * This file is part of the AATSR GBT-UBT-Tool.
+ * 
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package gbt.ubt.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.dataio.ProductReader;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.util.logging.BeamLogManager;
+import org.orekit.errors.OrekitException;
+import org.orekit.propagation.BoundedPropagator;
+
+/**
+ *
+ * @author ABeaton, Telespazio VEGA UK Ltd 30/10/2013
+ *
+ * Contact: alasdhair(dot)beaton(at)telespazio(dot)com
+ *
+ */
+public class Controller {
+    /* This class is the main class of the GBT-UBT-Tool and sets up and controls the execution of the entire process.
+     * 
+     * 
+     * Ungrids AATSR L1B products and extracts geolocation data
+     * 
+     * INPUTS
+     * ATSR level 1B product (Envisat Data Product (.N1) format)
+     * L1B Characterisation File (binary)
+     * AATSR FOV Calibration Measurement File (ASCII (.SFV) format)
+     * (OPTIONAL) GlobalDigital Elevation Model for Orthorectification (GeoTIFF (.tif) format)
+     * 
+     * OUTPUTS
+     * Extracted un-gridded geolocation, acquisition time & channel Field of View Map (HDF5 (.h5), NetCDF4 CF (.nc) or chunked Zarr directory (.zarr) formats)
+     * 
+     * Usage: gbt2ubt <aatsr-product> <l1b-characterisation-file> <fov-measurement-file> <output-file(.h5/.nc/.zarr/.csv)> <rows-per-CPU-thread> <IFOV-reporting-extent-fraction> <Trim-end-of-product> <Pixel Reference> <Topography> <Topo-Relation> <Ortho> <DEM> OPT<[ix,iy]> OPT<[jx,jy]> 
+     * Example: java -jar GBT-UBT-Tool.jar "./l1b_sample.n1" "./ATS_CH1_AXVIEC20120615_105541_20020301_000000_20200101_000000" "./FOV_measurements/10310845.SFV" "./output.nc" "1000" "0.4" "TRUE" "Corner" "FALSE" "0.05" "TRUE" "./DEM/global/gt30_global.tif" "[0,0]" "[511,2559]"
+     * 
+     * Uses the BEAM Java API 4.11, available @ (http://www.brockmann-consult.de/cms/web/beam/releases)
+     * Uses the Java HDF5 Interface (JHI5), available @ (http://www.hdfgroup.org/hdf-java-html/)
+     * Uses the Java NetCDF Interface, available @ (http://www.unidata.ucar.edu/software/thredds/current/netcdf-java/documentation.htm)
+     * Uses the Orekit 7.0 space dynamics library (for orthorectification), available @ (https://www.orekit.org/download.html)
+     */
+
+    /**
+     * @param args the command line arguments: 
+     * args[0] = (A)ATSR-1/2 product 
+     * args[1] = L1B characterisation file 
+     * args[2] = AATSR FOV calibration measurement file
+     * args[3] = output file (either hdf5 or netcdf4 cf depending on file extension)
+     * args[4] = rows assigned per CPU thread 
+     * args[5] = extent of IFOV to report as distance in pixel projection
+     * args[6] = boolean to allow user to trim image rows of product where no ADS available
+     * args[7] = to where the pixel coordinates are reference Centre/Corner
+     * args[8] = boolean to apply topographic corrections to tie points
+     * args[9] = distance (image coordinates) pixel can be from tie-point to have topo correction applied
+     * args[10]= boolean to orthorectify using an external DEM
+     * args[11]= location of external Global DEM GeoTIFF (Note dummy parameter must be passed if orthorectify set FALSE)
+     * args[12]= optional argument to convert pixel ix, iy
+     * args[13]= optional argument used with args[11] to convert array of pixels [ix,iy], [jx,jy]
+     * Optional settings may follow as --name or --name value (see InputParameters):
+     * --offheap  hold the results outside the Java heap
+     * --compact  output instrument scan & pixel numbers with lookup tables instead of acquisition times & FOV projections
+     * --pack-latlon  store latitudes & longitudes as packed int32 (scale_factor 1e-6)
+     * --spill <dir>  hold the results in memory mapped temporary files in dir, the heap use no longer grows with the product
+     * --roi <box|wkt>  process only the image window covering a lon/lat box "minLon,minLat,maxLon,maxLat" or a WKT polygon
+     * --points <file>  ungrid only the pixels [ix,iy] or locations lat,lon listed in file, written as a CSV table to the output file
+     * --checkpoint <dir>  persist each completed row block to dir and reuse the blocks of a previous (interrupted) run
+     * --index  write a spatial index of the ungridded pixels to <output-file>.pidx, queried with gbt2ubt --locate <index> <lat> <lon>
+     * --collocate  add the forward view pixels overlapping each nadir view pixel and their overlap weights (.h5/.nc output)
+     * --serve <port>  run as a resident local service on the loopback port, answering PIXEL/ROW/WINDOW requests (see UngriddingService)
+     * --serve-token <file>  token the service clients send first (AUTH <token>), default ~/.gbt-ubt/service-token, created if missing
+     * --serve-output <dir>  directory the service WINDOW requests may write output files to (none by default)
+     * --view <nadir|forward|both>  compute and write only the nadir or the forward view (default both)
+     * --variables <list>  compute and write only geolocation, times, fov, flags, measurements (or measurement band names)
+     * --shard <k/N>  compute only slice k of N of the rows (ADS granule aligned) into a partial .h5/.nc output,
+     *                assembled with gbt2ubt --merge <output-file> <shard-file>...
+     * --orbit-fov  FOV projections for the satellite altitude & Earth radius of each scan from the orbit (see ProjectionCache)
+     * --fov-cache <dir|off>  directory of the regridded IFOV cache, keyed by the raw FOV file content (see IFOVCache)
+     */
+    private static InputParameters parameters;
+    // Set when a row block failed or did not finish, the run then exits non-zero
+    private static volatile boolean rowsFailed;
+    // Start of the run, the time to the first completed row block measures the start up cost (see README, CDS archive)
+    private static final long startNanos = System.nanoTime();
+    private static final AtomicBoolean firstBlockReported = new AtomicBoolean();
+
+    public static void main(String[] args) {
+        System.out.println("AATSR Pixel Ungridding Tool Version 1.6");
+
+        // Query a pixel index written by a previous run
+        if (args.length > 0 && args[0].equals("--locate")) {
+            PixelIndex.query(args);
+            System.exit(0);
+        }
+        // Assemble the partial outputs of a sharded run (--shard)
+        if (args.length > 0 && args[0].equals("--merge")) {
+            ShardMerger.merge(args);
+            System.exit(0);
+        }
+
+        //Check that the input array is the right length
+        checkInputs(args);
+
+        // Parse the inputs and set up the activity
+        parameters = new InputParameters();
+        parameters.parse(args);
+        parameters.toolVersion = "1.6";
+        if (parameters.servicePort > 0) {
+            serve();
+            System.exit(0);
+        }
+        processProduct();
+
+        if (rowsFailed) {
+            System.out.println("Processing failed, the output file is incomplete: " + parameters.outputFileLocation);
+            System.exit(1);
+        }
+        System.out.println("Processing Complete");
+        System.out.println("Output file written to: " + System.getProperty("user.dir") + parameters.outputFileLocation);
+        System.exit(0);
+    }
+
+    private static void checkInputs(String[] args) {
+        int positionalArguments = InputParameters.separateOptions(args, new ArrayList<String[]>()).length;
+        if (positionalArguments < 12 || positionalArguments > 14) {
+            System.out.println("Check Program Inputs");
+            System.out.println("Usage: gbt2ubt <aatsr-product> <l1b-characterisation-file> <fov-measurement-file> <output-file(.h5/.nc/.zarr/.csv)> <rows-per-CPU-thread> <IFOV-reporting-extent-fraction> <Trim-end-of-product> <Pixel Reference> <Topography> <Topo-relation> <Ortho> <DEM> OPT<[ix,iy]> OPT<[jx,jy]> OPT<--options>");
+            System.exit(1);
+        }
+    }
+
+    private static void processProduct() {
+        // This method sets up the parallelism, calls the calculation tool and collates the results prior to output
+        try {
+            System.out.println("Calculating Pixel Geolocation, Sample Times & FOV");
+
+            // Mask some warnings
+            BeamLogManager.removeRootLoggerHandlers();
+            System.setProperty("com.sun.media.jai.disableMediaLib", "true");
+
+            // Get the ADS and dimensions from the product
+            // The product session is opened once and shared by all stages (ADS, MPH, band rasters)
+            final ProductContext product = ProductContext.open(parameters.inputFileLocation);
+            final N1ADSReader.ViewADS NADIR_VIEW_SCAN_PIX_NUM_ADS_Records = product.getNadirViewADS();
+            final N1ADSReader.ViewADS FWARD_VIEW_SCAN_PIX_NUM_ADS_Records = product.getForwardViewADS();
+            final N1ADSReader.ScanPixelADS SCAN_PIXEL_X_AND_Y_ADS_Records = product.getScanPixelADS();
+            final N1ADSReader.GeolocationADS GEOLOCATION_ADS_Records = product.getGeolocationADS();
+
+            int maxXValue;
+            int maxY;
+            int minXValue = 0;
+            int minYValue = 0;
+
+            // Find the image window covering a geographic region of interest, then process it as a pixel subset
+            if (parameters.regionOfInterest != null) {
+                TiePointIndex tiePoints = TiePointIndex.build(GEOLOCATION_ADS_Records);
+                int[] window = RegionOfInterest.parse(parameters.regionOfInterest).findWindow(tiePoints, product.getImageColumns(), product.getImageRows());
+                if (window == null) {
+                    System.out.println("Region of interest does not intersect the product: " + parameters.regionOfInterest);
+                    throw new RuntimeException();
+                }
+                parameters.x1 = window[0];
+                parameters.y1 = window[1];
+                parameters.x2 = window[2];
+                parameters.y2 = window[3];
+                parameters.subsetFlag = true;
+                parameters.singlePixelFlag = false;
+                System.out.println("Region of interest covers image pixels [" + window[0] + "," + window[1] + "] to [" + (window[2] - 1) + "," + (window[3] - 1) + "]");
+            }
+
+            // If subseting the product, set the min/max dimensions according to input
+            if (parameters.subsetFlag == true) {
+                maxXValue = parameters.x2;
+                maxY = parameters.y2;
+                minXValue = parameters.x1;
+                minYValue = parameters.y1;
+            } else {
+                maxXValue = product.getImageColumns();
+                maxY = product.getImageRows();
+            }
+            final int maxX = maxXValue;
+            final int minX = minXValue;
+
+            if (maxX > product.getImageColumns()) {
+                System.out.println("Check input X coordinate");
+            }
+
+            if (maxY > product.getImageRows()) {
+                System.out.println("Check input Y coordinate");
+            }
+
+            if (parameters.trimProductEndWhereNoADS && !parameters.subsetFlag) {
+                // If true, trim product for image rows where no ADS is available
+                // (ATSR-1/2 have less image rows than ADS cover)
+                maxY = product.getADSCoveredRows();
+                System.out.println("Number of image rows covered by ADS: "+maxY+" / "+product.getImageRows());
+            }
+
+            // A shard processes only a slice of the rows, aligned to the ADS granules, into a partial output (see ShardMerger)
+            final int outputMinY = minYValue;
+            final int outputMaxY = maxY;
+            if (parameters.shardCount > 0) {
+                int[] slice = ShardMerger.sliceRows(outputMinY, outputMaxY, parameters.shardIndex, parameters.shardCount);
+                if (slice[0] >= slice[1]) {
+                    System.out.println("Shard " + parameters.shardIndex + "/" + parameters.shardCount + " covers no image rows, use fewer shards");
+                    throw new RuntimeException();
+                }
+                parameters.shardFirstRow = slice[0] - outputMinY;
+                parameters.shardOutputRows = outputMaxY - outputMinY;
+                minYValue = slice[0];
+                maxY = slice[1];
+                System.out.println("Shard " + parameters.shardIndex + "/" + parameters.shardCount + " covers image rows " + slice[0] + " to " + (slice[1] - 1));
+            }
+            final int minY = minYValue;
+
+            final List<Double> scanYCoords = product.getScanYCoords();
+            final int s0 = product.getFirstScanNumber();
+
+            // Batch point query, only the pixels listed in the points file are computed
+            if (parameters.pointsFileLocation != null) {
+                PointQuery.process(parameters, s0, NADIR_VIEW_SCAN_PIX_NUM_ADS_Records, FWARD_VIEW_SCAN_PIX_NUM_ADS_Records, SCAN_PIXEL_X_AND_Y_ADS_Records, GEOLOCATION_ADS_Records, scanYCoords, product.getImageColumns(), maxY, Orthorectifier.generateEphemeris(parameters, product), loadDEM());
+                product.close();
+                return;
+            }
+
+            // Get the pixel projection map (along and across track extent) for all 2000 pixels
+            // This assumes spherical earth geometry & constant platform altitude, each pixel is computed on first use
+            final List<List<Double>> pixelProjectionMap = Calculator.getConstantPixelProjection(parameters);
+
+            // For the compact output get the lookup tables that replace the acquisition times and FOV projections
+            // (tabulated for all the output rows, so every shard holds the same tables)
+            Set<ResultVariable> outputVariables = ResultVariable.DEFAULT_VARIABLES;
+            CompactEncoding compactEncoding = null;
+            if (parameters.compactOutput) {
+                int[] scanNumberRange = {0, 0};
+                if (parameters.nadirView) {
+                    ScanAndPixelIndicesExtractor.findScanNumberRange(outputMinY, outputMaxY, minX, maxX, NADIR_VIEW_SCAN_PIX_NUM_ADS_Records, scanNumberRange);
+                }
+                if (parameters.forwardView) {
+                    ScanAndPixelIndicesExtractor.findScanNumberRange(outputMinY, outputMaxY, minX, maxX, FWARD_VIEW_SCAN_PIX_NUM_ADS_Records, scanNumberRange);
+                }
+                compactEncoding = CompactEncoding.create(scanNumberRange, s0, SCAN_PIXEL_X_AND_Y_ADS_Records, pixelProjectionMap);
+                outputVariables = ResultVariable.COMPACT_VARIABLES;
+                System.out.println("Compact output, scan times tabulated for scans " + scanNumberRange[0] + " to " + scanNumberRange[1]);
+            }
+            if (parameters.collocate) {
+                outputVariables = EnumSet.copyOf(outputVariables);
+                outputVariables.addAll(ResultVariable.COLLOCATION_VARIABLES);
+            }
+            // Single view mode and variable selection, the variables not selected are neither computed nor written
+            outputVariables = EnumSet.copyOf(outputVariables);
+            final int[] views = parameters.getViews();
+            if (views.length < 2) {
+                outputVariables.removeAll(Arrays.asList(ResultVariable.VIEW_VARIABLES[1 - views[0]]));
+                System.out.println("Computing the " + Calculator.VIEW_NAMES[views[0]] + " view only");
+            }
+            if (!parameters.geolocationOutput) {
+                outputVariables.removeAll(ResultVariable.GEOLOCATION_VARIABLES);
+            }
+            if (!parameters.timeOutput) {
+                outputVariables.removeAll(ResultVariable.TIME_VARIABLES);
+            }
+            if (!parameters.fovOutput) {
+                outputVariables.removeAll(ResultVariable.PROJECTION_VARIABLES);
+            }
+            if (!parameters.timeOutput && !parameters.fovOutput) {
+                outputVariables.removeAll(ResultVariable.INDEX_VARIABLES);
+            }
+            final Set<ResultVariable> variables = outputVariables;
+
+            // Optionally pack the latitudes and longitudes as int32 micro-degrees (packed by the worker threads)
+            Set<ResultVariable> packing = EnumSet.noneOf(ResultVariable.class);
+            if (parameters.packLatLon) {
+                packing = ResultVariable.GEOLOCATION_VARIABLES;
+            }
+            final Set<ResultVariable> packedVariables = packing;
+
+            // Compute the ephemeris of the satellite for image orthorectification
+            final BoundedPropagator ephemeris = Orthorectifier.generateEphemeris(parameters, product);
+
+            // Load DEM from external file
+            final Band DEM = loadDEM();
+
+            // Get number of available processsors and create threads for each one
+            final int availableProcessors = Runtime.getRuntime().availableProcessors();
+            System.out.println("Number of available processors: " + availableProcessors);
+            ExecutorService threadPool = Executors.newFixedThreadPool(availableProcessors);
+
+            // Assign number of image rows per thread
+            final int rowsPerThread = parameters.rowsPerThread;
+
+            // Calculate required number of normal (i.e. full length threads)
+            final int numberOfFullThreads = (int) Math.floor((double) (maxY - minY) / (double) rowsPerThread);
+            System.out.println("Image broken down into " + (numberOfFullThreads + 1) + " threads");
+            // Assign number of image rows for final short thread
+            final int rowsInFinalThread = (maxY - minY) - (numberOfFullThreads * (rowsPerThread));
+
+            // Check all image rows assigned
+            if (((numberOfFullThreads * rowsPerThread) + rowsInFinalThread) != (maxY - minY)) {
+                System.out.println("Failed to calculate number of image rows per thread");
+                throw new RuntimeException();
+            }
+            final InputParameters finalParameters = parameters;
+
+            /* Create the result arena for the properties of each pixel
+             Imagine 2D arrays representing pixels across track by along track, one buffer per property
+             (see ResultVariable) holding pixel values for:
+             0- Nadir View Latitude
+             1- Nadir View Longitude
+             2- Forward View Latitude
+             3- Forward View Longitude
+             4- Nadir View Acquisition Times
+             5- Forward View Acquisition Times
+             6- Nadir View Pixel FOV Along Track
+             7- Nadir View Pixel FOV Across Track
+             8- Forward View Pixel FOV Along Track
+             9- Forward View Pixel FOV Across Track
+             The worker threads place their rows directly in the arena, optionally held outside the Java heap
+             or in memory mapped temporary files (spill mode)
+             */
+            ResultArena.Storage storage = ResultArena.Storage.HEAP;
+            File spill = null;
+            if (parameters.spillDirectory != null) {
+                storage = ResultArena.Storage.MAPPED;
+                spill = new File(parameters.spillDirectory);
+                if (!spill.isDirectory() && !spill.mkdirs()) {
+                    System.out.println("Unable to create spill directory: " + parameters.spillDirectory);
+                    throw new RuntimeException();
+                }
+            } else if (parameters.offHeapResults) {
+                storage = ResultArena.Storage.DIRECT;
+            }
+            final ResultArena.Storage finalStorage = storage;
+            final File spillDirectory = spill;
+
+            /* For the chunked directory output each thread writes its own rows when it finishes,
+             so the threads hold only their own block of results instead of the whole product
+             */
+            ZarrWriter chunkWriter = null;
+            BlockWriter writerStage = null;
+            ResultArena productResults = null;
+            if (parameters.outputFileLocation.endsWith(".zarr")) {
+                chunkWriter = ZarrWriter.create(parameters, product, variables, packedVariables, compactEncoding, maxX, maxY, minX, minY, rowsPerThread);
+            } else if (!parameters.collocate) {
+                /* The .h5/.nc output is written by a writer thread in row order as the blocks complete,
+                 overlapping the writing with the computation of the following blocks
+                 */
+                try {
+                    writerStage = BlockWriter.start(parameters, product, variables, packedVariables, compactEncoding, maxX, maxY, minX, minY, numberOfFullThreads + 1, availableProcessors);
+                } catch (Exception ex) {
+                    System.out.println(ex.getMessage());
+                    System.out.println("Error writing output");
+                    System.exit(1);
+                }
+            } else {
+                // Collocation joins rows across the whole product, so the results are held until every row is computed
+                productResults = ResultArena.allocate(variables, packedVariables, 0, maxY - minY, maxX - minX, storage, spillDirectory);
+            }
+            final ZarrWriter zarrWriter = chunkWriter;
+
+            // The flag & measurement bands written with each row block (.nc/.zarr) are read ahead while it is ungridded
+            final List<String> readAheadBands = new ArrayList<>();
+            if (chunkWriter != null || (writerStage != null && !parameters.outputFileLocation.contains(".h5"))) {
+                for (String name : ProductBands.flagNames) {
+                    if (parameters.includesBand(name)) {
+                        readAheadBands.add(name);
+                    }
+                }
+                for (String name : ProductBands.variableNames) {
+                    if (parameters.includesBand(name)) {
+                        readAheadBands.add(name);
+                    }
+                }
+            }
+            final BlockWriter blockWriter = writerStage;
+            final ResultArena results = productResults;
+            // Optionally persist each completed row block, blocks completed by a previous run are read back instead
+            CheckpointStore checkpointStore = null;
+            if (parameters.checkpointDirectory != null) {
+                checkpointStore = CheckpointStore.open(parameters.checkpointDirectory, CheckpointStore.fingerprint(parameters, variables, packedVariables, minX, maxX, minY, maxY));
+                System.out.println("Checkpoint directory: " + parameters.checkpointDirectory + " (" + checkpointStore.getCompletedBlockCount() + " completed blocks)");
+            }
+            final CheckpointStore checkpoints = checkpointStore;
+            // Optionally index the pixels as their rows are computed
+            PixelIndex.Builder indexBuilder = null;
+            if (parameters.buildPixelIndex) {
+                indexBuilder = new PixelIndex.Builder(PixelIndex.indexFile(parameters.outputFileLocation), maxY - minY, maxX - minX, minX, minY, pixelProjectionMap);
+            }
+            final PixelIndex.Builder pixelIndex = indexBuilder;
+            List<RunnableFuture> tasks = new ArrayList<>();
+
+            /* Create a task for each view of each row block (the final block shorter), use calculator to compute results and
+             place them in the result arena. The nadir and forward views of a block are independent and may run on different
+             threads, the last of them to finish completes the block (checkpoint, pixel index, chunked output)
+             */
+            for (int i = 0; i <= numberOfFullThreads; i++) {
+                String blockName = "Thread_" + String.valueOf(i);
+                int blockRows = rowsPerThread;
+                if (i == numberOfFullThreads) {
+                    blockName = "Thread_final";
+                    blockRows = rowsInFinalThread;
+                }
+                final RowBlock block = new RowBlock(i, blockName, i * rowsPerThread + minY, blockRows, views.length);
+                for (final int view : views) {
+                    RunnableFuture task = new FutureTask(new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            String threadName = block.name;
+                            if (views.length > 1) {
+                                threadName = block.name + "_" + Calculator.VIEW_NAMES[view];
+                            }
+                            int startingScanNumber = block.firstRow;
+                            int rows = block.rows;
+                            try {
+                                if (blockWriter != null) {
+                                    // Wait while the block is too far ahead of the writer (backpressure)
+                                    blockWriter.admit(block.index);
+                                }
+                                ResultArena threadResults;
+                                boolean restored;
+                                synchronized (block) {
+                                    if (block.results == null) {
+                                        threadResults = results;
+                                        if (zarrWriter != null || blockWriter != null) {
+                                            threadResults = ResultArena.allocate(variables, packedVariables, startingScanNumber - minY, rows, maxX - minX, finalStorage, spillDirectory);
+                                        }
+                                        product.readAhead(readAheadBands, minX, startingScanNumber, maxX - minX, rows);
+                                        if (checkpoints != null && checkpoints.restore(threadResults, startingScanNumber - minY, rows)) {
+                                            System.out.println(block.name + " restored from checkpoint");
+                                            block.restored = true;
+                                        }
+                                        block.results = threadResults;
+                                    }
+                                    threadResults = block.results;
+                                    restored = block.restored;
+                                }
+                                if (!restored) {
+                                    Calculator.unGrid(threadResults, view, startingScanNumber, rows, minX, maxX, minY, s0, NADIR_VIEW_SCAN_PIX_NUM_ADS_Records, FWARD_VIEW_SCAN_PIX_NUM_ADS_Records, SCAN_PIXEL_X_AND_Y_ADS_Records, GEOLOCATION_ADS_Records, scanYCoords, threadName, finalParameters, pixelProjectionMap, ephemeris, DEM);
+                                }
+                            } catch (Throwable ex) {
+                                // Errors too (e.g. OutOfMemoryError), the block must still be handed to the writer
+                                System.out.println(threadName + " crash");
+                                ex.printStackTrace(System.out);
+                                System.out.println(ex.getMessage());
+                                block.fail();
+                            }
+                            if (!block.finishView()) {
+                                return 0;
+                            }
+                            boolean completed = !block.isFailed();
+                            if (completed && firstBlockReported.compareAndSet(false, true)) {
+                                System.out.println("First row block complete after " + (System.nanoTime() - startNanos) / 1000000 + " ms");
+                            }
+                            try {
+                                if (completed) {
+                                    if (checkpoints != null && !block.restored) {
+                                        checkpoints.save(block.results, startingScanNumber - minY, rows);
+                                    }
+                                    if (pixelIndex != null) {
+                                        pixelIndex.addRows(block.results, startingScanNumber - minY, rows);
+                                    }
+                                    if (zarrWriter != null) {
+                                        zarrWriter.writeRows(block.results, startingScanNumber - minY, rows);
+                                    }
+                                }
+                            } catch (Throwable ex) {
+                                System.out.println(block.name + " crash");
+                                ex.printStackTrace(System.out);
+                                System.out.println(ex.getMessage());
+                                completed = false;
+                            }
+                            // Every block is handed to the writer stage, a failed block without results
+                            if (blockWriter != null) {
+                                ResultArena blockResults = null;
+                                if (completed) {
+                                    blockResults = block.results;
+                                }
+                                try {
+                                    blockWriter.publish(block.index, blockResults, startingScanNumber - minY, rows);
+                                } catch (InterruptedException ex) {
+                                    System.out.println(ex.getMessage());
+                                    completed = false;
+                                }
+                            }
+                            block.results = null;
+                            if (!completed) {
+                                return 0;
+                            }
+                            return rows;
+                        }
+                    });
+                    tasks.add(task);
+                    try {
+                        Future<?> submit = threadPool.submit(task);
+                        if (submit.isCancelled()) {
+                            System.out.println("Worker thread cancelled prematurely");
+                        }
+                    } catch (Exception ex) {
+                        System.out.println("Unable to submit task to thread");
+                        throw new RuntimeException();
+                    }
+                }
+            }
+
+            // Wait for threads to finish computations (max limit 60 mins)
+            try {
+                threadPool.shutdown();
+                threadPool.awaitTermination(60, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                System.out.println(ex.getMessage());
+            }
+
+            // Check all the image rows have been computed
+            if (threadPool.isTerminated()) {
+                try {
+                    int n = 0;
+                    for (RunnableFuture task : tasks) {
+                        n += (Integer) task.get();
+                    }
+                    if (n != maxY - minY) {
+                        rowsFailed = true;
+                    }
+                } catch (InterruptedException | ExecutionException ex) {
+                    System.out.println(ex.getMessage());
+                    rowsFailed = true;
+                }
+            } else {
+                System.out.println("Row blocks not complete after 60 minutes");
+                threadPool.shutdownNow();
+                rowsFailed = true;
+            }
+            if (rowsFailed) {
+                System.out.println("Failed to compute all image rows");
+                if (checkpoints != null) {
+                    System.out.println("Completed row blocks are kept in " + parameters.checkpointDirectory + ", rerun to compute the remaining rows");
+                }
+            }
+            System.out.println(SampleMemo.report());
+            if (pixelIndex != null) {
+                pixelIndex.close();
+            }
+            // Join the nadir and forward view pixels once all rows are computed
+            if (parameters.collocate) {
+                try {
+                    Collocator.collocate(results, pixelProjectionMap, availableProcessors);
+                } catch (InterruptedException | ExecutionException ex) {
+                    System.out.println("Collocation failed: " + ex.getMessage());
+                    throw new RuntimeException(ex);
+                }
+            }
+            if (zarrWriter != null) {
+                // Every chunk was written as its row block completed
+            } else if (blockWriter != null) {
+                try {
+                    blockWriter.finish();
+                } catch (Exception ex) {
+                    System.out.println(ex.getMessage());
+                    System.out.println("Error writing output");
+                    System.exit(1);
+                }
+            } else if (parameters.outputFileLocation.contains(".h5")){
+                HDFWriter.writeDataTofile(parameters, results, compactEncoding, maxX, maxY, minX, minY);
+            } else{
+                NetCDF4Writer.writeDataTofile(parameters, product, results, compactEncoding, maxX, maxY, minX, minY);
+            }
+            product.close();
+
+        } catch (IOException | OrekitException | RuntimeException ex) {
+            System.out.println(ex.getCause());
+            System.out.println(ex.fillInStackTrace());
+            System.out.println("Error in setup");
+            System.exit(1);
+        }
+    }
+
+    private static void serve() {
+        // Runs the resident ungridding service until a SHUTDOWN request
+        try {
+            UngriddingService.serve(parameters, loadDEM());
+        } catch (IOException | ExecutionException | InterruptedException | RuntimeException ex) {
+            System.out.println(ex.getCause());
+            System.out.println(ex.fillInStackTrace());
+            System.out.println("Error in service");
+            System.exit(1);
+        }
+    }
+
+    private static class RowBlock {
+        /* A block of image rows, computed by one task per selected view */
+
+        final int index;
+        final String name;
+        final int firstRow;
+        final int rows;
+        ResultArena results;
+        boolean restored;
+        private int pendingViews;
+        private boolean failed;
+
+        RowBlock(int index, String name, int firstRow, int rows, int views) {
+            this.index = index;
+            this.name = name;
+            this.firstRow = firstRow;
+            this.rows = rows;
+            this.pendingViews = views;
+        }
+
+        synchronized void fail() {
+            failed = true;
+        }
+
+        synchronized boolean isFailed() {
+            return failed;
+        }
+
+        synchronized boolean finishView() {
+            // True for the last view to finish, which then completes the block
+            pendingViews--;
+            return pendingViews == 0;
+        }
+    }
+
+    private static Band loadDEM() throws IOException {
+        // Returns the height band of the external DEM if orthorectifying, otherwise null
+        Band heightData = null;
+        if (parameters.orthorectify) {
+            System.out.println("Loading DEM: " + parameters.DEMFilename);
+            File dem = new File(parameters.DEMFilename);
+            if (dem.canRead()) {
+                ProductReader productReader = ProductIO.getProductReader("GeoTIFF");
+                Product demData = productReader.readProductNodes(dem, null);
+                heightData = demData.getBandAt(0);
+            } else {
+                System.out.println("Could not read DEM file. Currently only a global GeoTIFF \".tif\" is supported");
+                throw new RuntimeException();
+            }
+        }
+        return heightData;
+    }
+}
@@ -1,182 +1,412 @@
-/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
- * 
- * Copyright (C) 2015 Telespazio VEGA UK Ltd
- * 
- * This file is part of the AATSR GBT-UBT-Tool.
- * 
- * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
- * it under the terms of the GNU General Public License as published by
- * the Free Software Foundation, either version 3 of the License, or
- * (at your option) any later version.
- * 
- * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- * 
- * You should have received a copy of the GNU General Public License
- * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
- * 
- */
-
-package gbt.ubt.tool;
-
-import ncsa.hdf.object.*;
-import ncsa.hdf.object.h5.*;
-
-/**
- *
- * @author ABeaton, Telespazio VEGA UK Ltd 30/10/2013
- *
- * Contact: alasdhair(dot)beaton(at)telespazio(dot)com
- *
- * 
- */
-class HDFWriter {
-
-    static void writeDataTofile(InputParameters parameters, double[][][] pixelPositions, int maxX, int maxY, int minX, int minY) {
-        try {
-
-            // Retrieve an instance of the implementing class for the HDF5 format
-            FileFormat fileFormat = FileFormat.getFileFormat(FileFormat.FILE_TYPE_HDF5);
-
-            // If the implementing class wasn't found, it's an error.
-            if (fileFormat == null) {
-                System.err.println("Cannot find HDF5 FileFormat.");
-                return;
-            }
-            // If the implementing class was found, use it to create a new HDF5 file
-            // with a specific file name.  
-            //
-            // If the specified file already exists, it is truncated.
-            // The default HDF5 file creation and access properties are used.
-            // 
-            H5File outputFile = (H5File) fileFormat.createFile(parameters.outputFileLocation, FileFormat.FILE_CREATE_DELETE);
-
-            // Check for error condition and report.
-            if (outputFile == null) {
-                System.err.println("Failed to create file: " + parameters.outputFileLocation);
-                System.exit(1);
-            } else {
-                System.out.println("Generating Output File");
-                // open the file and retrieve the root group
-                outputFile.open();
-                Group root = (Group) ((javax.swing.tree.DefaultMutableTreeNode) outputFile.getRootNode()).getUserObject();
-                Group geolocation = outputFile.createGroup("Geolocation", root);
-                Group acqTime = outputFile.createGroup("Acquisition_Times", root);
-                Group FOVProjection = outputFile.createGroup("FOV_Projection", root);
-
-                long[] dimensions = {maxY - minY, maxX - minX};
-
-                Datatype bit32 = outputFile.createDatatype(Datatype.CLASS_FLOAT, 4, Datatype.NATIVE, -1);
-                Datatype bit64 = outputFile.createDatatype(Datatype.CLASS_FLOAT, 8, Datatype.NATIVE, -1);
-
-                String[] geolocationDatasets = {"Nadir_Latitude", "Nadir_Longitude", "Forward_Latitude", "Forward_Longitude"};
-                String[] projectionDatasets = {"Nadir_Along_Track", "Nadir_Across_Track", "Forward_Along_Track", "Forward_Across_Track"};
-                String[] dsrDatasets = {"Nadir_Acquisition_Time", "Forward_Acquisition_Time"};
-
-                for (int i = 0; i < geolocationDatasets.length; i++) {
-                    float[] tempOutput = new float[(maxX - minX) * (maxY - minY)];
-                    for (int k = minX; k < maxX; k++) {
-                        for (int j = minY; j < maxY; j++) {
-                            tempOutput[k - minX + ((j - minY) * (maxX - minX))] = (float) pixelPositions[j - minY][k - minX][i];
-                        }
-                    }
-                    Dataset dataset = outputFile.createScalarDS(geolocationDatasets[i], geolocation, bit32, dimensions, null, null, -1000, tempOutput);
-                }
-                for (int i = 6; i < projectionDatasets.length + 6; i++) {
-                    float[] tempOutput = new float[(maxX - minX) * (maxY - minY)];
-                    for (int k = minX; k < maxX; k++) {
-                        for (int j = minY; j < maxY; j++) {
-                            tempOutput[k - minX + ((j - minY) * (maxX - minX))] = (float) pixelPositions[j - minY][k - minX][i];
-                        }
-                    }
-                    Dataset dataset = outputFile.createScalarDS(projectionDatasets[i - 6], FOVProjection, bit32, dimensions, null, null, 0, tempOutput);
-                }
-                for (int i = 4; i < dsrDatasets.length + 4; i++) {
-                    double[] tempOutput = new double[(maxX - minX) * (maxY - minY)];
-                    for (int k = minX; k < maxX; k++) {
-                        for (int j = minY; j < maxY; j++) {
-                            tempOutput[k - minX + ((j - minY) * (maxX - minX))] = pixelPositions[j - minY][k - minX][i];
-                        }
-                    }
-                    Dataset dataset = outputFile.createScalarDS(dsrDatasets[i - 4], acqTime, bit64, dimensions, null, null, 0, tempOutput);
-                }
-                // Add attributes to file
-                long[] attrDims = {1};
-                String attrName = "ATX_TOA_1P (GBT) Input File";
-                String[] attrValue = {parameters.inputFileLocation.substring(parameters.inputFileLocation.lastIndexOf("/") + 1)};
-                int stringLength = attrValue[0].length() + 1;
-                if (stringLength < 23){
-                    stringLength = 23;
-                }
-                Datatype attrType = new H5Datatype(Datatype.CLASS_STRING, stringLength, -1, -1);
-                Attribute attr = new Attribute(attrName, attrType, attrDims, attrValue);
-                outputFile.writeAttribute(root, attr, false);
-
-                attrName = "End of product where no ADS available trimmed";
-                attrValue[0] = String.valueOf(parameters.trimProductEndWhereNoADS);
-                Attribute attrA = new Attribute(attrName, attrType, attrDims, attrValue);
-                outputFile.writeAttribute(root, attrA, false);
-
-                attrName = "Channel used for FOV projection";
-                attrValue[0] = String.valueOf(parameters.FOVMeasurementDataBandName);
-                Attribute attrB = new Attribute(attrName, attrType, attrDims, attrValue);
-                outputFile.writeAttribute(root, attrB, false);
-
-                attrName = "Reporting extent of IFOV (fraction)";
-                attrValue[0] = String.valueOf(parameters.pixelIFOVReportingExtent);
-                Attribute attrC = new Attribute(attrName, attrType, attrDims, attrValue);
-                outputFile.writeAttribute(root, attrC, false);
-
-                attrName = "Fill value for no data";
-                attrValue[0] = "-999999.0";
-                Attribute attr1 = new Attribute(attrName, attrType, attrDims, attrValue);
-                outputFile.writeAttribute(root, attr1, false);
-
-                attrName = "Fill value for scan number < 32";
-                attrValue[0] = "-888888.0";
-                Attribute attr2 = new Attribute(attrName, attrType, attrDims, attrValue);
-                outputFile.writeAttribute(root, attr2, false);
-
-                if (parameters.subsetFlag) {
-                    attrName = "Pixels in product";
-                    if (parameters.singlePixelFlag) {
-                        attrValue[0] = "[" + String.valueOf(parameters.x1) + "," + String.valueOf(parameters.y1) + "]";
-                    } else {
-                        attrValue[0] = "[" + String.valueOf(parameters.x1) + "," + String.valueOf(parameters.y1) + "] [" + String.valueOf(parameters.x2 -1) + "," + String.valueOf(parameters.y2 -1) + "]";
-                    }
-
-                    Attribute attr6 = new Attribute(attrName, attrType, attrDims, attrValue);
-                    outputFile.writeAttribute(root, attr6, false);
-                }
-                attrName = "Acquisition time unit";
-                attrValue[0] = "MJD2000 (UTC)";
-                Attribute attr3 = new Attribute(attrName, attrType, attrDims, attrValue);
-                outputFile.writeAttribute(acqTime, attr3, false);
-
-                attrName = "FOV projection unit";
-                attrValue[0] = "km";
-                Attribute attr4 = new Attribute(attrName, attrType, attrDims, attrValue);
-                outputFile.writeAttribute(FOVProjection, attr4, false);
-
-                attrName = "Geolocation unit";
-                attrValue[0] = "Decimal degrees";
-                Attribute attr5 = new Attribute(attrName, attrType, attrDims, attrValue);
-                outputFile.writeAttribute(geolocation, attr5, false);
-
-                outputFile.close();
-
-                // Check can find created file
-                if (outputFile.canRead() == false) {
-                    System.err.println("Failed to create file: " + parameters.outputFileLocation);
-                    System.exit(1);
-                }
-            }
-        } catch (Exception ex) {
-            System.out.println(ex.getMessage());
-            System.out.println("Error writing output");
-            System.exit(1);
-        }
-    }
-}
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ * 
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ * 
+ * This file is part of the AATSR GBT-UBT-Tool.
+ * 
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package gbt.ubt.tool;
+
+import java.util.List;
+import java.util.Set;
+import ncsa.hdf.object.*;
+import ncsa.hdf.object.h5.*;
+
+/**
+ *
+ * @author ABeaton, Telespazio VEGA UK Ltd 30/10/2013
+ *
+ * Contact: alasdhair(dot)beaton(at)telespazio(dot)com
+ *
+ * 
+ */
+class HDFWriter {
+    /* The output file is created with empty datasets, the results are then written in blocks of image rows
+     (hyperslab selections) straight from the result arena so no full size copy of the product is made.
+     */
+
+    private static final int WRITE_BLOCK_ELEMENTS = 1 << 22;
+    // Chunk height and deflate level of the compressed datasets
+    static final int CHUNK_ROWS = 256;
+    static final int DEFLATE_LEVEL = 6;
+
+    private final H5File outputFile;
+    private final Dataset[] datasets;
+    private final int columns;
+
+    private HDFWriter(H5File outputFile, int columns) {
+        this.outputFile = outputFile;
+        this.datasets = new Dataset[ResultVariable.values().length];
+        this.columns = columns;
+    }
+
+    static void writeDataTofile(InputParameters parameters, ResultArena results, CompactEncoding compact, int maxX, int maxY, int minX, int minY) {
+        try {
+            HDFWriter writer = create(parameters, results.getVariables(), results.getPackedVariables(), compact, maxX, maxY, minX, minY);
+            if (writer == null) {
+                return;
+            }
+            int blockRows = Math.max(1, WRITE_BLOCK_ELEMENTS / Math.max(1, maxX - minX));
+            for (int row = 0; row < results.getRows(); row += blockRows) {
+                writer.writeRows(results, row, Math.min(blockRows, results.getRows() - row));
+            }
+            writer.close(parameters);
+        } catch (Exception ex) {
+            System.out.println(ex.getMessage());
+            System.out.println("Error writing output");
+            System.exit(1);
+        }
+    }
+
+    static HDFWriter create(InputParameters parameters, Set<ResultVariable> variables, Set<ResultVariable> packedVariables, CompactEncoding compact, int maxX, int maxY, int minX, int minY) throws Exception {
+        // Retrieve an instance of the implementing class for the HDF5 format
+        FileFormat fileFormat = FileFormat.getFileFormat(FileFormat.FILE_TYPE_HDF5);
+
+        // If the implementing class wasn't found, it's an error.
+        if (fileFormat == null) {
+            System.err.println("Cannot find HDF5 FileFormat.");
+            return null;
+        }
+        // If the implementing class was found, use it to create a new HDF5 file
+        // with a specific file name.  
+        //
+        // If the specified file already exists, it is truncated.
+        // The default HDF5 file creation and access properties are used.
+        // 
+        H5File outputFile = (H5File) fileFormat.createFile(parameters.outputFileLocation, FileFormat.FILE_CREATE_DELETE);
+
+        // Check for error condition and report.
+        if (outputFile == null) {
+            System.err.println("Failed to create file: " + parameters.outputFileLocation);
+            System.exit(1);
+        }
+        System.out.println("Generating Output File");
+        HDFWriter writer = new HDFWriter(outputFile, maxX - minX);
+
+        // open the file and retrieve the root group
+        outputFile.open();
+        Group root = (Group) ((javax.swing.tree.DefaultMutableTreeNode) outputFile.getRootNode()).getUserObject();
+        Group geolocation = outputFile.createGroup("Geolocation", root);
+        Group acqTime = outputFile.createGroup("Acquisition_Times", root);
+        Group FOVProjection = outputFile.createGroup("FOV_Projection", root);
+
+        long[] dimensions = {maxY - minY, maxX - minX};
+
+        Datatype bit32 = outputFile.createDatatype(Datatype.CLASS_FLOAT, 4, Datatype.NATIVE, -1);
+        Datatype bit64 = outputFile.createDatatype(Datatype.CLASS_FLOAT, 8, Datatype.NATIVE, -1);
+
+        // Create the (empty) datasets, the data is written by writeRows
+        ResultVariable[] geolocationDatasets = {ResultVariable.NADIR_LATITUDE, ResultVariable.NADIR_LONGITUDE, ResultVariable.FORWARD_LATITUDE, ResultVariable.FORWARD_LONGITUDE};
+        ResultVariable[] projectionDatasets = {ResultVariable.NADIR_ALONG_TRACK, ResultVariable.NADIR_ACROSS_TRACK, ResultVariable.FORWARD_ALONG_TRACK, ResultVariable.FORWARD_ACROSS_TRACK};
+        ResultVariable[] dsrDatasets = {ResultVariable.NADIR_ACQUISITION_TIME, ResultVariable.FORWARD_ACQUISITION_TIME};
+
+        for (ResultVariable variable : geolocationDatasets) {
+            if (variables.contains(variable) && packedVariables.contains(variable)) {
+                // Packed int32 micro-degrees, chunked and compressed, with CF packing attributes
+                Datatype int32 = outputFile.createDatatype(Datatype.CLASS_INTEGER, 4, Datatype.NATIVE, -1);
+                long[] chunks = {Math.max(1, Math.min(dimensions[0], CHUNK_ROWS)), Math.max(1, dimensions[1])};
+                Dataset dataset = outputFile.createScalarDS(variable.datasetName, geolocation, int32, dimensions, null, chunks, DEFLATE_LEVEL, null);
+                Datatype attrDoubleType = new H5Datatype(Datatype.CLASS_FLOAT, 8, Datatype.NATIVE, -1);
+                Datatype attrIntType = new H5Datatype(Datatype.CLASS_INTEGER, 4, Datatype.NATIVE, -1);
+                outputFile.writeAttribute(dataset, new Attribute("scale_factor", attrDoubleType, new long[]{1}, new double[]{ResultArena.PACKING_SCALE}), false);
+                outputFile.writeAttribute(dataset, new Attribute("add_offset", attrDoubleType, new long[]{1}, new double[]{0.0}), false);
+                outputFile.writeAttribute(dataset, new Attribute("_FillValue", attrIntType, new long[]{1}, new int[]{ResultArena.PACKED_FILL_VALUE}), false);
+                outputFile.writeAttribute(dataset, new Attribute("missing_value", attrIntType, new long[]{1}, new int[]{ResultArena.PACKED_MISSING_VALUE}), false);
+                writer.datasets[variable.ordinal()] = dataset;
+            } else if (variables.contains(variable)) {
+                writer.datasets[variable.ordinal()] = outputFile.createScalarDS(variable.datasetName, geolocation, bit32, dimensions, null, null, -1000, null);
+            }
+        }
+        for (ResultVariable variable : projectionDatasets) {
+            if (variables.contains(variable)) {
+                writer.datasets[variable.ordinal()] = outputFile.createScalarDS(variable.datasetName, FOVProjection, bit32, dimensions, null, null, 0, null);
+            }
+        }
+        for (ResultVariable variable : dsrDatasets) {
+            if (variables.contains(variable)) {
+                writer.datasets[variable.ordinal()] = outputFile.createScalarDS(variable.datasetName, acqTime, bit64, dimensions, null, null, 0, null);
+            }
+        }
+
+        // Compact output, instrument scan & pixel numbers and the lookup tables to expand them (see CompactEncoding)
+        if (compact != null) {
+            Group indices = outputFile.createGroup(CompactEncoding.GROUP, root);
+            Datatype int16 = outputFile.createDatatype(Datatype.CLASS_INTEGER, 2, Datatype.NATIVE, -1);
+            Datatype int32 = outputFile.createDatatype(Datatype.CLASS_INTEGER, 4, Datatype.NATIVE, -1);
+            // The indices vary smoothly so are chunked and compressed
+            long[] chunks = {Math.max(1, Math.min(dimensions[0], CHUNK_ROWS)), Math.max(1, dimensions[1])};
+            ResultVariable[] indexDatasets = {ResultVariable.NADIR_SCAN_NUMBER, ResultVariable.NADIR_PIXEL_NUMBER, ResultVariable.FORWARD_SCAN_NUMBER, ResultVariable.FORWARD_PIXEL_NUMBER};
+            for (ResultVariable variable : indexDatasets) {
+                if (variables.contains(variable)) {
+                    Datatype type = int32;
+                    if (variable.type == ResultVariable.ElementType.INT16) {
+                        type = int16;
+                    }
+                    writer.datasets[variable.ordinal()] = outputFile.createScalarDS(variable.datasetName, indices, type, dimensions, null, chunks, DEFLATE_LEVEL, null);
+                }
+            }
+            Dataset scanTimes = outputFile.createScalarDS(CompactEncoding.SCAN_TIME, indices, bit64, new long[]{compact.getScanTimes().length}, null, null, 0, compact.getScanTimes());
+            outputFile.createScalarDS(CompactEncoding.FOV_ALONG_TRACK, indices, bit32, new long[]{compact.getAlongTrack().length}, null, null, 0, compact.getAlongTrack());
+            outputFile.createScalarDS(CompactEncoding.FOV_ACROSS_TRACK, indices, bit32, new long[]{compact.getAcrossTrack().length}, null, null, 0, compact.getAcrossTrack());
+
+            Datatype attrIntType = new H5Datatype(Datatype.CLASS_INTEGER, 4, Datatype.NATIVE, -1);
+            Attribute firstScan = new Attribute(CompactEncoding.FIRST_SCAN_NUMBER, attrIntType, new long[]{1}, new int[]{compact.getFirstScanNumber()});
+            outputFile.writeAttribute(scanTimes, firstScan, false);
+        }
+        // Collocation, the forward pixels overlapping each nadir pixel and their overlap weights (see Collocator)
+        Group collocation = null;
+        if (variables.contains(ResultVariable.COLLOCATED_FORWARD_PIXEL_1)) {
+            collocation = outputFile.createGroup("Collocation", root);
+            Datatype int32 = outputFile.createDatatype(Datatype.CLASS_INTEGER, 4, Datatype.NATIVE, -1);
+            long[] chunks = {Math.max(1, Math.min(dimensions[0], CHUNK_ROWS)), Math.max(1, dimensions[1])};
+            for (ResultVariable variable : ResultVariable.COLLOCATION_VARIABLES) {
+                Datatype type = bit32;
+                if (variable.type == ResultVariable.ElementType.INT32) {
+                    type = int32;
+                }
+                writer.datasets[variable.ordinal()] = outputFile.createScalarDS(variable.datasetName, collocation, type, dimensions, null, chunks, DEFLATE_LEVEL, null);
+            }
+        }
+        // Add attributes to file
+        long[] attrDims = {1};
+        String attrName = "ATX_TOA_1P (GBT) Input File";
+        String[] attrValue = {parameters.inputFileLocation.substring(parameters.inputFileLocation.lastIndexOf("/") + 1)};
+        int stringLength = attrValue[0].length() + 1;
+        if (stringLength < 23){
+            stringLength = 23;
+        }
+        Datatype attrType = new H5Datatype(Datatype.CLASS_STRING, stringLength, -1, -1);
+        Attribute attr = new Attribute(attrName, attrType, attrDims, attrValue);
+        outputFile.writeAttribute(root, attr, false);
+
+        attrName = "End of product where no ADS available trimmed";
+        attrValue[0] = String.valueOf(parameters.trimProductEndWhereNoADS);
+        Attribute attrA = new Attribute(attrName, attrType, attrDims, attrValue);
+        outputFile.writeAttribute(root, attrA, false);
+
+        attrName = "Channel used for FOV projection";
+        attrValue[0] = String.valueOf(parameters.FOVMeasurementDataBandName);
+        Attribute attrB = new Attribute(attrName, attrType, attrDims, attrValue);
+        outputFile.writeAttribute(root, attrB, false);
+
+        attrName = "Reporting extent of IFOV (fraction)";
+        attrValue[0] = String.valueOf(parameters.pixelIFOVReportingExtent);
+        Attribute attrC = new Attribute(attrName, attrType, attrDims, attrValue);
+        outputFile.writeAttribute(root, attrC, false);
+
+        attrName = "Fill value for no data";
+        attrValue[0] = "-999999.0";
+        Attribute attr1 = new Attribute(attrName, attrType, attrDims, attrValue);
+        outputFile.writeAttribute(root, attr1, false);
+
+        attrName = "Fill value for scan number < 32";
+        attrValue[0] = "-888888.0";
+        Attribute attr2 = new Attribute(attrName, attrType, attrDims, attrValue);
+        outputFile.writeAttribute(root, attr2, false);
+
+        if (parameters.subsetFlag) {
+            attrName = "Pixels in product";
+            if (parameters.singlePixelFlag) {
+                attrValue[0] = "[" + String.valueOf(parameters.x1) + "," + String.valueOf(parameters.y1) + "]";
+            } else {
+                attrValue[0] = "[" + String.valueOf(parameters.x1) + "," + String.valueOf(parameters.y1) + "] [" + String.valueOf(parameters.x2 -1) + "," + String.valueOf(parameters.y2 -1) + "]";
+            }
+
+            Attribute attr6 = new Attribute(attrName, attrType, attrDims, attrValue);
+            outputFile.writeAttribute(root, attr6, false);
+        }
+        if (parameters.shardCount > 0) {
+            // Partial output of a sharded run, assembled with gbt2ubt --merge (see ShardMerger)
+            String[] shardNames = {ShardMerger.SHARD, ShardMerger.SHARD_FIRST_ROW, ShardMerger.SHARD_OUTPUT_ROWS};
+            String[] shardValues = {parameters.shardIndex + "/" + parameters.shardCount, String.valueOf(parameters.shardFirstRow), String.valueOf(parameters.shardOutputRows)};
+            for (int k = 0; k < shardNames.length; k++) {
+                attrValue[0] = shardValues[k];
+                outputFile.writeAttribute(root, new Attribute(shardNames[k], attrType, attrDims, attrValue), false);
+            }
+        }
+        attrName = "Acquisition time unit";
+        attrValue[0] = "MJD2000 (UTC)";
+        Attribute attr3 = new Attribute(attrName, attrType, attrDims, attrValue);
+        outputFile.writeAttribute(acqTime, attr3, false);
+
+        attrName = "FOV projection unit";
+        attrValue[0] = "km";
+        Attribute attr4 = new Attribute(attrName, attrType, attrDims, attrValue);
+        outputFile.writeAttribute(FOVProjection, attr4, false);
+
+        if (compact != null) {
+            attrName = "Acquisition time & FOV projection encoding";
+            attrValue[0] = "Compact (see README)";
+            Attribute attr7 = new Attribute(attrName, attrType, attrDims, attrValue);
+            outputFile.writeAttribute(root, attr7, false);
+        }
+
+        if (collocation != null) {
+            attrName = "Collocated forward pixel";
+            attrValue[0] = "Output grid index (row * columns + column), -1 for none";
+            Attribute attr8 = new Attribute(attrName, new H5Datatype(Datatype.CLASS_STRING, attrValue[0].length() + 1, -1, -1), attrDims, attrValue);
+            outputFile.writeAttribute(collocation, attr8, false);
+            attrName = "Collocation weight";
+            attrValue[0] = "Fraction of the nadir pixel footprint covered";
+            Attribute attr9 = new Attribute(attrName, new H5Datatype(Datatype.CLASS_STRING, attrValue[0].length() + 1, -1, -1), attrDims, attrValue);
+            outputFile.writeAttribute(collocation, attr9, false);
+        }
+
+        attrName = "Geolocation unit";
+        attrValue[0] = "Decimal degrees";
+        if (!packedVariables.isEmpty()) {
+            attrValue[0] = "Packed micro-degrees";
+        }
+        Attribute attr5 = new Attribute(attrName, attrType, attrDims, attrValue);
+        outputFile.writeAttribute(geolocation, attr5, false);
+
+        return writer;
+    }
+
+    void writeRows(ResultArena results, int firstRow, int rowCount) throws Exception {
+        /* Write a block of image rows (relative to the output grid) of every dataset using a hyperslab selection */
+        for (ResultVariable variable : ResultVariable.values()) {
+            Dataset dataset = datasets[variable.ordinal()];
+            if (dataset == null) {
+                continue;
+            }
+            dataset.init();
+            long[] start = dataset.getStartDims();
+            long[] selected = dataset.getSelectedDims();
+            start[0] = firstRow;
+            start[1] = 0;
+            selected[0] = rowCount;
+            selected[1] = columns;
+            dataset.write(results.readRows(variable, firstRow, rowCount));
+        }
+    }
+
+    static void mergeShards(String output, List<ShardMerger.Shard> shards) throws Exception {
+        /* Recreates the groups, datasets and attributes of the first shard with the row count of the whole output,
+         then copies the rows of every shard (see ShardMerger) */
+        FileFormat fileFormat = FileFormat.getFileFormat(FileFormat.FILE_TYPE_HDF5);
+        if (fileFormat == null) {
+            throw new Exception("Cannot find HDF5 FileFormat.");
+        }
+        FileFormat[] sources = new FileFormat[shards.size()];
+        FileFormat merged = null;
+        try {
+            for (int k = 0; k < shards.size(); k++) {
+                sources[k] = fileFormat.createInstance(shards.get(k).location, FileFormat.READ);
+                sources[k].open();
+            }
+            merged = fileFormat.createFile(output, FileFormat.FILE_CREATE_DELETE);
+            merged.open();
+            Group sourceRoot = (Group) ((javax.swing.tree.DefaultMutableTreeNode) sources[0].getRootNode()).getUserObject();
+            Group mergedRoot = (Group) ((javax.swing.tree.DefaultMutableTreeNode) merged.getRootNode()).getUserObject();
+            copyAttributes(sourceRoot, mergedRoot, merged);
+            mergeGroup(sourceRoot, mergedRoot, merged, sources, shards);
+        } finally {
+            if (merged != null) {
+                merged.close();
+            }
+            for (FileFormat source : sources) {
+                if (source != null) {
+                    source.close();
+                }
+            }
+        }
+    }
+
+    private static void mergeGroup(Group source, Group target, FileFormat merged, FileFormat[] sources, List<ShardMerger.Shard> shards) throws Exception {
+        for (Object member : source.getMemberList()) {
+            if (member instanceof Group) {
+                Group group = merged.createGroup(((Group) member).getName(), target);
+                copyAttributes((Group) member, group, merged);
+                mergeGroup((Group) member, group, merged, sources, shards);
+            } else if (member instanceof Dataset) {
+                mergeDataset((Dataset) member, target, merged, sources, shards);
+            }
+        }
+    }
+
+    private static void mergeDataset(Dataset dataset, Group target, FileFormat merged, FileFormat[] sources, List<ShardMerger.Shard> shards) throws Exception {
+        dataset.init();
+        long[] dims = dataset.getDims();
+        Datatype type = dataset.getDatatype();
+        Datatype mergedType = merged.createDatatype(type.getDatatypeClass(), type.getDatatypeSize(), type.getDatatypeOrder(), type.getDatatypeSign());
+        if (dims.length != 2) {
+            // Lookup tables, the same in every shard
+            Dataset copy = merged.createScalarDS(dataset.getName(), target, mergedType, dims, null, null, 0, dataset.read());
+            copyAttributes(dataset, copy, merged);
+            return;
+        }
+        int outputRows = shards.get(0).outputRows;
+        long[] mergedDims = {outputRows, dims[1]};
+        long[] chunks = null;
+        int gzip = 0;
+        if (dataset.getChunkSize() != null) {
+            chunks = new long[]{Math.max(1, Math.min(outputRows, CHUNK_ROWS)), Math.max(1, dims[1])};
+            gzip = DEFLATE_LEVEL;
+        }
+        Dataset copy = merged.createScalarDS(dataset.getName(), target, mergedType, mergedDims, null, chunks, gzip, null);
+        copyAttributes(dataset, copy, merged);
+        int blockRows = (int) Math.max(1, ShardMerger.COPY_BLOCK_ELEMENTS / Math.max(1, dims[1]));
+        for (int k = 0; k < shards.size(); k++) {
+            ShardMerger.Shard shard = shards.get(k);
+            HObject found = sources[k].get(dataset.getFullName());
+            if (!(found instanceof Dataset)) {
+                throw new Exception(shard.location + " has no dataset " + dataset.getFullName());
+            }
+            Dataset part = (Dataset) found;
+            part.init();
+            if (part.getDims().length != 2 || part.getDims()[0] != shard.rows || part.getDims()[1] != dims[1]) {
+                throw new Exception(shard.location + " dataset " + dataset.getFullName() + " does not match the shard rows");
+            }
+            for (int row = 0; row < shard.rows; row += blockRows) {
+                int rowCount = Math.min(blockRows, shard.rows - row);
+                selectRows(part, row, rowCount, dims[1]);
+                Object data = part.read();
+                selectRows(copy, shard.firstRow + row, rowCount, dims[1]);
+                copy.write(data);
+            }
+        }
+    }
+
+    private static void selectRows(Dataset dataset, long firstRow, long rowCount, long columns) {
+        dataset.init();
+        long[] start = dataset.getStartDims();
+        long[] selected = dataset.getSelectedDims();
+        start[0] = firstRow;
+        start[1] = 0;
+        selected[0] = rowCount;
+        selected[1] = columns;
+    }
+
+    private static void copyAttributes(HObject source, HObject target, FileFormat merged) throws Exception {
+        for (Object metadata : source.getMetadata()) {
+            if (metadata instanceof Attribute && !ShardMerger.isShardAttribute(((Attribute) metadata).getName())) {
+                merged.writeAttribute(target, (Attribute) metadata, false);
+            }
+        }
+    }
+
+    void close(InputParameters parameters) throws Exception {
+        outputFile.close();
+
+        // Check can find created file
+        if (outputFile.canRead() == false) {
+            System.err.println("Failed to create file: " + parameters.outputFileLocation);
+            System.exit(1);
+        }
+    }
+}
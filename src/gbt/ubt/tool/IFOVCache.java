@@ -0,0 +1,190 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package gbt.ubt.tool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class IFOVCache {
+    /* This class keeps the regridded IFOV (alongTrackAngle, acrossTrackAngle, ifov1D and the channel name) of each raw
+     * FOV file, so later runs with the same file skip the parsing, drift removal and regridding.
+     *
+     * The entries are named by the SHA-256 of the raw FOV file content and the cache version, ifov_<hash>.bin holds
+     * a header, the channel name, the three arrays and a CRC32 of everything before it. Entries are written to a
+     * temporary file and renamed into place, an unreadable entry is ignored and replaced. VERSION is increased
+     * whenever the parsing or regridding changes the values.
+     *
+     * The CRC only detects damaged entries, so entries are only read from a directory owned by the user and not
+     * writable by others (the default directory in the user's home is created owner only).
+     */
+
+    private static final int MAGIC = 0x47424946; // "GBIF"
+    private static final int VERSION = 1;
+    private static final int HASH_BUFFER_BYTES = 1 << 16;
+
+    static String defaultDirectory() {
+        return new File(new File(System.getProperty("user.home"), ".gbt-ubt"), "ifov-cache").getPath();
+    }
+
+    static String key(String FOVMeasurementFileLocation) {
+        // Hash of the raw FOV file content, null if it cannot be read (the parser then reports the error)
+        try (InputStream input = new FileInputStream(FOVMeasurementFileLocation)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[HASH_BUFFER_BYTES];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString() + "_v" + VERSION;
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            return null;
+        }
+    }
+
+    static boolean load(String directory, String key, InputParameters parameters) {
+        File file = new File(directory, "ifov_" + key + ".bin");
+        if (!file.exists()) {
+            return false;
+        }
+        if (!trusted(new File(directory)) || !trusted(file)) {
+            System.out.println("Ignoring IFOV cache entry " + file.getPath() + ", the cache must be owned by " + System.getProperty("user.name") + " and not writable by others");
+            return false;
+        }
+        int length = parameters.ifov1D.length;
+        double[] alongTrackAngle = new double[length];
+        double[] acrossTrackAngle = new double[length];
+        double[] ifov = new double[length];
+        String bandName;
+        CRC32 crc = new CRC32();
+        try (DataInputStream input = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), crc))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION || !input.readUTF().equals(key) || input.readInt() != length) {
+                return false;
+            }
+            bandName = input.readUTF();
+            for (double[] values : new double[][]{alongTrackAngle, acrossTrackAngle, ifov}) {
+                for (int k = 0; k < length; k++) {
+                    values[k] = input.readDouble();
+                }
+            }
+            long expected = crc.getValue();
+            if (input.readLong() != expected) {
+                return false;
+            }
+        } catch (IOException ex) {
+            System.out.println("Ignoring unreadable IFOV cache entry " + file.getPath() + ": " + ex.getMessage());
+            return false;
+        }
+        parameters.FOVMeasurementDataBandName = bandName;
+        System.arraycopy(alongTrackAngle, 0, parameters.alongTrackAngle, 0, length);
+        System.arraycopy(acrossTrackAngle, 0, parameters.acrossTrackAngle, 0, length);
+        System.arraycopy(ifov, 0, parameters.ifov1D, 0, length);
+        return true;
+    }
+
+    private static boolean trusted(File file) {
+        // Owned by the user and not writable by group or others (checked where the file system has POSIX permissions)
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return true;
+        }
+        try {
+            Path path = file.toPath();
+            if (Files.isSymbolicLink(path) || !Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).getName().equals(System.getProperty("user.name"))) {
+                return false;
+            }
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+            permissions.retainAll(EnumSet.of(PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE));
+            return permissions.isEmpty();
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    static void store(String directory, String key, InputParameters parameters) {
+        // The cache is an optimisation, a failure to write it is reported and otherwise ignored
+        File cacheDirectory = new File(directory);
+        File file = new File(cacheDirectory, "ifov_" + key + ".bin");
+        File tempFile = null;
+        try {
+            if (!cacheDirectory.isDirectory()) {
+                if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                    Files.createDirectories(cacheDirectory.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                } else if (!cacheDirectory.mkdirs()) {
+                    throw new IOException("Unable to create directory " + directory);
+                }
+            }
+            tempFile = File.createTempFile("ifov_", ".tmp", cacheDirectory);
+            CRC32 crc = new CRC32();
+            try (DataOutputStream output = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)), crc))) {
+                int length = parameters.ifov1D.length;
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeUTF(key);
+                output.writeInt(length);
+                output.writeUTF(parameters.FOVMeasurementDataBandName);
+                for (double[] values : new double[][]{parameters.alongTrackAngle, parameters.acrossTrackAngle, parameters.ifov1D}) {
+                    for (int k = 0; k < length; k++) {
+                        output.writeDouble(values[k]);
+                    }
+                }
+                output.flush();
+                output.writeLong(crc.getValue());
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.out.println("Unable to write the IFOV cache entry " + file.getPath() + ": " + ex.getMessage());
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+}
@@ -1,496 +1,892 @@
-/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
- * 
- * Copyright (C) 2015 Telespazio VEGA UK Ltd
- * 
- * This file is part of the AATSR GBT-UBT-Tool.
- * 
- * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
- * it under the terms of the GNU General Public License as published by
- * the Free Software Foundation, either version 3 of the License, or
- * (at your option) any later version.
- * 
- * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- * 
- * You should have received a copy of the GNU General Public License
- * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
- * 
- */
-package gbt.ubt.tool;
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
-/**
- *
- * @author ABeaton, Telespazio VEGA UK Ltd 30/10/2013
- *
- * Contact: alasdhair(dot)beaton(at)telespazio(dot)com
- *
- */
-public class InputParameters {
-    /*
-     * This class reads in the input parameters and stores them for use in computation
-     * This class also reads in the raw FOV data and regrids it using adapted IDL code provided by RAL.
-     */
-
-    public int firstForwardPixel;
-    public int firstNadirPixel;
-    public String inputFileLocation;
-    private String L1BCharacterisationFileLocation;
-    public String outputFileLocation;
-    private String FOVMeasurementFileLocation;
-    public String FOVMeasurementDataBandName;
-    public double[] alongTrackAngle;
-    public double[] acrossTrackAngle;
-    public double[] ifov1D;
-    public int rowsPerThread;
-    public double pixelIFOVReportingExtent;
-    public boolean trimProductEndWhereNoADS;
-    public int x1;
-    public int x2;
-    public int y1;
-    public int y2;
-    public boolean subsetFlag;
-    public boolean singlePixelFlag;
-    public boolean cornerReferenceFlag;
-    public boolean topographicFlag;
-    public double topographyHomogenity;
-    public String inputString;
-    public String toolVersion;
-    public boolean orthorectify;
-    public String DEMFilename;
-
-    public InputParameters() {
-        alongTrackAngle = new double[31 * 31];
-        acrossTrackAngle = new double[31 * 31];
-        ifov1D = new double[31 * 31];
-
-    }
-
-    public void parse(String[] args) {
-        this.inputFileLocation = args[0];
-        this.L1BCharacterisationFileLocation = args[1];
-        this.FOVMeasurementFileLocation = args[2];
-        this.outputFileLocation = args[3];
-        this.rowsPerThread = Integer.valueOf(args[4]);
-        this.pixelIFOVReportingExtent = Double.valueOf(args[5]);
-        this.trimProductEndWhereNoADS = Boolean.parseBoolean(args[6]);
-        parseCharacterisationFile(this.L1BCharacterisationFileLocation);
-        parseRawIFOV(this.FOVMeasurementFileLocation);
-        this.cornerReferenceFlag = true;
-        this.inputString = Arrays.toString(args);
-        String referencePoint = String.valueOf(args[7]);
-        if (referencePoint.equalsIgnoreCase("centre")) {
-            this.cornerReferenceFlag = false;
-        }
-        this.topographicFlag = false;
-        String topography = String.valueOf(args[8]);
-        if (topography.equalsIgnoreCase("TRUE")) {
-            this.topographicFlag = true;
-        }
-        this.topographyHomogenity = Double.valueOf(String.valueOf(args[9]));
-        this.orthorectify = Boolean.parseBoolean(args[10]);;
-        this.DEMFilename = args[11];
-        if (args.length == 13 || args.length == 14) {
-            this.subsetFlag = true;
-            String values = args[12].replace(" ", "");
-            int yStart = values.lastIndexOf(",");
-            int yStop = values.lastIndexOf("]");
-            String yValue = values.substring(yStart + 1, yStop);
-            this.y1 = Integer.valueOf(yValue);
-            int xStart = values.lastIndexOf("[");
-            String xValue = values.substring(xStart + 1, yStart);
-            this.x1 = Integer.valueOf(xValue);
-            this.singlePixelFlag = true;
-            if (args.length == 13) {
-                this.y2 = this.y1 + 1;
-                this.x2 = this.x1 + 1;
-            } else {
-                this.singlePixelFlag = false;
-                String values2 = args[13].replace(" ", "");
-                yStart = values2.lastIndexOf(",");
-                yStop = values2.lastIndexOf("]");
-                yValue = values2.substring(yStart + 1, yStop);
-                this.y2 = Integer.valueOf(yValue) + 1;
-                xStart = values2.lastIndexOf("[");
-                xValue = values2.substring(xStart + 1, yStart);
-                this.x2 = Integer.valueOf(xValue) + 1;
-            }
-        } else {
-            this.subsetFlag = false;
-            this.singlePixelFlag = false;
-        }
-    }
-
-    private void parseCharacterisationFile(String L1BCharacterisationFileLocation) {
-        // This method reads the first nadir & forward pixel numbers from the L1B characterisation file
-        try {
-            File binaryFile = new File(L1BCharacterisationFileLocation);
-            if (binaryFile.exists() == false) {
-                throw new RuntimeException();
-            }
-            // Read all the data as bytes into an array
-            try (FileInputStream input = new FileInputStream(binaryFile)) {
-                byte[] data = new byte[1800];
-                try {
-                    int read = input.read(data, 0, 1800);
-                    if (read <= 0) {
-                        throw new RuntimeException();
-                    }
-                } catch (IOException | RuntimeException ex) {
-                    System.out.println(ex.getMessage());
-                }
-
-                // Location of the pixels in the byte array
-                byte[] nadirPixelNumber = {data[1753], data[1754], data[1755], data[1756]};
-                byte[] forwardPixelNumber = {data[1757], data[1758], data[1759], data[1760]};
-
-                // Convert the byte arrays to integers
-                boolean littleEndianFlag = false;
-                if (L1BCharacterisationFileLocation.contains("AT1") || L1BCharacterisationFileLocation.contains("AT2")){
-                    littleEndianFlag = true;
-                }
-                this.firstNadirPixel = byteArrayToInt(nadirPixelNumber, littleEndianFlag);
-                this.firstForwardPixel = byteArrayToInt(forwardPixelNumber, littleEndianFlag);
-                System.out.println("First Nadir Pixel is: " + this.firstNadirPixel + " and First Forward Pixel is: " + this.firstForwardPixel);
-            }
-        } catch (Exception ex) {
-            System.out.println(ex.getMessage());
-            System.exit(1);
-        }
-    }
-
-    private static int byteArrayToInt(byte[] b, boolean littleEndianFlag) {
-        final ByteBuffer bb = ByteBuffer.wrap(b);
-        bb.order(ByteOrder.BIG_ENDIAN);
-        if (littleEndianFlag){
-            bb.order(ByteOrder.LITTLE_ENDIAN);
-        }
-        return bb.getInt();
-    }
-
-    private void parseRawIFOV(String FOVMeasurementFileLocation) {
-        // This function extracts the raw FOV from AATSR calibration measurements following the methodology established by Dave Smith (RAL)
-        /* This code has been translated from IDL code provided by RAL */
-        try {
-            // Read all the lines from the file and place in an array for convenience
-            List<String> lines = new ArrayList<>();
-            String line;
-            FileReader fileReader = new FileReader(FOVMeasurementFileLocation);
-            BufferedReader bufferedReader = new BufferedReader(fileReader);
-            while ((line = bufferedReader.readLine()) != null) {
-                lines.add(line);
-            }
-            bufferedReader.close();
-
-            // Set the number of points and spacing using the first line
-            String[] values = lines.get(0).split(" ");
-            int xstart = Integer.parseInt(values[0]);
-            int ystart = Integer.parseInt(values[1]);
-            int xstop = Integer.parseInt(values[2]);
-            int ystop = Integer.parseInt(values[3]);
-            int xstep = Integer.parseInt(values[4]);
-            int ystep = Integer.parseInt(values[5]);
-            int channelNumber = Integer.parseInt(values[6]);
-
-            switch (channelNumber) {
-                case 0:
-                    this.FOVMeasurementDataBandName = "12um";
-                    break;
-                case 1:
-                    this.FOVMeasurementDataBandName = "11um";
-                    break;
-                case 2:
-                    this.FOVMeasurementDataBandName = "3.7um";
-                    break;
-                case 3:
-                    this.FOVMeasurementDataBandName = "1.6um";
-                    break;
-                case 4:
-                    this.FOVMeasurementDataBandName = "0.87um";
-                    break;
-                case 5:
-                    this.FOVMeasurementDataBandName = "0.66um";
-                    break;
-                case 6:
-                    this.FOVMeasurementDataBandName = "0.56um";
-                    break;
-                default:
-                    System.out.println("Unable to read channel name from data");
-                    System.exit(1);
-            }
-            System.out.println("Raw FOV data ingested is for channel: " + this.FOVMeasurementDataBandName);
-
-            // Calculate number of x and y points in file 
-            int countX = Math.abs(xstop - xstart) / xstep;
-            int countY = Math.abs(ystop - ystart) / ystep;
-
-            // Allocate the output arrays
-            double[] fovArrayX = new double[(countX + 1) * (countY + 1)];
-            double[] fovArrayY = new double[(countX + 1) * (countY + 1)];
-            double[] ifov = new double[(countX + 1) * (countY + 1)];
-
-            /* Definition of fov arrays */
-            for (int i = 0; i < countX + 1; i++) {
-                for (int j = 0; j < countY + 1; j++) {
-                    fovArrayX[i + (j * (countX + 1))] = -2.0 * (xstart + i * xstep) / 1000;
-                    fovArrayY[i + (j * (countX + 1))] = -1.398 * (ystart + j * ystep) / 1000;
-                }
-            }
-            /* Skip the first set of measurements associated with scan number -1 */
-            lines = lines.subList(countX + 4, lines.size());
-
-            // Read FOV data
-            for (int j = 0; j < countY + 1; j++) {
-                List<String> scanLines = lines.subList((j * (countX + 3)) + 2, (j * (countX + 3)) + (countX + 3));
-                for (int i = 0; i < countX + 1; i++) {
-                    values = scanLines.get(i).split(" ");
-                    double tempX = 0.0;
-                    double tempY = 0.0;
-                    if (values.length == 4) {
-                        tempX = Double.parseDouble(values[1]);
-                        tempY = Double.parseDouble(values[3]);
-                    } else if (values.length == 2) {
-                        tempX = Double.parseDouble(values[0]);
-                        tempY = Double.parseDouble(values[1]);
-                    } else if (values.length == 3) {
-                        if (values[0].contentEquals("")) {
-                            tempX = Double.parseDouble(values[1]);
-                        } else {
-                            tempX = Double.parseDouble(values[0]);
-                        }
-                        tempY = Double.parseDouble(values[2]);
-                    }
-                    if (channelNumber < 4) {
-                        ifov[j + (i * (countX + 1))] = tempY - tempX;
-                    } else if (channelNumber == 6) {
-                        ifov[j + (i * (countX + 1))] = tempY + tempX;
-                    } else {
-
-                        ifov[j + (i * (countX + 1))] = tempY;
-                    }
-                }
-            }
-            bufferedReader.close();
-            fileReader.close();
-
-            /* Subtract the minimum value of each column from all column values */
-            for (int j = 0; j < countY + 1; j++) {
-                double minimum = 500.0;
-                for (int i = 0; i < countX + 1; i++) {
-                    if (ifov[j + (i * (countX + 1))] < minimum) {
-                        minimum = ifov[j + (i * (countX + 1))];
-                    }
-                }
-                for (int i = 0; i < countX + 1; i++) {
-                    ifov[j + (i * (countX + 1))] = ifov[j + (i * (countX + 1))] - minimum;
-                }
-            }
-
-            /* Remove underlying background drift in signal
-             Note that this methodology is undocumented and used as is */
-            if (channelNumber < 3) {
-                /* Create incremental double matrix */
-                double[] dIndexX = new double[countX + 1];
-                double[] dIndexY = new double[countY + 1];
-                for (int i = 0; i < countX + 1; i++) {
-                    dIndexX[i] = (double) i;
-                }
-                for (int j = 0; j < countY + 1; j++) {
-                    dIndexY[j] = (double) j;
-                }
-
-
-                /* Remove the drift in the X direction */
-                for (int i = 0; i < 49; i++) {
-                    double m = (ifov[48 + (i * (countX + 1))] - ifov[i * (countX + 1)]) / 48.0;
-                    double c = ifov[i * (countX + 1)];
-                    for (int j = 0; j < (countY + 1); j++) {
-                        ifov[j + (i * (countX + 1))] = ifov[j + (i * (countX + 1))] - ((m * dIndexX[j]) + c);
-                    }
-                }
-
-                /* Remove the drift in the Y direction */
-                for (int i = 0; i < 49; i++) {
-                    double m = (ifov[i + (48 * (countX + 1))] - ifov[i]) / 48.0;
-                    double c = ifov[i];
-                    for (int j = 0; j < (countX + 1); j++) {
-                        ifov[i + (j * (countX + 1))] = ifov[i + (j * (countX + 1))] - ((m * dIndexY[j]) + c);
-                    }
-                }
-            }
-
-            /* Normalise the fov data */
-            double maximum = -500.0;
-            double minimum = 500.0;
-
-            /* Find the minimum and maximum values from the ifov data */
-            for (int i = 0; i < countX + 1; i++) {
-                for (int j = 0; j < countY + 1; j++) {
-                    if (ifov[i + (j * (countX + 1))] > maximum) {
-                        maximum = (ifov[i + (j * (countX + 1))]);
-                    }
-                    if (ifov[i + (j * (countX + 1))] < minimum) {
-                        minimum = (ifov[i + (j * (countX + 1))]);
-                    }
-                }
-            }
-
-            /* Now normalise using min/max/range */
-            double range = maximum - minimum;
-            for (int i = 0; i < countX + 1; i++) {
-                for (int j = 0; j < countY + 1; j++) {
-                    ifov[i + (j * (countX + 1))] = (ifov[i + (j * (countX + 1))] - minimum) / range;
-                }
-            }
-
-
-            /* Establish the sum of the values in each direction */
-            double sumxz = 0.0;
-            double sumyz = 0.0;
-            double sumz = 0.0;
-
-            for (int i = 0; i < 49.0; i++) {
-                for (int j = 0; j < 49.0; j++) {
-                    sumxz = sumxz + (fovArrayX[i + (j * (countX + 1))] * ifov[i + (j * (countX + 1))]);
-                    sumyz = sumyz + (fovArrayY[i + (j * (countX + 1))] * ifov[i + (j * (countX + 1))]);
-                    sumz = sumz + ifov[i + (j * (countX + 1))];
-                }
-            }
-            double sumX = sumxz / sumz;
-            double sumY = sumyz / sumz;
-
-            /* Modify the x and y arrays using the sum */
-            for (int i = 0; i < countX + 1; i++) {
-                for (int j = 0; j < countY + 1; j++) {
-                    fovArrayX[i + (j * (countX + 1))] = fovArrayX[i + (j * (countX + 1))] - sumX;
-                    fovArrayY[i + (j * (countX + 1))] = fovArrayY[i + (j * (countX + 1))] - sumY;
-                }
-            }
-            regridFOV(fovArrayX, fovArrayY, ifov, countX, countY);
-
-        } catch (Exception ex) {
-            System.out.println(ex.getMessage());
-            System.out.println("Could not open raw FOV data, check input filename");
-            System.exit(1);
-        }
-    }
-
-    private void regridFOV(double[] fovArrayX, double[] fovArrayY, double[] ifov, int countX, int countY) {
-        /* This function takes the normalised and drift-removed FOV data and re-grids to a new spacing then translates to 1D arrays*/
-        /* This code has been translated from IDL code provided by RAL */
-        /* Allocate variables for the new axis */
-        double[] axisX = new double[31];
-        double[] axisY = new double[31];
-
-        /* Create axis values */
-        for (int i = 0; i < 31; i++) {
-            axisX[i] = (double) ((i * 20) - 300);
-            axisY[i] = (double) ((i * 20) - 300);
-        }
-
-        double[] regridIfov = new double[31 * 31];
-
-        System.out.println("Resampling IFOV using Bilinear Interpolation");
-
-        //Reallocated arrays for "easier" interpolation
-        double[][] reallocatedIFOV = new double[countX + 1][countY + 1];// IFOV matrix is x,y packed
-        for (int i = 0; i < countX + 1; i++) {
-            for (int j = 0; j < countY + 1; j++) {
-                reallocatedIFOV[i][j] = ifov[j + (i * (countX + 1))];
-            }
-        }
-
-        double[] reallocatedFovArrayX = new double[countX + 1];
-        double[] reallocatedFovArrayY = new double[countY + 1];
-
-        System.arraycopy(fovArrayX, 0, reallocatedFovArrayX, 0, countX + 1);
-
-        for (int j = 0; j < countY + 1; j++) {
-            reallocatedFovArrayY[j] = fovArrayY[j * (countY + 1)];
-        }
-
-        /* Bilinear interpolation scheme */
-        for (int i = 0; i < 31; i++) {
-            for (int j = 0; j < 31; j++) {
-                double X = axisX[i];
-                double Y = axisY[j];
-                int solvedX = 0;
-                int solvedY = 0;
-                for (int m = 0; m < countX + 1; m++) {
-                    if (reallocatedFovArrayX[m] >= X) {
-                        solvedX = m;
-                    } else {
-                        break;
-                    }
-                }
-
-                for (int n = 0; n < countY + 1; n++) {
-                    if (reallocatedFovArrayY[n] >= Y) {
-                        solvedY = n;
-                    } else {
-                        break;
-                    }
-                }
-                double minX = reallocatedFovArrayX[reallocatedFovArrayX.length - 1];
-                double x1;
-                double x2;
-                if (X < minX) {
-                    // Need to extrapolate in X
-                    x1 = reallocatedFovArrayX[reallocatedFovArrayX.length - 2];
-                    x2 = reallocatedFovArrayX[reallocatedFovArrayX.length - 1];
-                    solvedX--;
-                } else {
-                    x1 = reallocatedFovArrayX[solvedX];
-                    x2 = reallocatedFovArrayX[solvedX + 1];
-                }
-                double y1;
-                double y2;
-                double minY = reallocatedFovArrayY[reallocatedFovArrayY.length - 1];
-                if (Y < minY) {
-                    // Need to extrapolate in Y
-                    y1 = reallocatedFovArrayY[reallocatedFovArrayY.length - 2];
-                    y2 = reallocatedFovArrayY[reallocatedFovArrayY.length - 1];
-                    solvedY--;
-                } else {
-                    y1 = reallocatedFovArrayY[solvedY];
-                    y2 = reallocatedFovArrayY[solvedY + 1];
-                }
-                double f11 = reallocatedIFOV[solvedX][solvedY];
-                double f21 = reallocatedIFOV[solvedX + 1][solvedY];
-                double f12 = reallocatedIFOV[solvedX][solvedY + 1];
-                double f22 = reallocatedIFOV[solvedX + 1][solvedY + 1];
-                regridIfov[j + (i * 31)] = bilinearInterp(x1, x2, y1, y2, f11, f12, f21, f22, X, Y);
-            }
-        }
-        /* copy the ifov and dimensions to 1D arrays */
-        for (int i = 0; i < 31; i++) {
-            for (int j = 0; j < 31; j++) {
-                this.alongTrackAngle[i + (j * 31)] = (double) ((i * 20) - 300);
-                this.acrossTrackAngle[i + (j * 31)] = (double) ((j * 20) - 300);
-                this.ifov1D[i + (j * 31)] = regridIfov[i + (j * 31)];
-            }
-        }
-    }
-
-    private static double bilinearInterp(double x1, double x2, double y1, double y2, double f11, double f12, double f21, double f22, double x, double y) {
-        // Linear interpolation in x
-        double fxy1 = (((x2 - x) / (x2 - x1)) * f11) + (((x - x1) / (x2 - x1)) * f21);
-        double fxy2 = (((x2 - x) / (x2 - x1)) * f12) + (((x - x1) / (x2 - x1)) * f22);
-
-        // Linear interpolation in y
-        double fxy = (((y2 - y) / (y2 - y1)) * fxy1) + (((y - y1) / (y2 - y1)) * fxy2);
-        return fxy;
-    }
-}
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ * 
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ * 
+ * This file is part of the AATSR GBT-UBT-Tool.
+ * 
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package gbt.ubt.tool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ * @author ABeaton, Telespazio VEGA UK Ltd 30/10/2013
+ *
+ * Contact: alasdhair(dot)beaton(at)telespazio(dot)com
+ *
+ */
+public class InputParameters implements Cloneable {
+    /*
+     * This class reads in the input parameters and stores them for use in computation
+     * This class also reads in the raw FOV data and regrids it using adapted IDL code provided by RAL.
+     */
+
+    public int firstForwardPixel;
+    public int firstNadirPixel;
+    public String inputFileLocation;
+    private String L1BCharacterisationFileLocation;
+    public String outputFileLocation;
+    private String FOVMeasurementFileLocation;
+    public String FOVMeasurementDataBandName;
+    public double[] alongTrackAngle;
+    public double[] acrossTrackAngle;
+    public double[] ifov1D;
+    public int rowsPerThread;
+    public double pixelIFOVReportingExtent;
+    public boolean trimProductEndWhereNoADS;
+    public int x1;
+    public int x2;
+    public int y1;
+    public int y2;
+    public boolean subsetFlag;
+    public boolean singlePixelFlag;
+    public boolean cornerReferenceFlag;
+    public boolean topographicFlag;
+    public boolean denseTopography;
+    public double topographyHomogenity;
+    public String inputString;
+    public String toolVersion;
+    public boolean orthorectify;
+    public String DEMFilename;
+    public boolean offHeapResults;
+    public boolean compactOutput;
+    public boolean packLatLon;
+    public boolean orbitProjections;
+    public String fovCacheDirectory;
+    public String checkpointDirectory;
+    public String spillDirectory;
+    public String regionOfInterest;
+    public String pointsFileLocation;
+    public int servicePort;
+    public String serviceTokenFile;
+    public String serviceOutputDirectory;
+    public boolean buildPixelIndex;
+    public boolean collocate;
+    public boolean nadirView;
+    public boolean forwardView;
+    public boolean geolocationOutput;
+    public boolean timeOutput;
+    public boolean fovOutput;
+    public boolean flagOutput;
+    public List<String> measurementOutput;
+    public int shardIndex;
+    public int shardCount;
+    public int shardFirstRow;
+    public int shardOutputRows;
+
+    /* Optional settings follow the positional arguments as --name or --name value */
+    private static final List<String> VALUED_OPTIONS = Arrays.asList("--checkpoint", "--spill", "--roi", "--points", "--serve", "--serve-token", "--serve-output", "--view", "--variables", "--shard", "--fov-cache");
+
+    public InputParameters() {
+        alongTrackAngle = new double[31 * 31];
+        acrossTrackAngle = new double[31 * 31];
+        ifov1D = new double[31 * 31];
+        nadirView = true;
+        forwardView = true;
+        geolocationOutput = true;
+        timeOutput = true;
+        fovOutput = true;
+        flagOutput = true;
+        measurementOutput = new ArrayList<>(ProductBands.variableNames);
+        fovCacheDirectory = IFOVCache.defaultDirectory();
+    }
+
+    public void parse(String[] arguments) {
+        List<String[]> options = new ArrayList<>();
+        String[] args = separateOptions(arguments, options);
+        this.inputFileLocation = args[0];
+        this.L1BCharacterisationFileLocation = args[1];
+        this.FOVMeasurementFileLocation = args[2];
+        this.outputFileLocation = args[3];
+        this.rowsPerThread = Integer.valueOf(args[4]);
+        this.pixelIFOVReportingExtent = Double.valueOf(args[5]);
+        this.trimProductEndWhereNoADS = Boolean.parseBoolean(args[6]);
+        parseCharacterisationFile(this.L1BCharacterisationFileLocation);
+        this.cornerReferenceFlag = true;
+        this.inputString = Arrays.toString(arguments);
+        String referencePoint = String.valueOf(args[7]);
+        if (referencePoint.equalsIgnoreCase("centre")) {
+            this.cornerReferenceFlag = false;
+        }
+        this.topographicFlag = false;
+        String topography = String.valueOf(args[8]);
+        if (topography.equalsIgnoreCase("TRUE")) {
+            this.topographicFlag = true;
+        } else if (topography.equalsIgnoreCase("DENSE")) {
+            // Corrections interpolated between the tie points for every pixel (see GeolocationInterpolator)
+            this.topographicFlag = true;
+            this.denseTopography = true;
+        }
+        this.topographyHomogenity = Double.valueOf(String.valueOf(args[9]));
+        this.orthorectify = Boolean.parseBoolean(args[10]);;
+        this.DEMFilename = args[11];
+        if (args.length == 13 || args.length == 14) {
+            this.subsetFlag = true;
+            String values = args[12].replace(" ", "");
+            int yStart = values.lastIndexOf(",");
+            int yStop = values.lastIndexOf("]");
+            String yValue = values.substring(yStart + 1, yStop);
+            this.y1 = Integer.valueOf(yValue);
+            int xStart = values.lastIndexOf("[");
+            String xValue = values.substring(xStart + 1, yStart);
+            this.x1 = Integer.valueOf(xValue);
+            this.singlePixelFlag = true;
+            if (args.length == 13) {
+                this.y2 = this.y1 + 1;
+                this.x2 = this.x1 + 1;
+            } else {
+                this.singlePixelFlag = false;
+                String values2 = args[13].replace(" ", "");
+                yStart = values2.lastIndexOf(",");
+                yStop = values2.lastIndexOf("]");
+                yValue = values2.substring(yStart + 1, yStop);
+                this.y2 = Integer.valueOf(yValue) + 1;
+                xStart = values2.lastIndexOf("[");
+                xValue = values2.substring(xStart + 1, yStart);
+                this.x2 = Integer.valueOf(xValue) + 1;
+            }
+        } else {
+            this.subsetFlag = false;
+            this.singlePixelFlag = false;
+        }
+        parseOptions(options);
+        // The raw FOV is only regridded when pixel projections are needed (see --variables)
+        if (needsPixelProjections()) {
+            parseRawIFOV(this.FOVMeasurementFileLocation);
+        }
+    }
+
+    InputParameters copy() {
+        // Shallow copy, the parsed FOV arrays are shared and never modified after parsing
+        try {
+            return (InputParameters) super.clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    static String[] separateOptions(String[] arguments, List<String[]> options) {
+        // Splits the command line into the positional arguments (returned) and the optional settings {name, value}
+        List<String> positional = new ArrayList<>();
+        for (int k = 0; k < arguments.length; k++) {
+            if (arguments[k].startsWith("--")) {
+                String name = arguments[k].toLowerCase();
+                String value = null;
+                if (VALUED_OPTIONS.contains(name)) {
+                    if (k + 1 >= arguments.length) {
+                        System.out.println("Missing value for option: " + name);
+                        System.exit(1);
+                    }
+                    value = arguments[++k];
+                }
+                options.add(new String[]{name, value});
+            } else {
+                positional.add(arguments[k]);
+            }
+        }
+        return positional.toArray(new String[positional.size()]);
+    }
+
+    private void parseOptions(List<String[]> options) {
+        for (String[] option : options) {
+            switch (option[0]) {
+                case "--offheap":
+                    // Hold the results outside the Java heap in direct buffers
+                    this.offHeapResults = true;
+                    break;
+                case "--compact":
+                    // Output instrument scan/pixel numbers & lookup tables in place of the acquisition times and FOV projections
+                    this.compactOutput = true;
+                    break;
+                case "--pack-latlon":
+                    // Store latitudes & longitudes as int32 micro-degrees with CF scale_factor/add_offset
+                    this.packLatLon = true;
+                    break;
+                case "--orbit-fov":
+                    // FOV projections for the satellite altitude & Earth radius of each scan (see ProjectionCache)
+                    this.orbitProjections = true;
+                    break;
+                case "--spill":
+                    // Hold the results in memory mapped temporary files in this directory
+                    this.spillDirectory = option[1];
+                    break;
+                case "--roi":
+                    // Geographic region of interest (lon/lat box or WKT polygon) replacing the pixel subset
+                    if (RegionOfInterest.parse(option[1]) == null) {
+                        System.out.println("Invalid region of interest, expected minLon,minLat,maxLon,maxLat or POLYGON((lon lat, ...)): " + option[1]);
+                        System.exit(1);
+                    }
+                    if (this.subsetFlag || this.pointsFileLocation != null) {
+                        System.out.println("A region of interest cannot be combined with pixel coordinates or a points file");
+                        System.exit(1);
+                    }
+                    this.regionOfInterest = option[1];
+                    break;
+                case "--points":
+                    // File of matchup pixels [ix,iy] or locations lat,lon processed in one run (CSV output)
+                    if (this.subsetFlag || this.regionOfInterest != null) {
+                        System.out.println("A points file cannot be combined with pixel coordinates or a region of interest");
+                        System.exit(1);
+                    }
+                    this.pointsFileLocation = option[1];
+                    break;
+                case "--serve":
+                    // Run as a local ungridding service on this port (see UngriddingService)
+                    try {
+                        this.servicePort = Integer.parseInt(option[1]);
+                    } catch (NumberFormatException ex) {
+                        this.servicePort = -1;
+                    }
+                    if (this.servicePort < 1 || this.servicePort > 65535) {
+                        System.out.println("Invalid service port: " + option[1]);
+                        System.exit(1);
+                    }
+                    break;
+                case "--serve-token":
+                    // File holding the token the service clients send first (default in ~/.gbt-ubt), owner access only
+                    this.serviceTokenFile = option[1];
+                    break;
+                case "--serve-output":
+                    // Directory the WINDOW requests of the service may write output files to (none by default)
+                    if (!new File(option[1]).isDirectory()) {
+                        System.out.println("Service output directory not found: " + option[1]);
+                        System.exit(1);
+                    }
+                    this.serviceOutputDirectory = option[1];
+                    break;
+                case "--index":
+                    // Write a spatial index of the ungridded pixels next to the output file (see PixelIndex)
+                    this.buildPixelIndex = true;
+                    break;
+                case "--collocate":
+                    // Find the forward view pixels overlapping each nadir view pixel (see Collocator)
+                    if (this.outputFileLocation.endsWith(".zarr")) {
+                        System.out.println("Collocation needs the whole output in memory, use a .h5 or .nc output file");
+                        System.exit(1);
+                    }
+                    this.collocate = true;
+                    break;
+                case "--view":
+                    // Compute only the nadir or the forward view (default both)
+                    if (option[1].equalsIgnoreCase("nadir")) {
+                        this.nadirView = true;
+                        this.forwardView = false;
+                    } else if (option[1].equalsIgnoreCase("forward")) {
+                        this.nadirView = false;
+                        this.forwardView = true;
+                    } else if (option[1].equalsIgnoreCase("both")) {
+                        this.nadirView = true;
+                        this.forwardView = true;
+                    } else {
+                        System.out.println("Invalid view, expected nadir, forward or both: " + option[1]);
+                        System.exit(1);
+                    }
+                    break;
+                case "--variables":
+                    // Comma separated outputs: geolocation, times, fov, flags, measurements or measurement band names
+                    parseVariables(option[1]);
+                    break;
+                case "--shard":
+                    // Process only slice k of N of the rows (1 <= k <= N), merged afterwards with gbt2ubt --merge
+                    parseShard(option[1]);
+                    break;
+                case "--fov-cache":
+                    // Directory of the regridded IFOV cache (default ~/.gbt-ubt/ifov-cache), off to disable it
+                    if (option[1].equalsIgnoreCase("off")) {
+                        this.fovCacheDirectory = null;
+                    } else {
+                        this.fovCacheDirectory = option[1];
+                    }
+                    break;
+                case "--checkpoint":
+                    // Directory holding the completed row blocks, allows an interrupted run to be resumed
+                    this.checkpointDirectory = option[1];
+                    break;
+                default:
+                    System.out.println("Unknown option: " + option[0]);
+                    System.exit(1);
+            }
+        }
+        if (this.collocate && !(this.nadirView && this.forwardView)) {
+            System.out.println("Collocation needs both views, remove --view or use --view both");
+            System.exit(1);
+        }
+        if ((this.buildPixelIndex || this.collocate) && !(this.geolocationOutput && this.fovOutput)) {
+            System.out.println("The pixel index and collocation need the geolocation and fov variables");
+            System.exit(1);
+        }
+        if ((this.serviceTokenFile != null || this.serviceOutputDirectory != null) && this.servicePort <= 0) {
+            System.out.println("--serve-token and --serve-output are only used with --serve");
+            System.exit(1);
+        }
+        if (!(this.geolocationOutput && this.timeOutput && this.fovOutput && this.flagOutput && this.measurementOutput.size() == ProductBands.variableNames.size())
+                && (this.pointsFileLocation != null || this.servicePort > 0)) {
+            System.out.println("A variable selection cannot be combined with a points file or the service");
+            System.exit(1);
+        }
+        if (this.shardCount > 0) {
+            if (!(this.outputFileLocation.endsWith(".h5") || this.outputFileLocation.endsWith(".nc"))) {
+                System.out.println("A shard is written as a partial .h5 or .nc output file");
+                System.exit(1);
+            }
+            if (this.pointsFileLocation != null || this.servicePort > 0 || this.buildPixelIndex || this.collocate) {
+                System.out.println("A shard cannot be combined with a points file, the service, the pixel index or collocation");
+                System.exit(1);
+            }
+        }
+        if (this.orbitProjections && (this.compactOutput || this.pointsFileLocation != null)) {
+            // The compact lookup tables & the points output hold one projection per pixel number
+            System.out.println("Orbit FOV projections cannot be combined with compact output or a points file");
+            System.exit(1);
+        }
+        if (!this.geolocationOutput && this.orthorectify) {
+            // Orthorectification only corrects the latitudes & longitudes
+            System.out.println("Geolocation not selected, orthorectification skipped");
+            this.orthorectify = false;
+        }
+    }
+
+    private void parseVariables(String value) {
+        this.geolocationOutput = false;
+        this.timeOutput = false;
+        this.fovOutput = false;
+        this.flagOutput = false;
+        this.measurementOutput = new ArrayList<>();
+        for (String name : value.toLowerCase().split(",")) {
+            name = name.trim();
+            if (name.equals("geolocation")) {
+                this.geolocationOutput = true;
+            } else if (name.equals("times")) {
+                this.timeOutput = true;
+            } else if (name.equals("fov")) {
+                this.fovOutput = true;
+            } else if (name.equals("flags")) {
+                this.flagOutput = true;
+            } else if (name.equals("measurements")) {
+                this.measurementOutput = new ArrayList<>(ProductBands.variableNames);
+            } else if (ProductBands.variableNames.contains(name)) {
+                if (!this.measurementOutput.contains(name)) {
+                    this.measurementOutput.add(name);
+                }
+            } else {
+                System.out.println("Invalid variable, expected geolocation, times, fov, flags, measurements or a measurement band name: " + name);
+                System.exit(1);
+            }
+        }
+    }
+
+    private void parseShard(String value) {
+        String[] shard = value.split("/");
+        try {
+            if (shard.length == 2) {
+                this.shardIndex = Integer.parseInt(shard[0].trim());
+                this.shardCount = Integer.parseInt(shard[1].trim());
+            }
+        } catch (NumberFormatException ex) {
+            this.shardCount = 0;
+        }
+        if (shard.length != 2 || this.shardCount < 1 || this.shardIndex < 1 || this.shardIndex > this.shardCount) {
+            System.out.println("Invalid shard, expected k/N with 1 <= k <= N: " + value);
+            System.exit(1);
+        }
+    }
+
+    boolean needsPixelProjections() {
+        // The FOV projection of each instrument pixel is output directly, tabulated (--compact) or used by the index & collocation
+        return fovOutput || compactOutput || buildPixelIndex || collocate;
+    }
+
+    int[] getViews() {
+        // The selected views, 0 nadir and 1 forward
+        if (!nadirView) {
+            return new int[]{1};
+        }
+        if (!forwardView) {
+            return new int[]{0};
+        }
+        return new int[]{0, 1};
+    }
+
+    boolean includesProductBands() {
+        // Whether any flag or measurement band is copied from the product
+        for (String bandName : ProductBands.flagNames) {
+            if (includesBand(bandName)) {
+                return true;
+            }
+        }
+        for (String bandName : ProductBands.variableNames) {
+            if (includesBand(bandName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean includesBand(String bandName) {
+        // Whether a measurement or flag band of the product is selected (--variables) and belongs to a selected view (--view)
+        boolean selected = measurementOutput.contains(bandName);
+        if (ProductBands.flagNames.contains(bandName)) {
+            selected = flagOutput;
+        }
+        if (bandName.contains("fward")) {
+            return selected && forwardView;
+        }
+        return selected && nadirView;
+    }
+
+    private void parseCharacterisationFile(String L1BCharacterisationFileLocation) {
+        // This method reads the first nadir & forward pixel numbers from the L1B characterisation file
+        try {
+            File binaryFile = new File(L1BCharacterisationFileLocation);
+            if (binaryFile.exists() == false) {
+                throw new RuntimeException();
+            }
+            // Read all the data as bytes into an array
+            try (FileInputStream input = new FileInputStream(binaryFile)) {
+                byte[] data = new byte[1800];
+                try {
+                    int read = input.read(data, 0, 1800);
+                    if (read <= 0) {
+                        throw new RuntimeException();
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    System.out.println(ex.getMessage());
+                }
+
+                // Location of the pixels in the byte array
+                byte[] nadirPixelNumber = {data[1753], data[1754], data[1755], data[1756]};
+                byte[] forwardPixelNumber = {data[1757], data[1758], data[1759], data[1760]};
+
+                // Convert the byte arrays to integers
+                boolean littleEndianFlag = false;
+                if (L1BCharacterisationFileLocation.contains("AT1") || L1BCharacterisationFileLocation.contains("AT2")){
+                    littleEndianFlag = true;
+                }
+                this.firstNadirPixel = byteArrayToInt(nadirPixelNumber, littleEndianFlag);
+                this.firstForwardPixel = byteArrayToInt(forwardPixelNumber, littleEndianFlag);
+                System.out.println("First Nadir Pixel is: " + this.firstNadirPixel + " and First Forward Pixel is: " + this.firstForwardPixel);
+            }
+        } catch (Exception ex) {
+            System.out.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static int byteArrayToInt(byte[] b, boolean littleEndianFlag) {
+        final ByteBuffer bb = ByteBuffer.wrap(b);
+        bb.order(ByteOrder.BIG_ENDIAN);
+        if (littleEndianFlag){
+            bb.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return bb.getInt();
+    }
+
+    private void parseRawIFOV(String FOVMeasurementFileLocation) {
+        // This function extracts the raw FOV from AATSR calibration measurements following the methodology established by Dave Smith (RAL)
+        /* This code has been translated from IDL code provided by RAL */
+        // The regridded IFOV is cached by the content hash of the raw FOV file, a cached file is not parsed again (see IFOVCache)
+        String cacheKey = null;
+        if (this.fovCacheDirectory != null) {
+            cacheKey = IFOVCache.key(FOVMeasurementFileLocation);
+            if (cacheKey != null && IFOVCache.load(this.fovCacheDirectory, cacheKey, this)) {
+                System.out.println("Raw FOV data for channel " + this.FOVMeasurementDataBandName + " read from the IFOV cache");
+                return;
+            }
+        }
+        // The lines are tokenized as they are read, the values go straight into the fov arrays
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(FOVMeasurementFileLocation))) {
+            int[] fieldStarts = new int[7];
+            int[] fieldEnds = new int[7];
+
+            // Set the number of points and spacing using the first line
+            String line = nextLine(bufferedReader);
+            int lineNumber = 1;
+            if (splitFields(line, fieldStarts, fieldEnds) < 7) {
+                throw new IOException("Invalid raw FOV header: " + line);
+            }
+            int xstart = Integer.parseInt(line.substring(fieldStarts[0], fieldEnds[0]));
+            int ystart = Integer.parseInt(line.substring(fieldStarts[1], fieldEnds[1]));
+            int xstop = Integer.parseInt(line.substring(fieldStarts[2], fieldEnds[2]));
+            int ystop = Integer.parseInt(line.substring(fieldStarts[3], fieldEnds[3]));
+            int xstep = Integer.parseInt(line.substring(fieldStarts[4], fieldEnds[4]));
+            int ystep = Integer.parseInt(line.substring(fieldStarts[5], fieldEnds[5]));
+            int channelNumber = Integer.parseInt(line.substring(fieldStarts[6], fieldEnds[6]));
+
+            switch (channelNumber) {
+                case 0:
+                    this.FOVMeasurementDataBandName = "12um";
+                    break;
+                case 1:
+                    this.FOVMeasurementDataBandName = "11um";
+                    break;
+                case 2:
+                    this.FOVMeasurementDataBandName = "3.7um";
+                    break;
+                case 3:
+                    this.FOVMeasurementDataBandName = "1.6um";
+                    break;
+                case 4:
+                    this.FOVMeasurementDataBandName = "0.87um";
+                    break;
+                case 5:
+                    this.FOVMeasurementDataBandName = "0.66um";
+                    break;
+                case 6:
+                    this.FOVMeasurementDataBandName = "0.56um";
+                    break;
+                default:
+                    System.out.println("Unable to read channel name from data");
+                    System.exit(1);
+            }
+            System.out.println("Raw FOV data ingested is for channel: " + this.FOVMeasurementDataBandName);
+
+            // Calculate number of x and y points in file 
+            int countX = Math.abs(xstop - xstart) / xstep;
+            int countY = Math.abs(ystop - ystart) / ystep;
+
+            // Allocate the output arrays
+            double[] fovArrayX = new double[(countX + 1) * (countY + 1)];
+            double[] fovArrayY = new double[(countX + 1) * (countY + 1)];
+            double[] ifov = new double[(countX + 1) * (countY + 1)];
+
+            /* Definition of fov arrays */
+            for (int i = 0; i < countX + 1; i++) {
+                for (int j = 0; j < countY + 1; j++) {
+                    fovArrayX[i + (j * (countX + 1))] = -2.0 * (xstart + i * xstep) / 1000;
+                    fovArrayY[i + (j * (countX + 1))] = -1.398 * (ystart + j * ystep) / 1000;
+                }
+            }
+            /* Skip the first set of measurements associated with scan number -1, each scan then has 2 header lines */
+            for (int j = 0; j < countY + 1; j++) {
+                int firstLine = (countX + 4) + (j * (countX + 3)) + 2;
+                while (lineNumber < firstLine) {
+                    nextLine(bufferedReader);
+                    lineNumber++;
+                }
+                for (int i = 0; i < countX + 1; i++) {
+                    line = nextLine(bufferedReader);
+                    lineNumber++;
+                    // Lines hold the two signals separated by one or more spaces (as split on single spaces)
+                    int fields = splitFields(line, fieldStarts, fieldEnds);
+                    double tempX = 0.0;
+                    double tempY = 0.0;
+                    if (fields == 4) {
+                        tempX = Double.parseDouble(line.substring(fieldStarts[1], fieldEnds[1]));
+                        tempY = Double.parseDouble(line.substring(fieldStarts[3], fieldEnds[3]));
+                    } else if (fields == 2) {
+                        tempX = Double.parseDouble(line.substring(fieldStarts[0], fieldEnds[0]));
+                        tempY = Double.parseDouble(line.substring(fieldStarts[1], fieldEnds[1]));
+                    } else if (fields == 3) {
+                        if (fieldStarts[0] == fieldEnds[0]) {
+                            tempX = Double.parseDouble(line.substring(fieldStarts[1], fieldEnds[1]));
+                        } else {
+                            tempX = Double.parseDouble(line.substring(fieldStarts[0], fieldEnds[0]));
+                        }
+                        tempY = Double.parseDouble(line.substring(fieldStarts[2], fieldEnds[2]));
+                    }
+                    if (channelNumber < 4) {
+                        ifov[j + (i * (countX + 1))] = tempY - tempX;
+                    } else if (channelNumber == 6) {
+                        ifov[j + (i * (countX + 1))] = tempY + tempX;
+                    } else {
+
+                        ifov[j + (i * (countX + 1))] = tempY;
+                    }
+                }
+            }
+
+            /* Subtract the minimum value of each column from all column values */
+            for (int j = 0; j < countY + 1; j++) {
+                double minimum = 500.0;
+                for (int i = 0; i < countX + 1; i++) {
+                    if (ifov[j + (i * (countX + 1))] < minimum) {
+                        minimum = ifov[j + (i * (countX + 1))];
+                    }
+                }
+                for (int i = 0; i < countX + 1; i++) {
+                    ifov[j + (i * (countX + 1))] = ifov[j + (i * (countX + 1))] - minimum;
+                }
+            }
+
+            /* Remove underlying background drift in signal
+             Note that this methodology is undocumented and used as is */
+            if (channelNumber < 3) {
+                /* Create incremental double matrix */
+                double[] dIndexX = new double[countX + 1];
+                double[] dIndexY = new double[countY + 1];
+                for (int i = 0; i < countX + 1; i++) {
+                    dIndexX[i] = (double) i;
+                }
+                for (int j = 0; j < countY + 1; j++) {
+                    dIndexY[j] = (double) j;
+                }
+
+
+                /* Remove the drift in the X direction */
+                for (int i = 0; i < 49; i++) {
+                    double m = (ifov[48 + (i * (countX + 1))] - ifov[i * (countX + 1)]) / 48.0;
+                    double c = ifov[i * (countX + 1)];
+                    for (int j = 0; j < (countY + 1); j++) {
+                        ifov[j + (i * (countX + 1))] = ifov[j + (i * (countX + 1))] - ((m * dIndexX[j]) + c);
+                    }
+                }
+
+                /* Remove the drift in the Y direction */
+                for (int i = 0; i < 49; i++) {
+                    double m = (ifov[i + (48 * (countX + 1))] - ifov[i]) / 48.0;
+                    double c = ifov[i];
+                    for (int j = 0; j < (countX + 1); j++) {
+                        ifov[i + (j * (countX + 1))] = ifov[i + (j * (countX + 1))] - ((m * dIndexY[j]) + c);
+                    }
+                }
+            }
+
+            /* Normalise the fov data */
+            double maximum = -500.0;
+            double minimum = 500.0;
+
+            /* Find the minimum and maximum values from the ifov data */
+            for (int i = 0; i < countX + 1; i++) {
+                for (int j = 0; j < countY + 1; j++) {
+                    if (ifov[i + (j * (countX + 1))] > maximum) {
+                        maximum = (ifov[i + (j * (countX + 1))]);
+                    }
+                    if (ifov[i + (j * (countX + 1))] < minimum) {
+                        minimum = (ifov[i + (j * (countX + 1))]);
+                    }
+                }
+            }
+
+            /* Now normalise using min/max/range */
+            double range = maximum - minimum;
+            for (int i = 0; i < countX + 1; i++) {
+                for (int j = 0; j < countY + 1; j++) {
+                    ifov[i + (j * (countX + 1))] = (ifov[i + (j * (countX + 1))] - minimum) / range;
+                }
+            }
+
+
+            /* Establish the sum of the values in each direction */
+            double sumxz = 0.0;
+            double sumyz = 0.0;
+            double sumz = 0.0;
+
+            for (int i = 0; i < 49.0; i++) {
+                for (int j = 0; j < 49.0; j++) {
+                    sumxz = sumxz + (fovArrayX[i + (j * (countX + 1))] * ifov[i + (j * (countX + 1))]);
+                    sumyz = sumyz + (fovArrayY[i + (j * (countX + 1))] * ifov[i + (j * (countX + 1))]);
+                    sumz = sumz + ifov[i + (j * (countX + 1))];
+                }
+            }
+            double sumX = sumxz / sumz;
+            double sumY = sumyz / sumz;
+
+            /* Modify the x and y arrays using the sum */
+            for (int i = 0; i < countX + 1; i++) {
+                for (int j = 0; j < countY + 1; j++) {
+                    fovArrayX[i + (j * (countX + 1))] = fovArrayX[i + (j * (countX + 1))] - sumX;
+                    fovArrayY[i + (j * (countX + 1))] = fovArrayY[i + (j * (countX + 1))] - sumY;
+                }
+            }
+            regridFOV(fovArrayX, fovArrayY, ifov, countX, countY);
+
+        } catch (Exception ex) {
+            System.out.println(ex.getMessage());
+            System.out.println("Could not open raw FOV data, check input filename");
+            System.exit(1);
+        }
+        if (cacheKey != null) {
+            IFOVCache.store(this.fovCacheDirectory, cacheKey, this);
+        }
+    }
+
+    private static String nextLine(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            throw new IOException("Unexpected end of raw FOV data");
+        }
+        return line;
+    }
+
+    static int splitFields(String line, int[] starts, int[] ends) {
+        /* Finds the fields of line as String.split(" ") does (single space separators, trailing empty fields dropped)
+         without creating them, the start & end of the first starts.length fields are set and the field count returned
+         */
+        int length = line.length();
+        int count = 0;
+        int fields = 0;
+        int start = 0;
+        for (int k = 0; k <= length; k++) {
+            if (k == length || line.charAt(k) == ' ') {
+                if (count < starts.length) {
+                    starts[count] = start;
+                    ends[count] = k;
+                }
+                count++;
+                if (k > start) {
+                    fields = count;
+                }
+                start = k + 1;
+            }
+        }
+        if (count == 1) {
+            // No separator, the line is the only field
+            return 1;
+        }
+        return fields;
+    }
+
+    private void regridFOV(double[] fovArrayX, double[] fovArrayY, double[] ifov, int countX, int countY) {
+        /* This function takes the normalised and drift-removed FOV data and re-grids to a new spacing then translates to 1D arrays*/
+        /* This code has been translated from IDL code provided by RAL */
+        /* Allocate variables for the new axis */
+        double[] axisX = new double[31];
+        double[] axisY = new double[31];
+
+        /* Create axis values */
+        for (int i = 0; i < 31; i++) {
+            axisX[i] = (double) ((i * 20) - 300);
+            axisY[i] = (double) ((i * 20) - 300);
+        }
+
+        double[] regridIfov = new double[31 * 31];
+
+        System.out.println("Resampling IFOV using Bilinear Interpolation");
+
+        //Reallocated arrays for "easier" interpolation
+        double[][] reallocatedIFOV = new double[countX + 1][countY + 1];// IFOV matrix is x,y packed
+        for (int i = 0; i < countX + 1; i++) {
+            for (int j = 0; j < countY + 1; j++) {
+                reallocatedIFOV[i][j] = ifov[j + (i * (countX + 1))];
+            }
+        }
+
+        double[] reallocatedFovArrayX = new double[countX + 1];
+        double[] reallocatedFovArrayY = new double[countY + 1];
+
+        System.arraycopy(fovArrayX, 0, reallocatedFovArrayX, 0, countX + 1);
+
+        for (int j = 0; j < countY + 1; j++) {
+            reallocatedFovArrayY[j] = fovArrayY[j * (countY + 1)];
+        }
+
+        /* The measurement axes decrease monotonically, the cell of each new axis value is then found by binary search */
+        boolean descendingX = isDescending(reallocatedFovArrayX);
+        boolean descendingY = isDescending(reallocatedFovArrayY);
+
+        /* Bilinear interpolation scheme */
+        for (int i = 0; i < 31; i++) {
+            for (int j = 0; j < 31; j++) {
+                double X = axisX[i];
+                double Y = axisY[j];
+                int solvedX = searchLeading(reallocatedFovArrayX, X, descendingX);
+                int solvedY = searchLeading(reallocatedFovArrayY, Y, descendingY);
+                double minX = reallocatedFovArrayX[reallocatedFovArrayX.length - 1];
+                double x1;
+                double x2;
+                if (X < minX) {
+                    // Need to extrapolate in X
+                    x1 = reallocatedFovArrayX[reallocatedFovArrayX.length - 2];
+                    x2 = reallocatedFovArrayX[reallocatedFovArrayX.length - 1];
+                    solvedX--;
+                } else {
+                    x1 = reallocatedFovArrayX[solvedX];
+                    x2 = reallocatedFovArrayX[solvedX + 1];
+                }
+                double y1;
+                double y2;
+                double minY = reallocatedFovArrayY[reallocatedFovArrayY.length - 1];
+                if (Y < minY) {
+                    // Need to extrapolate in Y
+                    y1 = reallocatedFovArrayY[reallocatedFovArrayY.length - 2];
+                    y2 = reallocatedFovArrayY[reallocatedFovArrayY.length - 1];
+                    solvedY--;
+                } else {
+                    y1 = reallocatedFovArrayY[solvedY];
+                    y2 = reallocatedFovArrayY[solvedY + 1];
+                }
+                double f11 = reallocatedIFOV[solvedX][solvedY];
+                double f21 = reallocatedIFOV[solvedX + 1][solvedY];
+                double f12 = reallocatedIFOV[solvedX][solvedY + 1];
+                double f22 = reallocatedIFOV[solvedX + 1][solvedY + 1];
+                regridIfov[j + (i * 31)] = bilinearInterp(x1, x2, y1, y2, f11, f12, f21, f22, X, Y);
+            }
+        }
+        /* copy the ifov and dimensions to 1D arrays */
+        for (int i = 0; i < 31; i++) {
+            for (int j = 0; j < 31; j++) {
+                this.alongTrackAngle[i + (j * 31)] = (double) ((i * 20) - 300);
+                this.acrossTrackAngle[i + (j * 31)] = (double) ((j * 20) - 300);
+                this.ifov1D[i + (j * 31)] = regridIfov[i + (j * 31)];
+            }
+        }
+    }
+
+    private static boolean isDescending(double[] axis) {
+        for (int k = 1; k < axis.length; k++) {
+            if (axis[k] > axis[k - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int searchLeading(double[] axis, double value, boolean descending) {
+        // Index of the last of the leading axis values >= value (0 if there is none)
+        if (!descending) {
+            int solved = 0;
+            for (int m = 0; m < axis.length; m++) {
+                if (axis[m] >= value) {
+                    solved = m;
+                } else {
+                    break;
+                }
+            }
+            return solved;
+        }
+        int low = 0;
+        int high = axis.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (axis[middle] >= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return Math.max(low - 1, 0);
+    }
+
+    private static double bilinearInterp(double x1, double x2, double y1, double y2, double f11, double f12, double f21, double f22, double x, double y) {
+        // Linear interpolation in x
+        double fxy1 = (((x2 - x) / (x2 - x1)) * f11) + (((x - x1) / (x2 - x1)) * f21);
+        double fxy2 = (((x2 - x) / (x2 - x1)) * f12) + (((x - x1) / (x2 - x1)) * f22);
+
+        // Linear interpolation in y
+        double fxy = (((y2 - y) / (y2 - y1)) * fxy1) + (((y - y1) / (y2 - y1)) * fxy2);
+        return fxy;
+    }
+}
@@ -0,0 +1,319 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class N1ADSReader {
+    /* This class holds the four ADS used for ungridding (NADIR_VIEW_SCAN_PIX_NUM_ADS, FWARD_VIEW_SCAN_PIX_NUM_ADS,
+     * SCAN_PIXEL_X_AND_Y_ADS and GEOLOCATION_ADS) as primitive arrays, so the per pixel look ups index arrays instead of
+     * searching the attributes of BEAM metadata records.
+     *
+     * The arrays are decoded directly from the Envisat N1 file (readProduct): the MPH gives the size of the SPH, the
+     * DSDs at the end of the SPH give the offset, record count and record size of each ADS, the ADS are memory mapped
+     * and their (big endian) records decoded from the mapped buffers. The number of tie points, scan numbers and pixel
+     * numbers per record follow from the DSD record size, so the AATSR and the ATSR-1/2 (AT1/AT2) products share the
+     * decoding. A product whose ADS cannot be read this way is not processed, the BEAM metadata is not used.
+     *
+     * The four arrays of a product (ProductADS) are held by its session (ProductContext) and passed to the ungridding.
+     */
+
+    private static final int MPH_SIZE = 1247;
+    private static final int MJD_SIZE = 12;
+    private static final int RECORD_HEADER_SIZE = MJD_SIZE + 1; // dsr_time & attach_flag
+    private static final int GEOLOCATION_FIELDS = 6; // tie_pt_lat/long, lat/long_corr_nadv, lat/long_corr_forv
+
+    private static final int CORRECTIONS = 4; // lat/long_corr_nadv, lat/long_corr_forv
+
+    static class ProductADS {
+        /* The four ADS of a product */
+
+        final ViewADS nadirView;
+        final ViewADS forwardView;
+        final ScanPixelADS scanPixel;
+        final GeolocationADS geolocation;
+
+        ProductADS(ViewADS nadirView, ViewADS forwardView, ScanPixelADS scanPixel, GeolocationADS geolocation) {
+            this.nadirView = nadirView;
+            this.forwardView = forwardView;
+            this.scanPixel = scanPixel;
+            this.geolocation = geolocation;
+        }
+    }
+
+    static class ViewADS {
+        /* Instrument scan & pixel numbers of a view, [record * columns + image column] */
+
+        final int records;
+        final int columns;
+        private final int[] scanNumbers;
+        private final short[] pixelNumbers;
+
+        ViewADS(int records, int columns) {
+            this.records = records;
+            this.columns = columns;
+            this.scanNumbers = new int[records * columns];
+            this.pixelNumbers = new short[records * columns];
+        }
+
+        int getScanNumber(int record, int column) {
+            return scanNumbers[record * columns + column];
+        }
+
+        int getPixelNumber(int record, int column) {
+            return pixelNumbers[record * columns + column];
+        }
+
+        void read(int record, ByteBuffer buffer, int position) {
+            // instr_scan_num (unsigned short) then pix_num (short), one of each per image column
+            int scans = position + RECORD_HEADER_SIZE;
+            int pixels = scans + 2 * columns;
+            for (int j = 0; j < columns; j++) {
+                scanNumbers[record * columns + j] = buffer.getShort(scans + 2 * j) & 0xFFFF;
+                pixelNumbers[record * columns + j] = buffer.getShort(pixels + 2 * j);
+            }
+        }
+    }
+
+    static class ScanPixelADS {
+        /* Instrument scan number, scan time (MJD2000) and tie point x & y coordinates of each record */
+
+        final int records;
+        final int[] scanNumbers;
+        final double[] scanTimes;
+        final int[][] xCoordinates;
+        final int[][] yCoordinates;
+
+        ScanPixelADS(int records) {
+            this.records = records;
+            this.scanNumbers = new int[records];
+            this.scanTimes = new double[records];
+            this.xCoordinates = new int[records][];
+            this.yCoordinates = new int[records][];
+        }
+
+        void read(int record, ByteBuffer buffer, int position, int tiePoints) {
+            // dsr_time (days, seconds, microseconds), attach_flag, instr_scan_num, then the x & y of each tie point
+            scanTimes[record] = getMJD2000(buffer, position);
+            scanNumbers[record] = buffer.getInt(position + RECORD_HEADER_SIZE);
+            int[] x = new int[tiePoints];
+            int[] y = new int[tiePoints];
+            int xs = position + RECORD_HEADER_SIZE + 4;
+            int ys = xs + 4 * tiePoints;
+            for (int k = 0; k < tiePoints; k++) {
+                x[k] = buffer.getInt(xs + 4 * k);
+                y[k] = buffer.getInt(ys + 4 * k);
+            }
+            xCoordinates[record] = x;
+            yCoordinates[record] = y;
+        }
+    }
+
+    static class GeolocationADS {
+        /* Image scan y coordinate, tie point latitudes & longitudes [record][tie point] and topographic corrections
+         * [nadir lat, nadir long, forward lat, forward long][record * 23 + tie point], all micro-degrees
+         */
+
+        final int records;
+        final int[] imageScanY;
+        final int[][] latitudes;
+        final int[][] longitudes;
+        final int[][] corrections = new int[CORRECTIONS][];
+
+        GeolocationADS(int records) {
+            this.records = records;
+            this.imageScanY = new int[records];
+            this.latitudes = new int[records][];
+            this.longitudes = new int[records][];
+            for (int k = 0; k < corrections.length; k++) {
+                corrections[k] = new int[records * TiePointIndex.TIE_POINTS_PER_RECORD];
+            }
+        }
+
+        void read(int record, ByteBuffer buffer, int position) {
+            // dsr_time, attach_flag, img_scan_y, then 23 tie points of each field (topo_alt and spares follow)
+            imageScanY[record] = buffer.getInt(position + RECORD_HEADER_SIZE);
+            int field = position + RECORD_HEADER_SIZE + 4;
+            int fieldSize = 4 * TiePointIndex.TIE_POINTS_PER_RECORD;
+            latitudes[record] = new int[TiePointIndex.TIE_POINTS_PER_RECORD];
+            longitudes[record] = new int[TiePointIndex.TIE_POINTS_PER_RECORD];
+            for (int jg = 0; jg < TiePointIndex.TIE_POINTS_PER_RECORD; jg++) {
+                latitudes[record][jg] = buffer.getInt(field + 4 * jg);
+                longitudes[record][jg] = buffer.getInt(field + fieldSize + 4 * jg);
+                for (int k = 0; k < corrections.length; k++) {
+                    corrections[k][record * TiePointIndex.TIE_POINTS_PER_RECORD + jg] = buffer.getInt(field + (k + 2) * fieldSize + 4 * jg);
+                }
+            }
+        }
+    }
+
+    static ProductADS read(String location) throws IOException {
+        // Reads the four ADS of a product from its N1 file
+        try (RandomAccessFile file = new RandomAccessFile(location, "r"); FileChannel channel = file.getChannel()) {
+            Map<String, Map<String, String>> dsds = readDSDs(channel);
+
+            Map<String, String> dsd = getDSD(dsds, "NADIR_VIEW_SCAN_PIX_NUM_ADS");
+            ByteBuffer buffer = map(channel, dsd);
+            int dsrSize = (int) parseNumber(dsd, "DSR_SIZE");
+            ViewADS nadir = new ViewADS((int) parseNumber(dsd, "NUM_DSR"), getElements(dsrSize, RECORD_HEADER_SIZE, 4));
+            for (int k = 0; k < nadir.records; k++) {
+                nadir.read(k, buffer, k * dsrSize);
+            }
+
+            dsd = getDSD(dsds, "FWARD_VIEW_SCAN_PIX_NUM_ADS");
+            buffer = map(channel, dsd);
+            dsrSize = (int) parseNumber(dsd, "DSR_SIZE");
+            ViewADS forward = new ViewADS((int) parseNumber(dsd, "NUM_DSR"), getElements(dsrSize, RECORD_HEADER_SIZE, 4));
+            for (int k = 0; k < forward.records; k++) {
+                forward.read(k, buffer, k * dsrSize);
+            }
+
+            dsd = getDSD(dsds, "SCAN_PIXEL_X_AND_Y_ADS");
+            buffer = map(channel, dsd);
+            dsrSize = (int) parseNumber(dsd, "DSR_SIZE");
+            int tiePoints = getElements(dsrSize, RECORD_HEADER_SIZE + 4, 8);
+            ScanPixelADS scanPixel = new ScanPixelADS((int) parseNumber(dsd, "NUM_DSR"));
+            if (scanPixel.records == 0) {
+                throw new IOException("SCAN_PIXEL_X_AND_Y_ADS has no records");
+            }
+            for (int k = 0; k < scanPixel.records; k++) {
+                scanPixel.read(k, buffer, k * dsrSize, tiePoints);
+            }
+
+            dsd = getDSD(dsds, "GEOLOCATION_ADS");
+            buffer = map(channel, dsd);
+            dsrSize = (int) parseNumber(dsd, "DSR_SIZE");
+            if (dsrSize < RECORD_HEADER_SIZE + 4 + GEOLOCATION_FIELDS * 4 * TiePointIndex.TIE_POINTS_PER_RECORD) {
+                throw new IOException("GEOLOCATION_ADS record size " + dsrSize + " too small");
+            }
+            GeolocationADS geolocation = new GeolocationADS((int) parseNumber(dsd, "NUM_DSR"));
+            for (int k = 0; k < geolocation.records; k++) {
+                geolocation.read(k, buffer, k * dsrSize);
+            }
+            return new ProductADS(nadir, forward, scanPixel, geolocation);
+        } catch (IOException ex) {
+            throw new IOException("Unable to read the ADS of " + location + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    static Map<String, Map<String, String>> readDSDs(FileChannel channel) throws IOException {
+        // The DSDs (fields by key) of an N1 file by dataset name, from the end of the SPH whose size the MPH gives
+        Map<String, String> mph = parseHeader(read(channel, 0, MPH_SIZE));
+        int sphSize = (int) parseNumber(mph, "SPH_SIZE");
+        int numberOfDSDs = (int) parseNumber(mph, "NUM_DSD");
+        int dsdSize = (int) parseNumber(mph, "DSD_SIZE");
+        byte[] sph = read(channel, MPH_SIZE, sphSize);
+        Map<String, Map<String, String>> dsds = new HashMap<>();
+        for (int k = 0; k < numberOfDSDs; k++) {
+            int offset = sphSize - (numberOfDSDs - k) * dsdSize;
+            byte[] dsd = new byte[dsdSize];
+            System.arraycopy(sph, offset, dsd, 0, dsdSize);
+            Map<String, String> fields = parseHeader(dsd);
+            if (fields.containsKey("DS_NAME") && !fields.get("DS_NAME").isEmpty()) {
+                dsds.put(fields.get("DS_NAME"), fields);
+            }
+        }
+        return dsds;
+    }
+
+    private static double getMJD2000(ByteBuffer buffer, int position) {
+        // Envisat MJD: days (signed), seconds & microseconds (unsigned), combined as solveScanTime did from BEAM
+        double seconds = buffer.getInt(position + 4) & 0xFFFFFFFFL;
+        double microseconds = buffer.getInt(position + 8) & 0xFFFFFFFFL;
+        return buffer.getInt(position) + (seconds / 86400.0) + ((microseconds / 1.0e6) / 86400.0);
+    }
+
+    private static int getElements(int dsrSize, int headerSize, int elementSize) throws IOException {
+        // Number of elements of each array field of a record, from the record size
+        if (dsrSize <= headerSize || (dsrSize - headerSize) % elementSize != 0) {
+            throw new IOException("unexpected record size " + dsrSize);
+        }
+        return (dsrSize - headerSize) / elementSize;
+    }
+
+    private static Map<String, String> getDSD(Map<String, Map<String, String>> dsds, String name) throws IOException {
+        Map<String, String> dsd = dsds.get(name);
+        if (dsd == null) {
+            throw new IOException("no " + name + " DSD");
+        }
+        return dsd;
+    }
+
+    static ByteBuffer map(FileChannel channel, Map<String, String> dsd) throws IOException {
+        long offset = parseNumber(dsd, "DS_OFFSET");
+        long size = parseNumber(dsd, "NUM_DSR") * parseNumber(dsd, "DSR_SIZE");
+        if (offset + size > channel.size()) {
+            throw new IOException(dsd.get("DS_NAME") + " beyond the end of the file");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("file ends within the product headers");
+            }
+        }
+        return buffer.array();
+    }
+
+    private static Map<String, String> parseHeader(byte[] header) {
+        // KEY=value lines, quotes and padding removed from strings
+        Map<String, String> fields = new HashMap<>();
+        for (String line : new String(header, StandardCharsets.ISO_8859_1).split("\n")) {
+            int equals = line.indexOf('=');
+            if (equals > 0) {
+                fields.put(line.substring(0, equals).trim(), line.substring(equals + 1).replace("\"", "").trim());
+            }
+        }
+        return fields;
+    }
+
+    static long parseNumber(Map<String, String> fields, String key) throws IOException {
+        // Numbers are signed and may carry a unit, e.g. DS_OFFSET=+00000000000000012345<bytes>
+        String value = fields.get(key);
+        if (value == null) {
+            throw new IOException("no " + key + " in the product headers");
+        }
+        int unit = value.indexOf('<');
+        if (unit >= 0) {
+            value = value.substring(0, unit);
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IOException("invalid " + key + " " + value);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class N1BandReader {
+    /* This class reads the flag & measurement bands copied to the output directly from the MDS of the N1 file, in the
+     * output orientation (product columns reversed) so the writers copy them as they are.
+     *
+     * The MDS of each band is found by its DSD (the wavelength in nm and the view, or CONFID/CLOUD and the view) and
+     * memory mapped when first read. Each MDS record is an image row, the 2 byte (big endian) pixel values fill the end
+     * of the record. Windows taller than TILE_ROWS are split into row tiles extracted in parallel, each row is a bulk
+     * copy from the mapped buffer, reversed in place when the product columns are stored in the opposite order.
+     *
+     * The column order of each band is found by comparing rows with the BEAM band (check), a band whose rows match
+     * neither order is left to BEAM (see ProductContext).
+     */
+
+    private static final int TILE_ROWS = 64;
+    private static final int CHECK_ROWS = 3;
+    private static ExecutorService tileThreads;
+
+    private final String location;
+    private final int columns;
+    private final Map<String, Dataset> datasets = new HashMap<>();
+
+    private static class Dataset {
+        /* The MDS of a band, mapped on first read, and whether its records hold the columns in the BEAM order */
+
+        final Map<String, String> dsd;
+        final int records;
+        final int recordSize;
+        ByteBuffer buffer;
+        boolean productOrder;
+
+        Dataset(Map<String, String> dsd) throws IOException {
+            this.dsd = dsd;
+            this.records = (int) N1ADSReader.parseNumber(dsd, "NUM_DSR");
+            this.recordSize = (int) N1ADSReader.parseNumber(dsd, "DSR_SIZE");
+        }
+    }
+
+    interface ProductRowReader {
+        // A full width image row of a band as read by BEAM (product orientation)
+        short[] readRow(String band, int row) throws IOException;
+    }
+
+    private N1BandReader(String location, int columns) {
+        this.location = location;
+        this.columns = columns;
+    }
+
+    static N1BandReader open(String location, int columns, List<String> bands) {
+        // The reader of the bands with an MDS in the file, null if the file cannot be read directly
+        N1BandReader reader = new N1BandReader(location, columns);
+        try (RandomAccessFile file = new RandomAccessFile(location, "r"); FileChannel channel = file.getChannel()) {
+            Map<String, Map<String, String>> dsds = N1ADSReader.readDSDs(channel);
+            for (String band : bands) {
+                Map<String, String> dsd = findDSD(dsds, band);
+                if (dsd == null) {
+                    continue;
+                }
+                Dataset dataset = new Dataset(dsd);
+                if (dataset.recordSize >= 2 * columns) {
+                    reader.datasets.put(band, dataset);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            System.out.println("Bands not read directly (" + ex.getMessage() + "), read through BEAM");
+            return null;
+        }
+        return reader;
+    }
+
+    private static Map<String, String> findDSD(Map<String, Map<String, String>> dsds, String band) {
+        /* MDS names are e.g. 12000_NM_NADIR_TOA_MDS (btemp_nadir_1200, wavelength in 10 nm), 870_NM_FWARD_TOA_MDS
+         * (reflec_fward_0870, in nm) or NADIR_CONFID_FLAGS_MDS (confid_flags_nadir)
+         */
+        String view = band.contains("fward") ? "FWARD" : "NADIR";
+        String prefix;
+        if (band.startsWith("confid_flags")) {
+            prefix = "CONFID";
+        } else if (band.startsWith("cloud_flags")) {
+            prefix = "CLOUD";
+        } else {
+            int wavelength = Integer.parseInt(band.substring(band.lastIndexOf('_') + 1));
+            if (band.startsWith("btemp")) {
+                wavelength *= 10;
+            }
+            prefix = wavelength + "_NM_";
+        }
+        for (Map.Entry<String, Map<String, String>> dsd : dsds.entrySet()) {
+            String name = dsd.getKey();
+            boolean matches = prefix.endsWith("_NM_") ? name.startsWith(prefix) : name.contains(prefix);
+            if (matches && name.contains(view) && "M".equals(dsd.getValue().get("DS_TYPE"))) {
+                return dsd.getValue();
+            }
+        }
+        return null;
+    }
+
+    boolean covers(String band) {
+        return datasets.containsKey(band);
+    }
+
+    boolean check(String band, int imageRows, ProductRowReader beam) throws IOException {
+        /* Compares CHECK_ROWS rows spread over the image with the BEAM rows (product orientation), both column orders
+         * are tried and the one matching every row is kept. False if neither order matches or no row tells them apart.
+         */
+        Dataset dataset = datasets.get(band);
+        if (dataset == null || dataset.records < imageRows) {
+            return false;
+        }
+        boolean productOrder = true;
+        boolean reversedOrder = true;
+        boolean ordered = false;
+        for (int k = 1; k <= CHECK_ROWS; k++) {
+            int row = (k * imageRows) / (CHECK_ROWS + 1);
+            short[] beamRow = beam.readRow(band, row);
+            short[] fileRow = new short[columns];
+            ByteBuffer record = map(dataset).duplicate();
+            record.position(row * dataset.recordSize + dataset.recordSize - 2 * columns);
+            record.asShortBuffer().get(fileRow);
+            boolean product = true;
+            boolean reversed = true;
+            for (int j = 0; j < columns; j++) {
+                product &= beamRow[j] == fileRow[j];
+                reversed &= beamRow[j] == fileRow[(columns - 1) - j];
+            }
+            productOrder &= product;
+            reversedOrder &= reversed;
+            ordered |= product != reversed;
+        }
+        if (!ordered || productOrder == reversedOrder) {
+            return false;
+        }
+        dataset.productOrder = productOrder;
+        return true;
+    }
+
+    short[] read(String band, final int x, final int y, final int width, int height) throws IOException {
+        /* The values of an image window (product columns x to x + width - 1) in the output orientation */
+        final Dataset dataset = datasets.get(band);
+        if (y < 0 || y + height > dataset.records || x < 0 || x + width > columns) {
+            throw new IOException("Window outside band " + band);
+        }
+        final ByteBuffer buffer = map(dataset);
+        final short[] values = new short[width * height];
+        if (height <= TILE_ROWS) {
+            readTile(dataset, buffer, x, y, width, 0, height, values);
+            return values;
+        }
+        List<Future<?>> tiles = new ArrayList<>();
+        for (int first = 0; first < height; first += TILE_ROWS) {
+            final int firstRow = first;
+            final int rows = Math.min(TILE_ROWS, height - first);
+            tiles.add(getTileThreads().submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    readTile(dataset, buffer, x, y, width, firstRow, rows, values);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<?> tile : tiles) {
+                tile.get();
+            }
+        } catch (ExecutionException ex) {
+            throw new IOException("Reading band " + band + " failed", ex.getCause());
+        } catch (InterruptedException ex) {
+            throw new IOException("Reading band " + band + " interrupted", ex);
+        }
+        return values;
+    }
+
+    private void readTile(Dataset dataset, ByteBuffer buffer, int x, int y, int width, int firstRow, int rows, short[] values) {
+        // Each row is one bulk copy of the columns in file order, output column j is product column x + width - 1 - j
+        ByteBuffer record = buffer.duplicate();
+        int firstColumn = dataset.productOrder ? x : columns - x - width;
+        for (int i = firstRow; i < firstRow + rows; i++) {
+            record.position((y + i) * dataset.recordSize + dataset.recordSize - 2 * (columns - firstColumn));
+            record.asShortBuffer().get(values, i * width, width);
+            if (dataset.productOrder) {
+                reverse(values, i * width, width);
+            }
+        }
+    }
+
+    static void reverseRows(short[] values, int width) {
+        // Product orientation to output orientation (or back), row by row in place
+        for (int offset = 0; offset + width <= values.length; offset += width) {
+            reverse(values, offset, width);
+        }
+    }
+
+    private static void reverse(short[] values, int offset, int length) {
+        for (int left = offset, right = offset + length - 1; left < right; left++, right--) {
+            short value = values[left];
+            values[left] = values[right];
+            values[right] = value;
+        }
+    }
+
+    private ByteBuffer map(Dataset dataset) throws IOException {
+        // Mapped on first use, the mapping stays valid after the channel is closed
+        synchronized (dataset) {
+            if (dataset.buffer == null) {
+                try (RandomAccessFile file = new RandomAccessFile(location, "r"); FileChannel channel = file.getChannel()) {
+                    dataset.buffer = N1ADSReader.map(channel, dataset.dsd);
+                }
+            }
+            return dataset.buffer;
+        }
+    }
+
+    private static synchronized ExecutorService getTileThreads() {
+        if (tileThreads == null) {
+            tileThreads = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Band-tile");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return tileThreads;
+    }
+}
@@ -1,349 +1,599 @@
-/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
- * 
- * Copyright (C) 2015 Telespazio VEGA UK Ltd
- * 
- * This file is part of the AATSR GBT-UBT-Tool.
- * 
- * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
- * it under the terms of the GNU General Public License as published by
- * the Free Software Foundation, either version 3 of the License, or
- * (at your option) any later version.
- * 
- * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- * 
- * You should have received a copy of the GNU General Public License
- * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
- * 
- */
-package gbt.ubt.tool;
-
-import com.bc.ceres.core.ProgressMonitor;
-import java.nio.file.Paths;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.List;
-import org.esa.beam.framework.dataio.ProductIO;
-import org.esa.beam.framework.datamodel.Band;
-import org.esa.beam.framework.datamodel.Product;
-import org.esa.beam.framework.datamodel.ProductData;
-import ucar.nc2.jni.netcdf.Nc4Iosp;
-
-import ucar.nc2.Dimension;
-import ucar.ma2.*;
-import ucar.nc2.Attribute;
-import ucar.nc2.Group;
-import ucar.nc2.NetcdfFileWriter;
-import ucar.nc2.Variable;
-
-/**
- *
- * @author ABeaton, Telespazio VEGA UK Ltd 06/07/2015
- *
- * Contact: alasdhair(dot)beaton(at)telespazio(dot)com
- *
- */
-public class NetCDF4Writer {
-
-    public static void writeDataTofile(InputParameters parameters, double[][][] pixelPositions, int maxX, int maxY, int minX, int minY) {
-        NetcdfFileWriter dataFile = null;
-        try {
-            // NetCDF java library does not support direct write to NetCDF4 format. Use netCDF C library for file writing with JNI interface
-            Nc4Iosp.setLibraryAndPath(Paths.get("").toAbsolutePath().toString() + "\\netCDF 4.3.3.1\\bin", "netcdf");
-            boolean clibraryPresent = Nc4Iosp.isClibraryPresent();
-            if (!clibraryPresent) {
-                System.out.println("Expecting NetCDF C library at: " + Paths.get("").toAbsolutePath().toString() + "\\netCDF 4.3.3.1\\bin");
-                throw new Exception("Could not load NetCDF Library");
-            }
-            System.out.println("Generating Output File");
-            NetcdfFileWriter.Version version = NetcdfFileWriter.Version.netcdf4;
-            String outputFile = parameters.outputFileLocation;
-            dataFile = NetcdfFileWriter.createNew(version, outputFile, null);
-
-            // Add attributes to file that are compliant with CF conventions
-            dataFile.addGroupAttribute(null, new Attribute("Conventions", "CF-1.6"));
-            dataFile.addGroupAttribute(null, new Attribute("title", "AATSR GBT-UBT-Tool Output File"));
-            dataFile.addGroupAttribute(null, new Attribute("institution", "ESA"));
-            dataFile.addGroupAttribute(null, new Attribute("source", parameters.inputFileLocation.substring(parameters.inputFileLocation.lastIndexOf("/"))));
-            DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-            Date date = new Date();
-            dataFile.addGroupAttribute(null, new Attribute("history", dateFormat.format(date) + " GBT-UBT-Tool" + parameters.toolVersion + " " + parameters.inputString));
-            dataFile.addGroupAttribute(null, new Attribute("references", "https://github.com/Telespazio-VEGA-UK/GBT-UBT-Tool"));
-            dataFile.addGroupAttribute(null, new Attribute("comment", "none"));
-
-            // Create dimensions of the data arrays
-            Dimension jDim = dataFile.addDimension(null, "j", (maxX - minX));
-            Dimension iDim = dataFile.addDimension(null, "i", (maxY - minY));
-            List<Dimension> dims = new ArrayList<>();
-            dims.add(iDim);
-            dims.add(jDim);
-            List<Dimension> ims = new ArrayList<>();
-
-            // Define groups
-            Group root = dataFile.addGroup(null, "");
-            Group projection = dataFile.addGroup(root, "FOV Projection");
-            Group measurement = dataFile.addGroup(root, "Measurements");
-            Group acq_times = dataFile.addGroup(root, "Acquisition Times");
-            Group geolocation = dataFile.addGroup(root, "Geolocation");
-            Group flags = dataFile.addGroup(root, "Flags");
-
-            // Define variables
-            // Note non-standard CF use of differing _FillValue and missing_value
-            // Geolocation
-            Variable dataVariableNadLat = dataFile.addVariable(geolocation, "nadir view latitude", DataType.FLOAT, dims);
-            dataVariableNadLat.addAttribute(new Attribute("long_name", "nadir view ungridded latitude"));
-            dataVariableNadLat.addAttribute(new Attribute("standard_name", "latitude"));
-            dataVariableNadLat.addAttribute(new Attribute("units", "degrees_north"));
-            dataVariableNadLat.addAttribute(new Attribute("_FillValue", -999999.0f));
-            dataVariableNadLat.addAttribute(new Attribute("missing_value", -888888.0f));
-
-            Variable dataVariableNadLon = dataFile.addVariable(geolocation, "nadir view longitude", DataType.FLOAT, dims);
-            dataVariableNadLon.addAttribute(new Attribute("long_name", "nadir view ungridded longitude"));
-            dataVariableNadLon.addAttribute(new Attribute("standard_name", "longitude"));
-            dataVariableNadLon.addAttribute(new Attribute("units", "degrees_east"));
-            dataVariableNadLon.addAttribute(new Attribute("_FillValue", -999999.0f));
-            dataVariableNadLon.addAttribute(new Attribute("missing_value", -888888.0f));
-
-            Variable dataVariableFwdLat = dataFile.addVariable(geolocation, "forward view latitude", DataType.FLOAT, dims);
-            dataVariableFwdLat.addAttribute(new Attribute("long_name", "forward view ungridded latitude"));
-            dataVariableFwdLat.addAttribute(new Attribute("standard_name", "latitude"));
-            dataVariableFwdLat.addAttribute(new Attribute("units", "degrees_north"));
-            dataVariableFwdLat.addAttribute(new Attribute("_FillValue", -999999.0f));
-
-            Variable dataVariableFwdLon = dataFile.addVariable(geolocation, "forward view longitude", DataType.FLOAT, dims);
-            dataVariableFwdLon.addAttribute(new Attribute("long_name", "forward view ungridded longitude"));
-            dataVariableFwdLon.addAttribute(new Attribute("standard_name", "longitude"));
-            dataVariableFwdLon.addAttribute(new Attribute("units", "degrees_east"));
-            dataVariableFwdLon.addAttribute(new Attribute("_FillValue", -999999.0f));
-
-            // Acquisition times
-            Variable dataVariableNadDSR = dataFile.addVariable(acq_times, "nadir view acquisition time", DataType.DOUBLE, dims);
-            dataVariableNadDSR.addAttribute(new Attribute("long_name", "nadir view ungridded acquisition time (mjd2000)"));
-            dataVariableNadDSR.addAttribute(new Attribute("standard_name", "time"));
-            dataVariableNadDSR.addAttribute(new Attribute("units", "days since 2000-01-01 00:00:00"));
-            dataVariableNadDSR.addAttribute(new Attribute("_FillValue", -999999.0));
-            dataVariableNadDSR.addAttribute(new Attribute("missing_value", -888888.0));
-            dataVariableNadDSR.addAttribute(new Attribute("coordinates", "nadir_view_longitude nadir_view_latitude"));
-
-            Variable dataVariableFwdDSR = dataFile.addVariable(acq_times, "forward view acquisition time", DataType.DOUBLE, dims);
-            dataVariableFwdDSR.addAttribute(new Attribute("long_name", "forward view ungridded acquisition time (mjd2000)"));
-            dataVariableFwdDSR.addAttribute(new Attribute("standard_name", "time"));
-            dataVariableFwdDSR.addAttribute(new Attribute("units", "days since 2000-01-01 00:00:00"));
-            dataVariableFwdDSR.addAttribute(new Attribute("_FillValue", -999999.0));
-            dataVariableFwdDSR.addAttribute(new Attribute("coordinates", "forward_view_longitude forward_view_latitude"));
-
-            // Projections
-            Variable dataVariableNadFOVAcross = dataFile.addVariable(projection, "nadir view across track FOV projection", DataType.FLOAT, dims);
-            dataVariableNadFOVAcross.addAttribute(new Attribute("long_name", "nadir view pixel field of view projection across track"));
-            dataVariableNadFOVAcross.addAttribute(new Attribute("standard_name", "projection_x_coordinate"));
-            dataVariableNadFOVAcross.addAttribute(new Attribute("units", "km"));
-            dataVariableNadFOVAcross.addAttribute(new Attribute("_FillValue", -999999.0f));
-            dataVariableNadFOVAcross.addAttribute(new Attribute("coordinates", "nadir_view_longitude nadir_view_latitude"));
-
-            Variable dataVariableNadFOVAlong = dataFile.addVariable(projection, "nadir view along track FOV projection", DataType.FLOAT, dims);
-            dataVariableNadFOVAlong.addAttribute(new Attribute("long_name", "nadir view pixel field of view projection along track"));
-            dataVariableNadFOVAlong.addAttribute(new Attribute("standard_name", "projection_y_coordinate"));
-            dataVariableNadFOVAlong.addAttribute(new Attribute("units", "km"));
-            dataVariableNadFOVAlong.addAttribute(new Attribute("_FillValue", -999999.0f));
-            dataVariableNadFOVAlong.addAttribute(new Attribute("coordinates", "nadir_view_longitude nadir_view_latitude"));
-
-            Variable dataVariableFwdFOVAcross = dataFile.addVariable(projection, "forward view across track FOV projection", DataType.FLOAT, dims);
-            dataVariableFwdFOVAcross.addAttribute(new Attribute("long_name", "forward view pixel field of view projection across track"));
-            dataVariableFwdFOVAcross.addAttribute(new Attribute("standard_name", "projection_x_coordinate"));
-            dataVariableFwdFOVAcross.addAttribute(new Attribute("units", "km"));
-            dataVariableFwdFOVAcross.addAttribute(new Attribute("_FillValue", -999999.0f));
-            dataVariableFwdFOVAcross.addAttribute(new Attribute("coordinates", "forward_view_longitude forward_view_latitude"));
-
-            Variable dataVariableFwdFOVAlong = dataFile.addVariable(projection, "forward view along track FOV projection", DataType.FLOAT, dims);
-            dataVariableFwdFOVAlong.addAttribute(new Attribute("long_name", "forward view pixel field of view projection along track"));
-            dataVariableFwdFOVAlong.addAttribute(new Attribute("standard_name", "projection_y_coordinate"));
-            dataVariableFwdFOVAlong.addAttribute(new Attribute("units", "km"));
-            dataVariableFwdFOVAlong.addAttribute(new Attribute("_FillValue", -999999.0f));
-            dataVariableFwdFOVAlong.addAttribute(new Attribute("coordinates", "forward_view_longitude forward_view_latitude"));
-
-            // Measurement
-            // Note link between measurement data to flag variables
-            List<String> variableNames = new ArrayList<>(Arrays.asList("btemp_nadir_1200", "btemp_fward_1200", "btemp_nadir_1100", "btemp_fward_1100", "btemp_nadir_0370", "btemp_fward_0370", "reflec_nadir_1600", "reflec_fward_1600", "reflec_nadir_0870", "reflec_fward_0870", "reflec_nadir_0670", "reflec_fward_0670", "reflec_nadir_0550", "reflec_fward_0550"));
-            List<String> longNames = new ArrayList<>(Arrays.asList("Brightness temperature, nadir view (11500-12500 nm)", "Brightness temperature, forward view (11500-12500 nm)", "Brightness temperature, nadir view (10400-11300 nm)", "Brightness temperature, forward view (10400-11300 nm)", "Brightness temperature, nadir view (3505-3895 nm)", "Brightness temperature, forward view (3505-3895 nm)"));
-            longNames.addAll(Arrays.asList("Reflectance, nadir view (1580-1640 nm)", "Reflectance, forward view (1580-1640 nm)", "Reflectance, nadir view (855-875 nm)", "Reflectance, forward view (855-875 nm)", "Reflectance, nadir view (649-669 nm)", "Reflectance, forward view (649-669 nm)", "Reflectance, nadir view (545-565 nm)", "Reflectance, forward view (545-565 nm)"));
-
-            for (String variable : variableNames) {
-                Variable dataVariable = dataFile.addVariable(measurement, variable, DataType.SHORT, dims);
-                dataVariable.addAttribute(new Attribute("long_name", longNames.get(variableNames.indexOf(variable))));
-                if (variable.contains("btemp")) {
-                    dataVariable.addAttribute(new Attribute("standard_name", "toa_brightness_temperature"));
-                    dataVariable.addAttribute(new Attribute("units", "K"));
-                } else {
-                    dataVariable.addAttribute(new Attribute("standard_name", "toa_reflectance"));
-                    dataVariable.addAttribute(new Attribute("units", "Percent"));
-                }
-                if (variable.contains("nadir")) {
-                    dataVariable.addAttribute(new Attribute("coordinates", "nadir_view_longitude nadir_view_latitude"));
-                    dataVariable.addAttribute(new Attribute("ancillary_variables", "confid_flags_nadir cloud_flags_nadir"));
-                } else {
-                    dataVariable.addAttribute(new Attribute("coordinates", "forward_view_longitude forward_view_latitude"));
-                    dataVariable.addAttribute(new Attribute("ancillary_variables", "confid_flags_fward cloud_flags_fward"));
-                }
-                dataVariable.addAttribute(new Attribute("scale_factor", 0.01f));
-                dataVariable.addAttribute(new Attribute("add_offset ", 0.0f));
-                dataVariable.addAttribute(new Attribute("_FillValue", (short) -2));
-                dataVariable.addAttribute(new Attribute("grid_mapping", "crs"));
-                dataVariable.addAttribute(new Attribute("valid_min", (short) 0));
-            }
-
-            // Flag data
-            // Flag data is packed as integer, future todo will enumerate flags for variables.
-            Variable dataVariableNadConfid = dataFile.addVariable(flags, "confid flags nadir", DataType.SHORT, dims);
-            dataVariableNadConfid.addAttribute(new Attribute("long_name", "Confidence flags, nadir view"));
-            dataVariableNadConfid.addAttribute(new Attribute("coordinates", "nadir_view_longitude nadir_view_latitude"));
-            dataVariableNadConfid.addAttribute(new Attribute("grid_mapping", "crs"));
-
-            Variable dataVariableFwdConfid = dataFile.addVariable(flags, "confid flags fward", DataType.SHORT, dims);
-            dataVariableFwdConfid.addAttribute(new Attribute("long_name", "Confidence flags, forward view"));
-            dataVariableFwdConfid.addAttribute(new Attribute("coordinates", "forward_view_longitude forward_view_latitude"));
-            dataVariableFwdConfid.addAttribute(new Attribute("grid_mapping", "crs"));
-
-            Variable dataVariableNadCloud = dataFile.addVariable(flags, "cloud flags nadir", DataType.SHORT, dims);
-            dataVariableNadCloud.addAttribute(new Attribute("long_name", "Cloud flags, nadir view"));
-            dataVariableNadCloud.addAttribute(new Attribute("coordinates", "nadir_view_longitude nadir_view_latitude"));
-            dataVariableNadCloud.addAttribute(new Attribute("grid_mapping", "crs"));
-
-            Variable dataVariableFwdCloud = dataFile.addVariable(flags, "cloud flags fward", DataType.SHORT, dims);
-            dataVariableFwdCloud.addAttribute(new Attribute("long_name", "Cloud flags, forward view"));
-            dataVariableFwdCloud.addAttribute(new Attribute("coordinates", "forward_view_longitude forward_view_latitude"));
-            dataVariableFwdCloud.addAttribute(new Attribute("grid_mapping", "crs"));
-
-            // CRS
-            Variable dataVariableCRS = dataFile.addVariable(null, "crs", DataType.INT, ims);
-            dataVariableCRS.addAttribute(new Attribute("long_name", "coordinate reference system"));
-            dataVariableCRS.addAttribute(new Attribute("grid_mapping_name", "latitude_longitude"));
-            dataVariableCRS.addAttribute(new Attribute("longitude_of_prime_meridian", 0.0));
-            dataVariableCRS.addAttribute(new Attribute("semi_major_axis", 6378137.0));
-            dataVariableCRS.addAttribute(new Attribute("inverse_flattening", 298.257223563));
-
-            // Create file
-            dataFile.create();
-
-            // Create data arrays (excluding measurement)
-            ArrayFloat.D2 NadLatOut = new ArrayFloat.D2(iDim.getLength(), jDim.getLength());
-            ArrayFloat.D2 NadLonOut = new ArrayFloat.D2(iDim.getLength(), jDim.getLength());
-            ArrayFloat.D2 FwdLatOut = new ArrayFloat.D2(iDim.getLength(), jDim.getLength());
-            ArrayFloat.D2 FwdLonOut = new ArrayFloat.D2(iDim.getLength(), jDim.getLength());
-            ArrayDouble.D2 NadDSROut = new ArrayDouble.D2(iDim.getLength(), jDim.getLength());
-            ArrayDouble.D2 FwdDSROut = new ArrayDouble.D2(iDim.getLength(), jDim.getLength());
-            ArrayFloat.D2 NadLatFOVAcross = new ArrayFloat.D2(iDim.getLength(), jDim.getLength());
-            ArrayFloat.D2 NadLatFOVAlong = new ArrayFloat.D2(iDim.getLength(), jDim.getLength());
-            ArrayFloat.D2 FwdLatFOVAcross = new ArrayFloat.D2(iDim.getLength(), jDim.getLength());
-            ArrayFloat.D2 FwdLatFOVAlong = new ArrayFloat.D2(iDim.getLength(), jDim.getLength());
-            ArrayShort.D2 NadConfidOut = new ArrayShort.D2(iDim.getLength(), jDim.getLength());
-            ArrayShort.D2 FwdConfidOut = new ArrayShort.D2(iDim.getLength(), jDim.getLength());
-            ArrayShort.D2 NadCloudOut = new ArrayShort.D2(iDim.getLength(), jDim.getLength());
-            ArrayShort.D2 FwdCloudOut = new ArrayShort.D2(iDim.getLength(), jDim.getLength());
-
-            // Write extracted data (write measurement data later to reduce memory overhead)
-            int i, j, k;
-
-            Product readProduct = ProductIO.readProduct(parameters.inputFileLocation);
-            Band nadConfid = readProduct.getBand("confid_flags_nadir");
-            Band nadCloud = readProduct.getBand("cloud_flags_nadir");
-            Band fwdConfid = readProduct.getBand("confid_flags_fward");
-            Band fwdCloud = readProduct.getBand("cloud_flags_fward");
-
-            int jDimLength = jDim.getLength();
-            int iDimLength = iDim.getLength();
-            ProductData nadConfidValues = ProductData.createInstance(new short[jDim.getLength() * iDim.getLength()]);
-            nadConfid.readRasterData(minX, minY, jDimLength, iDimLength, nadConfidValues, ProgressMonitor.NULL);
-            ProductData nadCloudValues = ProductData.createInstance(new short[jDim.getLength() * iDim.getLength()]);
-            nadCloud.readRasterData(minX, minY, jDimLength, iDimLength, nadCloudValues, ProgressMonitor.NULL);
-            ProductData fwdConfidValues = ProductData.createInstance(new short[jDim.getLength() * iDim.getLength()]);
-            fwdConfid.readRasterData(minX, minY, jDimLength, iDimLength, fwdConfidValues, ProgressMonitor.NULL);
-            ProductData fwdCloudValues = ProductData.createInstance(new short[jDim.getLength() * iDim.getLength()]);
-            fwdCloud.readRasterData(minX, minY, jDimLength, iDimLength, fwdCloudValues, ProgressMonitor.NULL);
-            
-            for (i = 0; i < iDim.getLength(); i++) {
-                for (j = 0; j < jDim.getLength(); j++) {
-                    NadLatOut.set(i, j, (float) pixelPositions[i][j][0]);
-                    NadLonOut.set(i, j, (float) pixelPositions[i][j][1]);
-                    FwdLatOut.set(i, j, (float) pixelPositions[i][j][2]);
-                    FwdLonOut.set(i, j, (float) pixelPositions[i][j][3]);
-                    NadDSROut.set(i, j, pixelPositions[i][j][4]);
-                    FwdDSROut.set(i, j, pixelPositions[i][j][5]);
-                    NadLatFOVAlong.set(i, j, (float) pixelPositions[i][j][6]);
-                    NadLatFOVAcross.set(i, j, (float) pixelPositions[i][j][7]);
-                    FwdLatFOVAlong.set(i, j, (float) pixelPositions[i][j][8]);
-                    FwdLatFOVAcross.set(i, j, (float) pixelPositions[i][j][9]);
-                    NadConfidOut.set(i, j, (short)  nadConfidValues.getElemIntAt(((jDimLength-1)-j) + (i*jDimLength)));
-                    FwdConfidOut.set(i, j, (short) nadCloudValues.getElemIntAt(((jDimLength-1)-j) + (i*jDimLength)));
-                    NadCloudOut.set(i, j, (short) fwdConfidValues.getElemIntAt(((jDimLength-1)-j) + (i*jDimLength)));
-                    FwdCloudOut.set(i, j, (short) fwdCloudValues.getElemIntAt(((jDimLength-1)-j) + (i*jDimLength)));
-                }
-            }
-            dataFile.write(dataVariableNadLat, NadLatOut);
-            dataFile.write(dataVariableNadLon, NadLonOut);
-            dataFile.write(dataVariableFwdLat, FwdLatOut);
-            dataFile.write(dataVariableFwdLon, FwdLonOut);
-            dataFile.write(dataVariableNadDSR, NadDSROut);
-            dataFile.write(dataVariableFwdDSR, FwdDSROut);
-            dataFile.write(dataVariableNadFOVAcross, NadLatFOVAcross);
-            dataFile.write(dataVariableNadFOVAlong, NadLatFOVAlong);
-            dataFile.write(dataVariableFwdFOVAcross, FwdLatFOVAcross);
-            dataFile.write(dataVariableFwdFOVAlong, FwdLatFOVAlong);
-            dataFile.write(dataVariableNadConfid, NadConfidOut);
-            dataFile.write(dataVariableFwdConfid, FwdConfidOut);
-            dataFile.write(dataVariableNadCloud, NadCloudOut);
-            dataFile.write(dataVariableFwdCloud, FwdCloudOut);
-
-            Double[][][] arrayFlags = new Double[pixelPositions.length + 1][pixelPositions[0].length + 1][2];
-            for (i = 0; i < iDim.getLength(); i++) {
-                for (j = 0; j < jDim.getLength(); j++) {
-                    arrayFlags[i][j][0] = pixelPositions[i][j][0];
-                    arrayFlags[i][j][1] = pixelPositions[i][j][2];
-                }
-            }
-
-            ArrayShort.D2 variableOut = new ArrayShort.D2(iDim.getLength(), jDim.getLength());
-            System.out.println("Copying Measurement Data");
-            for (k = 0; k < variableNames.size(); k++) {
-                Band band = readProduct.getBand(variableNames.get(k));
-                int viewFlag = 0;
-                if (variableNames.contains("fward")) {
-                    viewFlag = 1;
-                }
-                ProductData values = ProductData.createInstance(new short[jDim.getLength() * iDim.getLength()]);
-                band.readRasterData(minX, minY, jDimLength, iDimLength, values, ProgressMonitor.NULL);
-                for (i = 0; i < iDim.getLength(); i++) {
-                    for (j = 0; j < jDim.getLength(); j++) {
-                        if (arrayFlags[i][j][viewFlag] != -999999.0 || arrayFlags[i][j][viewFlag] != -888888.0) {
-                            short value = (short) values.getElemIntAt(((jDimLength-1)-j) + (i*jDimLength));
-                            if (value < 0) {
-                                variableOut.set(i, j, (short) -2);
-                            } else {
-                                variableOut.set(i, j, value);
-                            }
-                        } else {
-                            variableOut.set(i, j, (short) -2);
-                        }
-                    }
-                }
-                // Write data to file
-                dataFile.write(dataFile.findVariable("/Measurements/" + variableNames.get(k)), variableOut);
-            }
-            readProduct.closeIO();
-        } catch (Exception ex) {
-            ex.printStackTrace();
-        } finally {
-            if (null != dataFile) {
-                try {
-                    dataFile.close();
-                } catch (Exception ioe) {
-                    ioe.printStackTrace();
-                }
-            }
-        }
-    }
-}
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ * 
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ * 
+ * This file is part of the AATSR GBT-UBT-Tool.
+ * 
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package gbt.ubt.tool;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import ucar.nc2.jni.netcdf.Nc4Iosp;
+
+import ucar.nc2.Dimension;
+import ucar.ma2.*;
+import ucar.nc2.Attribute;
+import ucar.nc2.Group;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+import ucar.nc2.write.Nc4Chunking;
+import ucar.nc2.write.Nc4ChunkingStrategy;
+
+/**
+ *
+ * @author ABeaton, Telespazio VEGA UK Ltd 06/07/2015
+ *
+ * Contact: alasdhair(dot)beaton(at)telespazio(dot)com
+ *
+ */
+public class NetCDF4Writer {
+    /* The output file is defined and created up front, the results are then written in blocks of image rows
+     (origin/shape sections) straight from the result arena, together with the matching rows of the flag and
+     measurement bands, so no full size copy of the product is made.
+     */
+
+    private static final int WRITE_BLOCK_ELEMENTS = 1 << 22;
+    static final String ROW_DIMENSION = "i";
+
+    private final NetcdfFileWriter dataFile;
+    private final Variable[] variables;
+    private final int minX;
+    private final int minY;
+    private final int columns;
+    private ProductContext product;
+    private Variable dataVariableNadConfid;
+    private Variable dataVariableFwdConfid;
+    private Variable dataVariableNadCloud;
+    private Variable dataVariableFwdCloud;
+
+    private NetCDF4Writer(NetcdfFileWriter dataFile, int minX, int minY, int columns) {
+        this.dataFile = dataFile;
+        this.variables = new Variable[ResultVariable.values().length];
+        this.minX = minX;
+        this.minY = minY;
+        this.columns = columns;
+    }
+
+    public static void writeDataTofile(InputParameters parameters, ProductContext product, ResultArena results, CompactEncoding compact, int maxX, int maxY, int minX, int minY) {
+        NetCDF4Writer writer = null;
+        try {
+            writer = create(parameters, product, results.getVariables(), results.getPackedVariables(), compact, maxX, maxY, minX, minY);
+            System.out.println("Copying Measurement Data");
+            int blockRows = Math.max(1, WRITE_BLOCK_ELEMENTS / Math.max(1, maxX - minX));
+            for (int row = 0; row < results.getRows(); row += blockRows) {
+                writer.writeRows(results, row, Math.min(blockRows, results.getRows() - row));
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            if (null != writer) {
+                writer.close();
+            }
+        }
+    }
+
+    static NetCDF4Writer create(InputParameters parameters, ProductContext product, Set<ResultVariable> variables, Set<ResultVariable> packedVariables, CompactEncoding compact, int maxX, int maxY, int minX, int minY) throws Exception {
+        loadLibrary();
+        System.out.println("Generating Output File");
+        NetcdfFileWriter dataFile = createFile(parameters.outputFileLocation, !packedVariables.isEmpty());
+        NetCDF4Writer writer = new NetCDF4Writer(dataFile, minX, minY, maxX - minX);
+        try {
+            writer.define(parameters, variables, packedVariables, compact, maxX, maxY, minX, minY);
+
+            // Flags and measurement data are copied from the product session as each block of rows is written
+            writer.product = product;
+        } catch (Exception ex) {
+            writer.close();
+            throw ex;
+        }
+        return writer;
+    }
+
+    static void loadLibrary() throws Exception {
+        // NetCDF java library does not support direct write to NetCDF4 format. Use netCDF C library for file writing with JNI interface
+        Nc4Iosp.setLibraryAndPath(Paths.get("").toAbsolutePath().toString() + "\\netCDF 4.3.3.1\\bin", "netcdf");
+        boolean clibraryPresent = Nc4Iosp.isClibraryPresent();
+        if (!clibraryPresent) {
+            System.out.println("Expecting NetCDF C library at: " + Paths.get("").toAbsolutePath().toString() + "\\netCDF 4.3.3.1\\bin");
+            throw new Exception("Could not load NetCDF Library");
+        }
+    }
+
+    static NetcdfFileWriter createFile(String outputFile, boolean packed) throws IOException {
+        NetcdfFileWriter.Version version = NetcdfFileWriter.Version.netcdf4;
+        // Packed output is written with the deflate filter (shuffled), the integers compress far better than floats
+        Nc4Chunking chunker = null;
+        if (packed) {
+            chunker = Nc4ChunkingStrategy.factory(Nc4Chunking.Strategy.standard, 5, true);
+        }
+        return NetcdfFileWriter.createNew(version, outputFile, chunker);
+    }
+
+    private void define(InputParameters parameters, Set<ResultVariable> resultVariables, Set<ResultVariable> packedVariables, CompactEncoding compact, int maxX, int maxY, int minX, int minY) throws IOException, InvalidRangeException {
+        // Add attributes to file that are compliant with CF conventions
+        dataFile.addGroupAttribute(null, new Attribute("Conventions", "CF-1.6"));
+        dataFile.addGroupAttribute(null, new Attribute("title", "AATSR GBT-UBT-Tool Output File"));
+        dataFile.addGroupAttribute(null, new Attribute("institution", "ESA"));
+        dataFile.addGroupAttribute(null, new Attribute("source", parameters.inputFileLocation.substring(parameters.inputFileLocation.lastIndexOf("/"))));
+        DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        Date date = new Date();
+        dataFile.addGroupAttribute(null, new Attribute("history", dateFormat.format(date) + " GBT-UBT-Tool" + parameters.toolVersion + " " + parameters.inputString));
+        dataFile.addGroupAttribute(null, new Attribute("references", "https://github.com/Telespazio-VEGA-UK/GBT-UBT-Tool"));
+        dataFile.addGroupAttribute(null, new Attribute("comment", "none"));
+        if (parameters.shardCount > 0) {
+            // Partial output of a sharded run, assembled with gbt2ubt --merge (see ShardMerger)
+            dataFile.addGroupAttribute(null, new Attribute(ShardMerger.SHARD, parameters.shardIndex + "/" + parameters.shardCount));
+            dataFile.addGroupAttribute(null, new Attribute(ShardMerger.SHARD_FIRST_ROW, parameters.shardFirstRow));
+            dataFile.addGroupAttribute(null, new Attribute(ShardMerger.SHARD_OUTPUT_ROWS, parameters.shardOutputRows));
+        }
+
+        // Create dimensions of the data arrays
+        Dimension jDim = dataFile.addDimension(null, "j", (maxX - minX));
+        Dimension iDim = dataFile.addDimension(null, ROW_DIMENSION, (maxY - minY));
+        List<Dimension> dims = new ArrayList<>();
+        dims.add(iDim);
+        dims.add(jDim);
+        List<Dimension> ims = new ArrayList<>();
+
+        // Define groups
+        Group root = dataFile.addGroup(null, "");
+        Group projection = dataFile.addGroup(root, "FOV Projection");
+        Group measurement = dataFile.addGroup(root, "Measurements");
+        Group acq_times = dataFile.addGroup(root, "Acquisition Times");
+        Group geolocation = dataFile.addGroup(root, "Geolocation");
+        Group flags = dataFile.addGroup(root, "Flags");
+
+        // Define variables
+        // Note non-standard CF use of differing _FillValue and missing_value
+        // Geolocation
+        if (resultVariables.contains(ResultVariable.NADIR_LATITUDE)) {
+            Variable dataVariableNadLat = dataFile.addVariable(geolocation, "nadir view latitude", geolocationType(packedVariables, ResultVariable.NADIR_LATITUDE), dims);
+            dataVariableNadLat.addAttribute(new Attribute("long_name", "nadir view ungridded latitude"));
+            dataVariableNadLat.addAttribute(new Attribute("standard_name", "latitude"));
+            dataVariableNadLat.addAttribute(new Attribute("units", "degrees_north"));
+            addGeolocationFillValues(dataVariableNadLat, packedVariables.contains(ResultVariable.NADIR_LATITUDE), true);
+            variables[ResultVariable.NADIR_LATITUDE.ordinal()] = dataVariableNadLat;
+        }
+
+        if (resultVariables.contains(ResultVariable.NADIR_LONGITUDE)) {
+            Variable dataVariableNadLon = dataFile.addVariable(geolocation, "nadir view longitude", geolocationType(packedVariables, ResultVariable.NADIR_LONGITUDE), dims);
+            dataVariableNadLon.addAttribute(new Attribute("long_name", "nadir view ungridded longitude"));
+            dataVariableNadLon.addAttribute(new Attribute("standard_name", "longitude"));
+            dataVariableNadLon.addAttribute(new Attribute("units", "degrees_east"));
+            addGeolocationFillValues(dataVariableNadLon, packedVariables.contains(ResultVariable.NADIR_LONGITUDE), true);
+            variables[ResultVariable.NADIR_LONGITUDE.ordinal()] = dataVariableNadLon;
+        }
+
+        if (resultVariables.contains(ResultVariable.FORWARD_LATITUDE)) {
+            Variable dataVariableFwdLat = dataFile.addVariable(geolocation, "forward view latitude", geolocationType(packedVariables, ResultVariable.FORWARD_LATITUDE), dims);
+            dataVariableFwdLat.addAttribute(new Attribute("long_name", "forward view ungridded latitude"));
+            dataVariableFwdLat.addAttribute(new Attribute("standard_name", "latitude"));
+            dataVariableFwdLat.addAttribute(new Attribute("units", "degrees_north"));
+            addGeolocationFillValues(dataVariableFwdLat, packedVariables.contains(ResultVariable.FORWARD_LATITUDE), false);
+            variables[ResultVariable.FORWARD_LATITUDE.ordinal()] = dataVariableFwdLat;
+        }
+
+        if (resultVariables.contains(ResultVariable.FORWARD_LONGITUDE)) {
+            Variable dataVariableFwdLon = dataFile.addVariable(geolocation, "forward view longitude", geolocationType(packedVariables, ResultVariable.FORWARD_LONGITUDE), dims);
+            dataVariableFwdLon.addAttribute(new Attribute("long_name", "forward view ungridded longitude"));
+            dataVariableFwdLon.addAttribute(new Attribute("standard_name", "longitude"));
+            dataVariableFwdLon.addAttribute(new Attribute("units", "degrees_east"));
+            addGeolocationFillValues(dataVariableFwdLon, packedVariables.contains(ResultVariable.FORWARD_LONGITUDE), false);
+            variables[ResultVariable.FORWARD_LONGITUDE.ordinal()] = dataVariableFwdLon;
+        }
+
+        // Acquisition times
+        if (resultVariables.contains(ResultVariable.NADIR_ACQUISITION_TIME)) {
+            Variable dataVariableNadDSR = dataFile.addVariable(acq_times, "nadir view acquisition time", DataType.DOUBLE, dims);
+            dataVariableNadDSR.addAttribute(new Attribute("long_name", "nadir view ungridded acquisition time (mjd2000)"));
+            dataVariableNadDSR.addAttribute(new Attribute("standard_name", "time"));
+            dataVariableNadDSR.addAttribute(new Attribute("units", "days since 2000-01-01 00:00:00"));
+            dataVariableNadDSR.addAttribute(new Attribute("_FillValue", -999999.0));
+            dataVariableNadDSR.addAttribute(new Attribute("missing_value", -888888.0));
+            dataVariableNadDSR.addAttribute(new Attribute("coordinates", "nadir_view_longitude nadir_view_latitude"));
+            variables[ResultVariable.NADIR_ACQUISITION_TIME.ordinal()] = dataVariableNadDSR;
+        }
+
+        if (resultVariables.contains(ResultVariable.FORWARD_ACQUISITION_TIME)) {
+            Variable dataVariableFwdDSR = dataFile.addVariable(acq_times, "forward view acquisition time", DataType.DOUBLE, dims);
+            dataVariableFwdDSR.addAttribute(new Attribute("long_name", "forward view ungridded acquisition time (mjd2000)"));
+            dataVariableFwdDSR.addAttribute(new Attribute("standard_name", "time"));
+            dataVariableFwdDSR.addAttribute(new Attribute("units", "days since 2000-01-01 00:00:00"));
+            dataVariableFwdDSR.addAttribute(new Attribute("_FillValue", -999999.0));
+            dataVariableFwdDSR.addAttribute(new Attribute("coordinates", "forward_view_longitude forward_view_latitude"));
+            variables[ResultVariable.FORWARD_ACQUISITION_TIME.ordinal()] = dataVariableFwdDSR;
+        }
+
+        // Projections
+        if (resultVariables.contains(ResultVariable.NADIR_ACROSS_TRACK)) {
+            Variable dataVariableNadFOVAcross = dataFile.addVariable(projection, "nadir view across track FOV projection", DataType.FLOAT, dims);
+            dataVariableNadFOVAcross.addAttribute(new Attribute("long_name", "nadir view pixel field of view projection across track"));
+            dataVariableNadFOVAcross.addAttribute(new Attribute("standard_name", "projection_x_coordinate"));
+            dataVariableNadFOVAcross.addAttribute(new Attribute("units", "km"));
+            dataVariableNadFOVAcross.addAttribute(new Attribute("_FillValue", -999999.0f));
+            dataVariableNadFOVAcross.addAttribute(new Attribute("coordinates", "nadir_view_longitude nadir_view_latitude"));
+            variables[ResultVariable.NADIR_ACROSS_TRACK.ordinal()] = dataVariableNadFOVAcross;
+        }
+
+        if (resultVariables.contains(ResultVariable.NADIR_ALONG_TRACK)) {
+            Variable dataVariableNadFOVAlong = dataFile.addVariable(projection, "nadir view along track FOV projection", DataType.FLOAT, dims);
+            dataVariableNadFOVAlong.addAttribute(new Attribute("long_name", "nadir view pixel field of view projection along track"));
+            dataVariableNadFOVAlong.addAttribute(new Attribute("standard_name", "projection_y_coordinate"));
+            dataVariableNadFOVAlong.addAttribute(new Attribute("units", "km"));
+            dataVariableNadFOVAlong.addAttribute(new Attribute("_FillValue", -999999.0f));
+            dataVariableNadFOVAlong.addAttribute(new Attribute("coordinates", "nadir_view_longitude nadir_view_latitude"));
+            variables[ResultVariable.NADIR_ALONG_TRACK.ordinal()] = dataVariableNadFOVAlong;
+        }
+
+        if (resultVariables.contains(ResultVariable.FORWARD_ACROSS_TRACK)) {
+            Variable dataVariableFwdFOVAcross = dataFile.addVariable(projection, "forward view across track FOV projection", DataType.FLOAT, dims);
+            dataVariableFwdFOVAcross.addAttribute(new Attribute("long_name", "forward view pixel field of view projection across track"));
+            dataVariableFwdFOVAcross.addAttribute(new Attribute("standard_name", "projection_x_coordinate"));
+            dataVariableFwdFOVAcross.addAttribute(new Attribute("units", "km"));
+            dataVariableFwdFOVAcross.addAttribute(new Attribute("_FillValue", -999999.0f));
+            dataVariableFwdFOVAcross.addAttribute(new Attribute("coordinates", "forward_view_longitude forward_view_latitude"));
+            variables[ResultVariable.FORWARD_ACROSS_TRACK.ordinal()] = dataVariableFwdFOVAcross;
+        }
+
+        if (resultVariables.contains(ResultVariable.FORWARD_ALONG_TRACK)) {
+            Variable dataVariableFwdFOVAlong = dataFile.addVariable(projection, "forward view along track FOV projection", DataType.FLOAT, dims);
+            dataVariableFwdFOVAlong.addAttribute(new Attribute("long_name", "forward view pixel field of view projection along track"));
+            dataVariableFwdFOVAlong.addAttribute(new Attribute("standard_name", "projection_y_coordinate"));
+            dataVariableFwdFOVAlong.addAttribute(new Attribute("units", "km"));
+            dataVariableFwdFOVAlong.addAttribute(new Attribute("_FillValue", -999999.0f));
+            dataVariableFwdFOVAlong.addAttribute(new Attribute("coordinates", "forward_view_longitude forward_view_latitude"));
+            variables[ResultVariable.FORWARD_ALONG_TRACK.ordinal()] = dataVariableFwdFOVAlong;
+        }
+
+        // Measurement
+        // Note link between measurement data to flag variables
+        for (String variable : ProductBands.variableNames) {
+            if (!parameters.includesBand(variable)) {
+                continue;
+            }
+            Variable dataVariable = dataFile.addVariable(measurement, variable, DataType.SHORT, dims);
+            dataVariable.addAttribute(new Attribute("long_name", ProductBands.longNames.get(ProductBands.variableNames.indexOf(variable))));
+            if (variable.contains("btemp")) {
+                dataVariable.addAttribute(new Attribute("standard_name", "toa_brightness_temperature"));
+                dataVariable.addAttribute(new Attribute("units", "K"));
+            } else {
+                dataVariable.addAttribute(new Attribute("standard_name", "toa_reflectance"));
+                dataVariable.addAttribute(new Attribute("units", "Percent"));
+            }
+            if (variable.contains("nadir")) {
+                dataVariable.addAttribute(new Attribute("coordinates", "nadir_view_longitude nadir_view_latitude"));
+                dataVariable.addAttribute(new Attribute("ancillary_variables", "confid_flags_nadir cloud_flags_nadir"));
+            } else {
+                dataVariable.addAttribute(new Attribute("coordinates", "forward_view_longitude forward_view_latitude"));
+                dataVariable.addAttribute(new Attribute("ancillary_variables", "confid_flags_fward cloud_flags_fward"));
+            }
+            dataVariable.addAttribute(new Attribute("scale_factor", 0.01f));
+            dataVariable.addAttribute(new Attribute("add_offset ", 0.0f));
+            dataVariable.addAttribute(new Attribute("_FillValue", (short) -2));
+            dataVariable.addAttribute(new Attribute("grid_mapping", "crs"));
+            dataVariable.addAttribute(new Attribute("valid_min", (short) 0));
+        }
+
+        // Flag data
+        // Flag data is packed as integer, future todo will enumerate flags for variables.
+        if (parameters.includesBand("confid_flags_nadir")) {
+            dataVariableNadConfid = dataFile.addVariable(flags, "confid flags nadir", DataType.SHORT, dims);
+            dataVariableNadConfid.addAttribute(new Attribute("long_name", "Confidence flags, nadir view"));
+            dataVariableNadConfid.addAttribute(new Attribute("coordinates", "nadir_view_longitude nadir_view_latitude"));
+            dataVariableNadConfid.addAttribute(new Attribute("grid_mapping", "crs"));
+        }
+
+        if (parameters.includesBand("confid_flags_fward")) {
+            dataVariableFwdConfid = dataFile.addVariable(flags, "confid flags fward", DataType.SHORT, dims);
+            dataVariableFwdConfid.addAttribute(new Attribute("long_name", "Confidence flags, forward view"));
+            dataVariableFwdConfid.addAttribute(new Attribute("coordinates", "forward_view_longitude forward_view_latitude"));
+            dataVariableFwdConfid.addAttribute(new Attribute("grid_mapping", "crs"));
+        }
+
+        if (parameters.includesBand("cloud_flags_nadir")) {
+            dataVariableNadCloud = dataFile.addVariable(flags, "cloud flags nadir", DataType.SHORT, dims);
+            dataVariableNadCloud.addAttribute(new Attribute("long_name", "Cloud flags, nadir view"));
+            dataVariableNadCloud.addAttribute(new Attribute("coordinates", "nadir_view_longitude nadir_view_latitude"));
+            dataVariableNadCloud.addAttribute(new Attribute("grid_mapping", "crs"));
+        }
+
+        if (parameters.includesBand("cloud_flags_fward")) {
+            dataVariableFwdCloud = dataFile.addVariable(flags, "cloud flags fward", DataType.SHORT, dims);
+            dataVariableFwdCloud.addAttribute(new Attribute("long_name", "Cloud flags, forward view"));
+            dataVariableFwdCloud.addAttribute(new Attribute("coordinates", "forward_view_longitude forward_view_latitude"));
+            dataVariableFwdCloud.addAttribute(new Attribute("grid_mapping", "crs"));
+        }
+
+        // CRS
+        Variable dataVariableCRS = dataFile.addVariable(null, "crs", DataType.INT, ims);
+        dataVariableCRS.addAttribute(new Attribute("long_name", "coordinate reference system"));
+        dataVariableCRS.addAttribute(new Attribute("grid_mapping_name", "latitude_longitude"));
+        dataVariableCRS.addAttribute(new Attribute("longitude_of_prime_meridian", 0.0));
+        dataVariableCRS.addAttribute(new Attribute("semi_major_axis", 6378137.0));
+        dataVariableCRS.addAttribute(new Attribute("inverse_flattening", 298.257223563));
+
+        // Compact output, instrument scan & pixel numbers and the lookup tables to expand them (see CompactEncoding)
+        Variable scanTimes = null;
+        Variable alongTrackLookup = null;
+        Variable acrossTrackLookup = null;
+        if (compact != null) {
+            Group indices = dataFile.addGroup(root, CompactEncoding.GROUP);
+            ResultVariable[] indexVariables = {ResultVariable.NADIR_SCAN_NUMBER, ResultVariable.NADIR_PIXEL_NUMBER, ResultVariable.FORWARD_SCAN_NUMBER, ResultVariable.FORWARD_PIXEL_NUMBER};
+            for (ResultVariable variable : indexVariables) {
+                if (resultVariables.contains(variable)) {
+                    DataType type = DataType.INT;
+                    String longName = "instrument scan number";
+                    if (variable.type == ResultVariable.ElementType.INT16) {
+                        type = DataType.SHORT;
+                        longName = "instrument pixel number";
+                    }
+                    Variable dataVariable = dataFile.addVariable(indices, variable.datasetName, type, dims);
+                    if (variable.datasetName.startsWith("Nadir")) {
+                        dataVariable.addAttribute(new Attribute("long_name", "nadir view " + longName));
+                        dataVariable.addAttribute(new Attribute("coordinates", "nadir_view_longitude nadir_view_latitude"));
+                    } else {
+                        dataVariable.addAttribute(new Attribute("long_name", "forward view " + longName));
+                        dataVariable.addAttribute(new Attribute("coordinates", "forward_view_longitude forward_view_latitude"));
+                    }
+                    variables[variable.ordinal()] = dataVariable;
+                }
+            }
+            Dimension scanDim = dataFile.addDimension(indices, "scan", Math.max(1, compact.getScanTimes().length));
+            Dimension pixelDim = dataFile.addDimension(indices, "pixel", compact.getAlongTrack().length);
+            scanTimes = dataFile.addVariable(indices, CompactEncoding.SCAN_TIME, DataType.DOUBLE, Arrays.asList(scanDim));
+            scanTimes.addAttribute(new Attribute("long_name", "instrument scan time (mjd2000), indexed by scan number - first_scan_number"));
+            scanTimes.addAttribute(new Attribute("units", "days since 2000-01-01 00:00:00"));
+            scanTimes.addAttribute(new Attribute(CompactEncoding.FIRST_SCAN_NUMBER, compact.getFirstScanNumber()));
+            alongTrackLookup = dataFile.addVariable(indices, CompactEncoding.FOV_ALONG_TRACK, DataType.FLOAT, Arrays.asList(pixelDim));
+            alongTrackLookup.addAttribute(new Attribute("long_name", "pixel field of view projection along track, indexed by instrument pixel number"));
+            alongTrackLookup.addAttribute(new Attribute("units", "km"));
+            acrossTrackLookup = dataFile.addVariable(indices, CompactEncoding.FOV_ACROSS_TRACK, DataType.FLOAT, Arrays.asList(pixelDim));
+            acrossTrackLookup.addAttribute(new Attribute("long_name", "pixel field of view projection across track, indexed by instrument pixel number"));
+            acrossTrackLookup.addAttribute(new Attribute("units", "km"));
+        }
+
+        // Collocation, the forward pixels overlapping each nadir pixel and their overlap weights (see Collocator)
+        if (resultVariables.contains(ResultVariable.COLLOCATED_FORWARD_PIXEL_1)) {
+            Group collocation = dataFile.addGroup(root, "Collocation");
+            for (int k = 0; k < Collocator.MATCHES; k++) {
+                Variable pixel = dataFile.addVariable(collocation, ResultVariable.COLLOCATED_PIXELS[k].datasetName, DataType.INT, dims);
+                pixel.addAttribute(new Attribute("long_name", "forward view pixel with overlap rank " + (k + 1) + " as output grid index (row * columns + column)"));
+                pixel.addAttribute(new Attribute("coordinates", "nadir_view_longitude nadir_view_latitude"));
+                pixel.addAttribute(new Attribute("_FillValue", -1));
+                variables[ResultVariable.COLLOCATED_PIXELS[k].ordinal()] = pixel;
+                Variable weight = dataFile.addVariable(collocation, ResultVariable.COLLOCATED_WEIGHTS[k].datasetName, DataType.FLOAT, dims);
+                weight.addAttribute(new Attribute("long_name", "fraction of the nadir view pixel footprint covered by the forward view pixel with overlap rank " + (k + 1)));
+                weight.addAttribute(new Attribute("units", "1"));
+                weight.addAttribute(new Attribute("coordinates", "nadir_view_longitude nadir_view_latitude"));
+                variables[ResultVariable.COLLOCATED_WEIGHTS[k].ordinal()] = weight;
+            }
+        }
+
+        // Create file
+        dataFile.create();
+
+        if (compact != null) {
+            if (compact.getScanTimes().length > 0) {
+                dataFile.write(scanTimes, Array.factory(compact.getScanTimes()));
+            }
+            dataFile.write(alongTrackLookup, Array.factory(compact.getAlongTrack()));
+            dataFile.write(acrossTrackLookup, Array.factory(compact.getAcrossTrack()));
+        }
+    }
+
+    private static DataType geolocationType(Set<ResultVariable> packedVariables, ResultVariable variable) {
+        if (packedVariables.contains(variable)) {
+            return DataType.INT;
+        }
+        return DataType.FLOAT;
+    }
+
+    private static void addGeolocationFillValues(Variable variable, boolean packed, boolean missingValue) {
+        // Packed latitudes & longitudes are int32 micro-degrees, CF readers unpack them using scale_factor & add_offset
+        if (packed) {
+            variable.addAttribute(new Attribute("scale_factor", ResultArena.PACKING_SCALE));
+            variable.addAttribute(new Attribute("add_offset", 0.0));
+            variable.addAttribute(new Attribute("_FillValue", ResultArena.PACKED_FILL_VALUE));
+            if (missingValue) {
+                variable.addAttribute(new Attribute("missing_value", ResultArena.PACKED_MISSING_VALUE));
+            }
+        } else {
+            variable.addAttribute(new Attribute("_FillValue", -999999.0f));
+            if (missingValue) {
+                variable.addAttribute(new Attribute("missing_value", -888888.0f));
+            }
+        }
+    }
+
+    void writeRows(ResultArena results, int firstRow, int rowCount) throws IOException, InvalidRangeException {
+        /* Write a block of image rows (relative to the output grid) of every variable */
+        int[] origin = {firstRow, 0};
+        int[] shape = {rowCount, columns};
+        int i, j, k;
+
+        // Write extracted data (write measurement data last to reduce memory overhead)
+        for (ResultVariable variable : ResultVariable.values()) {
+            if (variables[variable.ordinal()] == null || !results.contains(variable)) {
+                continue;
+            }
+            Variable outputVariable = variables[variable.ordinal()];
+            dataFile.write(outputVariable, origin, Array.factory(outputVariable.getDataType(), shape, results.readRows(variable, firstRow, rowCount)));
+        }
+
+        int jDimLength = columns;
+        Variable[] flagVariables = {dataVariableNadConfid, dataVariableFwdConfid, dataVariableNadCloud, dataVariableFwdCloud};
+        for (k = 0; k < ProductBands.flagNames.size(); k++) {
+            // Flags not selected (--view, --variables) are not defined
+            if (flagVariables[k] == null) {
+                continue;
+            }
+            // Read in the output orientation, written as they are
+            short[] flagValues = product.readBand(ProductBands.flagNames.get(k), minX, minY + firstRow, jDimLength, rowCount);
+            dataFile.write(flagVariables[k], origin, Array.factory(DataType.SHORT, shape, flagValues));
+        }
+
+        short[] variableOut = new short[rowCount * jDimLength];
+        for (k = 0; k < ProductBands.variableNames.size(); k++) {
+            Variable outputVariable = dataFile.findVariable("/Measurements/" + ProductBands.variableNames.get(k));
+            if (outputVariable == null) {
+                continue;
+            }
+            ResultVariable viewLatitude = ResultVariable.NADIR_LATITUDE;
+            if (ProductBands.variableNames.get(k).contains("fward")) {
+                viewLatitude = ResultVariable.FORWARD_LATITUDE;
+            }
+            short[] values = product.readBand(ProductBands.variableNames.get(k), minX, minY + firstRow, jDimLength, rowCount);
+            for (i = 0; i < rowCount; i++) {
+                for (j = 0; j < jDimLength; j++) {
+                    double latitude = 0.0;
+                    if (results.contains(viewLatitude)) {
+                        latitude = results.get(viewLatitude, firstRow + i, j);
+                    }
+                    if (latitude != -999999.0 && latitude != -888888.0) {
+                        short value = values[j + (i*jDimLength)];
+                        if (value < 0) {
+                            variableOut[j + (i*jDimLength)] = (short) -2;
+                        } else {
+                            variableOut[j + (i*jDimLength)] = value;
+                        }
+                    } else {
+                        variableOut[j + (i*jDimLength)] = (short) -2;
+                    }
+                }
+            }
+            // Write data to file
+            dataFile.write(outputVariable, origin, Array.factory(DataType.SHORT, shape, variableOut));
+        }
+    }
+
+    static void mergeShards(String output, List<ShardMerger.Shard> shards) throws Exception {
+        /* Recreates the groups, variables and attributes of the first shard with the row count of the whole output,
+         then copies the rows of every shard (see ShardMerger) */
+        loadLibrary();
+        NetcdfFile[] sources = new NetcdfFile[shards.size()];
+        NetcdfFileWriter merged = null;
+        try {
+            for (int k = 0; k < shards.size(); k++) {
+                sources[k] = NetcdfFile.open(shards.get(k).location);
+            }
+            boolean packed = false;
+            for (Variable variable : sources[0].getVariables()) {
+                if (variable.findAttribute("scale_factor") != null) {
+                    packed = true;
+                }
+            }
+            merged = createFile(output, packed);
+            Map<String, Variable> copies = new HashMap<>();
+            defineMergedGroup(sources[0].getRootGroup(), merged.addGroup(null, ""), merged, shards.get(0).outputRows, new HashMap<Dimension, Dimension>(), copies);
+            merged.create();
+
+            int rowVariables = 0;
+            for (Variable variable : sources[0].getVariables()) {
+                if (isRowVariable(variable)) {
+                    rowVariables++;
+                } else if (variable.getRank() > 0) {
+                    // Lookup tables, the same in every shard
+                    merged.write(copies.get(variable.getFullName()), variable.read());
+                }
+            }
+            for (int k = 0; k < shards.size(); k++) {
+                ShardMerger.Shard shard = shards.get(k);
+                int copied = 0;
+                for (Variable part : sources[k].getVariables()) {
+                    Variable copy = copies.get(part.getFullName());
+                    if (copy == null || !isRowVariable(part)) {
+                        continue;
+                    }
+                    int[] shape = part.getShape();
+                    if (shape[0] != shard.rows) {
+                        throw new IOException(shard.location + " variable " + part.getFullName() + " does not match the shard rows");
+                    }
+                    int blockRows = Math.max(1, ShardMerger.COPY_BLOCK_ELEMENTS / Math.max(1, shape[1]));
+                    for (int row = 0; row < shard.rows; row += blockRows) {
+                        int rowCount = Math.min(blockRows, shard.rows - row);
+                        merged.write(copy, new int[]{shard.firstRow + row, 0}, part.read(new int[]{row, 0}, new int[]{rowCount, shape[1]}));
+                    }
+                    copied++;
+                }
+                if (copied != rowVariables) {
+                    throw new IOException(shard.location + " does not hold the variables of " + shards.get(0).location);
+                }
+            }
+        } finally {
+            if (merged != null) {
+                merged.close();
+            }
+            for (NetcdfFile source : sources) {
+                if (source != null) {
+                    source.close();
+                }
+            }
+        }
+    }
+
+    private static void defineMergedGroup(Group source, Group target, NetcdfFileWriter merged, int outputRows, Map<Dimension, Dimension> dimensions, Map<String, Variable> copies) {
+        for (Attribute attribute : source.getAttributes()) {
+            if (!ShardMerger.isShardAttribute(attribute.getShortName())) {
+                merged.addGroupAttribute(target, attribute);
+            }
+        }
+        for (Dimension dimension : source.getDimensions()) {
+            int length = dimension.getLength();
+            if (source.isRoot() && dimension.getShortName().equals(ROW_DIMENSION)) {
+                length = outputRows;
+            }
+            dimensions.put(dimension, merged.addDimension(target, dimension.getShortName(), length));
+        }
+        for (Variable variable : source.getVariables()) {
+            List<Dimension> variableDimensions = new ArrayList<>();
+            for (Dimension dimension : variable.getDimensions()) {
+                variableDimensions.add(dimensions.get(dimension));
+            }
+            Variable copy = merged.addVariable(target, variable.getShortName(), variable.getDataType(), variableDimensions);
+            for (Attribute attribute : variable.getAttributes()) {
+                copy.addAttribute(attribute);
+            }
+            copies.put(variable.getFullName(), copy);
+        }
+        for (Group group : source.getGroups()) {
+            defineMergedGroup(group, merged.addGroup(target, group.getShortName()), merged, outputRows, dimensions, copies);
+        }
+    }
+
+    private static boolean isRowVariable(Variable variable) {
+        // Variables with a row of the output grid per image row
+        return variable.getRank() == 2 && variable.getDimensions().get(0).getShortName().equals(ROW_DIMENSION);
+    }
+
+    void close() {
+        try {
+            dataFile.close();
+        } catch (Exception ioe) {
+            ioe.printStackTrace();
+        }
+    }
+}
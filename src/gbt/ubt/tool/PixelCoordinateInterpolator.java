@@ -1,201 +1,353 @@
-/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
- * 
- * Copyright (C) 2015 Telespazio VEGA UK Ltd
- * 
- * This file is part of the AATSR GBT-UBT-Tool.
- * 
- * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
- * it under the terms of the GNU General Public License as published by
- * the Free Software Foundation, either version 3 of the License, or
- * (at your option) any later version.
- * 
- * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- * 
- * You should have received a copy of the GNU General Public License
- * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
- * 
- */
-
-package gbt.ubt.tool;
-
-import org.esa.beam.framework.datamodel.MetadataAttribute;
-import org.esa.beam.framework.datamodel.MetadataElement;
-import org.esa.beam.framework.datamodel.ProductData;
-import org.esa.beam.framework.datamodel.ProductNodeGroup;
-
-/**
- *
- * @author ABeaton, Telespazio VEGA UK Ltd 30/10/2013
- *
- * Contact: alasdhair(dot)beaton(at)telespazio(dot)com
- *
- */
-class PixelCoordinateInterpolator {
-
-    static void searchScanPixelADS(int[] scanAndPixelIndices, int s0, ProductNodeGroup<MetadataElement> scanPixelADS, int firstPixelNumber, double[] pixelCoordinatesAndTime) {
-
-        /* This function finds the pixel coordinates using the instrument scan and instrument pixel numbers and the pixel acqusition time
-         Note that this methodology is taken from a Technical Note by Andrew Birks of Rutherford Appelton Laboratory.
-         "Instrument Pixel Co-ordinates and Measurement Times from AATSR Products",
-         available @ (https://earth.esa.int/handbooks/Instrument_Pixel_Coordinates_Measurement_Times_AATSR_Products.html) (Link accessed 01/08/2013)
-         This particular function maps to step 2 of the presented methodology.
-         */
-        int s = scanAndPixelIndices[0];
-        int p = scanAndPixelIndices[1];
-
-        /* Find the tie-scan corresponding to/before the input scan number */
-        int sg = (int) Math.floor(((double) s - (double) s0) / (double) 32);
-
-        /* The scanPixelADS begins with scan 32, so for scans 1-31 the coordinates cannot be solved via interpolation.
-         Future: investigate possibility to extrapolate data backward
-         Now: retrieve first ADS record and correct for this
-         */
-        if (sg < 0) {
-            sg = 0;
-        }
-
-        /* Retrieve the correct record that is before or contains the scan number
-         Note that the scanPixelADS ends (i.e. acquisition time) sometime before the MDS and other ADS,
-         when this happens, retrieve the last record of the scanPixelADS
-         */
-        int numberOfADSRecords = scanPixelADS.getNodeCount();
-
-        if (sg > (numberOfADSRecords - 1)) {
-            sg = numberOfADSRecords - 1;
-        }
-
-        MetadataElement scanADSRecord = scanPixelADS.get(sg);
-
-        /* If data gaps are present, this may be the incorrect record (does not correspond to/before input scan number)
-         Check to see if this is the case, if during testing this frequently occurs, may have to implement search algorithm
-         */
-        int instrumentScanNumberCheck = (32 * sg) + s0;
-
-        int currentRecordScanNumber = scanADSRecord.getAttributeAt(2).getData().getElemInt();
-
-        if (currentRecordScanNumber != instrumentScanNumberCheck) {
-            System.out.println("Data Gaps are present in Scan Pixel ADS");
-            System.exit(1);
-        }
-
-        /* Calculate the relative pixel index using the absolute pixel index */
-        int relativePixelIndex = p - firstPixelNumber;
-
-        /* Calculate the tie pixel and the part thereof */
-        double tiePixelPart = relativePixelIndex / 10.0;
-        int tiePixel = (int) Math.floor(tiePixelPart);
-
-        /* Calculate the interpolation weight (i.e. the distance between tie-points)
-         Note that the weight is corrected for the short interval at the end of the Nadir Pixel Scan, other intervals are 10 pixels
-         the final interval is only 4.
-         */
-        double weight = (tiePixelPart - tiePixel);
-
-        if (relativePixelIndex > 570) {
-            weight = (relativePixelIndex - 570) / 4.0;
-        }
-
-        /* If interpolating for the forward view, need to interpolate between the later 40 tie points */
-        if (firstPixelNumber > 1000) {
-            tiePixel += 59;
-        }
-
-        /* Calculate the x and y coordinates of the relative pixel in the tie scan ADS */
-        MetadataAttribute tiePixXList = scanADSRecord.getAttributeAt(3);
-        int[] xCoordinateList = (int[]) tiePixXList.getDataElems();
-        MetadataAttribute tiePixYList = scanADSRecord.getAttributeAt(4);
-        int[] yCoordinateList = (int[]) tiePixYList.getDataElems();
-
-        double xCoord = ((1 - weight) * xCoordinateList[tiePixel]) + (weight * xCoordinateList[tiePixel + 1]);
-        double yCoord = ((1 - weight) * yCoordinateList[tiePixel]) + (weight * yCoordinateList[tiePixel + 1]);
-
-        /* If the instrument scan occurs between ADS records, interpolate between the coordinates we have for the current record and
-         the coordinates from the next record using linear interpolation. Follow the same process as above and then interpolate.
-         */
-        if (s != currentRecordScanNumber && s > s0 && sg < (numberOfADSRecords - 1)) {
-            MetadataElement scanADSRecord2 = scanPixelADS.get(sg + 1);
-
-            int nextRecordScanNumber = scanADSRecord2.getAttributeAt(2).getData().getElemInt();
-            tiePixXList = scanADSRecord2.getAttributeAt(3);
-            xCoordinateList = (int[]) tiePixXList.getDataElems();
-            tiePixYList = scanADSRecord2.getAttributeAt(4);
-            yCoordinateList = (int[]) tiePixYList.getDataElems();
-
-            double xCoordNext = ((1 - weight) * xCoordinateList[tiePixel]) + (weight * xCoordinateList[tiePixel + 1]);
-            double yCoordNext = ((1 - weight) * yCoordinateList[tiePixel]) + (weight * yCoordinateList[tiePixel + 1]);
-
-            /* Now interpolate between coordinates using the scan number*/
-
-            xCoord = xCoord + (((s - currentRecordScanNumber) * (xCoordNext - xCoord)) / (nextRecordScanNumber - currentRecordScanNumber));
-            yCoord = yCoord + (((s - currentRecordScanNumber) * (yCoordNext - yCoord)) / (nextRecordScanNumber - currentRecordScanNumber));
-
-        }
-        /* Get the pixel sample time */
-
-        double pixelTime = solvePixelTime(scanADSRecord, s, sg, s0, p, currentRecordScanNumber);
-
-        /* Store the results */
-        pixelCoordinatesAndTime[0] = xCoord;
-        pixelCoordinatesAndTime[1] = yCoord;
-        pixelCoordinatesAndTime[2] = pixelTime;
-    }
-
-    private static double solvePixelTime(MetadataElement scanADSRecord, int s, int sg, int s0, int p, int currentRecordScanNumber) {
-        /* This function reads the scan record instrument scan time and then calculates the pixel sample time.
-         Note the return of this function is unit: MJD2000
-         */
-        /* Get scan time of record as a double */
-        ProductData dsrTime = scanADSRecord.getAttributeAt(0).getData();
-        
-        double scanTime = dsrTime.getElemIntAt(0) + (dsrTime.getElemDoubleAt(1) / 86400.0) + ((dsrTime.getElemDoubleAt(2) / 1.0e6) / 86400.0);
-        
-        /* If the scan number does not occur at this granule, correct the time */
-        if (s != currentRecordScanNumber && s > s0) {
-            double scanTimeAlongTrackMod = ((0.15 * (s - (32 * sg) - s0)) / 86400.0);
-            scanTime = scanTime + scanTimeAlongTrackMod;
-        }
-        /* Calculate exact pixel sample time */
-        double scanTimeModScan = (((p - 1) * (0.15 / 2000.0)) / 86400.0);
-        double pixelSampleTime = scanTime + scanTimeModScan;
-
-        
-        return pixelSampleTime;
-    }
-
-    static void convertCentreLocationToReference(double[] pixelCoordinatesAndTime, int i, ProductNodeGroup<MetadataElement> geolocationADS) {
-        /* This function converts the pixel coordinates referenced to the centre of the pixel to pixel coordinates referenced to the bottom left corner of the pixel 
-         * Note that this step is missing from the Technical Note "Instrument Pixel Co-ordinates and Measurement Times from AATSR Products"
-         * 
-         * Also note that the pixel spacing along track is not constant ~= 1011 metres. The BEAM Java API does not provide functions
-         * for returning the exact pixel along track coordinate. As an approximation, the y coordinates of the ADS are extracted,
-         * then divided by the ADS spacing (32 rows) to produce an estimate average pixel along track coordinate.
-         */
-
-        
-        pixelCoordinatesAndTime[0] -= 500.0;
-
-        /* Find the tie-scan corresponding to/before the input row number */
-        int sg = (int) Math.floor(((double) i - (double) 0) / (double) 32);
-
-        int lastADSCoordinate = geolocationADS.get(sg).getAttribute("img_scan_y").getData().getElemInt();
-        int nextADSCoordinate;
-        if ((sg + 1) < geolocationADS.getNodeCount()) {
-            nextADSCoordinate = geolocationADS.get(sg + 1).getAttribute("img_scan_y").getData().getElemInt();
-        } else {
-            nextADSCoordinate = lastADSCoordinate += (32 * 1011); // An approximation for the end of the product
-                                                                  // Note not needed if the product is "trimmed"
-        }
-
-        double averagePixelSpacing = (nextADSCoordinate - lastADSCoordinate) / 32.0;
-        
-        double currentPixelCoordinate = lastADSCoordinate + ((i - (sg * 32)) * averagePixelSpacing);
-        double nextPixelCoordinate = lastADSCoordinate + (((i+1) - (sg * 32)) * averagePixelSpacing);
-        
-        double stepSizeY = (nextPixelCoordinate - currentPixelCoordinate)/2.0;
-        
-        pixelCoordinatesAndTime[1] -= stepSizeY;
-    }
-}
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ * 
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ * 
+ * This file is part of the AATSR GBT-UBT-Tool.
+ * 
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package gbt.ubt.tool;
+
+import java.util.Arrays;
+
+/**
+ *
+ * @author ABeaton, Telespazio VEGA UK Ltd 30/10/2013
+ *
+ * Contact: alasdhair(dot)beaton(at)telespazio(dot)com
+ *
+ */
+class PixelCoordinateInterpolator {
+
+    /* The ADS records, tie points and scan time of an instrument scan are looked up once per scan and view, the pixel
+     coordinates interpolated from them are kept as they are used. The scans are held in a small per thread cache
+     (direct mapped on scan & view), as the pixels of neighbouring image rows come from the same scans.
+     */
+    private static final int SCAN_CACHE_SIZE = 16;
+    private static final ThreadLocal<ScanCoordinates[]> scanCache = new ThreadLocal<ScanCoordinates[]>() {
+        @Override
+        protected ScanCoordinates[] initialValue() {
+            return new ScanCoordinates[SCAN_CACHE_SIZE];
+        }
+    };
+
+    private static class ScanCoordinates {
+        /* The x & y coordinates (indexed by relative pixel number, NaN until interpolated) and scan time of one view
+         of an instrument scan, with the tie points they are interpolated from
+         */
+
+        final N1ADSReader.ScanPixelADS scanPixelADS;
+        final int s0;
+        final int scan;
+        final int firstPixelNumber;
+        final double[] xCoordinates;
+        final double[] yCoordinates;
+        final double scanTime;
+        private final int tieOffset;
+        private final int[] xCoordinateList;
+        private final int[] yCoordinateList;
+        private final int[] xCoordinateListNext;
+        private final int[] yCoordinateListNext;
+        private final int currentRecordScanNumber;
+        private final int nextRecordScanNumber;
+
+        ScanCoordinates(N1ADSReader.ScanPixelADS scanPixelADS, int s0, int scan, int firstPixelNumber) {
+            /* Selects the ADS records as searchScanPixelADSRecord does for a single pixel */
+            this.scanPixelADS = scanPixelADS;
+            this.s0 = s0;
+            this.scan = scan;
+            this.firstPixelNumber = firstPixelNumber;
+            int sg = (int) Math.floor(((double) scan - (double) s0) / (double) 32);
+            if (sg < 0) {
+                sg = 0;
+            }
+            int numberOfADSRecords = scanPixelADS.records;
+            if (sg > (numberOfADSRecords - 1)) {
+                sg = numberOfADSRecords - 1;
+            }
+            int instrumentScanNumberCheck = (32 * sg) + s0;
+            currentRecordScanNumber = scanPixelADS.scanNumbers[sg];
+            if (currentRecordScanNumber != instrumentScanNumberCheck) {
+                System.out.println("Data Gaps are present in Scan Pixel ADS");
+                System.exit(1);
+            }
+            xCoordinateList = scanPixelADS.xCoordinates[sg];
+            yCoordinateList = scanPixelADS.yCoordinates[sg];
+            if (scan != currentRecordScanNumber && scan > s0 && sg < (numberOfADSRecords - 1)) {
+                nextRecordScanNumber = scanPixelADS.scanNumbers[sg + 1];
+                xCoordinateListNext = scanPixelADS.xCoordinates[sg + 1];
+                yCoordinateListNext = scanPixelADS.yCoordinates[sg + 1];
+            } else {
+                nextRecordScanNumber = 0;
+                xCoordinateListNext = null;
+                yCoordinateListNext = null;
+            }
+            scanTime = solveScanTime(scanPixelADS, scan, sg, s0, currentRecordScanNumber);
+
+            // Relative pixels whose tie interval lies within the tie points of the view (59 nadir, then the forward ones)
+            int tiePoints = 59;
+            if (firstPixelNumber > 1000) {
+                tieOffset = 59;
+                tiePoints = xCoordinateList.length - 59;
+            } else {
+                tieOffset = 0;
+            }
+            tiePoints = Math.min(tiePoints, xCoordinateList.length - tieOffset);
+            if (xCoordinateListNext != null) {
+                tiePoints = Math.min(tiePoints, xCoordinateListNext.length - tieOffset);
+            }
+            int pixels = Math.max(0, (tiePoints - 1) * 10);
+            xCoordinates = new double[pixels];
+            yCoordinates = new double[pixels];
+            Arrays.fill(xCoordinates, Double.NaN);
+        }
+
+        boolean matches(N1ADSReader.ScanPixelADS scanPixelADS, int s0, int scan, int firstPixelNumber) {
+            return this.scan == scan && this.firstPixelNumber == firstPixelNumber && this.s0 == s0 && this.scanPixelADS == scanPixelADS;
+        }
+
+        void interpolate(int relativePixelIndex) {
+            /* Interpolates between the tie pixels, then between the ADS records either side of the scan,
+             exactly as searchScanPixelADSRecord
+             */
+            double tiePixelPart = relativePixelIndex / 10.0;
+            int tiePixel = (int) Math.floor(tiePixelPart);
+            double weight = (tiePixelPart - tiePixel);
+            if (relativePixelIndex > 570) {
+                weight = (relativePixelIndex - 570) / 4.0;
+            }
+            tiePixel += tieOffset;
+            double xCoord = ((1 - weight) * xCoordinateList[tiePixel]) + (weight * xCoordinateList[tiePixel + 1]);
+            double yCoord = ((1 - weight) * yCoordinateList[tiePixel]) + (weight * yCoordinateList[tiePixel + 1]);
+            if (xCoordinateListNext != null) {
+                double xCoordNext = ((1 - weight) * xCoordinateListNext[tiePixel]) + (weight * xCoordinateListNext[tiePixel + 1]);
+                double yCoordNext = ((1 - weight) * yCoordinateListNext[tiePixel]) + (weight * yCoordinateListNext[tiePixel + 1]);
+                xCoord = xCoord + (((scan - currentRecordScanNumber) * (xCoordNext - xCoord)) / (nextRecordScanNumber - currentRecordScanNumber));
+                yCoord = yCoord + (((scan - currentRecordScanNumber) * (yCoordNext - yCoord)) / (nextRecordScanNumber - currentRecordScanNumber));
+            }
+            yCoordinates[relativePixelIndex] = yCoord;
+            xCoordinates[relativePixelIndex] = xCoord;
+        }
+    }
+
+    static void searchScanPixelADS(int[] scanAndPixelIndices, int s0, N1ADSReader.ScanPixelADS scanPixelADS, int firstPixelNumber, double[] pixelCoordinatesAndTime) {
+        /* Same results as searchScanPixelADSRecord, read from the coordinates of the scan held in the cache */
+        int s = scanAndPixelIndices[0];
+        int p = scanAndPixelIndices[1];
+        ScanCoordinates[] cache = scanCache.get();
+        int slot = (s << 1) & (SCAN_CACHE_SIZE - 1);
+        if (firstPixelNumber > 1000) {
+            slot++;
+        }
+        ScanCoordinates coordinates = cache[slot];
+        if (coordinates == null || !coordinates.matches(scanPixelADS, s0, s, firstPixelNumber)) {
+            coordinates = new ScanCoordinates(scanPixelADS, s0, s, firstPixelNumber);
+            cache[slot] = coordinates;
+        }
+        int relativePixelIndex = p - firstPixelNumber;
+        if (relativePixelIndex < 0 || relativePixelIndex >= coordinates.xCoordinates.length) {
+            // Outside the tie points, left to the record search
+            searchScanPixelADSRecord(scanAndPixelIndices, s0, scanPixelADS, firstPixelNumber, pixelCoordinatesAndTime);
+            return;
+        }
+        if (Double.isNaN(coordinates.xCoordinates[relativePixelIndex])) {
+            coordinates.interpolate(relativePixelIndex);
+        }
+        pixelCoordinatesAndTime[0] = coordinates.xCoordinates[relativePixelIndex];
+        pixelCoordinatesAndTime[1] = coordinates.yCoordinates[relativePixelIndex];
+        pixelCoordinatesAndTime[2] = coordinates.scanTime + pixelTimeOffset(p);
+    }
+
+    private static void searchScanPixelADSRecord(int[] scanAndPixelIndices, int s0, N1ADSReader.ScanPixelADS scanPixelADS, int firstPixelNumber, double[] pixelCoordinatesAndTime) {
+
+        /* This function finds the pixel coordinates using the instrument scan and instrument pixel numbers and the pixel acqusition time
+         Note that this methodology is taken from a Technical Note by Andrew Birks of Rutherford Appelton Laboratory.
+         "Instrument Pixel Co-ordinates and Measurement Times from AATSR Products",
+         available @ (https://earth.esa.int/handbooks/Instrument_Pixel_Coordinates_Measurement_Times_AATSR_Products.html) (Link accessed 01/08/2013)
+         This particular function maps to step 2 of the presented methodology.
+         */
+        int s = scanAndPixelIndices[0];
+        int p = scanAndPixelIndices[1];
+
+        /* Find the tie-scan corresponding to/before the input scan number */
+        int sg = (int) Math.floor(((double) s - (double) s0) / (double) 32);
+
+        /* The scanPixelADS begins with scan 32, so for scans 1-31 the coordinates cannot be solved via interpolation.
+         Future: investigate possibility to extrapolate data backward
+         Now: retrieve first ADS record and correct for this
+         */
+        if (sg < 0) {
+            sg = 0;
+        }
+
+        /* Retrieve the correct record that is before or contains the scan number
+         Note that the scanPixelADS ends (i.e. acquisition time) sometime before the MDS and other ADS,
+         when this happens, retrieve the last record of the scanPixelADS
+         */
+        int numberOfADSRecords = scanPixelADS.records;
+
+        if (sg > (numberOfADSRecords - 1)) {
+            sg = numberOfADSRecords - 1;
+        }
+
+        /* If data gaps are present, this may be the incorrect record (does not correspond to/before input scan number)
+         Check to see if this is the case, if during testing this frequently occurs, may have to implement search algorithm
+         */
+        int instrumentScanNumberCheck = (32 * sg) + s0;
+
+        int currentRecordScanNumber = scanPixelADS.scanNumbers[sg];
+
+        if (currentRecordScanNumber != instrumentScanNumberCheck) {
+            System.out.println("Data Gaps are present in Scan Pixel ADS");
+            System.exit(1);
+        }
+
+        /* Calculate the relative pixel index using the absolute pixel index */
+        int relativePixelIndex = p - firstPixelNumber;
+
+        /* Calculate the tie pixel and the part thereof */
+        double tiePixelPart = relativePixelIndex / 10.0;
+        int tiePixel = (int) Math.floor(tiePixelPart);
+
+        /* Calculate the interpolation weight (i.e. the distance between tie-points)
+         Note that the weight is corrected for the short interval at the end of the Nadir Pixel Scan, other intervals are 10 pixels
+         the final interval is only 4.
+         */
+        double weight = (tiePixelPart - tiePixel);
+
+        if (relativePixelIndex > 570) {
+            weight = (relativePixelIndex - 570) / 4.0;
+        }
+
+        /* If interpolating for the forward view, need to interpolate between the later 40 tie points */
+        if (firstPixelNumber > 1000) {
+            tiePixel += 59;
+        }
+
+        /* Calculate the x and y coordinates of the relative pixel in the tie scan ADS */
+        int[] xCoordinateList = scanPixelADS.xCoordinates[sg];
+        int[] yCoordinateList = scanPixelADS.yCoordinates[sg];
+
+        double xCoord = ((1 - weight) * xCoordinateList[tiePixel]) + (weight * xCoordinateList[tiePixel + 1]);
+        double yCoord = ((1 - weight) * yCoordinateList[tiePixel]) + (weight * yCoordinateList[tiePixel + 1]);
+
+        /* If the instrument scan occurs between ADS records, interpolate between the coordinates we have for the current record and
+         the coordinates from the next record using linear interpolation. Follow the same process as above and then interpolate.
+         */
+        if (s != currentRecordScanNumber && s > s0 && sg < (numberOfADSRecords - 1)) {
+            int nextRecordScanNumber = scanPixelADS.scanNumbers[sg + 1];
+            xCoordinateList = scanPixelADS.xCoordinates[sg + 1];
+            yCoordinateList = scanPixelADS.yCoordinates[sg + 1];
+
+            double xCoordNext = ((1 - weight) * xCoordinateList[tiePixel]) + (weight * xCoordinateList[tiePixel + 1]);
+            double yCoordNext = ((1 - weight) * yCoordinateList[tiePixel]) + (weight * yCoordinateList[tiePixel + 1]);
+
+            /* Now interpolate between coordinates using the scan number*/
+
+            xCoord = xCoord + (((s - currentRecordScanNumber) * (xCoordNext - xCoord)) / (nextRecordScanNumber - currentRecordScanNumber));
+            yCoord = yCoord + (((s - currentRecordScanNumber) * (yCoordNext - yCoord)) / (nextRecordScanNumber - currentRecordScanNumber));
+
+        }
+        /* Get the pixel sample time */
+
+        double pixelTime = solvePixelTime(scanPixelADS, s, sg, s0, p, currentRecordScanNumber);
+
+        /* Store the results */
+        pixelCoordinatesAndTime[0] = xCoord;
+        pixelCoordinatesAndTime[1] = yCoord;
+        pixelCoordinatesAndTime[2] = pixelTime;
+    }
+
+    private static double solvePixelTime(N1ADSReader.ScanPixelADS ads, int s, int sg, int s0, int p, int currentRecordScanNumber) {
+        /* This function reads the scan record instrument scan time and then calculates the pixel sample time.
+         Note the return of this function is unit: MJD2000
+         */
+        double scanTime = solveScanTime(ads, s, sg, s0, currentRecordScanNumber);
+
+        /* Calculate exact pixel sample time */
+        double scanTimeModScan = pixelTimeOffset(p);
+        double pixelSampleTime = scanTime + scanTimeModScan;
+
+        
+        return pixelSampleTime;
+    }
+
+    static double solveScanTime(int s, int s0, N1ADSReader.ScanPixelADS scanPixelADS) {
+        /* This function returns the scan time (MJD2000) of instrument scan s, i.e. the time to which pixel offsets are added
+         The record is selected exactly as in searchScanPixelADS so that the pixel sample times can be reproduced from it
+         */
+        int sg = (int) Math.floor(((double) s - (double) s0) / (double) 32);
+        if (sg < 0) {
+            sg = 0;
+        }
+        int numberOfADSRecords = scanPixelADS.records;
+        if (sg > (numberOfADSRecords - 1)) {
+            sg = numberOfADSRecords - 1;
+        }
+        return solveScanTime(scanPixelADS, s, sg, s0, scanPixelADS.scanNumbers[sg]);
+    }
+
+    private static double solveScanTime(N1ADSReader.ScanPixelADS ads, int s, int sg, int s0, int currentRecordScanNumber) {
+        /* Get scan time of record as a double (days + seconds / 86400 + microseconds / 8.64e10 of the dsr_time) */
+        double scanTime = ads.scanTimes[sg];
+        
+        /* If the scan number does not occur at this granule, correct the time */
+        if (s != currentRecordScanNumber && s > s0) {
+            double scanTimeAlongTrackMod = ((0.15 * (s - (32 * sg) - s0)) / 86400.0);
+            scanTime = scanTime + scanTimeAlongTrackMod;
+        }
+        return scanTime;
+    }
+
+    static double pixelTimeOffset(int p) {
+        /* Time (days) between the start of the scan and the sample of instrument pixel p (2000 pixels per 0.15 s scan) */
+        return (((p - 1) * (0.15 / 2000.0)) / 86400.0);
+    }
+
+    static void convertCentreLocationToReference(double[] pixelCoordinatesAndTime, int i, N1ADSReader.GeolocationADS geolocationADS) {
+        /* This function converts the pixel coordinates referenced to the centre of the pixel to pixel coordinates referenced to the bottom left corner of the pixel 
+         * Note that this step is missing from the Technical Note "Instrument Pixel Co-ordinates and Measurement Times from AATSR Products"
+         * 
+         * Also note that the pixel spacing along track is not constant ~= 1011 metres. The BEAM Java API does not provide functions
+         * for returning the exact pixel along track coordinate. As an approximation, the y coordinates of the ADS are extracted,
+         * then divided by the ADS spacing (32 rows) to produce an estimate average pixel along track coordinate.
+         */
+
+        
+        pixelCoordinatesAndTime[0] -= 500.0;
+
+        /* Find the tie-scan corresponding to/before the input row number */
+        int sg = (int) Math.floor(((double) i - (double) 0) / (double) 32);
+
+        int lastADSCoordinate = geolocationADS.imageScanY[sg];
+        int nextADSCoordinate;
+        if ((sg + 1) < geolocationADS.records) {
+            nextADSCoordinate = geolocationADS.imageScanY[sg + 1];
+        } else {
+            nextADSCoordinate = lastADSCoordinate += (32 * 1011); // An approximation for the end of the product
+                                                                  // Note not needed if the product is "trimmed"
+        }
+
+        double averagePixelSpacing = (nextADSCoordinate - lastADSCoordinate) / 32.0;
+        
+        double currentPixelCoordinate = lastADSCoordinate + ((i - (sg * 32)) * averagePixelSpacing);
+        double nextPixelCoordinate = lastADSCoordinate + (((i+1) - (sg * 32)) * averagePixelSpacing);
+        
+        double stepSizeY = (nextPixelCoordinate - currentPixelCoordinate)/2.0;
+        
+        pixelCoordinatesAndTime[1] -= stepSizeY;
+    }
+}
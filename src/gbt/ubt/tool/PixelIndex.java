@@ -0,0 +1,598 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class PixelIndex {
+    /* This class is a spatial index of the ungridded pixels (--index), written next to the output file as
+     * <output>.pidx, answering "which pixel is nearest to / whose footprint contains this location" per view without
+     * reading the output arrays.
+     *
+     * The pixels are grouped in tiles of TILE_ROWS x TILE_COLUMNS image pixels (clipped at the row block edges).
+     * The bounding box of each tile covers the pixel centres widened by their FOV extent, the tiles are sorted on the
+     * Hilbert curve of their box centres and a packed R-tree (NODE_SIZE children per node) is built over them, so
+     * queries visit O(log n) nodes and then the pixels of a few tiles.
+     *
+     * File layout (little endian): a HEADER_BYTES header, then for each view (nadir, forward) the pixels of the window
+     * in image order as PIXEL_BYTES records (latitude, longitude, along track & across track extent in km, float32),
+     * then for each view the tiles and the R-tree levels (leaves first). The file is written to a temporary file and
+     * renamed into place once complete.
+     *
+     * A footprint is an ellipse around the pixel centre with the along and across track extent as axes, the along
+     * track direction being that of the pixel centres of the tile.
+     */
+
+    static final int NADIR = 0;
+    static final int FORWARD = 1;
+
+    private static final int MAGIC = 0x47425049; // "GBPI"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int PIXEL_BYTES = 16;
+    private static final int TILE_ROWS = 8;
+    private static final int TILE_COLUMNS = 8;
+    private static final int NODE_SIZE = 16;
+    private static final double KM_PER_DEGREE = 111.195;
+    private static final ResultVariable[][] VIEW_VARIABLES = {
+        {ResultVariable.NADIR_LATITUDE, ResultVariable.NADIR_LONGITUDE, ResultVariable.NADIR_ALONG_TRACK, ResultVariable.NADIR_ACROSS_TRACK, ResultVariable.NADIR_PIXEL_NUMBER},
+        {ResultVariable.FORWARD_LATITUDE, ResultVariable.FORWARD_LONGITUDE, ResultVariable.FORWARD_ALONG_TRACK, ResultVariable.FORWARD_ACROSS_TRACK, ResultVariable.FORWARD_PIXEL_NUMBER}};
+
+    private final int rows;
+    private final int columns;
+    private final int minX;
+    private final int minY;
+    private final ByteBuffer[] pixels = new ByteBuffer[2];
+    // Per view: tile {first row, first column, rows, columns} and {minLon, minLat, maxLon, maxLat, heading}
+    private final int[][][] tiles = new int[2][][];
+    private final float[][][] tileBoxes = new float[2][][];
+    // Per view and level (0 = parents of the tiles): node boxes
+    private final float[][][][] levels = new float[2][][][];
+
+    private PixelIndex(int rows, int columns, int minX, int minY) {
+        this.rows = rows;
+        this.columns = columns;
+        this.minX = minX;
+        this.minY = minY;
+    }
+
+    static File indexFile(String outputFileLocation) {
+        return new File(outputFileLocation + ".pidx");
+    }
+
+    /* Builds the index while the row blocks are computed, addRows may be called concurrently for distinct rows */
+    static class Builder {
+
+        private final File file;
+        private final File tempFile;
+        private final RandomAccessFile output;
+        private final FileChannel channel;
+        private final int rows;
+        private final int columns;
+        private final int minX;
+        private final int minY;
+        private final List<List<Double>> pixelProjectionMap;
+        private final List<List<int[]>> tiles = new ArrayList<>();
+        private final List<List<float[]>> tileBoxes = new ArrayList<>();
+
+        Builder(File file, int rows, int columns, int minX, int minY, List<List<Double>> pixelProjectionMap) throws IOException {
+            this.file = file;
+            this.tempFile = new File(file.getPath() + ".partial");
+            this.output = new RandomAccessFile(tempFile, "rw");
+            this.output.setLength(0);
+            this.channel = output.getChannel();
+            this.rows = rows;
+            this.columns = columns;
+            this.minX = minX;
+            this.minY = minY;
+            this.pixelProjectionMap = pixelProjectionMap;
+            for (int view = 0; view < 2; view++) {
+                tiles.add(new ArrayList<int[]>());
+                tileBoxes.add(new ArrayList<float[]>());
+            }
+        }
+
+        void addRows(ResultArena results, int firstRow, int rowCount) throws IOException {
+            // Rows are relative to the output window, as in the result arena
+            for (int view = 0; view < 2; view++) {
+                ResultVariable[] variables = VIEW_VARIABLES[view];
+                if (!results.contains(variables[0])) {
+                    // View not computed (--view), its tree stays empty
+                    continue;
+                }
+                boolean projected = results.contains(variables[2]);
+                ByteBuffer buffer = ByteBuffer.allocate(columns * PIXEL_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                List<int[]> blockTiles = new ArrayList<>();
+                List<float[]> blockBoxes = new ArrayList<>();
+                float[][] boxes = new float[(columns + TILE_COLUMNS - 1) / TILE_COLUMNS][];
+                float[][] firstCentres = new float[boxes.length][];
+                float[][] lastCentres = new float[boxes.length][];
+                for (int row = firstRow; row < firstRow + rowCount; row++) {
+                    buffer.clear();
+                    for (int column = 0; column < columns; column++) {
+                        double latitude = results.get(variables[0], row, column);
+                        double longitude = results.get(variables[1], row, column);
+                        double along = -1.0;
+                        double across = -1.0;
+                        if (latitude >= -90.0) {
+                            if (projected) {
+                                along = results.get(variables[2], row, column);
+                                across = results.get(variables[3], row, column);
+                            } else {
+                                // Compact output, the extent comes from the instrument pixel number
+                                List<Double> projection = pixelProjectionMap.get((int) results.get(variables[4], row, column));
+                                along = projection.get(0);
+                                across = projection.get(1);
+                            }
+                        }
+                        buffer.putFloat((float) latitude).putFloat((float) longitude).putFloat((float) along).putFloat((float) across);
+                        if (latitude < -90.0 || along < 0.0) {
+                            // Fill value, not indexed
+                            continue;
+                        }
+                        int tileColumn = column / TILE_COLUMNS;
+                        if (boxes[tileColumn] == null) {
+                            boxes[tileColumn] = new float[]{Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, Float.NaN};
+                        }
+                        addFootprint(boxes[tileColumn], latitude, longitude, along, across);
+                        // The middle column of the tile gives its along track direction
+                        if (column == tileColumn * TILE_COLUMNS + Math.min(TILE_COLUMNS / 2, columns - 1 - tileColumn * TILE_COLUMNS)) {
+                            if (firstCentres[tileColumn] == null) {
+                                firstCentres[tileColumn] = new float[]{(float) latitude, (float) longitude};
+                            } else {
+                                lastCentres[tileColumn] = new float[]{(float) latitude, (float) longitude};
+                            }
+                        }
+                    }
+                    buffer.flip();
+                    long position = HEADER_BYTES + ((long) view * rows * columns + (long) row * columns) * PIXEL_BYTES;
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    // Close the tiles at the end of each band of tile rows and at the end of the block
+                    if ((row - firstRow) % TILE_ROWS == TILE_ROWS - 1 || row == firstRow + rowCount - 1) {
+                        int tileFirstRow = row - (row - firstRow) % TILE_ROWS;
+                        for (int k = 0; k < boxes.length; k++) {
+                            if (boxes[k] != null) {
+                                boxes[k][4] = heading(firstCentres[k], lastCentres[k]);
+                                blockTiles.add(new int[]{tileFirstRow, k * TILE_COLUMNS, row - tileFirstRow + 1, Math.min(TILE_COLUMNS, columns - k * TILE_COLUMNS)});
+                                blockBoxes.add(boxes[k]);
+                            }
+                            boxes[k] = null;
+                            firstCentres[k] = null;
+                            lastCentres[k] = null;
+                        }
+                    }
+                }
+                synchronized (this) {
+                    tiles.get(view).addAll(blockTiles);
+                    tileBoxes.get(view).addAll(blockBoxes);
+                }
+            }
+        }
+
+        void close() throws IOException {
+            // Writes the header, tiles and R-tree and moves the index into place
+            try {
+                long position = HEADER_BYTES + 2L * rows * columns * PIXEL_BYTES;
+                int tileCount = 0;
+                for (int view = 0; view < 2; view++) {
+                    int[][] viewTiles = tiles.get(view).toArray(new int[0][]);
+                    float[][] viewBoxes = tileBoxes.get(view).toArray(new float[0][]);
+                    sortByHilbert(viewTiles, viewBoxes);
+                    List<float[][]> viewLevels = buildLevels(viewBoxes);
+                    int size = 8 + viewTiles.length * (4 * 4 + 5 * 4);
+                    for (float[][] level : viewLevels) {
+                        size += 4 + level.length * 4 * 4;
+                    }
+                    ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+                    buffer.putInt(viewTiles.length).putInt(viewLevels.size());
+                    for (int k = 0; k < viewTiles.length; k++) {
+                        for (int value : viewTiles[k]) {
+                            buffer.putInt(value);
+                        }
+                        for (float value : viewBoxes[k]) {
+                            buffer.putFloat(value);
+                        }
+                    }
+                    for (float[][] level : viewLevels) {
+                        buffer.putInt(level.length);
+                        for (float[] node : level) {
+                            buffer.putFloat(node[0]).putFloat(node[1]).putFloat(node[2]).putFloat(node[3]);
+                        }
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    tileCount += viewTiles.length;
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(columns).putInt(minX).putInt(minY).putInt(TILE_ROWS).putInt(TILE_COLUMNS);
+                header.flip();
+                channel.write(header, 0);
+                channel.force(true);
+                output.close();
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                System.out.println("Pixel index written to: " + file.getPath() + " (" + tileCount + " tiles)");
+            } finally {
+                output.close();
+            }
+        }
+
+        private static void addFootprint(float[] box, double latitude, double longitude, double along, double across) {
+            // Widens the box by the larger half extent of the footprint around its centre
+            double radius = Math.max(along, across) / 2.0;
+            double latitudeRadius = radius / KM_PER_DEGREE;
+            double longitudeRadius = radius / (KM_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(latitude))));
+            if (box[0] != Float.MAX_VALUE) {
+                longitude = unwrap(longitude, box);
+            }
+            box[0] = (float) Math.min(box[0], longitude - longitudeRadius);
+            box[1] = (float) Math.min(box[1], latitude - latitudeRadius);
+            box[2] = (float) Math.max(box[2], longitude + longitudeRadius);
+            box[3] = (float) Math.max(box[3], latitude + latitudeRadius);
+        }
+
+        private static double unwrap(double longitude, float[] box) {
+            // Longitude within 180 degrees of the box centre, so tiles on the 180 degree meridian stay compact
+            double centre = (box[0] + box[2]) / 2.0;
+            while (longitude - centre > 180.0) {
+                longitude -= 360.0;
+            }
+            while (longitude - centre < -180.0) {
+                longitude += 360.0;
+            }
+            return longitude;
+        }
+
+        private static float heading(float[] first, float[] last) {
+            // Along track direction (radians clockwise from north) from the first to the last row of the tile
+            if (first == null || last == null) {
+                return Float.NaN;
+            }
+            double north = last[0] - first[0];
+            double east = wrap(last[1] - first[1]) * Math.cos(Math.toRadians((first[0] + last[0]) / 2.0));
+            return (float) Math.atan2(east, north);
+        }
+
+        private static void sortByHilbert(int[][] tiles, float[][] boxes) {
+            final long[] keys = new long[tiles.length];
+            Integer[] order = new Integer[tiles.length];
+            for (int k = 0; k < tiles.length; k++) {
+                double longitude = (boxes[k][0] + boxes[k][2]) / 2.0;
+                double latitude = (boxes[k][1] + boxes[k][3]) / 2.0;
+                longitude = longitude - 360.0 * Math.floor((longitude + 180.0) / 360.0);
+                int x = (int) Math.min(65535, Math.max(0, (longitude + 180.0) / 360.0 * 65536));
+                int y = (int) Math.min(65535, Math.max(0, (latitude + 90.0) / 180.0 * 65536));
+                keys[k] = hilbert(x, y);
+                order[k] = k;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(keys[a], keys[b]);
+                }
+            });
+            int[][] sortedTiles = new int[tiles.length][];
+            float[][] sortedBoxes = new float[boxes.length][];
+            for (int k = 0; k < order.length; k++) {
+                sortedTiles[k] = tiles[order[k]];
+                sortedBoxes[k] = boxes[order[k]];
+            }
+            System.arraycopy(sortedTiles, 0, tiles, 0, tiles.length);
+            System.arraycopy(sortedBoxes, 0, boxes, 0, boxes.length);
+        }
+
+        private static long hilbert(int x, int y) {
+            // Distance along the Hilbert curve filling a 65536 x 65536 grid
+            long distance = 0;
+            for (int s = 1 << 15; s > 0; s >>= 1) {
+                int rx = 0;
+                int ry = 0;
+                if ((x & s) > 0) {
+                    rx = 1;
+                }
+                if ((y & s) > 0) {
+                    ry = 1;
+                }
+                distance += (long) s * s * ((3 * rx) ^ ry);
+                if (ry == 0) {
+                    if (rx == 1) {
+                        x = s - 1 - x;
+                        y = s - 1 - y;
+                    }
+                    int t = x;
+                    x = y;
+                    y = t;
+                }
+            }
+            return distance;
+        }
+
+        private static List<float[][]> buildLevels(float[][] boxes) {
+            // Each node covers NODE_SIZE consecutive entries of the level below, up to a single root
+            List<float[][]> levels = new ArrayList<>();
+            float[][] below = boxes;
+            while (below.length > 1) {
+                float[][] level = new float[(below.length + NODE_SIZE - 1) / NODE_SIZE][];
+                for (int node = 0; node < level.length; node++) {
+                    float[] box = {Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+                    for (int child = node * NODE_SIZE; child < Math.min(below.length, (node + 1) * NODE_SIZE); child++) {
+                        box[0] = Math.min(box[0], below[child][0]);
+                        box[1] = Math.min(box[1], below[child][1]);
+                        box[2] = Math.max(box[2], below[child][2]);
+                        box[3] = Math.max(box[3], below[child][3]);
+                    }
+                    level[node] = box;
+                }
+                levels.add(level);
+                below = level;
+            }
+            return levels;
+        }
+    }
+
+    static PixelIndex open(File file) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            FileChannel channel = input.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            }
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a pixel index file: " + file.getPath());
+            }
+            PixelIndex index = new PixelIndex(header.getInt(), header.getInt(), header.getInt(), header.getInt());
+            long viewBytes = (long) index.rows * index.columns * PIXEL_BYTES;
+            for (int view = 0; view < 2; view++) {
+                // Pixels stay in the file, mapped
+                index.pixels[view] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + view * viewBytes, viewBytes).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            long position = HEADER_BYTES + 2 * viewBytes;
+            MappedByteBuffer tree = channel.map(FileChannel.MapMode.READ_ONLY, position, channel.size() - position);
+            tree.order(ByteOrder.LITTLE_ENDIAN);
+            for (int view = 0; view < 2; view++) {
+                int tileCount = tree.getInt();
+                int levelCount = tree.getInt();
+                index.tiles[view] = new int[tileCount][4];
+                index.tileBoxes[view] = new float[tileCount][5];
+                for (int k = 0; k < tileCount; k++) {
+                    for (int m = 0; m < 4; m++) {
+                        index.tiles[view][k][m] = tree.getInt();
+                    }
+                    for (int m = 0; m < 5; m++) {
+                        index.tileBoxes[view][k][m] = tree.getFloat();
+                    }
+                }
+                index.levels[view] = new float[levelCount][][];
+                for (int level = 0; level < levelCount; level++) {
+                    index.levels[view][level] = new float[tree.getInt()][4];
+                    for (float[] node : index.levels[view][level]) {
+                        for (int m = 0; m < 4; m++) {
+                            node[m] = tree.getFloat();
+                        }
+                    }
+                }
+            }
+            return index;
+        }
+    }
+
+    int[] nearest(int view, double latitude, double longitude) {
+        /* Returns the image pixel {ix, iy} whose centre is nearest the location, or null if the view has no pixels.
+         Best first search of the R-tree: entries are visited by increasing distance to their box, a lower bound on the
+         distance to the pixel centres they hold.
+         */
+        if (tiles[view].length == 0) {
+            return null;
+        }
+        PriorityQueue<double[]> queue = new PriorityQueue<>(64, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                return Double.compare(a[0], b[0]);
+            }
+        });
+        // Entries {distance, level (-1 for a tile), index}
+        int top = levels[view].length - 1;
+        if (top < 0) {
+            queue.add(new double[]{0.0, -1, 0});
+        } else {
+            queue.add(new double[]{0.0, top, 0});
+        }
+        double best = Double.MAX_VALUE;
+        int[] nearest = null;
+        while (!queue.isEmpty() && queue.peek()[0] < best) {
+            double[] entry = queue.poll();
+            int level = (int) entry[1];
+            int node = (int) entry[2];
+            if (level < 0) {
+                int[] tile = tiles[view][node];
+                for (int row = tile[0]; row < tile[0] + tile[2]; row++) {
+                    for (int column = tile[1]; column < tile[1] + tile[3]; column++) {
+                        int offset = (row * columns + column) * PIXEL_BYTES;
+                        double pixelLatitude = pixels[view].getFloat(offset);
+                        if (pixelLatitude < -90.0) {
+                            continue;
+                        }
+                        double distance = distanceKm(latitude, longitude, pixelLatitude, pixels[view].getFloat(offset + 4));
+                        if (distance < best) {
+                            best = distance;
+                            nearest = new int[]{minX + column, minY + row};
+                        }
+                    }
+                }
+                continue;
+            }
+            float[][] children;
+            if (level == 0) {
+                children = tileBoxes[view];
+            } else {
+                children = levels[view][level - 1];
+            }
+            for (int child = node * NODE_SIZE; child < Math.min(children.length, (node + 1) * NODE_SIZE); child++) {
+                double distance = boxDistanceKm(children[child], latitude, longitude);
+                if (distance < best) {
+                    queue.add(new double[]{distance, level - 1, child});
+                }
+            }
+        }
+        return nearest;
+    }
+
+    List<int[]> containing(int view, double latitude, double longitude) {
+        // Returns the image pixels {ix, iy} whose footprint contains the location
+        List<int[]> found = new ArrayList<>();
+        if (tiles[view].length == 0) {
+            return found;
+        }
+        int top = levels[view].length - 1;
+        if (top < 0) {
+            searchTile(view, 0, latitude, longitude, found);
+        } else {
+            search(view, top, 0, latitude, longitude, found);
+        }
+        return found;
+    }
+
+    private void search(int view, int level, int node, double latitude, double longitude, List<int[]> found) {
+        float[][] children;
+        if (level == 0) {
+            children = tileBoxes[view];
+        } else {
+            children = levels[view][level - 1];
+        }
+        for (int child = node * NODE_SIZE; child < Math.min(children.length, (node + 1) * NODE_SIZE); child++) {
+            if (boxDistanceKm(children[child], latitude, longitude) > 0.0) {
+                continue;
+            }
+            if (level == 0) {
+                searchTile(view, child, latitude, longitude, found);
+            } else {
+                search(view, level - 1, child, latitude, longitude, found);
+            }
+        }
+    }
+
+    private void searchTile(int view, int tileNumber, double latitude, double longitude, List<int[]> found) {
+        int[] tile = tiles[view][tileNumber];
+        double heading = tileBoxes[view][tileNumber][4];
+        for (int row = tile[0]; row < tile[0] + tile[2]; row++) {
+            for (int column = tile[1]; column < tile[1] + tile[3]; column++) {
+                int offset = (row * columns + column) * PIXEL_BYTES;
+                double pixelLatitude = pixels[view].getFloat(offset);
+                if (pixelLatitude < -90.0) {
+                    continue;
+                }
+                double pixelLongitude = pixels[view].getFloat(offset + 4);
+                double halfAlong = pixels[view].getFloat(offset + 8) / 2.0;
+                double halfAcross = pixels[view].getFloat(offset + 12) / 2.0;
+                // Offset of the location from the pixel centre (km, local east & north)
+                double north = (latitude - pixelLatitude) * KM_PER_DEGREE;
+                double east = wrap(longitude - pixelLongitude) * KM_PER_DEGREE * Math.cos(Math.toRadians(pixelLatitude));
+                double inside;
+                if (Double.isNaN(heading)) {
+                    double radius = Math.max(halfAlong, halfAcross);
+                    inside = (north * north + east * east) / (radius * radius);
+                } else {
+                    double along = north * Math.cos(heading) + east * Math.sin(heading);
+                    double across = east * Math.cos(heading) - north * Math.sin(heading);
+                    inside = (along * along) / (halfAlong * halfAlong) + (across * across) / (halfAcross * halfAcross);
+                }
+                if (inside <= 1.0) {
+                    found.add(new int[]{minX + column, minY + row});
+                }
+            }
+        }
+    }
+
+    private static double boxDistanceKm(float[] box, double latitude, double longitude) {
+        // Approximate distance from the location to the box (0 inside), also trying the longitude 360 degrees either side
+        double best = Double.MAX_VALUE;
+        for (int shift = -360; shift <= 360; shift += 360) {
+            double lon = longitude + shift;
+            double north = Math.max(0.0, Math.max(box[1] - latitude, latitude - box[3]));
+            double east = Math.max(0.0, Math.max(box[0] - lon, lon - box[2]));
+            // The smallest longitude scale over the latitudes of the box keeps this a lower bound
+            double extremeLatitude = Math.max(Math.abs(box[1]), Math.abs(box[3]));
+            double scale = Math.cos(Math.toRadians(Math.min(90.0, Math.max(extremeLatitude, Math.abs(latitude)))));
+            best = Math.min(best, KM_PER_DEGREE * Math.hypot(north, east * scale));
+        }
+        return best;
+    }
+
+    private static double wrap(double longitudeDifference) {
+        return longitudeDifference - 360.0 * Math.floor((longitudeDifference + 180.0) / 360.0);
+    }
+
+    private static double distanceKm(double latitude1, double longitude1, double latitude2, double longitude2) {
+        // Local flat earth distance, consistent with the box distances
+        double north = (latitude2 - latitude1) * KM_PER_DEGREE;
+        double east = wrap(longitude2 - longitude1) * KM_PER_DEGREE * Math.cos(Math.toRadians((latitude1 + latitude2) / 2.0));
+        return Math.hypot(north, east);
+    }
+
+    static void query(String[] args) {
+        // --locate <index-file> <lat> <lon>: prints the nearest and containing pixels of both views
+        try {
+            PixelIndex index = open(new File(args[1]));
+            double latitude = Double.parseDouble(args[2]);
+            double longitude = Double.parseDouble(args[3]);
+            String[] views = {"Nadir", "Forward"};
+            for (int view = 0; view < 2; view++) {
+                int[] nearest = index.nearest(view, latitude, longitude);
+                if (nearest == null) {
+                    System.out.println(views[view] + " nearest pixel: none");
+                } else {
+                    System.out.println(views[view] + " nearest pixel: [" + nearest[0] + "," + nearest[1] + "]");
+                }
+                StringBuilder line = new StringBuilder(views[view] + " footprints containing location:");
+                for (int[] pixel : index.containing(view, latitude, longitude)) {
+                    line.append(" [").append(pixel[0]).append(',').append(pixel[1]).append(']');
+                }
+                System.out.println(line);
+            }
+        } catch (IOException | NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            System.out.println("Usage: gbt2ubt --locate <index-file(.pidx)> <lat> <lon>");
+            System.out.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.esa.beam.framework.datamodel.Band;
+import org.orekit.propagation.BoundedPropagator;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class PointQuery {
+    /* This class processes a list of matchup points (--points) in one run, instead of one [ix,iy] invocation per point.
+     * Each line of the points file is an image pixel "[ix,iy]" (as the command line) or a location "lat,lon" (degrees),
+     * blank lines and lines starting with # are skipped.
+     *
+     * A location is placed on the gridded image by inverting the tie point interpolation (see TiePointIndex), then the
+     * pixel of the 3x3 neighbourhood whose ungridded nadir position is closest to the location is reported.
+     * Only the listed pixels are ungridded and only the FOV projections of the instrument pixels they come from are
+     * computed. The results are written as a CSV table, one line per point in the order of the points file.
+     */
+
+    private static final String HEADER = "point,input,latitude,longitude,row,column,"
+            + "nadir_latitude,nadir_longitude,nadir_acquisition_time,nadir_along_track,nadir_across_track,nadir_scan_number,nadir_pixel_number,nadir_distance_km,"
+            + "forward_latitude,forward_longitude,forward_acquisition_time,forward_along_track,forward_across_track,forward_scan_number,forward_pixel_number";
+
+    private final String input;
+    private final double latitude;
+    private final double longitude;
+    private int row = -1;
+    private int column = -1;
+    private final double[] positionsAndTimes = new double[6];
+    private final int[] pixelNumbers = new int[2];
+    private final int[] scanNumbers = new int[2];
+
+    private PointQuery(String input, int row, int column, double latitude, double longitude) {
+        this.input = input;
+        this.row = row;
+        this.column = column;
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    private boolean isLocation() {
+        return !Double.isNaN(latitude);
+    }
+
+    static List<PointQuery> read(String location) throws IOException {
+        List<PointQuery> points = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(location), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String text = line.trim();
+                if (text.isEmpty() || text.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    if (text.startsWith("[")) {
+                        String[] pixel = text.replace("[", "").replace("]", "").split(",");
+                        points.add(new PointQuery(text, Integer.parseInt(pixel[1].trim()), Integer.parseInt(pixel[0].trim()), Double.NaN, Double.NaN));
+                    } else {
+                        String[] position = text.split("[,\\s]+");
+                        double lat = Double.parseDouble(position[0]);
+                        double lon = Double.parseDouble(position[1]);
+                        if (Math.abs(lat) > 90.0 || Math.abs(lon) > 180.0) {
+                            throw new NumberFormatException();
+                        }
+                        points.add(new PointQuery(text, -1, -1, lat, lon));
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                    throw new IOException("Invalid point on line " + lineNumber + " of " + location + ": " + text);
+                }
+            }
+        }
+        return points;
+    }
+
+    static void process(InputParameters parameters, int s0, N1ADSReader.ViewADS nadirViewADS, N1ADSReader.ViewADS forwardViewADS, N1ADSReader.ScanPixelADS scanPixelADS, N1ADSReader.GeolocationADS geolocationADS, List<Double> scanYCoords, int imageColumns, int imageRows, BoundedPropagator ephemeris, Band DEM) throws IOException {
+        List<PointQuery> points = read(parameters.pointsFileLocation);
+        System.out.println("Processing " + points.size() + " points from " + parameters.pointsFileLocation);
+        long start = System.nanoTime();
+
+        // The tie point index is only needed to place locations on the image
+        TiePointIndex tiePoints = null;
+        double[][] projections = new double[2000][];
+        int located = 0;
+        for (PointQuery point : points) {
+            if (point.isLocation()) {
+                if (tiePoints == null) {
+                    tiePoints = TiePointIndex.build(geolocationADS);
+                }
+                double[] imageCoordinates = new double[2];
+                if (!tiePoints.locate(point.latitude, point.longitude, imageCoordinates)) {
+                    continue;
+                }
+                point.row = (int) Math.floor(imageCoordinates[0]);
+                point.column = (int) Math.floor(imageCoordinates[1]);
+            }
+            if (point.row < 0 || point.row >= imageRows || point.column < 0 || point.column >= imageColumns) {
+                point.row = -1;
+                continue;
+            }
+            if (point.isLocation()) {
+                point.closestPixel(s0, nadirViewADS, forwardViewADS, scanPixelADS, geolocationADS, scanYCoords, imageColumns, imageRows, parameters, ephemeris, DEM);
+            } else {
+                Calculator.unGridPixel(point.row, point.column, s0, nadirViewADS, forwardViewADS, scanPixelADS, geolocationADS, scanYCoords, parameters, ephemeris, DEM, point.positionsAndTimes, point.pixelNumbers, point.scanNumbers);
+            }
+            // FOV projections of the instrument pixels touched, computed on first use
+            for (int pixel : point.pixelNumbers) {
+                if (projections[pixel] == null) {
+                    projections[pixel] = Calculator.getPixelProjection(parameters, pixel);
+                }
+            }
+            located++;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(parameters.outputFileLocation), StandardCharsets.UTF_8))) {
+            writer.println(HEADER);
+            for (int k = 0; k < points.size(); k++) {
+                writer.println(points.get(k).toCSV(k + 1, projections));
+            }
+            if (writer.checkError()) {
+                throw new IOException("Unable to write " + parameters.outputFileLocation);
+            }
+        }
+        System.out.println(located + " of " + points.size() + " points inside the product");
+        if (!points.isEmpty()) {
+            System.out.println(String.format("Points processed in %.1f ms (%.1f us per point)", elapsed / 1.0e6, elapsed / 1.0e3 / points.size()));
+        }
+    }
+
+    private void closestPixel(int s0, N1ADSReader.ViewADS nadirViewADS, N1ADSReader.ViewADS forwardViewADS, N1ADSReader.ScanPixelADS scanPixelADS, N1ADSReader.GeolocationADS geolocationADS, List<Double> scanYCoords, int imageColumns, int imageRows, InputParameters parameters, BoundedPropagator ephemeris, Band DEM) {
+        /* Ungrids the pixel and its neighbours and keeps the one whose nadir view (forward view when only the
+         forward view is selected) is closest to the location. If none has a valid position the located pixel is kept.
+         */
+        int centreRow = row;
+        int centreColumn = column;
+        int offset = 0;
+        if (!parameters.nadirView) {
+            offset = 3;
+        }
+        Calculator.unGridPixel(centreRow, centreColumn, s0, nadirViewADS, forwardViewADS, scanPixelADS, geolocationADS, scanYCoords, parameters, ephemeris, DEM, positionsAndTimes, pixelNumbers, scanNumbers);
+        double closest = Double.MAX_VALUE;
+        if (positionsAndTimes[offset] > -888888.0) {
+            closest = distanceKm(latitude, longitude, positionsAndTimes[offset], positionsAndTimes[offset + 1]);
+        }
+        double[] candidate = new double[6];
+        int[] candidatePixels = new int[2];
+        int[] candidateScans = new int[2];
+        for (int i = Math.max(0, centreRow - 1); i <= Math.min(imageRows - 1, centreRow + 1); i++) {
+            for (int j = Math.max(0, centreColumn - 1); j <= Math.min(imageColumns - 1, centreColumn + 1); j++) {
+                if (i == centreRow && j == centreColumn) {
+                    continue;
+                }
+                Calculator.unGridPixel(i, j, s0, nadirViewADS, forwardViewADS, scanPixelADS, geolocationADS, scanYCoords, parameters, ephemeris, DEM, candidate, candidatePixels, candidateScans);
+                if (candidate[offset] <= -888888.0) {
+                    continue;
+                }
+                double distance = distanceKm(latitude, longitude, candidate[offset], candidate[offset + 1]);
+                if (distance < closest) {
+                    closest = distance;
+                    row = i;
+                    column = j;
+                    System.arraycopy(candidate, 0, positionsAndTimes, 0, 6);
+                    System.arraycopy(candidatePixels, 0, pixelNumbers, 0, 2);
+                    System.arraycopy(candidateScans, 0, scanNumbers, 0, 2);
+                }
+            }
+        }
+    }
+
+    private static double distanceKm(double latitude1, double longitude1, double latitude2, double longitude2) {
+        // Great circle distance on a spherical earth (haversine)
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.pow(Math.sin(dLatitude / 2), 2) + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * Math.pow(Math.sin(dLongitude / 2), 2);
+        return 2 * 6371.0 * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    private String toCSV(int number, double[][] projections) {
+        StringBuilder line = new StringBuilder();
+        line.append(number).append(",\"").append(input.replace("\"", "\"\"")).append("\",");
+        if (isLocation()) {
+            line.append(latitude).append(',').append(longitude);
+        } else {
+            line.append(',');
+        }
+        if (row < 0) {
+            // Outside the product, all results empty
+            for (int k = 0; k < 17; k++) {
+                line.append(',');
+            }
+            return line.toString();
+        }
+        line.append(',').append(row).append(',').append(column);
+        for (int view = 0; view < 2; view++) {
+            line.append(',').append(positionsAndTimes[3 * view]);
+            line.append(',').append(positionsAndTimes[3 * view + 1]);
+            line.append(',').append(positionsAndTimes[3 * view + 2]);
+            line.append(',').append((float) projections[pixelNumbers[view]][0]);
+            line.append(',').append((float) projections[pixelNumbers[view]][1]);
+            line.append(',').append(scanNumbers[view]);
+            line.append(',').append(pixelNumbers[view]);
+            if (view == 0) {
+                line.append(',');
+                if (isLocation() && positionsAndTimes[0] > -888888.0) {
+                    line.append(String.format("%.3f", distanceKm(latitude, longitude, positionsAndTimes[0], positionsAndTimes[1])));
+                }
+            }
+        }
+        return line.toString();
+    }
+}
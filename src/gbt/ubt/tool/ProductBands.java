@@ -0,0 +1,42 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package gbt.ubt.tool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class ProductBands {
+    /* The measurement & flag bands of the L1B product copied to the output. Kept apart from the writers so that the
+     * option parsing does not load the netCDF (or HDF5) classes, which are only needed when writing that format.
+     */
+
+    static final List<String> variableNames = new ArrayList<>(Arrays.asList("btemp_nadir_1200", "btemp_fward_1200", "btemp_nadir_1100", "btemp_fward_1100", "btemp_nadir_0370", "btemp_fward_0370", "reflec_nadir_1600", "reflec_fward_1600", "reflec_nadir_0870", "reflec_fward_0870", "reflec_nadir_0670", "reflec_fward_0670", "reflec_nadir_0550", "reflec_fward_0550"));
+    // Flag bands in the order nadir confidence, forward confidence, nadir cloud, forward cloud
+    static final List<String> flagNames = Arrays.asList("confid_flags_nadir", "confid_flags_fward", "cloud_flags_nadir", "cloud_flags_fward");
+    static final List<String> longNames = new ArrayList<>(Arrays.asList("Brightness temperature, nadir view (11500-12500 nm)", "Brightness temperature, forward view (11500-12500 nm)", "Brightness temperature, nadir view (10400-11300 nm)", "Brightness temperature, forward view (10400-11300 nm)", "Brightness temperature, nadir view (3505-3895 nm)", "Brightness temperature, forward view (3505-3895 nm)", "Reflectance, nadir view (1580-1640 nm)", "Reflectance, forward view (1580-1640 nm)", "Reflectance, nadir view (855-875 nm)", "Reflectance, forward view (855-875 nm)", "Reflectance, nadir view (649-669 nm)", "Reflectance, forward view (649-669 nm)", "Reflectance, nadir view (545-565 nm)", "Reflectance, forward view (545-565 nm)"));}
@@ -0,0 +1,331 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import com.bc.ceres.core.ProgressMonitor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class ProductContext {
+    /* This class is the session of an (A)ATSR L1B product shared by all stages of a run: the four ADS, the image
+     * dimensions, the GEOLOCATION_ADS scan y coordinates, the scan number of the first SCAN_PIXEL_X_AND_Y_ADS record,
+     * the MPH (orbit state vector) and the flag & measurement band rasters. The product is opened (headers and DSDs
+     * parsed) once, the ADS stay in memory and the band rasters are read through the session. The ADS are read
+     * directly from the N1 file into primitive arrays (N1ADSReader), which the ungridding looks up.
+     *
+     * The band rasters are returned in the output orientation (product columns reversed). They are read from the
+     * memory mapped MDS (N1BandReader) once the rows of the band are found to match BEAM, otherwise through BEAM.
+     *
+     * The band rasters of a row block can be read ahead (readAhead) by a background thread while the block is being
+     * ungridded, the writer then takes them from the session instead of reading them itself. Read ahead rasters are
+     * held up to READ_AHEAD_FRACTION of the maximum heap, beyond that the rasters are read when written.
+     */
+
+    // Rough heap use of the records of each ADS (the BEAM metadata of the product & the N1ADSReader arrays), used to size the service cache
+    private static final long VIEW_RECORD_BYTES = 27 * 1024;
+    private static final long SCAN_PIXEL_RECORD_BYTES = 9 * 1024;
+    private static final long GEOLOCATION_RECORD_BYTES = 5 * 1024;
+    private static final int READ_AHEAD_FRACTION = 8;
+
+    private final String location;
+    private final N1ADSReader.ViewADS nadirViewADS;
+    private final N1ADSReader.ViewADS forwardViewADS;
+    private final N1ADSReader.ScanPixelADS scanPixelADS;
+    private final N1ADSReader.GeolocationADS geolocationADS;
+    private final int imageColumns;
+    private final int imageRows;
+    private final List<Double> scanYCoords;
+    private final int firstScanNumber;
+    private final MetadataElement mainProductHeader;
+    private final Date startTime;
+    private final Date stopTime;
+    private Product product;
+    private final N1BandReader bandReader;
+    private final Map<String, Boolean> directBands = new HashMap<>();
+
+    // Band rasters read ahead, by band & image window, and the thread reading them (started on first use)
+    private final Map<String, Future<short[]>> readAheadRasters = new ConcurrentHashMap<>();
+    private final AtomicLong readAheadBytes = new AtomicLong();
+    private final long readAheadLimitBytes = Runtime.getRuntime().maxMemory() / READ_AHEAD_FRACTION;
+    private ExecutorService readAheadThread;
+
+    private ProductContext(String location, Product product, N1ADSReader.ProductADS ads, int imageColumns, int imageRows) {
+        MetadataElement metadataRoot = product.getMetadataRoot();
+        this.location = location;
+        this.product = product;
+        this.mainProductHeader = metadataRoot.getElementAt(0);
+        this.startTime = getDate(product.getStartTime());
+        this.stopTime = getDate(product.getEndTime());
+        this.nadirViewADS = ads.nadirView;
+        this.forwardViewADS = ads.forwardView;
+        this.scanPixelADS = ads.scanPixel;
+        this.geolocationADS = ads.geolocation;
+        this.imageColumns = imageColumns;
+        this.imageRows = imageRows;
+
+        // Get list of GeoLocation ADS scanYCoords (Seems to be very expensive so only compute once)
+        this.scanYCoords = new ArrayList<>();
+        for (int k = 0; k < geolocationADS.records; k++) {
+            scanYCoords.add((double) geolocationADS.imageScanY[k]);
+        }
+
+        /* Get the scan number of the first record of the scanPixelADS */
+        this.firstScanNumber = scanPixelADS.scanNumbers[0];
+
+        List<String> bands = new ArrayList<>(ProductBands.flagNames);
+        bands.addAll(ProductBands.variableNames);
+        this.bandReader = N1BandReader.open(location, imageColumns, bands);
+    }
+
+    static ProductContext open(String location) throws IOException {
+        // The ADS come from the N1 file alone, a product whose ADS cannot be read is not processed
+        N1ADSReader.ProductADS ads = N1ADSReader.read(location);
+        Product readProduct = readProduct(location);
+        try {
+            // Get the dimensions of the product using one of the bands (from the band header, creating its source image
+            // would initialise JAI before any pixel is computed)
+            Band band = readProduct.getBand("btemp_nadir_1200");
+            return new ProductContext(location, readProduct, ads, band.getRasterWidth(), band.getRasterHeight());
+        } catch (RuntimeException ex) {
+            readProduct.closeIO();
+            throw ex;
+        }
+    }
+
+    private static Date getDate(ProductData.UTC time) {
+        if (time == null) {
+            return null;
+        }
+        return time.getAsDate();
+    }
+
+    private static Product readProduct(String location) throws IOException {
+        Product readProduct = ProductIO.readProduct(location);
+        if (readProduct == null) {
+            throw new IOException("Unable to read product " + location);
+        }
+        return readProduct;
+    }
+
+    short[] readBand(String name, int x, int y, int width, int height) throws IOException {
+        /* The raw values (output orientation) of an image window of a flag or measurement band, read ahead or read now */
+        Future<short[]> readAhead = readAheadRasters.remove(rasterKey(name, x, y, width, height));
+        if (readAhead != null) {
+            readAheadBytes.addAndGet(-2L * width * height);
+            try {
+                return readAhead.get();
+            } catch (ExecutionException ex) {
+                throw new IOException("Read ahead of band " + name + " failed", ex.getCause());
+            } catch (InterruptedException ex) {
+                throw new IOException("Read ahead of band " + name + " interrupted", ex);
+            }
+        }
+        return readRows(name, x, y, width, height);
+    }
+
+    void readAhead(List<String> names, final int x, final int y, final int width, final int height) {
+        // Queues the band rasters of an image window to be read in the background, skipped when the budget is used up
+        long bytes = 2L * width * height * names.size();
+        long used;
+        do {
+            used = readAheadBytes.get();
+            if (names.isEmpty() || used + bytes > readAheadLimitBytes) {
+                return;
+            }
+        } while (!readAheadBytes.compareAndSet(used, used + bytes));
+        synchronized (readAheadRasters) {
+            if (readAheadThread == null) {
+                readAheadThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "Read-ahead");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            for (final String name : names) {
+                readAheadRasters.put(rasterKey(name, x, y, width, height), readAheadThread.submit(new Callable<short[]>() {
+                    @Override
+                    public short[] call() throws IOException {
+                        return readRows(name, x, y, width, height);
+                    }
+                }));
+            }
+        }
+    }
+
+    private short[] readRows(String name, int x, int y, int width, int height) throws IOException {
+        // From the mapped MDS when the band matches BEAM, else through BEAM with the rows reversed
+        if (isDirect(name)) {
+            return bandReader.read(name, x, y, width, height);
+        }
+        short[] values = readRaster(name, x, y, width, height);
+        N1BandReader.reverseRows(values, width);
+        return values;
+    }
+
+    private boolean isDirect(String name) throws IOException {
+        // Each band is checked against BEAM once, before its first direct read
+        if (bandReader == null) {
+            return false;
+        }
+        synchronized (directBands) {
+            Boolean direct = directBands.get(name);
+            if (direct == null) {
+                direct = bandReader.covers(name) && bandReader.check(name, imageRows, new N1BandReader.ProductRowReader() {
+                    @Override
+                    public short[] readRow(String band, int row) throws IOException {
+                        return readRaster(band, 0, row, imageColumns, 1);
+                    }
+                });
+                if (!direct) {
+                    System.out.println("Band " + name + " read through BEAM");
+                }
+                directBands.put(name, direct);
+            }
+            return direct;
+        }
+    }
+
+    private synchronized short[] readRaster(String name, int x, int y, int width, int height) throws IOException {
+        // The product reader is shared by all threads, the product is reopened if the session was closed
+        if (product == null) {
+            product = readProduct(location);
+        }
+        short[] values = new short[width * height];
+        Band band = product.getBand(name);
+        band.readRasterData(x, y, width, height, ProductData.createInstance(values), ProgressMonitor.NULL);
+        return values;
+    }
+
+    private static String rasterKey(String name, int x, int y, int width, int height) {
+        return name + "@" + x + "," + y + "," + width + "," + height;
+    }
+
+    void close() {
+        // Releases the product file and the read ahead rasters, the ADS and MPH stay available
+        synchronized (readAheadRasters) {
+            if (readAheadThread != null) {
+                readAheadThread.shutdownNow();
+                readAheadThread = null;
+            }
+            readAheadRasters.clear();
+            readAheadBytes.set(0);
+        }
+        synchronized (this) {
+            if (product != null) {
+                try {
+                    product.closeIO();
+                } catch (IOException ex) {
+                    System.out.println(ex.getMessage());
+                }
+                product = null;
+            }
+        }
+    }
+
+    String getLocation() {
+        return location;
+    }
+
+    N1ADSReader.ViewADS getNadirViewADS() {
+        return nadirViewADS;
+    }
+
+    N1ADSReader.ViewADS getForwardViewADS() {
+        return forwardViewADS;
+    }
+
+    N1ADSReader.ScanPixelADS getScanPixelADS() {
+        return scanPixelADS;
+    }
+
+    N1ADSReader.GeolocationADS getGeolocationADS() {
+        return geolocationADS;
+    }
+
+    int getImageColumns() {
+        return imageColumns;
+    }
+
+    int getImageRows() {
+        return imageRows;
+    }
+
+    int getADSCoveredRows() {
+        // Image rows covered by all four ADS (ATSR-1/2 have less image rows than ADS cover)
+        int a = 32 * scanPixelADS.records + 32;
+        int b = 32 * geolocationADS.records + 32;
+        int c = 32 * nadirViewADS.records + 32;
+        int d = 32 * forwardViewADS.records + 32;
+        return Math.min(GeolocationInterpolator.getMinValue(a, b, c, d), imageRows);
+    }
+
+    List<Double> getScanYCoords() {
+        return scanYCoords;
+    }
+
+    int getFirstScanNumber() {
+        return firstScanNumber;
+    }
+
+    MetadataElement getMainProductHeader() {
+        return mainProductHeader;
+    }
+
+    Date getStartTime() {
+        return startTime;
+    }
+
+    Date getStopTime() {
+        return stopTime;
+    }
+
+    long getEstimatedBytes() {
+        return (nadirViewADS.records + forwardViewADS.records) * VIEW_RECORD_BYTES
+                + scanPixelADS.records * SCAN_PIXEL_RECORD_BYTES
+                + geolocationADS.records * (GEOLOCATION_RECORD_BYTES + 16);
+    }
+}
@@ -0,0 +1,196 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ * 
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ * 
+ * This file is part of the AATSR GBT-UBT-Tool.
+ * 
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package gbt.ubt.tool;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import org.orekit.bodies.GeodeticPoint;
+import org.orekit.bodies.OneAxisEllipsoid;
+import org.orekit.errors.OrekitException;
+import org.orekit.frames.Frame;
+import org.orekit.frames.FramesFactory;
+import org.orekit.propagation.BoundedPropagator;
+import org.orekit.time.AbsoluteDate;
+import org.orekit.time.TimeScalesFactory;
+import org.orekit.utils.Constants;
+import org.orekit.utils.IERSConventions;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class ProjectionCache {
+    /* The constant pixel projection map assumes a spherical Earth of radius 6371 km and a satellite altitude of 800 km.
+     * With --orbit-fov the satellite altitude and the geocentric radius of the sub satellite point are taken from the
+     * ephemeris at the time of each instrument scan, quantised to buckets of ALTITUDE_BUCKET & RADIUS_BUCKET km. The
+     * projection of each (bucket, pixel number) is computed the first time it is needed by any thread and then shared,
+     * as the altitude & radius change slowly along the orbit only a few tens of buckets are used by a product.
+     */
+
+    static final double ALTITUDE_BUCKET = 1.0;
+    static final double RADIUS_BUCKET = 1.0;
+    private static final int PIXELS = 2000;
+    private static final int SCAN_CACHE_SIZE = 16;
+
+    // One cache per product (keyed on its SCAN_PIXEL_X_AND_Y_ADS table, which the product session holds)
+    private static final Map<N1ADSReader.ScanPixelADS, ProjectionCache> caches = new WeakHashMap<>();
+
+    private final N1ADSReader.ScanPixelADS scanPixelADS;
+    private final int s0;
+    private final InputParameters parameters;
+    private final BoundedPropagator ephemeris;
+    private final Frame earthFrame;
+    private final OneAxisEllipsoid earth;
+    private final AbsoluteDate referenceDate;
+    private final ConcurrentMap<Long, AtomicReferenceArray<double[]>> buckets = new ConcurrentHashMap<>();
+
+    // The bucket of the most recent scans of each thread (direct mapped on scan number)
+    private final ThreadLocal<ScanBucket[]> scanCache = new ThreadLocal<ScanBucket[]>() {
+        @Override
+        protected ScanBucket[] initialValue() {
+            return new ScanBucket[SCAN_CACHE_SIZE];
+        }
+    };
+
+    private static class ScanBucket {
+        final int scan;
+        final AtomicReferenceArray<double[]> projections;
+
+        ScanBucket(int scan, AtomicReferenceArray<double[]> projections) {
+            this.scan = scan;
+            this.projections = projections;
+        }
+    }
+
+    ProjectionCache(N1ADSReader.ScanPixelADS scanPixelADS, int s0, InputParameters parameters, BoundedPropagator ephemeris, Frame earthFrame, OneAxisEllipsoid earth, AbsoluteDate referenceDate) {
+        this.scanPixelADS = scanPixelADS;
+        this.s0 = s0;
+        this.parameters = parameters;
+        this.ephemeris = ephemeris;
+        this.earth = earth;
+        this.earthFrame = earthFrame;
+        this.referenceDate = referenceDate;
+    }
+
+    static ProjectionCache forProduct(N1ADSReader.ScanPixelADS scanPixelADS, int s0, InputParameters parameters, BoundedPropagator ephemeris) {
+        synchronized (caches) {
+            ProjectionCache cache = caches.get(scanPixelADS);
+            if (cache == null || cache.ephemeris != ephemeris) {
+                try {
+                    Frame earthFrame = FramesFactory.getITRF(IERSConventions.IERS_2010, true);
+                    OneAxisEllipsoid earth = new OneAxisEllipsoid(Constants.WGS84_EARTH_EQUATORIAL_RADIUS, Constants.WGS84_EARTH_FLATTENING, earthFrame);
+                    // The scan times are MJD2000, days since 2000-01-01 00:00:00 UTC
+                    AbsoluteDate referenceDate = new AbsoluteDate(2000, 1, 1, 0, 0, 0.0, TimeScalesFactory.getUTC());
+                    cache = new ProjectionCache(scanPixelADS, s0, parameters, ephemeris, earthFrame, earth, referenceDate);
+                } catch (OrekitException ex) {
+                    System.out.println("Error in orbit FOV projection");
+                    System.out.println(ex.getMessage());
+                    System.exit(1);
+                }
+                caches.put(scanPixelADS, cache);
+            }
+            return cache;
+        }
+    }
+
+    double[] getProjection(int scan, int pixel) {
+        // The projection (along & across track, km) of instrument pixel number pixel (1 to 1999) of the given scan
+        return getProjection(getScanBucket(scan), pixel);
+    }
+
+    double[] getProjection(AtomicReferenceArray<double[]> projections, int pixel) {
+        // The projection of instrument pixel number pixel in a bucket
+        double[] projection = projections.get(pixel);
+        if (projection == null) {
+            // Concurrent threads may compute the same projection, the results are identical so either is kept
+            projections.compareAndSet(pixel, null, Calculator.getPixelProjection(parameters, pixel, bucketRadius(projections), bucketAltitude(projections)));
+            projection = projections.get(pixel);
+        }
+        return projection;
+    }
+
+    int getBucketCount() {
+        return buckets.size();
+    }
+
+    private AtomicReferenceArray<double[]> getScanBucket(int scan) {
+        ScanBucket[] cache = scanCache.get();
+        int slot = (scan & 0x7fffffff) % SCAN_CACHE_SIZE;
+        ScanBucket entry = cache[slot];
+        if (entry == null || entry.scan != scan) {
+            entry = new ScanBucket(scan, getBucket(PixelCoordinateInterpolator.solveScanTime(scan, s0, scanPixelADS)));
+            cache[slot] = entry;
+        }
+        return entry.projections;
+    }
+
+    private AtomicReferenceArray<double[]> getBucket(double scanTime) {
+        double altitude;
+        double radius;
+        try {
+            AbsoluteDate date = referenceDate.shiftedBy(scanTime * 86400.0);
+            Vector3D position = ephemeris.getPVCoordinates(date, earthFrame).getPosition();
+            GeodeticPoint subSatellitePoint = earth.transform(position, earthFrame, date);
+            altitude = subSatellitePoint.getAltitude() / 1000.0;
+            // Geocentric radius of the sub satellite point, along the ellipsoid normal through the satellite
+            radius = position.getNorm() / 1000.0 - altitude;
+        } catch (OrekitException ex) {
+            System.out.println("Error in orbit FOV projection");
+            System.out.println(ex.getMessage());
+            System.exit(1);
+            return null;
+        }
+        return getBucket(altitude, radius);
+    }
+
+    AtomicReferenceArray<double[]> getBucket(double altitude, double radius) {
+        // The projections of the bucket of a satellite altitude & sub satellite point radius (km)
+        long altitudeBucket = Math.round(altitude / ALTITUDE_BUCKET);
+        long radiusBucket = Math.round(radius / RADIUS_BUCKET);
+        Long key = (altitudeBucket << 32) | radiusBucket;
+        AtomicReferenceArray<double[]> projections = buckets.get(key);
+        if (projections == null) {
+            // Element 0 holds the bucket altitude & radius, the projections of pixels 1 to 1999 follow
+            projections = new AtomicReferenceArray<>(PIXELS);
+            projections.set(0, new double[]{altitudeBucket * ALTITUDE_BUCKET, radiusBucket * RADIUS_BUCKET});
+            AtomicReferenceArray<double[]> existing = buckets.putIfAbsent(key, projections);
+            if (existing != null) {
+                projections = existing;
+            }
+        }
+        return projections;
+    }
+
+    private static double bucketAltitude(AtomicReferenceArray<double[]> projections) {
+        return projections.get(0)[0];
+    }
+
+    private static double bucketRadius(AtomicReferenceArray<double[]> projections) {
+        return projections.get(0)[1];
+    }
+}
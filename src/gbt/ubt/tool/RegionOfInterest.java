@@ -0,0 +1,218 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class RegionOfInterest {
+    /* This class holds a geographic region of interest (--roi), either a longitude/latitude box
+     * "minLon,minLat,maxLon,maxLat" or a WKT polygon "POLYGON((lon lat, lon lat, ...))" (outer ring only, holes are
+     * ignored which can only enlarge the window), and finds the image window covering it from the GEOLOCATION_ADS tie points.
+     *
+     * The region is tested against the latitude/longitude bounds of the tie cells, so the window is conservative,
+     * it is then widened by WINDOW_MARGIN pixels as the ungridded pixel positions differ slightly from the gridded image.
+     */
+
+    private static final int WINDOW_MARGIN = 4;
+
+    private final double[] longitudes;
+    private final double[] latitudes;
+    private double minLongitude = Double.MAX_VALUE;
+    private double minLatitude = Double.MAX_VALUE;
+    private double maxLongitude = -Double.MAX_VALUE;
+    private double maxLatitude = -Double.MAX_VALUE;
+
+    private RegionOfInterest(List<double[]> vertices) {
+        // Unwrap the ring so consecutive vertices are less than 180 degrees apart in longitude
+        longitudes = new double[vertices.size()];
+        latitudes = new double[vertices.size()];
+        for (int k = 0; k < vertices.size(); k++) {
+            double longitude = vertices.get(k)[0];
+            if (k > 0) {
+                while (longitude - longitudes[k - 1] > 180.0) {
+                    longitude -= 360.0;
+                }
+                while (longitude - longitudes[k - 1] < -180.0) {
+                    longitude += 360.0;
+                }
+            }
+            longitudes[k] = longitude;
+            latitudes[k] = vertices.get(k)[1];
+            minLongitude = Math.min(minLongitude, longitude);
+            maxLongitude = Math.max(maxLongitude, longitude);
+            minLatitude = Math.min(minLatitude, latitudes[k]);
+            maxLatitude = Math.max(maxLatitude, latitudes[k]);
+        }
+    }
+
+    static RegionOfInterest parse(String value) {
+        // Returns the region, or null if the value is not a box or polygon
+        String text = value.trim();
+        List<double[]> vertices = new ArrayList<>();
+        try {
+            if (text.toUpperCase().startsWith("POLYGON")) {
+                int start = text.indexOf("((");
+                int stop = text.indexOf(")");
+                if (start < 0 || stop < start) {
+                    return null;
+                }
+                for (String vertex : text.substring(start + 2, stop).split(",")) {
+                    String[] coordinates = vertex.trim().split("\\s+");
+                    if (coordinates.length < 2) {
+                        return null;
+                    }
+                    vertices.add(new double[]{Double.parseDouble(coordinates[0]), Double.parseDouble(coordinates[1])});
+                }
+                if (vertices.size() < 3) {
+                    return null;
+                }
+            } else {
+                String[] box = text.split(",");
+                if (box.length != 4) {
+                    return null;
+                }
+                double minLon = Double.parseDouble(box[0].trim());
+                double minLat = Double.parseDouble(box[1].trim());
+                double maxLon = Double.parseDouble(box[2].trim());
+                double maxLat = Double.parseDouble(box[3].trim());
+                if (minLat > maxLat) {
+                    return null;
+                }
+                if (minLon > maxLon) {
+                    // The box crosses the 180 degree meridian
+                    maxLon += 360.0;
+                }
+                vertices.add(new double[]{minLon, minLat});
+                vertices.add(new double[]{maxLon, minLat});
+                vertices.add(new double[]{maxLon, maxLat});
+                vertices.add(new double[]{minLon, maxLat});
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        for (double[] vertex : vertices) {
+            if (Math.abs(vertex[1]) > 90.0 || Math.abs(vertex[0]) > 540.0) {
+                return null;
+            }
+        }
+        return new RegionOfInterest(vertices);
+    }
+
+    int[] findWindow(TiePointIndex index, int imageColumns, int imageRows) {
+        /* Returns the image window {x1, y1, x2, y2} (x2, y2 exclusive) covering the region, or null if no tie cell
+         of the product intersects it
+         */
+        int firstRecord = Integer.MAX_VALUE;
+        int lastRecord = -1;
+        int firstTiePoint = Integer.MAX_VALUE;
+        int lastTiePoint = -1;
+        for (int cell : index.query(minLongitude, minLatitude, maxLongitude, maxLatitude)) {
+            if (intersects(index.getCellBounds(cell))) {
+                firstRecord = Math.min(firstRecord, TiePointIndex.getCellRecord(cell));
+                lastRecord = Math.max(lastRecord, TiePointIndex.getCellRecord(cell));
+                firstTiePoint = Math.min(firstTiePoint, TiePointIndex.getCellTiePoint(cell));
+                lastTiePoint = Math.max(lastTiePoint, TiePointIndex.getCellTiePoint(cell));
+            }
+        }
+        if (lastRecord < 0) {
+            return null;
+        }
+        int x1 = Math.max(0, TiePointIndex.tiePointColumn(firstTiePoint) - WINDOW_MARGIN);
+        int x2 = Math.min(imageColumns, TiePointIndex.tiePointColumn(lastTiePoint + 1) + WINDOW_MARGIN + 1);
+        int y1 = Math.max(0, firstRecord * TiePointIndex.ROWS_PER_RECORD - WINDOW_MARGIN);
+        int y2 = Math.min(imageRows, (lastRecord + 1) * TiePointIndex.ROWS_PER_RECORD + WINDOW_MARGIN + 1);
+        if (x1 >= x2 || y1 >= y2) {
+            return null;
+        }
+        return new int[]{x1, y1, x2, y2};
+    }
+
+    boolean intersects(double[] cellBounds) {
+        // Tests the region against a {minLon, minLat, maxLon, maxLat} box, also 360 degrees either side
+        for (int shift = -360; shift <= 360; shift += 360) {
+            double[] box = {cellBounds[0] + shift, cellBounds[1], cellBounds[2] + shift, cellBounds[3]};
+            if (box[2] < minLongitude || box[0] > maxLongitude || box[3] < minLatitude || box[1] > maxLatitude) {
+                continue;
+            }
+            if (boxIntersectsPolygon(box)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean boxIntersectsPolygon(double[] box) {
+        // A corner of the box inside the polygon
+        if (contains(box[0], box[1])) {
+            return true;
+        }
+        // A vertex of the polygon inside the box
+        for (int k = 0; k < longitudes.length; k++) {
+            if (longitudes[k] >= box[0] && longitudes[k] <= box[2] && latitudes[k] >= box[1] && latitudes[k] <= box[3]) {
+                return true;
+            }
+        }
+        // Otherwise they only intersect if an edge of the polygon crosses an edge of the box
+        double[][] boxEdges = {{box[0], box[1], box[2], box[1]}, {box[2], box[1], box[2], box[3]}, {box[2], box[3], box[0], box[3]}, {box[0], box[3], box[0], box[1]}};
+        for (int k = 0; k < longitudes.length; k++) {
+            int next = (k + 1) % longitudes.length;
+            for (double[] edge : boxEdges) {
+                if (segmentsIntersect(longitudes[k], latitudes[k], longitudes[next], latitudes[next], edge[0], edge[1], edge[2], edge[3])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    boolean contains(double longitude, double latitude) {
+        // Even-odd rule on the unwrapped ring
+        boolean inside = false;
+        for (int k = 0, previous = longitudes.length - 1; k < longitudes.length; previous = k++) {
+            if ((latitudes[k] > latitude) != (latitudes[previous] > latitude)) {
+                double crossing = longitudes[k] + (latitude - latitudes[k]) * (longitudes[previous] - longitudes[k]) / (latitudes[previous] - latitudes[k]);
+                if (longitude < crossing) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    private static boolean segmentsIntersect(double ax, double ay, double bx, double by, double cx, double cy, double dx, double dy) {
+        double d1 = cross(cx, cy, dx, dy, ax, ay);
+        double d2 = cross(cx, cy, dx, dy, bx, by);
+        double d3 = cross(ax, ay, bx, by, cx, cy);
+        double d4 = cross(ax, ay, bx, by, dx, dy);
+        return ((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0));
+    }
+
+    private static double cross(double ax, double ay, double bx, double by, double px, double py) {
+        return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+    }
+}
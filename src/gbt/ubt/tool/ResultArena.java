@@ -0,0 +1,341 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class ResultArena {
+    /* This class stores the ungridding results for a range of image rows.
+     * Each variable is held in its own buffer, laid out row major in the element type and byte order written
+     * to the output file, so the workers fill the buffers directly and the writers copy whole rows out in bulk.
+     *
+     * A ByteBuffer is indexed by int, so each variable is split into pages of whole rows. This keeps every page
+     * below 1 GB and removes the 2^31 element limit of a single Java array for very long products.
+     *
+     * Concurrent writes are safe as long as the threads write to different rows (absolute puts only).
+     *
+     * Optionally the latitudes and longitudes are packed as int32 micro-degrees (CF scale_factor 1e-6) as they are put,
+     * i.e. by the worker threads. The fill values are mapped to the packed codes below and back again by get().
+     *
+     * The buffers are held on the Java heap, in direct (off-heap) memory or, in the spill mode, mapped from one temporary
+     * file per variable so the operating system pages the results out to disk under memory pressure. The temporary files
+     * are deleted as soon as they are mapped where the platform allows it (the mapping keeps the data), otherwise on exit.
+     */
+
+    enum Storage {
+        HEAP, DIRECT, MAPPED
+    }
+
+    private static final int MAXIMUM_PAGE_BYTES = 1 << 30;
+
+    static final double PACKING_SCALE = 1.0e-6;
+    static final int PACKED_FILL_VALUE = -999999999;
+    static final int PACKED_MISSING_VALUE = -888888888;
+
+    private final EnumSet<ResultVariable> variables;
+    private final EnumSet<ResultVariable> packedVariables;
+    private final ResultVariable.ElementType[] types;
+    private final int firstRow;
+    private final int rows;
+    private final int columns;
+    private final int rowsPerPage;
+    private final ByteBuffer[][] pages;
+
+    private ResultArena(Set<ResultVariable> variables, Set<ResultVariable> packedVariables, int firstRow, int rows, int columns, Storage storage, File spillDirectory) throws IOException {
+        this.variables = EnumSet.copyOf(variables);
+        this.packedVariables = EnumSet.noneOf(ResultVariable.class);
+        this.packedVariables.addAll(packedVariables);
+        this.packedVariables.retainAll(this.variables);
+        this.types = new ResultVariable.ElementType[ResultVariable.values().length];
+        for (ResultVariable variable : this.variables) {
+            types[variable.ordinal()] = variable.type;
+        }
+        for (ResultVariable variable : this.packedVariables) {
+            types[variable.ordinal()] = ResultVariable.ElementType.INT32;
+        }
+        this.firstRow = firstRow;
+        this.rows = rows;
+        this.columns = columns;
+
+        /* Size the pages using the largest element type so every variable shares the same page boundaries */
+        long rowBytes = Math.max(1, (long) columns * 8);
+        this.rowsPerPage = (int) Math.max(1, Math.min(Math.max(rows, 1), MAXIMUM_PAGE_BYTES / rowBytes));
+        int numberOfPages = (rows + rowsPerPage - 1) / rowsPerPage;
+
+        this.pages = new ByteBuffer[ResultVariable.values().length][];
+        for (ResultVariable variable : this.variables) {
+            if (storage == Storage.MAPPED) {
+                this.pages[variable.ordinal()] = mapPages(variable, numberOfPages, spillDirectory);
+                continue;
+            }
+            ByteBuffer[] variablePages = new ByteBuffer[numberOfPages];
+            for (int page = 0; page < numberOfPages; page++) {
+                int pageRows = Math.min(rowsPerPage, rows - page * rowsPerPage);
+                int pageBytes = pageRows * columns * types[variable.ordinal()].size;
+                if (storage == Storage.DIRECT) {
+                    variablePages[page] = ByteBuffer.allocateDirect(pageBytes).order(ByteOrder.nativeOrder());
+                } else {
+                    variablePages[page] = ByteBuffer.allocate(pageBytes).order(ByteOrder.nativeOrder());
+                }
+            }
+            this.pages[variable.ordinal()] = variablePages;
+        }
+    }
+
+    static ResultArena allocate(Set<ResultVariable> variables, Set<ResultVariable> packedVariables, int firstRow, int rows, int columns, Storage storage, File spillDirectory) throws IOException {
+        // The spill directory is only used by the MAPPED storage
+        return new ResultArena(variables, packedVariables, firstRow, rows, columns, storage, spillDirectory);
+    }
+
+    private ByteBuffer[] mapPages(ResultVariable variable, int numberOfPages, File spillDirectory) throws IOException {
+        int size = types[variable.ordinal()].size;
+        File spillFile = File.createTempFile("gbt-ubt-" + variable.datasetName + "-", ".spill", spillDirectory);
+        ByteBuffer[] variablePages = new ByteBuffer[numberOfPages];
+        try (RandomAccessFile file = new RandomAccessFile(spillFile, "rw")) {
+            file.setLength((long) rows * columns * size);
+            FileChannel channel = file.getChannel();
+            for (int page = 0; page < numberOfPages; page++) {
+                int pageRows = Math.min(rowsPerPage, rows - page * rowsPerPage);
+                long position = (long) page * rowsPerPage * columns * size;
+                variablePages[page] = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) pageRows * columns * size).order(ByteOrder.nativeOrder());
+            }
+        } finally {
+            if (!spillFile.delete()) {
+                spillFile.deleteOnExit();
+            }
+        }
+        return variablePages;
+    }
+
+    boolean contains(ResultVariable variable) {
+        return pages[variable.ordinal()] != null;
+    }
+
+    Set<ResultVariable> getVariables() {
+        return EnumSet.copyOf(variables);
+    }
+
+    Set<ResultVariable> getPackedVariables() {
+        return EnumSet.copyOf(packedVariables);
+    }
+
+    ResultVariable.ElementType getType(ResultVariable variable) {
+        // The type the variable is stored and written as
+        return types[variable.ordinal()];
+    }
+
+    int getFirstRow() {
+        return firstRow;
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    int getColumns() {
+        return columns;
+    }
+
+    void put(ResultVariable variable, int row, int column, double value) {
+        int localRow = row - firstRow;
+        ByteBuffer page = pages[variable.ordinal()][localRow / rowsPerPage];
+        ResultVariable.ElementType type = types[variable.ordinal()];
+        int index = (((localRow % rowsPerPage) * columns) + column) * type.size;
+        if (type != variable.type) {
+            page.putInt(index, pack(value));
+            return;
+        }
+        switch (type) {
+            case INT16:
+                page.putShort(index, (short) value);
+                break;
+            case INT32:
+                page.putInt(index, (int) value);
+                break;
+            case FLOAT32:
+                page.putFloat(index, (float) value);
+                break;
+            default:
+                page.putDouble(index, value);
+        }
+    }
+
+    double get(ResultVariable variable, int row, int column) {
+        int localRow = row - firstRow;
+        ByteBuffer page = pages[variable.ordinal()][localRow / rowsPerPage];
+        ResultVariable.ElementType type = types[variable.ordinal()];
+        int index = (((localRow % rowsPerPage) * columns) + column) * type.size;
+        if (type != variable.type) {
+            return unpack(page.getInt(index));
+        }
+        switch (type) {
+            case INT16:
+                return page.getShort(index);
+            case INT32:
+                return page.getInt(index);
+            case FLOAT32:
+                return page.getFloat(index);
+            default:
+                return page.getDouble(index);
+        }
+    }
+
+    static int pack(double value) {
+        if (value == -999999.0) {
+            return PACKED_FILL_VALUE;
+        } else if (value == -888888.0) {
+            return PACKED_MISSING_VALUE;
+        }
+        return (int) Math.round(value / PACKING_SCALE);
+    }
+
+    static double unpack(int value) {
+        if (value == PACKED_FILL_VALUE) {
+            return -999999.0;
+        } else if (value == PACKED_MISSING_VALUE) {
+            return -888888.0;
+        }
+        return value * PACKING_SCALE;
+    }
+
+    Object readRows(ResultVariable variable, int row, int rowCount) {
+        /* Returns a copy of the rows in a new Java array of the stored type (short[], int[], float[] or double[]) */
+        int length = rowCount * columns;
+        switch (types[variable.ordinal()]) {
+            case INT16:
+                short[] shorts = new short[length];
+                readRows(variable, row, rowCount, shorts);
+                return shorts;
+            case INT32:
+                int[] ints = new int[length];
+                readRows(variable, row, rowCount, ints);
+                return ints;
+            case FLOAT32:
+                float[] floats = new float[length];
+                readRows(variable, row, rowCount, floats);
+                return floats;
+            default:
+                double[] doubles = new double[length];
+                readRows(variable, row, rowCount, doubles);
+                return doubles;
+        }
+    }
+
+    void readRows(ResultVariable variable, int row, int rowCount, float[] destination) {
+        int offset = 0;
+        while (rowCount > 0) {
+            ByteBuffer view = rowView(variable, row);
+            int count = Math.min(rowCount, view.remaining() / (columns * types[variable.ordinal()].size));
+            view.asFloatBuffer().get(destination, offset, count * columns);
+            offset += count * columns;
+            row += count;
+            rowCount -= count;
+        }
+    }
+
+    void readRows(ResultVariable variable, int row, int rowCount, double[] destination) {
+        int offset = 0;
+        while (rowCount > 0) {
+            ByteBuffer view = rowView(variable, row);
+            int count = Math.min(rowCount, view.remaining() / (columns * types[variable.ordinal()].size));
+            view.asDoubleBuffer().get(destination, offset, count * columns);
+            offset += count * columns;
+            row += count;
+            rowCount -= count;
+        }
+    }
+
+    void readRows(ResultVariable variable, int row, int rowCount, int[] destination) {
+        int offset = 0;
+        while (rowCount > 0) {
+            ByteBuffer view = rowView(variable, row);
+            int count = Math.min(rowCount, view.remaining() / (columns * types[variable.ordinal()].size));
+            view.asIntBuffer().get(destination, offset, count * columns);
+            offset += count * columns;
+            row += count;
+            rowCount -= count;
+        }
+    }
+
+    void readRows(ResultVariable variable, int row, int rowCount, short[] destination) {
+        int offset = 0;
+        while (rowCount > 0) {
+            ByteBuffer view = rowView(variable, row);
+            int count = Math.min(rowCount, view.remaining() / (columns * types[variable.ordinal()].size));
+            view.asShortBuffer().get(destination, offset, count * columns);
+            offset += count * columns;
+            row += count;
+            rowCount -= count;
+        }
+    }
+
+    void copyRows(ResultVariable variable, int row, int rowCount, ByteBuffer destination) {
+        /* Copies the raw bytes of the rows (stored type, native byte order) to the destination buffer */
+        int rowBytes = columns * types[variable.ordinal()].size;
+        while (rowCount > 0) {
+            ByteBuffer view = rowView(variable, row);
+            int count = Math.min(rowCount, view.remaining() / rowBytes);
+            view.limit(view.position() + count * rowBytes);
+            destination.put(view);
+            row += count;
+            rowCount -= count;
+        }
+    }
+
+    void putRows(ResultVariable variable, int row, int rowCount, ByteBuffer source) {
+        /* Reverse of copyRows, the source holds the raw bytes of the rows */
+        int rowBytes = columns * types[variable.ordinal()].size;
+        while (rowCount > 0) {
+            ByteBuffer view = rowView(variable, row);
+            int count = Math.min(rowCount, view.remaining() / rowBytes);
+            ByteBuffer part = source.duplicate();
+            part.limit(part.position() + count * rowBytes);
+            view.put(part);
+            source.position(part.limit());
+            row += count;
+            rowCount -= count;
+        }
+    }
+
+    private ByteBuffer rowView(ResultVariable variable, int row) {
+        /* Returns an independent view of the page holding the row, positioned at the start of the row.
+         Note duplicate() does not keep the byte order so it is set again here.
+         */
+        int localRow = row - firstRow;
+        ByteBuffer view = pages[variable.ordinal()][localRow / rowsPerPage].duplicate();
+        view.order(ByteOrder.nativeOrder());
+        view.position((localRow % rowsPerPage) * columns * types[variable.ordinal()].size);
+        return view;
+    }
+}
@@ -0,0 +1,100 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+enum ResultVariable {
+    /* The per pixel quantities computed by the ungridding process.
+     * The ordinal of the first ten variables matches the index previously used in the pixelPositions array,
+     * the element type is the type the variable takes in the output file.
+     */
+
+    NADIR_LATITUDE("Geolocation", "Nadir_Latitude", ElementType.FLOAT32),
+    NADIR_LONGITUDE("Geolocation", "Nadir_Longitude", ElementType.FLOAT32),
+    FORWARD_LATITUDE("Geolocation", "Forward_Latitude", ElementType.FLOAT32),
+    FORWARD_LONGITUDE("Geolocation", "Forward_Longitude", ElementType.FLOAT32),
+    NADIR_ACQUISITION_TIME("Acquisition_Times", "Nadir_Acquisition_Time", ElementType.FLOAT64),
+    FORWARD_ACQUISITION_TIME("Acquisition_Times", "Forward_Acquisition_Time", ElementType.FLOAT64),
+    NADIR_ALONG_TRACK("FOV_Projection", "Nadir_Along_Track", ElementType.FLOAT32),
+    NADIR_ACROSS_TRACK("FOV_Projection", "Nadir_Across_Track", ElementType.FLOAT32),
+    FORWARD_ALONG_TRACK("FOV_Projection", "Forward_Along_Track", ElementType.FLOAT32),
+    FORWARD_ACROSS_TRACK("FOV_Projection", "Forward_Across_Track", ElementType.FLOAT32),
+    NADIR_SCAN_NUMBER("Instrument_Indices", "Nadir_Scan_Number", ElementType.INT32),
+    NADIR_PIXEL_NUMBER("Instrument_Indices", "Nadir_Pixel_Number", ElementType.INT16),
+    FORWARD_SCAN_NUMBER("Instrument_Indices", "Forward_Scan_Number", ElementType.INT32),
+    FORWARD_PIXEL_NUMBER("Instrument_Indices", "Forward_Pixel_Number", ElementType.INT16),
+    COLLOCATED_FORWARD_PIXEL_1("Collocation", "Collocated_Forward_Pixel_1", ElementType.INT32),
+    COLLOCATED_FORWARD_PIXEL_2("Collocation", "Collocated_Forward_Pixel_2", ElementType.INT32),
+    COLLOCATED_FORWARD_PIXEL_3("Collocation", "Collocated_Forward_Pixel_3", ElementType.INT32),
+    COLLOCATED_FORWARD_PIXEL_4("Collocation", "Collocated_Forward_Pixel_4", ElementType.INT32),
+    COLLOCATED_FORWARD_WEIGHT_1("Collocation", "Collocated_Forward_Weight_1", ElementType.FLOAT32),
+    COLLOCATED_FORWARD_WEIGHT_2("Collocation", "Collocated_Forward_Weight_2", ElementType.FLOAT32),
+    COLLOCATED_FORWARD_WEIGHT_3("Collocation", "Collocated_Forward_Weight_3", ElementType.FLOAT32),
+    COLLOCATED_FORWARD_WEIGHT_4("Collocation", "Collocated_Forward_Weight_4", ElementType.FLOAT32);
+
+    /* The variables stored by default and in the compact output mode, where the acquisition times and FOV projections
+     are replaced by the instrument scan and pixel numbers they are derived from (see CompactEncoding)
+     */
+    static final Set<ResultVariable> DEFAULT_VARIABLES = EnumSet.range(NADIR_LATITUDE, FORWARD_ACROSS_TRACK);
+    static final Set<ResultVariable> GEOLOCATION_VARIABLES = EnumSet.range(NADIR_LATITUDE, FORWARD_LONGITUDE);
+    static final Set<ResultVariable> TIME_VARIABLES = EnumSet.of(NADIR_ACQUISITION_TIME, FORWARD_ACQUISITION_TIME);
+    static final Set<ResultVariable> PROJECTION_VARIABLES = EnumSet.range(NADIR_ALONG_TRACK, FORWARD_ACROSS_TRACK);
+    static final Set<ResultVariable> INDEX_VARIABLES = EnumSet.range(NADIR_SCAN_NUMBER, FORWARD_PIXEL_NUMBER);
+    static final Set<ResultVariable> COMPACT_VARIABLES = EnumSet.of(NADIR_LATITUDE, NADIR_LONGITUDE, FORWARD_LATITUDE, FORWARD_LONGITUDE, NADIR_SCAN_NUMBER, NADIR_PIXEL_NUMBER, FORWARD_SCAN_NUMBER, FORWARD_PIXEL_NUMBER);
+    /* The variables of each view (0 nadir, 1 forward): latitude, longitude, acquisition time, FOV projection along and
+     across track, instrument scan and pixel number
+     */
+    static final ResultVariable[][] VIEW_VARIABLES = {
+        {NADIR_LATITUDE, NADIR_LONGITUDE, NADIR_ACQUISITION_TIME, NADIR_ALONG_TRACK, NADIR_ACROSS_TRACK, NADIR_SCAN_NUMBER, NADIR_PIXEL_NUMBER},
+        {FORWARD_LATITUDE, FORWARD_LONGITUDE, FORWARD_ACQUISITION_TIME, FORWARD_ALONG_TRACK, FORWARD_ACROSS_TRACK, FORWARD_SCAN_NUMBER, FORWARD_PIXEL_NUMBER}};
+    /* The forward pixels overlapping each nadir pixel and their overlap weights (see Collocator) */
+    static final Set<ResultVariable> COLLOCATION_VARIABLES = EnumSet.range(COLLOCATED_FORWARD_PIXEL_1, COLLOCATED_FORWARD_WEIGHT_4);
+    static final ResultVariable[] COLLOCATED_PIXELS = {COLLOCATED_FORWARD_PIXEL_1, COLLOCATED_FORWARD_PIXEL_2, COLLOCATED_FORWARD_PIXEL_3, COLLOCATED_FORWARD_PIXEL_4};
+    static final ResultVariable[] COLLOCATED_WEIGHTS = {COLLOCATED_FORWARD_WEIGHT_1, COLLOCATED_FORWARD_WEIGHT_2, COLLOCATED_FORWARD_WEIGHT_3, COLLOCATED_FORWARD_WEIGHT_4};
+
+    enum ElementType {
+        INT16(2), INT32(4), FLOAT32(4), FLOAT64(8);
+
+        final int size;
+
+        ElementType(int size) {
+            this.size = size;
+        }
+    }
+
+    final String group;
+    final String datasetName;
+    final ElementType type;
+
+    ResultVariable(String group, String datasetName, ElementType type) {
+        this.group = group;
+        this.datasetName = datasetName;
+        this.type = type;
+    }
+}
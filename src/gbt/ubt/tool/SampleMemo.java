@@ -0,0 +1,144 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class SampleMemo {
+    /* This class memoises the (optionally orthorectified) latitude, longitude and acquisition time of an instrument
+     * sample (view, scan, pixel) within one row block. The nearest neighbour regridding of the L1B image repeats
+     * instrument samples (swath edges, forward view), each repeat would otherwise recompute the coordinate,
+     * geolocation and orthorectification chain.
+     *
+     * The table is open addressing (linear probing) on a packed long key. When the pixel reference is the corner
+     * the location also depends on the image row, so the row is part of the key and the table is cleared at each
+     * new row. Otherwise the table is cleared when half full; duplicates are close together in the image so
+     * little is lost.
+     */
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+    private static final long EMPTY = 0L;
+
+    // Run totals over all blocks
+    private static final AtomicLong totalLookups = new AtomicLong();
+    private static final AtomicLong totalHits = new AtomicLong();
+    private static final AtomicLong totalMissNanos = new AtomicLong();
+
+    private final boolean rowDependent;
+    private final long[] keys = new long[CAPACITY];
+    private final double[] values = new double[3 * CAPACITY];
+    private int size = 0;
+    private int currentRow = -1;
+    private int slot;
+    private long lookups = 0;
+    private long hits = 0;
+    private long missNanos = 0;
+
+    SampleMemo(boolean rowDependent) {
+        this.rowDependent = rowDependent;
+    }
+
+    static long key(int view, int row, int scan, int pixel) {
+        // pixel: bits 0-11, scan: bits 12-39, view: bit 40, image row (corner reference only): bits 41-63
+        return ((long) row << 41) | ((long) view << 40) | ((long) scan << 12) | pixel;
+    }
+
+    boolean lookup(int view, int row, int scan, int pixel, double[] positionsAndTimes, int offset) {
+        /* Returns true and copies the memoised sample to positionsAndTimes[offset..offset+2] if present, otherwise
+         remembers the free slot for the following store() */
+        if (rowDependent && row != currentRow) {
+            clear();
+            currentRow = row;
+        }
+        if (!rowDependent) {
+            row = 0;
+        }
+        long key = key(view, row, scan, pixel);
+        lookups++;
+        int h = (int) ((key * 0x9E3779B97F4A7C15L) >>> 50) & MASK;
+        while (keys[h] != EMPTY) {
+            if (keys[h] == key) {
+                positionsAndTimes[offset] = values[3 * h];
+                positionsAndTimes[offset + 1] = values[3 * h + 1];
+                positionsAndTimes[offset + 2] = values[3 * h + 2];
+                hits++;
+                return true;
+            }
+            h = (h + 1) & MASK;
+        }
+        slot = h;
+        keys[h] = key;
+        return false;
+    }
+
+    void store(double[] positionsAndTimes, int offset, long nanos) {
+        /* Stores the sample computed after a missed lookup(), nanos is the time taken to compute it */
+        values[3 * slot] = positionsAndTimes[offset];
+        values[3 * slot + 1] = positionsAndTimes[offset + 1];
+        values[3 * slot + 2] = positionsAndTimes[offset + 2];
+        missNanos += nanos;
+        size++;
+        if (size >= CAPACITY / 2) {
+            clear();
+        }
+    }
+
+    private void clear() {
+        if (size > 0) {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+    }
+
+    void flush() {
+        // Add the block counts to the run totals
+        totalLookups.addAndGet(lookups);
+        totalHits.addAndGet(hits);
+        totalMissNanos.addAndGet(missNanos);
+        lookups = 0;
+        hits = 0;
+        missNanos = 0;
+    }
+
+    static String report() {
+        long n = totalLookups.get();
+        long h = totalHits.get();
+        long misses = n - h;
+        double percent = 0.0;
+        double savedSeconds = 0.0;
+        if (n > 0) {
+            percent = 100.0 * h / n;
+        }
+        if (misses > 0) {
+            // Each hit saves the mean time of computing a sample
+            savedSeconds = (double) totalMissNanos.get() / misses * h / 1.0e9;
+        }
+        return String.format("Duplicated instrument samples: %d of %d (%.1f%%), estimated time saved: %.1f s", h, n, percent, savedSeconds);
+    }
+}
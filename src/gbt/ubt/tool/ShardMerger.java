@@ -0,0 +1,183 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class ShardMerger {
+    /* This class splits the output rows between the independent processes of a sharded run (--shard k/N) and
+     * assembles their partial .h5/.nc outputs into the single output file:
+     *
+     * Usage: gbt2ubt --merge <output-file(.h5/.nc)> <shard-file> <shard-file> ...
+     *
+     * The slices are split at multiples of the ADS granule (32 image rows). Each partial output holds the rows of
+     * its slice and carries its first row and the row count of the whole output (global attributes). The merge
+     * recreates the groups, variables and attributes of the first shard with the full row count and copies the rows
+     * of every shard in blocks (hyperslabs), nothing is recomputed. The pixels of a row do not depend on the other
+     * rows and the compact lookup tables cover the whole output in every shard, so the merged output holds the same
+     * values as the output of a single process.
+     */
+
+    static final String SHARD = "shard";
+    static final String SHARD_FIRST_ROW = "shard_first_row";
+    static final String SHARD_OUTPUT_ROWS = "shard_output_rows";
+    static final int COPY_BLOCK_ELEMENTS = 1 << 22;
+    private static final int GRANULE_ROWS = 32;
+
+    static class Shard {
+        /* A partial output, rows firstRow to firstRow + rows - 1 of the whole output */
+
+        final String location;
+        final int index;
+        final int count;
+        final int firstRow;
+        final int rows;
+        final int outputRows;
+
+        Shard(String location, int index, int count, int firstRow, int rows, int outputRows) {
+            this.location = location;
+            this.index = index;
+            this.count = count;
+            this.firstRow = firstRow;
+            this.rows = rows;
+            this.outputRows = outputRows;
+        }
+    }
+
+    static int[] sliceRows(int minY, int maxY, int index, int count) {
+        // Image rows {first, end} of shard index (1 to count) of the rows minY to maxY - 1, split between granules
+        int firstGranule = minY / GRANULE_ROWS;
+        int granules = (maxY + GRANULE_ROWS - 1) / GRANULE_ROWS - firstGranule;
+        int first = (firstGranule + (int) ((long) granules * (index - 1) / count)) * GRANULE_ROWS;
+        int end = (firstGranule + (int) ((long) granules * index / count)) * GRANULE_ROWS;
+        return new int[]{Math.max(first, minY), Math.min(end, maxY)};
+    }
+
+    static boolean isShardAttribute(String name) {
+        // The shard attributes are not copied to the merged output
+        return name.equals(SHARD) || name.equals(SHARD_FIRST_ROW) || name.equals(SHARD_OUTPUT_ROWS);
+    }
+
+    static void merge(String[] args) {
+        // --merge <output-file> <shard-file>...: assembles the partial outputs of every shard of a run
+        if (args.length < 3) {
+            System.out.println("Usage: gbt2ubt --merge <output-file(.h5/.nc)> <shard-file> <shard-file> ...");
+            System.exit(1);
+        }
+        String output = args[1];
+        try {
+            List<Shard> shards = new ArrayList<>();
+            for (int k = 2; k < args.length; k++) {
+                shards.add(readShard(args[k]));
+            }
+            checkCoverage(shards);
+            if (output.endsWith(".h5")) {
+                HDFWriter.mergeShards(output, shards);
+            } else if (output.endsWith(".nc")) {
+                NetCDF4Writer.mergeShards(output, shards);
+            } else {
+                System.out.println("Shards are merged into a .h5 or .nc output file: " + output);
+                System.exit(1);
+            }
+            System.out.println("Merged " + shards.size() + " shards (" + shards.get(0).outputRows + " rows) into " + output);
+        } catch (Exception ex) {
+            System.out.println(ex.getMessage());
+            System.out.println("Error merging shards");
+            System.exit(1);
+        }
+    }
+
+    private static Shard readShard(String location) throws IOException {
+        // Both the HDF5 (.h5) and netCDF4 (.nc) partial outputs are read with the netCDF Java library
+        NetcdfFile file = NetcdfFile.open(location);
+        try {
+            String[] shard = attributeValue(file, SHARD).split("/");
+            if (shard.length != 2) {
+                throw new IOException("Invalid shard attribute in " + location);
+            }
+            int rows = -1;
+            for (Variable variable : file.getVariables()) {
+                if (variable.getShape().length == 2) {
+                    rows = variable.getShape()[0];
+                    break;
+                }
+            }
+            if (rows < 0) {
+                throw new IOException("No output rows in " + location);
+            }
+            return new Shard(location, Integer.parseInt(shard[0].trim()), Integer.parseInt(shard[1].trim()),
+                    Integer.parseInt(attributeValue(file, SHARD_FIRST_ROW)), rows, Integer.parseInt(attributeValue(file, SHARD_OUTPUT_ROWS)));
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid shard attributes in " + location, ex);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static String attributeValue(NetcdfFile file, String name) throws IOException {
+        // The HDF5 output holds string attributes, the netCDF4 output numbers
+        Attribute attribute = file.findGlobalAttribute(name);
+        if (attribute == null) {
+            throw new IOException("Not a shard output, missing attribute " + name);
+        }
+        if (attribute.getStringValue() != null) {
+            return attribute.getStringValue().trim();
+        }
+        return String.valueOf(attribute.getNumericValue().intValue());
+    }
+
+    private static void checkCoverage(List<Shard> shards) throws IOException {
+        // Every shard of the run once, together covering all the output rows
+        Collections.sort(shards, new Comparator<Shard>() {
+            @Override
+            public int compare(Shard a, Shard b) {
+                return Integer.compare(a.firstRow, b.firstRow);
+            }
+        });
+        int expectedRow = 0;
+        for (int k = 0; k < shards.size(); k++) {
+            Shard shard = shards.get(k);
+            if (shard.count != shards.size() || shard.outputRows != shards.get(0).outputRows) {
+                throw new IOException(shard.location + " is shard " + shard.index + "/" + shard.count + " of " + shard.outputRows + " rows, expected one of " + shards.size() + " shards of " + shards.get(0).outputRows + " rows");
+            }
+            if (shard.index != k + 1 || shard.firstRow != expectedRow) {
+                throw new IOException("Shard " + (k + 1) + "/" + shards.size() + " (rows from " + expectedRow + ") missing or given twice");
+            }
+            expectedRow = shard.firstRow + shard.rows;
+        }
+        if (expectedRow != shards.get(0).outputRows) {
+            throw new IOException("The shards cover " + expectedRow + " of " + shards.get(0).outputRows + " rows");
+        }
+    }
+}
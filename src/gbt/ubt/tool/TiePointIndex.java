@@ -0,0 +1,235 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class TiePointIndex {
+    /* This class is a coarse spatial index of the GEOLOCATION_ADS tie points.
+     * A tie cell lies between two consecutive ADS records (32 image rows apart) and two adjacent across track tie points
+     * (25 km apart, 23 per record). The latitude/longitude bounds of every cell are binned on a regular grid of
+     * BIN_DEGREES so the cells near a location are found without testing the whole product.
+     *
+     * Cells crossing the 180 degree meridian are unwrapped as in GeolocationInterpolator (360 added to negative
+     * longitudes), so the cell longitudes lie in -180 to 540 degrees. Queries are repeated 360 degrees apart to match.
+     */
+
+    static final int ROWS_PER_RECORD = 32;
+    static final int TIE_POINTS_PER_RECORD = 23;
+    private static final double BIN_DEGREES = 1.0;
+
+    private final int numberOfRecords;
+    private int[][] latitudes;
+    private int[][] longitudes;
+    private final float[] bounds; // minLon, minLat, maxLon, maxLat of each cell
+    private final Map<Integer, List<Integer>> bins = new HashMap<>();
+
+    private TiePointIndex(int numberOfRecords) {
+        this.numberOfRecords = numberOfRecords;
+        this.bounds = new float[Math.max(0, numberOfRecords - 1) * (TIE_POINTS_PER_RECORD - 1) * 4];
+    }
+
+    static TiePointIndex build(N1ADSReader.GeolocationADS geolocationADS) {
+        int numberOfRecords = geolocationADS.records;
+        TiePointIndex index = new TiePointIndex(numberOfRecords);
+        // The tie points (micro-degrees) as decoded once by N1ADSReader
+        index.latitudes = geolocationADS.latitudes;
+        index.longitudes = geolocationADS.longitudes;
+        for (int k = 0; k + 1 < numberOfRecords; k++) {
+            for (int jg = 0; jg + 1 < TIE_POINTS_PER_RECORD; jg++) {
+                index.addCell(k, jg, index.cellLatitudes(k, jg), index.cellLongitudes(k, jg));
+            }
+        }
+        return index;
+    }
+
+    private int[] cellLatitudes(int record, int tiePoint) {
+        // Corners (record, tiePoint), (record, tiePoint + 1), (record + 1, tiePoint), (record + 1, tiePoint + 1)
+        return new int[]{latitudes[record][tiePoint], latitudes[record][tiePoint + 1], latitudes[record + 1][tiePoint], latitudes[record + 1][tiePoint + 1]};
+    }
+
+    private int[] cellLongitudes(int record, int tiePoint) {
+        return new int[]{longitudes[record][tiePoint], longitudes[record][tiePoint + 1], longitudes[record + 1][tiePoint], longitudes[record + 1][tiePoint + 1]};
+    }
+
+    private void addCell(int record, int tiePoint, int[] latitudes, int[] longitudes) {
+        int cell = record * (TIE_POINTS_PER_RECORD - 1) + tiePoint;
+        double minLongitude = GeolocationInterpolator.getMinValue(longitudes[0], longitudes[1], longitudes[2], longitudes[3]);
+        double maxLongitude = GeolocationInterpolator.getMaxValue(longitudes[0], longitudes[1], longitudes[2], longitudes[3]);
+        if ((maxLongitude - minLongitude) > (180.0 * 1.0e6)) {
+            // Unwrap cells crossing the 180 degree meridian
+            for (int k = 0; k < 4; k++) {
+                if (longitudes[k] < 0) {
+                    longitudes[k] += 360 * 1000000;
+                }
+            }
+            minLongitude = GeolocationInterpolator.getMinValue(longitudes[0], longitudes[1], longitudes[2], longitudes[3]);
+            maxLongitude = GeolocationInterpolator.getMaxValue(longitudes[0], longitudes[1], longitudes[2], longitudes[3]);
+        }
+        bounds[4 * cell] = (float) (minLongitude / 1.0e6);
+        bounds[4 * cell + 1] = (float) (GeolocationInterpolator.getMinValue(latitudes[0], latitudes[1], latitudes[2], latitudes[3]) / 1.0e6);
+        bounds[4 * cell + 2] = (float) (maxLongitude / 1.0e6);
+        bounds[4 * cell + 3] = (float) (GeolocationInterpolator.getMaxValue(latitudes[0], latitudes[1], latitudes[2], latitudes[3]) / 1.0e6);
+        for (int lonBin = bin(bounds[4 * cell]); lonBin <= bin(bounds[4 * cell + 2]); lonBin++) {
+            for (int latBin = bin(bounds[4 * cell + 1]); latBin <= bin(bounds[4 * cell + 3]); latBin++) {
+                List<Integer> cells = bins.get(key(lonBin, latBin));
+                if (cells == null) {
+                    cells = new ArrayList<>();
+                    bins.put(key(lonBin, latBin), cells);
+                }
+                cells.add(cell);
+            }
+        }
+    }
+
+    private static int bin(double degrees) {
+        return (int) Math.floor(degrees / BIN_DEGREES);
+    }
+
+    private static int key(int lonBin, int latBin) {
+        // Longitude bins -180..539, latitude bins -90..90
+        return (lonBin + 360) * 256 + (latBin + 128);
+    }
+
+    int getNumberOfRecords() {
+        return numberOfRecords;
+    }
+
+    int getNumberOfCells() {
+        return bounds.length / 4;
+    }
+
+    List<Integer> query(double minLongitude, double minLatitude, double maxLongitude, double maxLatitude) {
+        /* Returns the cells whose bounds may overlap the box (longitudes -180 to 540), each cell once.
+         The box is also searched shifted by +/-360 degrees, the caller tests the cell bounds with the same shifts.
+         */
+        List<Integer> found = new ArrayList<>();
+        BitSet seen = new BitSet(getNumberOfCells());
+        for (int shift = -360; shift <= 360; shift += 360) {
+            int firstLonBin = Math.max(bin(minLongitude + shift), -180);
+            int lastLonBin = Math.min(bin(maxLongitude + shift), 539);
+            for (int lonBin = firstLonBin; lonBin <= lastLonBin; lonBin++) {
+                for (int latBin = Math.max(bin(minLatitude), -90); latBin <= Math.min(bin(maxLatitude), 90); latBin++) {
+                    List<Integer> cells = bins.get(key(lonBin, latBin));
+                    if (cells == null) {
+                        continue;
+                    }
+                    for (int cell : cells) {
+                        if (!seen.get(cell)) {
+                            seen.set(cell);
+                            found.add(cell);
+                        }
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    boolean locate(double latitude, double longitude, double[] imageCoordinates) {
+        /* Finds the (fractional) image row & column of a location on the gridded image by inverting the bilinear
+         interpolation of the tie point cell containing it. Returns false if no cell of the product contains the location.
+         */
+        for (int cell : query(longitude, latitude, longitude, latitude)) {
+            int record = getCellRecord(cell);
+            int tiePoint = getCellTiePoint(cell);
+            double[] lat = new double[4];
+            double[] lon = new double[4];
+            int[] cellLatitudes = cellLatitudes(record, tiePoint);
+            int[] cellLongitudes = cellLongitudes(record, tiePoint);
+            for (int k = 0; k < 4; k++) {
+                lat[k] = cellLatitudes[k] / 1.0e6;
+                // Longitudes relative to the location, in -180 to 180
+                lon[k] = cellLongitudes[k] / 1.0e6 - longitude;
+                lon[k] -= 360.0 * Math.floor((lon[k] + 180.0) / 360.0);
+            }
+            double[] weights = solveBilinear(lat, lon, latitude, Math.cos(Math.toRadians(latitude)));
+            if (weights != null) {
+                imageCoordinates[0] = (record + weights[1]) * ROWS_PER_RECORD;
+                imageCoordinates[1] = tiePointColumn(tiePoint) + weights[0] * (tiePointColumn(tiePoint + 1) - tiePointColumn(tiePoint));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static double[] solveBilinear(double[] lat, double[] lon, double latitude, double scale) {
+        /* Newton iteration for the weights {wx, wy} giving the location (relative longitude 0) from the cell corners,
+         on a local plane with the longitudes scaled by cos(latitude). Returns null if the location is outside the cell.
+         */
+        double wx = 0.5;
+        double wy = 0.5;
+        for (int iteration = 0; iteration < 20; iteration++) {
+            double x = scale * ((1 - wy) * ((1 - wx) * lon[0] + wx * lon[1]) + wy * ((1 - wx) * lon[2] + wx * lon[3]));
+            double y = (1 - wy) * ((1 - wx) * lat[0] + wx * lat[1]) + wy * ((1 - wx) * lat[2] + wx * lat[3]) - latitude;
+            double dxdwx = scale * ((1 - wy) * (lon[1] - lon[0]) + wy * (lon[3] - lon[2]));
+            double dxdwy = scale * (((1 - wx) * lon[2] + wx * lon[3]) - ((1 - wx) * lon[0] + wx * lon[1]));
+            double dydwx = (1 - wy) * (lat[1] - lat[0]) + wy * (lat[3] - lat[2]);
+            double dydwy = ((1 - wx) * lat[2] + wx * lat[3]) - ((1 - wx) * lat[0] + wx * lat[1]);
+            double determinant = dxdwx * dydwy - dxdwy * dydwx;
+            if (determinant == 0.0) {
+                return null;
+            }
+            double stepX = (x * dydwy - y * dxdwy) / determinant;
+            double stepY = (y * dxdwx - x * dydwx) / determinant;
+            wx -= stepX;
+            wy -= stepY;
+            if (Math.abs(stepX) < 1.0e-9 && Math.abs(stepY) < 1.0e-9) {
+                break;
+            }
+        }
+        double tolerance = 1.0e-6;
+        if (wx < -tolerance || wx > 1 + tolerance || wy < -tolerance || wy > 1 + tolerance) {
+            return null;
+        }
+        return new double[]{wx, wy};
+    }
+
+    double[] getCellBounds(int cell) {
+        // {minLon, minLat, maxLon, maxLat} in degrees
+        return new double[]{bounds[4 * cell], bounds[4 * cell + 1], bounds[4 * cell + 2], bounds[4 * cell + 3]};
+    }
+
+    static int getCellRecord(int cell) {
+        // The ADS record at the top of the cell, the cell covers image rows 32 * record to 32 * (record + 1)
+        return cell / (TIE_POINTS_PER_RECORD - 1);
+    }
+
+    static int getCellTiePoint(int cell) {
+        // The tie point to the left of the cell, at x = -275 + 25 * tiePoint km (see GeolocationInterpolator)
+        return cell % (TIE_POINTS_PER_RECORD - 1);
+    }
+
+    static int tiePointColumn(int tiePoint) {
+        // Image column of a tie point, the 512 image columns are 1 km apart centred on the sub satellite track
+        return 25 * tiePoint - 275 + 256;
+    }
+}
@@ -0,0 +1,664 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Callable;
+import org.esa.beam.framework.datamodel.Band;
+import org.orekit.errors.OrekitException;
+import org.orekit.propagation.BoundedPropagator;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class UngriddingService {
+    /* This class runs the tool as a resident local service (--serve <port>) for interactive use.
+     * The processing settings are those of the command line (characterisation & FOV files, reference, topography,
+     * orthorectification & DEM), the pixel projection map and DEM are prepared once and the ADS and ephemeris of
+     * recently used products are kept in a cache bounded by their estimated size (half the maximum heap by default).
+     * The product on the command line is loaded at start up, "-" refers to it in requests. A product is pinned by the
+     * requests using it, an evicted product is closed when its last request releases it.
+     *
+     * The service listens on the loopback interface only. Requests are single text lines (tokens separated by spaces,
+     * double quotes around tokens containing spaces), any number per connection after the token line:
+     *   AUTH <token>  (first line of each connection, the token of the --serve-token file)
+     *   PIXEL <product> <ix> <iy>
+     *   ROW <product> <iy>
+     *   WINDOW <product> <ix> <iy> <jx> <jy> [<output-file(.h5/.nc/.zarr)>]
+     *   STATS
+     *   EVICT <product>
+     *   QUIT (closes the connection)   SHUTDOWN (stops the service)
+     * The reply is "OK <n>" followed by n lines, or "ERROR <message>". Pixel values are returned as CSV lines
+     * ix,iy,nadir lat,lon,time,along track,across track,forward lat,lon,time,along track,across track (fill values as
+     * the full output). A WINDOW with an output file is written with the usual writers and the reply holds the file,
+     * output files are only written inside the --serve-output directory.
+     * Requests are computed with Calculator.unGrid on a fixed pool of threads (one per processor), a connection idle
+     * for IDLE_TIMEOUT_MILLISECONDS is closed so it does not hold a thread.
+     *
+     * The token file must be accessible by its owner only (chmod 600), it is created with a random token if missing.
+     */
+
+    private static final int LATENCY_SAMPLES = 1024;
+    private static final int IDLE_TIMEOUT_MILLISECONDS = 30000;
+    private static final int TOKEN_BYTES = 32;
+    private static final String PIXEL_HEADER = "ix,iy,nadir_latitude,nadir_longitude,nadir_acquisition_time,nadir_along_track,nadir_across_track,"
+            + "forward_latitude,forward_longitude,forward_acquisition_time,forward_along_track,forward_across_track";
+
+    private final InputParameters parameters;
+    private final List<List<Double>> pixelProjectionMap;
+    private final Band DEM;
+    private final Set<ResultVariable> packedVariables;
+    private final long cacheLimitBytes;
+    private final byte[] token;
+    private final Path outputDirectory;
+    private final Object writerLock = new Object();
+
+    // Cache of loaded products in least recently used order, guarded by this
+    private final LinkedHashMap<String, FutureTask<CachedProduct>> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    // Request latencies (ms) of the last LATENCY_SAMPLES requests, guarded by this
+    private final double[] latencies = new double[LATENCY_SAMPLES];
+    private long requests;
+    private long failedRequests;
+
+    private volatile boolean running = true;
+    private ServerSocket serverSocket;
+
+    private static class CachedProduct {
+
+        final ProductContext product;
+        final InputParameters parameters;
+        final BoundedPropagator ephemeris;
+        final long bytes;
+        // Requests using the product and whether it left the cache, guarded by the service
+        int users;
+        boolean evicted;
+
+        CachedProduct(ProductContext product, InputParameters parameters, BoundedPropagator ephemeris) {
+            this.product = product;
+            this.parameters = parameters;
+            this.ephemeris = ephemeris;
+            this.bytes = product.getEstimatedBytes();
+        }
+    }
+
+    private UngriddingService(InputParameters parameters, List<List<Double>> pixelProjectionMap, Band DEM, String token, Path outputDirectory) {
+        this.parameters = parameters;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        this.outputDirectory = outputDirectory;
+        this.pixelProjectionMap = pixelProjectionMap;
+        this.DEM = DEM;
+        this.packedVariables = EnumSet.noneOf(ResultVariable.class);
+        if (parameters.packLatLon) {
+            this.packedVariables.addAll(ResultVariable.GEOLOCATION_VARIABLES);
+        }
+        this.cacheLimitBytes = Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    static void serve(InputParameters parameters, Band DEM) throws IOException, ExecutionException, InterruptedException {
+        String tokenFile = parameters.serviceTokenFile;
+        if (tokenFile == null) {
+            tokenFile = defaultTokenFile();
+        }
+        String token = readToken(Paths.get(tokenFile));
+        Path outputDirectory = null;
+        if (parameters.serviceOutputDirectory != null) {
+            outputDirectory = Paths.get(parameters.serviceOutputDirectory).toRealPath();
+        }
+        // Get the pixel projection map once for all products
+        List<List<Double>> pixelProjectionMap = Calculator.getConstantPixelProjection(parameters);
+        final UngriddingService service = new UngriddingService(parameters, pixelProjectionMap, DEM, token, outputDirectory);
+        service.release(service.getProduct(parameters.inputFileLocation));
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+        try (ServerSocket socket = new ServerSocket(parameters.servicePort, 50, InetAddress.getLoopbackAddress())) {
+            service.serverSocket = socket;
+            System.out.println("Ungridding service listening on " + socket.getLocalSocketAddress() + " with " + threads + " threads, token in " + tokenFile);
+            if (outputDirectory != null) {
+                System.out.println("Window output files are written to " + outputDirectory);
+            }
+            while (service.running) {
+                final Socket connection;
+                try {
+                    connection = socket.accept();
+                    connection.setSoTimeout(IDLE_TIMEOUT_MILLISECONDS);
+                } catch (SocketException ex) {
+                    // Closed by SHUTDOWN
+                    break;
+                }
+                threadPool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        service.handle(connection);
+                    }
+                });
+            }
+        } finally {
+            threadPool.shutdownNow();
+        }
+        System.out.println("Ungridding service stopped");
+    }
+
+    static String defaultTokenFile() {
+        return new File(new File(System.getProperty("user.home"), ".gbt-ubt"), "service-token").getPath();
+    }
+
+    private static String readToken(Path file) throws IOException {
+        /* Reads the token of the file, accessible by its owner only. A missing file is created (owner read & write)
+         with a random token.
+         */
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        if (!Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+            byte[] random = new byte[TOKEN_BYTES];
+            new SecureRandom().nextBytes(random);
+            StringBuilder hex = new StringBuilder();
+            for (byte value : random) {
+                hex.append(String.format("%02x", value));
+            }
+            Path directory = file.toAbsolutePath().getParent();
+            if (posix) {
+                Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } else {
+                Files.createDirectories(directory);
+                Files.createFile(file);
+            }
+            Files.write(file, (hex + "\n").getBytes(StandardCharsets.US_ASCII));
+            System.out.println("Service token written to " + file);
+        }
+        if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException("Service token file " + file + " is not a regular file");
+        }
+        if (posix) {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS);
+            permissions.removeAll(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+            if (!permissions.isEmpty() || !Files.getOwner(file, LinkOption.NOFOLLOW_LINKS).getName().equals(System.getProperty("user.name"))) {
+                throw new IOException("Service token file " + file + " must be owned by " + System.getProperty("user.name") + " and readable by its owner only (chmod 600)");
+            }
+        }
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || lines.get(0).trim().isEmpty()) {
+            throw new IOException("Service token file " + file + " is empty");
+        }
+        return lines.get(0).trim();
+    }
+
+    private boolean authenticate(String line) {
+        // The first line of a connection is AUTH <token>, compared in constant time
+        List<String> request = tokenize(line);
+        if (request.size() != 2 || !request.get(0).equalsIgnoreCase("AUTH")) {
+            return false;
+        }
+        return MessageDigest.isEqual(token, request.get(1).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handle(Socket connection) {
+        try (Socket socket = connection;
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (line == null) {
+                return;
+            }
+            if (!authenticate(line)) {
+                writer.println("ERROR Authentication required, send AUTH <token> first");
+                writer.flush();
+                return;
+            }
+            writer.println("OK 0");
+            writer.flush();
+            while ((line = reader.readLine()) != null) {
+                List<String> request = tokenize(line);
+                if (request.isEmpty()) {
+                    continue;
+                }
+                String command = request.get(0).toUpperCase();
+                if (command.equals("QUIT")) {
+                    break;
+                }
+                long start = System.nanoTime();
+                List<String> reply = new ArrayList<>();
+                boolean failed = false;
+                try {
+                    execute(command, request, reply);
+                } catch (IOException | OrekitException | RuntimeException | ExecutionException | InterruptedException ex) {
+                    failed = true;
+                    reply.clear();
+                    reply.add(String.valueOf(ex.getMessage()).replace('\n', ' '));
+                }
+                if (failed) {
+                    writer.println("ERROR " + reply.get(0));
+                } else {
+                    writer.println("OK " + reply.size());
+                    for (String replyLine : reply) {
+                        writer.println(replyLine);
+                    }
+                }
+                writer.flush();
+                recordLatency((System.nanoTime() - start) / 1.0e6, failed);
+                if (command.equals("SHUTDOWN")) {
+                    running = false;
+                    serverSocket.close();
+                    break;
+                }
+            }
+        } catch (SocketTimeoutException ex) {
+            // Idle connection closed, its thread serves the next connection
+        } catch (IOException ex) {
+            System.out.println("Connection error: " + ex.getMessage());
+        }
+    }
+
+    private void execute(String command, List<String> request, List<String> reply) throws IOException, OrekitException, ExecutionException, InterruptedException {
+        switch (command) {
+            case "PIXEL": {
+                checkArguments(request, 4);
+                int ix = Integer.parseInt(request.get(2));
+                int iy = Integer.parseInt(request.get(3));
+                CachedProduct cached = getProduct(request.get(1));
+                try {
+                    unGridWindow(cached, ix, iy, ix + 1, iy + 1, null, reply);
+                } finally {
+                    release(cached);
+                }
+                break;
+            }
+            case "ROW": {
+                checkArguments(request, 3);
+                int iy = Integer.parseInt(request.get(2));
+                CachedProduct cached = getProduct(request.get(1));
+                try {
+                    unGridWindow(cached, 0, iy, cached.product.getImageColumns(), iy + 1, null, reply);
+                } finally {
+                    release(cached);
+                }
+                break;
+            }
+            case "WINDOW": {
+                if (request.size() != 6 && request.size() != 7) {
+                    throw new IllegalArgumentException("Usage: WINDOW <product> <ix> <iy> <jx> <jy> [<output-file>]");
+                }
+                String output = null;
+                if (request.size() == 7) {
+                    output = request.get(6);
+                }
+                int ix = Integer.parseInt(request.get(2));
+                int iy = Integer.parseInt(request.get(3));
+                int jx = Integer.parseInt(request.get(4));
+                int jy = Integer.parseInt(request.get(5));
+                CachedProduct cached = getProduct(request.get(1));
+                try {
+                    unGridWindow(cached, ix, iy, jx + 1, jy + 1, output, reply);
+                } finally {
+                    release(cached);
+                }
+                break;
+            }
+            case "STATS":
+                stats(reply);
+                break;
+            case "EVICT":
+                checkArguments(request, 2);
+                reply.add("evicted=" + evict(productLocation(request.get(1))));
+                break;
+            case "SHUTDOWN":
+                reply.add("Stopping");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown request " + command + ", expected PIXEL, ROW, WINDOW, STATS, EVICT, QUIT or SHUTDOWN");
+        }
+    }
+
+    private static void checkArguments(List<String> request, int count) {
+        if (request.size() != count) {
+            throw new IllegalArgumentException("Wrong number of arguments for " + request.get(0));
+        }
+    }
+
+    private void unGridWindow(CachedProduct cached, int minX, int minY, int maxX, int maxY, String output, List<String> reply) throws IOException {
+        /* Ungrids image pixels minX <= ix < maxX, minY <= iy < maxY of the product into a result arena,
+         then writes them to the output file or returns them as CSV lines
+         */
+        ProductContext product = cached.product;
+        int rows = product.getImageRows();
+        if (cached.parameters.trimProductEndWhereNoADS) {
+            rows = product.getADSCoveredRows();
+        }
+        if (minX < 0 || minY < 0 || maxX > product.getImageColumns() || maxY > rows || minX >= maxX || minY >= maxY) {
+            throw new IllegalArgumentException("Pixels outside the product (" + product.getImageColumns() + " x " + rows + ")");
+        }
+        // Only the selected views (--view) are computed, the other view is answered as fill
+        int[] views = cached.parameters.getViews();
+        Set<ResultVariable> variables = EnumSet.copyOf(ResultVariable.DEFAULT_VARIABLES);
+        if (views.length < 2) {
+            variables.removeAll(Arrays.asList(ResultVariable.VIEW_VARIABLES[1 - views[0]]));
+        }
+        ResultArena results = ResultArena.allocate(variables, packedVariables, 0, maxY - minY, maxX - minX, ResultArena.Storage.HEAP, null);
+        for (int view : views) {
+            Calculator.unGrid(results, view, minY, maxY - minY, minX, maxX, minY, product.getFirstScanNumber(), product.getNadirViewADS(), product.getForwardViewADS(), product.getScanPixelADS(), product.getGeolocationADS(), product.getScanYCoords(), Thread.currentThread().getName(), cached.parameters, pixelProjectionMap, cached.ephemeris, DEM);
+        }
+        if (output != null) {
+            String outputFile = outputLocation(outputDirectory, output);
+            writeWindow(cached.parameters, product, results, outputFile, minX, minY, maxX, maxY);
+            reply.add(outputFile);
+            return;
+        }
+        reply.add(PIXEL_HEADER);
+        for (int row = 0; row < results.getRows(); row++) {
+            for (int column = 0; column < results.getColumns(); column++) {
+                StringBuilder line = new StringBuilder();
+                line.append(minX + column).append(',').append(minY + row);
+                for (ResultVariable variable : Arrays.asList(ResultVariable.NADIR_LATITUDE, ResultVariable.NADIR_LONGITUDE, ResultVariable.NADIR_ACQUISITION_TIME, ResultVariable.NADIR_ALONG_TRACK, ResultVariable.NADIR_ACROSS_TRACK,
+                        ResultVariable.FORWARD_LATITUDE, ResultVariable.FORWARD_LONGITUDE, ResultVariable.FORWARD_ACQUISITION_TIME, ResultVariable.FORWARD_ALONG_TRACK, ResultVariable.FORWARD_ACROSS_TRACK)) {
+                    line.append(',');
+                    if (!results.contains(variable)) {
+                        line.append(-999999.0);
+                    } else if (variable.type == ResultVariable.ElementType.FLOAT32) {
+                        line.append((float) results.get(variable, row, column));
+                    } else {
+                        line.append(results.get(variable, row, column));
+                    }
+                }
+                reply.add(line.toString());
+            }
+        }
+    }
+
+    static String outputLocation(Path outputDirectory, String output) throws IOException {
+        /* The output file of a WINDOW request, relative to the --serve-output directory. Files resolving outside the
+         directory (.., absolute paths, symbolic links) are refused.
+         */
+        if (outputDirectory == null) {
+            throw new IllegalArgumentException("Window output files are not enabled, start the service with --serve-output <dir>");
+        }
+        Path target = outputDirectory.resolve(output).normalize();
+        Path parent = target.getParent();
+        if (!target.startsWith(outputDirectory) || parent == null || !Files.isDirectory(parent, LinkOption.NOFOLLOW_LINKS)
+                || !parent.toRealPath().startsWith(outputDirectory) || Files.isSymbolicLink(target)) {
+            throw new IllegalArgumentException("Output file must be inside " + outputDirectory + ": " + output);
+        }
+        return target.toString();
+    }
+
+    private void writeWindow(InputParameters productParameters, ProductContext product, ResultArena results, String output, int minX, int minY, int maxX, int maxY) throws IOException {
+        // Writes the window with the writers of the command line tool, as a pixel subset of the product
+        InputParameters windowParameters = productParameters.copy();
+        windowParameters.outputFileLocation = output;
+        windowParameters.subsetFlag = true;
+        windowParameters.singlePixelFlag = (maxX - minX == 1) && (maxY - minY == 1);
+        windowParameters.x1 = minX;
+        windowParameters.y1 = minY;
+        windowParameters.x2 = maxX;
+        windowParameters.y2 = maxY;
+        // The HDF5 and netCDF libraries are not thread safe
+        synchronized (writerLock) {
+            try {
+                if (output.endsWith(".zarr")) {
+                    ZarrWriter writer = ZarrWriter.create(windowParameters, product, results.getVariables(), results.getPackedVariables(), null, maxX, maxY, minX, minY, results.getRows());
+                    writer.writeRows(results, 0, results.getRows());
+                } else if (output.endsWith(".h5")) {
+                    HDFWriter writer = HDFWriter.create(windowParameters, results.getVariables(), results.getPackedVariables(), null, maxX, maxY, minX, minY);
+                    if (writer == null) {
+                        throw new IOException("HDF5 library not available");
+                    }
+                    writer.writeRows(results, 0, results.getRows());
+                    writer.close(windowParameters);
+                } else if (output.endsWith(".nc")) {
+                    NetCDF4Writer writer = NetCDF4Writer.create(windowParameters, product, results.getVariables(), results.getPackedVariables(), null, maxX, maxY, minX, minY);
+                    try {
+                        writer.writeRows(results, 0, results.getRows());
+                    } finally {
+                        writer.close();
+                    }
+                } else {
+                    throw new IllegalArgumentException("Output file must end with .h5, .nc or .zarr");
+                }
+            } catch (IOException | RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new IOException("Error writing " + output + ": " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    private String productLocation(String product) {
+        if (product.equals("-")) {
+            return parameters.inputFileLocation;
+        }
+        return new File(product).getAbsolutePath();
+    }
+
+    private CachedProduct getProduct(String requested) throws ExecutionException, InterruptedException {
+        /* Returns the cached product pinned for the caller (see release), loading it on first use. Concurrent
+         requests for a product being loaded wait for the same load. Least recently used products are evicted once
+         the cache exceeds its limit.
+         */
+        final String location = productLocation(requested);
+        FutureTask<CachedProduct> load;
+        boolean loader = false;
+        synchronized (this) {
+            load = cache.get(location);
+            if (load == null) {
+                misses++;
+                loader = true;
+                load = new FutureTask<>(new Callable<CachedProduct>() {
+                    @Override
+                    public CachedProduct call() throws Exception {
+                        return loadProduct(location);
+                    }
+                });
+                cache.put(location, load);
+            } else {
+                hits++;
+            }
+        }
+        if (loader) {
+            load.run();
+        }
+        try {
+            CachedProduct cached = load.get();
+            synchronized (this) {
+                // Pinned before evicting so a product evicted by a concurrent load stays open for this caller
+                cached.users++;
+                if (loader) {
+                    cacheBytes += cached.bytes;
+                    evictLeastRecentlyUsed(location);
+                }
+            }
+            return cached;
+        } catch (ExecutionException ex) {
+            synchronized (this) {
+                if (cache.get(location) == load) {
+                    cache.remove(location);
+                }
+            }
+            throw ex;
+        }
+    }
+
+    private CachedProduct loadProduct(String location) throws IOException, OrekitException {
+        long start = System.nanoTime();
+        InputParameters productParameters = parameters.copy();
+        productParameters.inputFileLocation = location;
+        ProductContext product = ProductContext.open(location);
+        BoundedPropagator ephemeris;
+        try {
+            ephemeris = Orthorectifier.generateEphemeris(productParameters, product);
+        } finally {
+            // The ADS and MPH stay in memory, the product file is reopened if a window output needs its bands
+            product.close();
+        }
+        System.out.println(String.format("Loaded %s in %.0f ms", location, (System.nanoTime() - start) / 1.0e6));
+        return new CachedProduct(product, productParameters, ephemeris);
+    }
+
+    private void evictLeastRecentlyUsed(String keep) {
+        // Called holding the lock, products still loading are skipped
+        Iterator<Map.Entry<String, FutureTask<CachedProduct>>> entries = cache.entrySet().iterator();
+        while (cacheBytes > cacheLimitBytes && entries.hasNext()) {
+            Map.Entry<String, FutureTask<CachedProduct>> entry = entries.next();
+            if (entry.getKey().equals(keep) || !entry.getValue().isDone()) {
+                continue;
+            }
+            try {
+                discard(entry.getValue().get());
+            } catch (ExecutionException | InterruptedException ex) {
+                // Failed loads hold no memory
+            }
+            entries.remove();
+            evictions++;
+        }
+    }
+
+    private synchronized boolean evict(String location) {
+        FutureTask<CachedProduct> load = cache.get(location);
+        if (load == null || !load.isDone()) {
+            return false;
+        }
+        try {
+            discard(load.get());
+        } catch (ExecutionException | InterruptedException ex) {
+            // Failed loads hold no memory
+        }
+        cache.remove(location);
+        evictions++;
+        return true;
+    }
+
+    private void discard(CachedProduct evicted) {
+        // Called holding the lock, a product still used by requests is closed by the last release
+        cacheBytes -= evicted.bytes;
+        evicted.evicted = true;
+        if (evicted.users == 0) {
+            evicted.product.close();
+        }
+    }
+
+    private synchronized void release(CachedProduct cached) {
+        // Unpins a product returned by getProduct, closing it if it was evicted meanwhile
+        cached.users--;
+        if (cached.evicted && cached.users == 0) {
+            cached.product.close();
+        }
+    }
+
+    private synchronized void recordLatency(double milliseconds, boolean failed) {
+        latencies[(int) (requests % LATENCY_SAMPLES)] = milliseconds;
+        requests++;
+        if (failed) {
+            failedRequests++;
+        }
+    }
+
+    private synchronized void stats(List<String> reply) {
+        reply.add("cache_products=" + cache.size());
+        reply.add("cache_bytes=" + cacheBytes);
+        reply.add("cache_limit_bytes=" + cacheLimitBytes);
+        reply.add("cache_hits=" + hits);
+        reply.add("cache_misses=" + misses);
+        reply.add("cache_evictions=" + evictions);
+        reply.add("requests=" + requests);
+        reply.add("failed_requests=" + failedRequests);
+        int samples = (int) Math.min(requests, LATENCY_SAMPLES);
+        double[] sorted = Arrays.copyOf(latencies, samples);
+        Arrays.sort(sorted);
+        if (samples > 0) {
+            double total = 0.0;
+            for (double latency : sorted) {
+                total += latency;
+            }
+            reply.add(String.format("latency_ms_mean=%.3f", total / samples));
+            reply.add(String.format("latency_ms_p50=%.3f", sorted[(int) (0.50 * (samples - 1))]));
+            reply.add(String.format("latency_ms_p95=%.3f", sorted[(int) (0.95 * (samples - 1))]));
+            reply.add(String.format("latency_ms_max=%.3f", sorted[samples - 1]));
+        }
+        for (String location : cache.keySet()) {
+            reply.add("cached=" + location);
+        }
+    }
+
+    static List<String> tokenize(String line) {
+        // Splits on spaces, double quotes group a token containing spaces
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        boolean inToken = false;
+        for (char c : line.toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+                inToken = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (inToken) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                token.append(c);
+                inToken = true;
+            }
+        }
+        if (inToken) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,574 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+class ZarrWriter {
+    /* This class writes the output as a chunked directory store following the Zarr (version 2) layout.
+     * Each variable is a directory holding JSON metadata (.zarray, .zattrs) and one zlib compressed file per chunk,
+     * the group and variable attributes follow the netCDF4 CF output. Consolidated metadata (.zmetadata) is written
+     * when the store is created so a reader needs a single request to discover every variable.
+     *
+     * A chunk covers rowsPerThread image rows across the full width, i.e. one worker thread's block, so the workers
+     * write their own chunks as soon as they finish and many processes can later read the chunks in parallel.
+     * Only the Java runtime is required, there is no native library.
+     */
+
+    private static final int COMPRESSION_LEVEL = 1;
+
+    private final File store;
+    private final Set<ResultVariable> variables;
+    private final Set<ResultVariable> packedVariables;
+    private final int minX;
+    private final int minY;
+    private final int rows;
+    private final int columns;
+    private final int chunkRows;
+    private final Map<String, Object> metadata = new LinkedHashMap<>();
+    // The flag and measurement bands of the selected views (--view)
+    private final List<String> flagBands = new ArrayList<>();
+    private final List<String> measurementBands = new ArrayList<>();
+    private ProductContext product;
+
+    private ZarrWriter(File store, Set<ResultVariable> variables, Set<ResultVariable> packedVariables, int minX, int minY, int rows, int columns, int chunkRows) {
+        this.store = store;
+        this.variables = variables;
+        this.packedVariables = packedVariables;
+        this.minX = minX;
+        this.minY = minY;
+        this.rows = rows;
+        this.columns = columns;
+        this.chunkRows = chunkRows;
+    }
+
+    static ZarrWriter create(InputParameters parameters, ProductContext product, Set<ResultVariable> variables, Set<ResultVariable> packedVariables, CompactEncoding compact, int maxX, int maxY, int minX, int minY, int chunkRows) throws IOException {
+        File store = new File(parameters.outputFileLocation);
+        if (store.exists()) {
+            // Only a previous Zarr store is replaced, any other file or directory is left alone
+            if (!isZarrStore(store)) {
+                throw new IOException("Output " + parameters.outputFileLocation + " exists and is not a Zarr store, not replaced");
+            }
+            deleteRecursively(store.toPath());
+        }
+        if (!store.mkdirs()) {
+            throw new IOException("Failed to create output directory: " + parameters.outputFileLocation);
+        }
+        System.out.println("Generating Output File");
+        ZarrWriter writer = new ZarrWriter(store, variables, packedVariables, minX, minY, maxY - minY, maxX - minX, Math.max(1, chunkRows));
+        for (String name : ProductBands.flagNames) {
+            if (parameters.includesBand(name)) {
+                writer.flagBands.add(name);
+            }
+        }
+        for (String name : ProductBands.variableNames) {
+            if (parameters.includesBand(name)) {
+                writer.measurementBands.add(name);
+            }
+        }
+        writer.define(parameters, compact);
+
+        // Flags and measurement data are copied from the product session as each chunk is written
+        writer.product = product;
+        return writer;
+    }
+
+    private void define(InputParameters parameters, CompactEncoding compact) throws IOException {
+        // Add attributes to the store that are compliant with CF conventions
+        Map<String, Object> globalAttributes = new LinkedHashMap<>();
+        globalAttributes.put("Conventions", "CF-1.6");
+        globalAttributes.put("title", "AATSR GBT-UBT-Tool Output File");
+        globalAttributes.put("institution", "ESA");
+        globalAttributes.put("source", parameters.inputFileLocation.substring(parameters.inputFileLocation.lastIndexOf("/") + 1));
+        DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        globalAttributes.put("history", dateFormat.format(new Date()) + " GBT-UBT-Tool" + parameters.toolVersion + " " + parameters.inputString);
+        globalAttributes.put("references", "https://github.com/Telespazio-VEGA-UK/GBT-UBT-Tool");
+        globalAttributes.put("comment", "none");
+        addGroup("", globalAttributes);
+
+        // Groups use the HDF5 output names
+        for (ResultVariable variable : variables) {
+            if (!metadata.containsKey(variable.group + "/.zgroup")) {
+                addGroup(variable.group, new LinkedHashMap<String, Object>());
+            }
+        }
+        addGroup("Flags", new LinkedHashMap<String, Object>());
+        addGroup("Measurements", new LinkedHashMap<String, Object>());
+
+        // Computed variables
+        // Note non-standard CF use of differing _FillValue and missing_value
+        for (ResultVariable variable : variables) {
+            String view = "nadir";
+            if (variable.datasetName.startsWith("Forward")) {
+                view = "forward";
+            }
+            // -888888 (missing) only occurs in the nadir view (scans up to 32), as in the netCDF output
+            boolean nadir = view.equals("nadir");
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            switch (variable) {
+                case NADIR_LATITUDE:
+                case FORWARD_LATITUDE:
+                    attributes.put("long_name", view + " view ungridded latitude");
+                    attributes.put("standard_name", "latitude");
+                    attributes.put("units", "degrees_north");
+                    if (nadir) {
+                        attributes.put("missing_value", -888888.0);
+                    }
+                    break;
+                case NADIR_LONGITUDE:
+                case FORWARD_LONGITUDE:
+                    attributes.put("long_name", view + " view ungridded longitude");
+                    attributes.put("standard_name", "longitude");
+                    attributes.put("units", "degrees_east");
+                    if (nadir) {
+                        attributes.put("missing_value", -888888.0);
+                    }
+                    break;
+                case NADIR_ACQUISITION_TIME:
+                case FORWARD_ACQUISITION_TIME:
+                    attributes.put("long_name", view + " view ungridded acquisition time (mjd2000)");
+                    attributes.put("standard_name", "time");
+                    attributes.put("units", "days since 2000-01-01 00:00:00");
+                    if (nadir) {
+                        attributes.put("missing_value", -888888.0);
+                    }
+                    break;
+                case NADIR_ALONG_TRACK:
+                case FORWARD_ALONG_TRACK:
+                    attributes.put("long_name", view + " view pixel field of view projection along track");
+                    attributes.put("standard_name", "projection_y_coordinate");
+                    attributes.put("units", "km");
+                    break;
+                case NADIR_ACROSS_TRACK:
+                case FORWARD_ACROSS_TRACK:
+                    attributes.put("long_name", view + " view pixel field of view projection across track");
+                    attributes.put("standard_name", "projection_x_coordinate");
+                    attributes.put("units", "km");
+                    break;
+                case NADIR_SCAN_NUMBER:
+                case FORWARD_SCAN_NUMBER:
+                    attributes.put("long_name", view + " view instrument scan number");
+                    break;
+                default:
+                    attributes.put("long_name", view + " view instrument pixel number");
+            }
+            Number fillValue = -999999.0;
+            String dataType = dataType(variable.type);
+            if (variable.group.equals(CompactEncoding.GROUP)) {
+                fillValue = 0;
+            } else if (packedVariables.contains(variable)) {
+                // Packed int32 micro-degrees, CF readers unpack them using scale_factor & add_offset
+                fillValue = ResultArena.PACKED_FILL_VALUE;
+                dataType = dataType(ResultVariable.ElementType.INT32);
+                attributes.put("scale_factor", ResultArena.PACKING_SCALE);
+                attributes.put("add_offset", 0.0);
+                if (nadir) {
+                    attributes.put("missing_value", ResultArena.PACKED_MISSING_VALUE);
+                }
+            }
+            attributes.put("_FillValue", fillValue);
+            if (!variable.group.equals("Geolocation")) {
+                attributes.put("coordinates", viewCoordinates(view));
+            }
+            addArray(variable.group + "/" + variable.datasetName, dataType, fillValue, attributes);
+        }
+
+        // Measurement
+        // Note link between measurement data to flag variables
+        for (String name : measurementBands) {
+            String view = "nadir";
+            if (name.contains("fward")) {
+                view = "fward";
+            }
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            attributes.put("long_name", ProductBands.longNames.get(ProductBands.variableNames.indexOf(name)));
+            if (name.contains("btemp")) {
+                attributes.put("standard_name", "toa_brightness_temperature");
+                attributes.put("units", "K");
+            } else {
+                attributes.put("standard_name", "toa_reflectance");
+                attributes.put("units", "Percent");
+            }
+            attributes.put("coordinates", viewCoordinates(view));
+            attributes.put("ancillary_variables", "confid_flags_" + view + " cloud_flags_" + view);
+            attributes.put("scale_factor", 0.01);
+            attributes.put("add_offset", 0.0);
+            attributes.put("_FillValue", -2);
+            attributes.put("grid_mapping", "crs");
+            attributes.put("valid_min", 0);
+            addArray("Measurements/" + name, "<i2", -2, attributes);
+        }
+
+        // Flag data
+        // Flag data is packed as integer
+        for (String name : flagBands) {
+            String view = "nadir";
+            String viewName = "nadir view";
+            if (name.contains("fward")) {
+                view = "fward";
+                viewName = "forward view";
+            }
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            if (name.startsWith("confid")) {
+                attributes.put("long_name", "Confidence flags, " + viewName);
+            } else {
+                attributes.put("long_name", "Cloud flags, " + viewName);
+            }
+            attributes.put("coordinates", viewCoordinates(view));
+            attributes.put("grid_mapping", "crs");
+            addArray("Flags/" + name, "<i2", 0, attributes);
+        }
+
+        // Compact output lookup tables (see CompactEncoding), each held in a single chunk
+        if (compact != null) {
+            if (!metadata.containsKey(CompactEncoding.GROUP + "/.zgroup")) {
+                addGroup(CompactEncoding.GROUP, new LinkedHashMap<String, Object>());
+            }
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            attributes.put("long_name", "instrument scan time (mjd2000), indexed by scan number - first_scan_number");
+            attributes.put("units", "days since 2000-01-01 00:00:00");
+            attributes.put(CompactEncoding.FIRST_SCAN_NUMBER, compact.getFirstScanNumber());
+            double[] scanTimes = compact.getScanTimes();
+            addTable(CompactEncoding.SCAN_TIME, "<f8", scanTimes.length, "scan", attributes);
+            ByteBuffer table = ByteBuffer.allocate(scanTimes.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+            table.asDoubleBuffer().put(scanTimes);
+            if (scanTimes.length > 0) {
+                writeChunk(CompactEncoding.GROUP + "/" + CompactEncoding.SCAN_TIME + "/0", table.array());
+            }
+
+            String[] names = {CompactEncoding.FOV_ALONG_TRACK, CompactEncoding.FOV_ACROSS_TRACK};
+            float[][] lookups = {compact.getAlongTrack(), compact.getAcrossTrack()};
+            for (int k = 0; k < names.length; k++) {
+                attributes = new LinkedHashMap<>();
+                attributes.put("long_name", "pixel field of view projection " + names[k].substring(4).toLowerCase().replace('_', ' ') + ", indexed by instrument pixel number");
+                attributes.put("units", "km");
+                addTable(names[k], "<f4", lookups[k].length, "pixel", attributes);
+                table = ByteBuffer.allocate(lookups[k].length * 4).order(ByteOrder.LITTLE_ENDIAN);
+                table.asFloatBuffer().put(lookups[k]);
+                writeChunk(CompactEncoding.GROUP + "/" + names[k] + "/0", table.array());
+            }
+        }
+
+        // CRS (scalar, no chunk is written so it reads as the fill value)
+        Map<String, Object> crs = new LinkedHashMap<>();
+        crs.put("long_name", "coordinate reference system");
+        crs.put("grid_mapping_name", "latitude_longitude");
+        crs.put("longitude_of_prime_meridian", 0.0);
+        crs.put("semi_major_axis", 6378137.0);
+        crs.put("inverse_flattening", 298.257223563);
+        Map<String, Object> crsArray = arrayMetadata(new int[0], new int[0], "<i4", 0);
+        writeMetadata("crs/.zarray", crsArray);
+        crs.put("_ARRAY_DIMENSIONS", new String[0]);
+        writeMetadata("crs/.zattrs", crs);
+
+        // Consolidated metadata
+        Map<String, Object> consolidated = new LinkedHashMap<>();
+        consolidated.put("metadata", metadata);
+        consolidated.put("zarr_consolidated_format", 1);
+        writeJson(new File(store, ".zmetadata"), consolidated);
+    }
+
+    private static String viewCoordinates(String view) {
+        if (view.equals("nadir")) {
+            return "Nadir_Longitude Nadir_Latitude";
+        }
+        return "Forward_Longitude Forward_Latitude";
+    }
+
+    private static String dataType(ResultVariable.ElementType type) {
+        switch (type) {
+            case INT16:
+                return "<i2";
+            case INT32:
+                return "<i4";
+            case FLOAT32:
+                return "<f4";
+            default:
+                return "<f8";
+        }
+    }
+
+    private void addGroup(String path, Map<String, Object> attributes) throws IOException {
+        String prefix = "";
+        if (!path.isEmpty()) {
+            prefix = path + "/";
+        }
+        Map<String, Object> group = new LinkedHashMap<>();
+        group.put("zarr_format", 2);
+        writeMetadata(prefix + ".zgroup", group);
+        writeMetadata(prefix + ".zattrs", attributes);
+    }
+
+    private void addArray(String path, String dataType, Number fillValue, Map<String, Object> attributes) throws IOException {
+        writeMetadata(path + "/.zarray", arrayMetadata(new int[]{rows, columns}, new int[]{chunkRows, columns}, dataType, fillValue));
+        // Dimension names as used by xarray
+        attributes.put("_ARRAY_DIMENSIONS", new String[]{"i", "j"});
+        writeMetadata(path + "/.zattrs", attributes);
+    }
+
+    private void addTable(String name, String dataType, int length, String dimension, Map<String, Object> attributes) throws IOException {
+        String path = CompactEncoding.GROUP + "/" + name;
+        writeMetadata(path + "/.zarray", arrayMetadata(new int[]{length}, new int[]{Math.max(1, length)}, dataType, null));
+        attributes.put("_ARRAY_DIMENSIONS", new String[]{dimension});
+        writeMetadata(path + "/.zattrs", attributes);
+    }
+
+    private static Map<String, Object> arrayMetadata(int[] shape, int[] chunks, String dataType, Number fillValue) {
+        Map<String, Object> array = new LinkedHashMap<>();
+        Map<String, Object> compressor = new LinkedHashMap<>();
+        compressor.put("id", "zlib");
+        compressor.put("level", COMPRESSION_LEVEL);
+        array.put("zarr_format", 2);
+        array.put("shape", shape);
+        array.put("chunks", chunks);
+        array.put("dtype", dataType);
+        array.put("compressor", compressor);
+        array.put("fill_value", fillValue);
+        array.put("order", "C");
+        array.put("filters", null);
+        return array;
+    }
+
+    private void writeMetadata(String key, Map<String, Object> document) throws IOException {
+        metadata.put(key, document);
+        writeJson(new File(store, key), document);
+    }
+
+    void writeRows(ResultArena results, int firstRow, int rowCount) throws IOException {
+        /* Write a block of image rows (relative to the output grid) as whole chunks of every variable.
+         Blocks must start on a chunk boundary, the last chunk of the store is padded with the fill value.
+         Chunks are independent files so the worker threads can call this concurrently.
+         */
+        if (firstRow % chunkRows != 0) {
+            throw new IllegalArgumentException("Block does not start on a chunk boundary: " + firstRow);
+        }
+        for (int chunkRow = firstRow; chunkRow < firstRow + rowCount; chunkRow += chunkRows) {
+            int count = Math.min(chunkRows, firstRow + rowCount - chunkRow);
+            String chunkKey = (chunkRow / chunkRows) + ".0";
+            for (ResultVariable variable : variables) {
+                // The padding of a short final chunk reads as the fill value (0 for the instrument indices)
+                ResultVariable.ElementType type = results.getType(variable);
+                ByteBuffer chunk = ByteBuffer.allocate(chunkRows * columns * type.size).order(ByteOrder.LITTLE_ENDIAN);
+                Object values = results.readRows(variable, chunkRow, count);
+                switch (type) {
+                    case INT16:
+                        chunk.asShortBuffer().put((short[]) values);
+                        break;
+                    case INT32:
+                        int[] ints = Arrays.copyOf((int[]) values, chunkRows * columns);
+                        if (packedVariables.contains(variable)) {
+                            Arrays.fill(ints, count * columns, ints.length, ResultArena.PACKED_FILL_VALUE);
+                        }
+                        chunk.asIntBuffer().put(ints);
+                        break;
+                    case FLOAT32:
+                        float[] floats = Arrays.copyOf((float[]) values, chunkRows * columns);
+                        Arrays.fill(floats, count * columns, floats.length, -999999.0f);
+                        chunk.asFloatBuffer().put(floats);
+                        break;
+                    default:
+                        double[] doubles = Arrays.copyOf((double[]) values, chunkRows * columns);
+                        Arrays.fill(doubles, count * columns, doubles.length, -999999.0);
+                        chunk.asDoubleBuffer().put(doubles);
+                }
+                writeChunk(variable.group + "/" + variable.datasetName + "/" + chunkKey, chunk.array());
+            }
+            writeProductRows(results, chunkRow, count, chunkKey);
+        }
+    }
+
+    private void writeProductRows(ResultArena results, int chunkRow, int count, String chunkKey) throws IOException {
+        /* Copy the flags and measurements for the rows of a chunk, read in the output orientation (see ProductContext) */
+        for (String name : flagBands) {
+            short[] output = Arrays.copyOf(readBand(name, chunkRow, count), chunkRows * columns);
+            writeChunk("Flags/" + name + "/" + chunkKey, toBytes(output));
+        }
+        for (String name : measurementBands) {
+            ResultVariable viewLatitude = ResultVariable.NADIR_LATITUDE;
+            if (name.contains("fward")) {
+                viewLatitude = ResultVariable.FORWARD_LATITUDE;
+            }
+            short[] values = readBand(name, chunkRow, count);
+            short[] output = new short[chunkRows * columns];
+            Arrays.fill(output, (short) -2);
+            for (int i = 0; i < count; i++) {
+                for (int j = 0; j < columns; j++) {
+                    short value = values[j + (i * columns)];
+                    boolean located = true;
+                    if (results.contains(viewLatitude)) {
+                        double latitude = results.get(viewLatitude, chunkRow + i, j);
+                        located = latitude != -999999.0 && latitude != -888888.0;
+                    }
+                    if (located && value >= 0) {
+                        output[j + (i * columns)] = value;
+                    }
+                }
+            }
+            writeChunk("Measurements/" + name + "/" + chunkKey, toBytes(output));
+        }
+    }
+
+    private short[] readBand(String name, int chunkRow, int count) throws IOException {
+        // The product session is shared between the worker threads
+        return product.readBand(name, minX, minY + chunkRow, columns, count);
+    }
+
+    private static byte[] toBytes(short[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asShortBuffer().put(values);
+        return buffer.array();
+    }
+
+    private void writeChunk(String key, byte[] data) throws IOException {
+        /* Compress the chunk to a temporary file then rename it, so a reader never sees a partial chunk */
+        File chunkFile = new File(store, key);
+        File tempFile = new File(store, key + ".partial");
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+        try (OutputStream out = new DeflaterOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)), deflater, 1 << 16)) {
+            out.write(data);
+        } finally {
+            deflater.end();
+        }
+        Files.move(tempFile.toPath(), chunkFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static boolean isZarrStore(File store) {
+        // A real directory (not a symbolic link) with the root group or consolidated metadata of a store
+        Path path = store.toPath();
+        return Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)
+                && (Files.isRegularFile(path.resolve(".zgroup"), LinkOption.NOFOLLOW_LINKS) || Files.isRegularFile(path.resolve(".zmetadata"), LinkOption.NOFOLLOW_LINKS));
+    }
+
+    private static void deleteRecursively(Path store) throws IOException {
+        // Symbolic links are removed, never followed (walkFileTree without FOLLOW_LINKS)
+        Files.walkFileTree(store, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException ex) throws IOException {
+                if (ex != null) {
+                    throw ex;
+                }
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void writeJson(File file, Object document) throws IOException {
+        file.getParentFile().mkdirs();
+        StringBuilder json = new StringBuilder();
+        appendJson(json, document, "");
+        json.append("\n");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            out.write(json.toString());
+        }
+    }
+
+    private static void appendJson(StringBuilder json, Object value, String indent) {
+        // Minimal JSON serialiser for the metadata documents (maps, arrays, strings, numbers and null)
+        if (value == null) {
+            json.append("null");
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            if (map.isEmpty()) {
+                json.append("{}");
+                return;
+            }
+            json.append("{\n");
+            int n = 0;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                json.append(indent).append("    ");
+                appendJson(json, String.valueOf(entry.getKey()), "");
+                json.append(": ");
+                appendJson(json, entry.getValue(), indent + "    ");
+                if (++n < map.size()) {
+                    json.append(",");
+                }
+                json.append("\n");
+            }
+            json.append(indent).append("}");
+        } else if (value.getClass().isArray()) {
+            json.append("[");
+            for (int k = 0; k < Array.getLength(value); k++) {
+                if (k > 0) {
+                    json.append(", ");
+                }
+                appendJson(json, Array.get(value, k), indent);
+            }
+            json.append("]");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            json.append(value.toString());
+        } else {
+            String text = value.toString();
+            json.append('"');
+            for (int k = 0; k < text.length(); k++) {
+                char c = text.charAt(k);
+                if (c == '"' || c == '\\') {
+                    json.append('\\').append(c);
+                } else if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int) c));
+                } else {
+                    json.append(c);
+                }
+            }
+            json.append('"');
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.EnumSet;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+public class CheckpointStoreTest {
+
+    private static final Set<ResultVariable> VARIABLES = EnumSet.of(ResultVariable.NADIR_LATITUDE, ResultVariable.NADIR_ACQUISITION_TIME, ResultVariable.NADIR_PIXEL_NUMBER);
+    private static final Set<ResultVariable> NOT_PACKED = EnumSet.noneOf(ResultVariable.class);
+    private static final int COLUMNS = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InputParameters parameters;
+    private File product;
+
+    @Before
+    public void setUp() throws IOException {
+        product = folder.newFile("ATS_TOA_1P.N1");
+        try (FileOutputStream out = new FileOutputStream(product)) {
+            out.write(new byte[100]);
+        }
+        parameters = new InputParameters();
+        parameters.toolVersion = "1.6";
+        parameters.inputFileLocation = product.getPath();
+        parameters.rowsPerThread = 64;
+        parameters.FOVMeasurementDataBandName = "11um";
+        parameters.alongTrackAngle[5] = 0.25;
+    }
+
+    @Test
+    public void fingerprintChangesWithTheComputedRows() throws IOException {
+        String fingerprint = CheckpointStore.fingerprint(parameters, VARIABLES, NOT_PACKED, 0, 512, 0, 1024);
+        assertEquals(fingerprint, CheckpointStore.fingerprint(parameters, VARIABLES, NOT_PACKED, 0, 512, 0, 1024));
+        assertNotEquals(fingerprint, CheckpointStore.fingerprint(parameters, VARIABLES, NOT_PACKED, 0, 512, 0, 1056));
+        assertNotEquals(fingerprint, CheckpointStore.fingerprint(parameters, VARIABLES, EnumSet.of(ResultVariable.NADIR_LATITUDE), 0, 512, 0, 1024));
+        assertNotEquals(fingerprint, CheckpointStore.fingerprint(parameters, EnumSet.of(ResultVariable.NADIR_LATITUDE), NOT_PACKED, 0, 512, 0, 1024));
+
+        parameters.rowsPerThread = 32;
+        assertNotEquals(fingerprint, CheckpointStore.fingerprint(parameters, VARIABLES, NOT_PACKED, 0, 512, 0, 1024));
+        parameters.rowsPerThread = 64;
+
+        parameters.alongTrackAngle[5] = 0.5;
+        assertNotEquals(fingerprint, CheckpointStore.fingerprint(parameters, VARIABLES, NOT_PACKED, 0, 512, 0, 1024));
+        parameters.alongTrackAngle[5] = 0.25;
+
+        // A changed input file (size) is a different input
+        try (FileOutputStream out = new FileOutputStream(product, true)) {
+            out.write(1);
+        }
+        assertNotEquals(fingerprint, CheckpointStore.fingerprint(parameters, VARIABLES, NOT_PACKED, 0, 512, 0, 1024));
+    }
+
+    @Test
+    public void savedBlocksAreRestoredByALaterRun() throws IOException {
+        String checkpoints = new File(folder.getRoot(), "checkpoints").getPath();
+        CheckpointStore store = CheckpointStore.open(checkpoints, "a");
+        store.save(filledArena(64, 3), 64, 3);
+        assertEquals(1, store.getCompletedBlockCount());
+
+        CheckpointStore rerun = CheckpointStore.open(checkpoints, "a");
+        assertEquals(1, rerun.getCompletedBlockCount());
+        ResultArena restored = ResultArena.allocate(VARIABLES, NOT_PACKED, 0, 128, COLUMNS, ResultArena.Storage.HEAP, null);
+        assertTrue(rerun.restore(restored, 64, 3));
+        for (int row = 64; row < 67; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                assertEquals(value(row, column), restored.get(ResultVariable.NADIR_LATITUDE, row, column), 1.0e-4);
+                assertEquals(value(row, column) * 1000.0, restored.get(ResultVariable.NADIR_ACQUISITION_TIME, row, column), 0.0);
+                assertEquals(column - 1, restored.get(ResultVariable.NADIR_PIXEL_NUMBER, row, column), 0.0);
+            }
+        }
+        // A block of a different size is not reused
+        assertFalse(rerun.restore(restored, 64, 4));
+        assertFalse(rerun.restore(restored, 0, 3));
+    }
+
+    @Test
+    public void corruptBlocksAreRecomputed() throws IOException {
+        String checkpoints = new File(folder.getRoot(), "checkpoints").getPath();
+        CheckpointStore store = CheckpointStore.open(checkpoints, "a");
+        store.save(filledArena(0, 2), 0, 2);
+
+        File block = new File(checkpoints, "block_0.bin");
+        try (RandomAccessFile file = new RandomAccessFile(block, "rw")) {
+            long position = file.length() / 2;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0x01);
+        }
+        CheckpointStore rerun = CheckpointStore.open(checkpoints, "a");
+        ResultArena restored = ResultArena.allocate(VARIABLES, NOT_PACKED, 0, 2, COLUMNS, ResultArena.Storage.HEAP, null);
+        assertFalse(rerun.restore(restored, 0, 2));
+        assertEquals(0, rerun.getCompletedBlockCount());
+    }
+
+    @Test
+    public void checkpointsOfOtherInputsAreDiscarded() throws IOException {
+        String checkpoints = new File(folder.getRoot(), "checkpoints").getPath();
+        CheckpointStore.open(checkpoints, "a").save(filledArena(0, 2), 0, 2);
+
+        CheckpointStore other = CheckpointStore.open(checkpoints, "b");
+        assertEquals(0, other.getCompletedBlockCount());
+        assertFalse(new File(checkpoints, "block_0.bin").exists());
+        assertFalse(new File(checkpoints, "manifest.txt").exists());
+    }
+
+    private static double value(int row, int column) {
+        return row + column / 10.0;
+    }
+
+    private static ResultArena filledArena(int firstRow, int rows) throws IOException {
+        ResultArena arena = ResultArena.allocate(VARIABLES, NOT_PACKED, firstRow, rows, COLUMNS, ResultArena.Storage.HEAP, null);
+        for (int row = firstRow; row < firstRow + rows; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                arena.put(ResultVariable.NADIR_LATITUDE, row, column, value(row, column));
+                arena.put(ResultVariable.NADIR_ACQUISITION_TIME, row, column, value(row, column) * 1000.0);
+                arena.put(ResultVariable.NADIR_PIXEL_NUMBER, row, column, column - 1);
+            }
+        }
+        return arena;
+    }
+}
@@ -0,0 +1,165 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+public class CollocatorTest {
+    /* The pixels are 1 km apart along & across track with 1 km x 0.6 km footprints, each forward pixel 0.25 km further
+     * along track than the nadir pixel of the same row & column: a nadir pixel is 3/4 covered by the forward pixel of
+     * its row and 1/4 by the forward pixel of the row before. ROWS spans two collocation bands.
+     */
+
+    private static final int ROWS = 300;
+    private static final int COLUMNS = 5;
+    private static final double KM_PER_DEGREE = 111.195;
+    private static final double ALONG_TRACK = 1.0;
+    private static final double ACROSS_TRACK = 0.6;
+    private static final double FORWARD_SHIFT = 0.25;
+    private static final int FILL_NADIR_ROW = 100;
+    private static final int FILL_NADIR_COLUMN = 3;
+    private static final int FILL_FORWARD_ROW = 260;
+    private static final int FILL_FORWARD_COLUMN = 2;
+    private static final int PIXEL_NUMBER = 7;
+
+    @Test
+    public void matchesTheOverlappingForwardPixelsOfANorthboundTrack() throws Exception {
+        ResultArena results = arena(false, false);
+        Collocator.collocate(results, null, 2);
+        checkMatches(results);
+    }
+
+    @Test
+    public void footprintsAreAlignedWithTheTrack() throws Exception {
+        // Eastbound, the 0.25 km shift is along the 1 km extent (across the 0.6 km one it would cover 7/12)
+        ResultArena results = arena(true, false);
+        Collocator.collocate(results, null, 2);
+        checkMatches(results);
+    }
+
+    @Test
+    public void compactOutputTakesTheExtentFromThePixelNumber() throws Exception {
+        List<List<Double>> pixelProjectionMap = new ArrayList<>();
+        for (int k = 0; k <= PIXEL_NUMBER; k++) {
+            pixelProjectionMap.add(Arrays.asList(0.0, 0.0));
+        }
+        pixelProjectionMap.set(PIXEL_NUMBER, Arrays.asList(ALONG_TRACK, ACROSS_TRACK));
+        ResultArena results = arena(false, true);
+        Collocator.collocate(results, pixelProjectionMap, 1);
+        checkMatches(results);
+    }
+
+    private static ResultArena arena(boolean eastbound, boolean compact) throws IOException {
+        Set<ResultVariable> variables = EnumSet.of(ResultVariable.NADIR_LATITUDE, ResultVariable.NADIR_LONGITUDE, ResultVariable.FORWARD_LATITUDE,
+                ResultVariable.FORWARD_LONGITUDE);
+        if (compact) {
+            variables.add(ResultVariable.NADIR_PIXEL_NUMBER);
+            variables.add(ResultVariable.FORWARD_PIXEL_NUMBER);
+        } else {
+            variables.addAll(ResultVariable.PROJECTION_VARIABLES);
+        }
+        variables.addAll(ResultVariable.COLLOCATION_VARIABLES);
+        ResultArena results = ResultArena.allocate(variables, EnumSet.noneOf(ResultVariable.class), 0, ROWS, COLUMNS, ResultArena.Storage.HEAP, null);
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                putPixel(results, true, row, column, location(eastbound, row, column, 0.0));
+                putPixel(results, false, row, column, location(eastbound, row, column, FORWARD_SHIFT));
+            }
+        }
+        results.put(ResultVariable.NADIR_LATITUDE, FILL_NADIR_ROW, FILL_NADIR_COLUMN, -999999.0);
+        results.put(ResultVariable.NADIR_LONGITUDE, FILL_NADIR_ROW, FILL_NADIR_COLUMN, -999999.0);
+        results.put(ResultVariable.FORWARD_LATITUDE, FILL_FORWARD_ROW, FILL_FORWARD_COLUMN, -999999.0);
+        results.put(ResultVariable.FORWARD_LONGITUDE, FILL_FORWARD_ROW, FILL_FORWARD_COLUMN, -999999.0);
+        return results;
+    }
+
+    private static void putPixel(ResultArena results, boolean nadir, int row, int column, double[] location) {
+        if (nadir) {
+            results.put(ResultVariable.NADIR_LATITUDE, row, column, location[0]);
+            results.put(ResultVariable.NADIR_LONGITUDE, row, column, location[1]);
+        } else {
+            results.put(ResultVariable.FORWARD_LATITUDE, row, column, location[0]);
+            results.put(ResultVariable.FORWARD_LONGITUDE, row, column, location[1]);
+        }
+        if (results.contains(ResultVariable.NADIR_ALONG_TRACK)) {
+            results.put(nadir ? ResultVariable.NADIR_ALONG_TRACK : ResultVariable.FORWARD_ALONG_TRACK, row, column, ALONG_TRACK);
+            results.put(nadir ? ResultVariable.NADIR_ACROSS_TRACK : ResultVariable.FORWARD_ACROSS_TRACK, row, column, ACROSS_TRACK);
+        } else {
+            results.put(nadir ? ResultVariable.NADIR_PIXEL_NUMBER : ResultVariable.FORWARD_PIXEL_NUMBER, row, column, PIXEL_NUMBER);
+        }
+    }
+
+    private static double[] location(boolean eastbound, int row, int column, double shift) {
+        // Latitude & longitude of the point (row + shift) km along and column km across (right of) the track
+        double along = row * 1.0 + shift;
+        double across = column * 1.0;
+        double north = along;
+        double east = across;
+        if (eastbound) {
+            north = -across;
+            east = along;
+        }
+        double latitude = 40.0 + north / KM_PER_DEGREE;
+        double longitude = 10.0 + east / (KM_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+        return new double[]{latitude, longitude};
+    }
+
+    private static void checkMatches(ResultArena results) {
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                // Expected matches in decreasing weight order
+                List<int[]> expected = new ArrayList<>();
+                if (row != FILL_NADIR_ROW || column != FILL_NADIR_COLUMN) {
+                    if (row != FILL_FORWARD_ROW || column != FILL_FORWARD_COLUMN) {
+                        expected.add(new int[]{row * COLUMNS + column, 3});
+                    }
+                    if (row > 0 && (row - 1 != FILL_FORWARD_ROW || column != FILL_FORWARD_COLUMN)) {
+                        expected.add(new int[]{(row - 1) * COLUMNS + column, 1});
+                    }
+                }
+                for (int k = 0; k < Collocator.MATCHES; k++) {
+                    String pixel = "match " + (k + 1) + " of nadir pixel (" + row + ", " + column + ")";
+                    int expectedPixel = -1;
+                    double expectedWeight = 0.0;
+                    if (k < expected.size()) {
+                        expectedPixel = expected.get(k)[0];
+                        expectedWeight = expected.get(k)[1] / 4.0;
+                    }
+                    assertEquals(pixel, expectedPixel, results.get(ResultVariable.COLLOCATED_PIXELS[k], row, column), 0.0);
+                    assertEquals(pixel, expectedWeight, results.get(ResultVariable.COLLOCATED_WEIGHTS[k], row, column), 1.0e-3);
+                }
+            }
+        }
+    }
+}
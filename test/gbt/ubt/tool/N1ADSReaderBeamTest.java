@@ -0,0 +1,126 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.IOException;
+import org.esa.beam.framework.dataio.ProductIO;
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.ProductNodeGroup;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import org.junit.AfterClass;
+import static org.junit.Assume.assumeTrue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+public class N1ADSReaderBeamTest {
+    /* Compares every record of the four ADS read by N1ADSReader with the records BEAM decodes, for a real (A)ATSR L1B
+     * product given by the gbt.test.product system property (skipped without it)
+     */
+
+    private static final String[] CORRECTION_NAMES = {"lat_corr_nadv", "long_corr_nadv", "lat_corr_forv", "long_corr_forv"};
+
+    private static N1ADSReader.ProductADS ads;
+    private static Product product;
+
+    @BeforeClass
+    public static void readProduct() throws IOException {
+        String location = System.getProperty("gbt.test.product", "");
+        assumeTrue(!location.isEmpty());
+        ads = N1ADSReader.read(location);
+        product = ProductIO.readProduct(location);
+        assertNotNull("BEAM cannot read " + location, product);
+    }
+
+    @AfterClass
+    public static void closeProduct() throws IOException {
+        if (product != null) {
+            product.closeIO();
+        }
+    }
+
+    @Test
+    public void viewADSMatchBeam() {
+        compareView(ads.nadirView, getRecords("NADIR_VIEW_SCAN_PIX_NUM_ADS"));
+        compareView(ads.forwardView, getRecords("FWARD_VIEW_SCAN_PIX_NUM_ADS"));
+    }
+
+    @Test
+    public void scanPixelADSMatchesBeam() {
+        ProductNodeGroup<MetadataElement> records = getRecords("SCAN_PIXEL_X_AND_Y_ADS");
+        assertEquals(records.getNodeCount(), ads.scanPixel.records);
+        for (int k = 0; k < ads.scanPixel.records; k++) {
+            MetadataElement record = records.get(k);
+            ProductData dsrTime = record.getAttributeAt(0).getData();
+            double scanTime = dsrTime.getElemIntAt(0) + (dsrTime.getElemDoubleAt(1) / 86400.0) + ((dsrTime.getElemDoubleAt(2) / 1.0e6) / 86400.0);
+            assertEquals("dsr_time of record " + k, scanTime, ads.scanPixel.scanTimes[k], 0.0);
+            assertEquals("instr_scan_num of record " + k, record.getAttributeAt(2).getData().getElemInt(), ads.scanPixel.scanNumbers[k]);
+            assertArrayEquals("x coordinates of record " + k, (int[]) record.getAttributeAt(3).getDataElems(), ads.scanPixel.xCoordinates[k]);
+            assertArrayEquals("y coordinates of record " + k, (int[]) record.getAttributeAt(4).getDataElems(), ads.scanPixel.yCoordinates[k]);
+        }
+    }
+
+    @Test
+    public void geolocationADSMatchesBeam() {
+        ProductNodeGroup<MetadataElement> records = getRecords("GEOLOCATION_ADS");
+        assertEquals(records.getNodeCount(), ads.geolocation.records);
+        for (int k = 0; k < ads.geolocation.records; k++) {
+            MetadataElement record = records.get(k);
+            assertEquals("img_scan_y of record " + k, record.getAttribute("img_scan_y").getData().getElemInt(), ads.geolocation.imageScanY[k]);
+            ProductData latitudes = record.getAttribute("tie_pt_lat").getData();
+            ProductData longitudes = record.getAttribute("tie_pt_long").getData();
+            for (int jg = 0; jg < TiePointIndex.TIE_POINTS_PER_RECORD; jg++) {
+                assertEquals("tie_pt_lat of record " + k, latitudes.getElemIntAt(jg), ads.geolocation.latitudes[k][jg]);
+                assertEquals("tie_pt_long of record " + k, longitudes.getElemIntAt(jg), ads.geolocation.longitudes[k][jg]);
+                for (int c = 0; c < CORRECTION_NAMES.length; c++) {
+                    assertEquals(CORRECTION_NAMES[c] + " of record " + k, record.getAttribute(CORRECTION_NAMES[c]).getData().getElemIntAt(jg),
+                            ads.geolocation.corrections[c][k * TiePointIndex.TIE_POINTS_PER_RECORD + jg]);
+                }
+            }
+        }
+    }
+
+    private static void compareView(N1ADSReader.ViewADS view, ProductNodeGroup<MetadataElement> records) {
+        assertEquals(records.getNodeCount(), view.records);
+        for (int k = 0; k < view.records; k++) {
+            ProductData scanNumbers = records.get(k).getAttribute("instr_scan_num").getData();
+            short[] pixelNumbers = (short[]) records.get(k).getAttribute("pix_num").getDataElems();
+            assertEquals("pix_num length of record " + k, pixelNumbers.length, view.columns);
+            for (int j = 0; j < view.columns; j++) {
+                assertEquals("instr_scan_num of record " + k, scanNumbers.getElemIntAt(j), view.getScanNumber(k, j));
+                assertEquals("pix_num of record " + k, pixelNumbers[j], view.getPixelNumber(k, j));
+            }
+        }
+    }
+
+    private static ProductNodeGroup<MetadataElement> getRecords(String name) {
+        return product.getMetadataRoot().getElement(name).getElementGroup();
+    }
+}
@@ -0,0 +1,267 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+public class N1ADSReaderTest {
+    /* Reads a synthetic N1 file: an MPH, an SPH ending with the DSDs (one of them a spare) and the four ADS, with 2
+     * image columns, 3 tie points per SCAN_PIXEL_X_AND_Y_ADS record and 2 records per ADS
+     */
+
+    private static final int MPH_SIZE = 1247;
+    private static final int SPH_HEADER_SIZE = 100;
+    private static final int DSD_SIZE = 280;
+    private static final int COLUMNS = 2;
+    private static final int TIE_POINTS = 3;
+    private static final int RECORDS = 2;
+    private static final int VIEW_DSR_SIZE = 13 + 4 * COLUMNS;
+    private static final int SCAN_PIXEL_DSR_SIZE = 13 + 4 + 8 * TIE_POINTS;
+    private static final int GEOLOCATION_DSR_SIZE = 13 + 4 + 6 * 4 * 23 + 4; // topo_alt follows the six fields
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsTheADSLocatedByTheDSDs() throws IOException {
+        N1ADSReader.ProductADS ads = N1ADSReader.read(writeProduct(defaultDatasets()).getPath());
+
+        assertEquals(RECORDS, ads.nadirView.records);
+        assertEquals(COLUMNS, ads.nadirView.columns);
+        assertEquals(1000, ads.nadirView.getScanNumber(0, 0));
+        assertEquals(40001, ads.nadirView.getScanNumber(1, 1)); // instr_scan_num is unsigned
+        assertEquals(-1, ads.nadirView.getPixelNumber(1, 1));
+        assertEquals(2000, ads.forwardView.getScanNumber(0, 0));
+        assertEquals(11, ads.forwardView.getPixelNumber(1, 0));
+
+        assertEquals(RECORDS, ads.scanPixel.records);
+        assertEquals(1000, ads.scanPixel.scanNumbers[0]);
+        assertEquals(1032, ads.scanPixel.scanNumbers[1]);
+        assertEquals(1000 + (43200 / 86400.0) + ((500000 / 1.0e6) / 86400.0), ads.scanPixel.scanTimes[0], 0.0);
+        assertEquals(-100 + (3000000000L / 86400.0), ads.scanPixel.scanTimes[1], 0.0); // days signed, seconds unsigned
+        assertArrayEquals(new int[]{100, 101, 102}, ads.scanPixel.xCoordinates[1]);
+        assertArrayEquals(new int[]{-200, -201, -202}, ads.scanPixel.yCoordinates[1]);
+
+        assertEquals(RECORDS, ads.geolocation.records);
+        assertEquals(0, ads.geolocation.imageScanY[0]);
+        assertEquals(32000, ads.geolocation.imageScanY[1]);
+        assertEquals(geolocationValue(1, 0, 22), ads.geolocation.latitudes[1][22]);
+        assertEquals(geolocationValue(0, 1, 5), ads.geolocation.longitudes[0][5]);
+        for (int k = 0; k < 4; k++) {
+            assertEquals(geolocationValue(1, k + 2, 7), ads.geolocation.corrections[k][23 + 7]);
+        }
+    }
+
+    @Test
+    public void failsWithoutDSD() throws IOException {
+        Map<String, byte[]> datasets = defaultDatasets();
+        datasets.remove("GEOLOCATION_ADS");
+        try {
+            N1ADSReader.read(writeProduct(datasets).getPath());
+            fail("read without a GEOLOCATION_ADS DSD");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("no GEOLOCATION_ADS DSD"));
+        }
+    }
+
+    @Test
+    public void failsWhenAnADSEndsBeyondTheFile() throws IOException {
+        File product = writeProduct(defaultDatasets());
+        truncate(product, product.length() - 1);
+        try {
+            N1ADSReader.read(product.getPath());
+            fail("read an ADS beyond the end of the file");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("beyond the end of the file"));
+        }
+    }
+
+    @Test
+    public void failsOnARecordSizeNotMatchingTheFields() throws IOException {
+        Map<String, byte[]> datasets = defaultDatasets();
+        datasets.put("NADIR_VIEW_SCAN_PIX_NUM_ADS", new byte[RECORDS * (VIEW_DSR_SIZE + 1)]);
+        try {
+            N1ADSReader.read(writeProduct(datasets, VIEW_DSR_SIZE + 1).getPath());
+            fail("read a view ADS record of " + (VIEW_DSR_SIZE + 1) + " bytes");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("unexpected record size"));
+        }
+    }
+
+    @Test
+    public void parsesSignedNumbersWithUnits() throws IOException {
+        Map<String, String> fields = new HashMap<>();
+        fields.put("DS_OFFSET", "+00000000000000012345<bytes>");
+        fields.put("NUM_DSR", "-0000000002");
+        assertEquals(12345, N1ADSReader.parseNumber(fields, "DS_OFFSET"));
+        assertEquals(-2, N1ADSReader.parseNumber(fields, "NUM_DSR"));
+        try {
+            N1ADSReader.parseNumber(fields, "DSR_SIZE");
+            fail("parsed a missing field");
+        } catch (IOException ex) {
+            assertEquals("no DSR_SIZE in the product headers", ex.getMessage());
+        }
+    }
+
+    static int geolocationValue(int record, int field, int tiePoint) {
+        // Distinct (and for the latitudes negative) micro-degrees per record, field and tie point
+        int value = 1000000 * (field + 1) + 1000 * record + tiePoint;
+        return field == 0 ? -value : value;
+    }
+
+    private static Map<String, byte[]> defaultDatasets() {
+        Map<String, byte[]> datasets = new HashMap<>();
+
+        ByteBuffer nadir = ByteBuffer.allocate(RECORDS * VIEW_DSR_SIZE);
+        putViewRecord(nadir, 0, new int[]{1000, 1000}, new short[]{10, 11});
+        putViewRecord(nadir, 1, new int[]{40000, 40001}, new short[]{1, -1});
+        datasets.put("NADIR_VIEW_SCAN_PIX_NUM_ADS", nadir.array());
+
+        ByteBuffer forward = ByteBuffer.allocate(RECORDS * VIEW_DSR_SIZE);
+        putViewRecord(forward, 0, new int[]{2000, 2000}, new short[]{500, 501});
+        putViewRecord(forward, 1, new int[]{2032, 2032}, new short[]{11, 12});
+        datasets.put("FWARD_VIEW_SCAN_PIX_NUM_ADS", forward.array());
+
+        ByteBuffer scanPixel = ByteBuffer.allocate(RECORDS * SCAN_PIXEL_DSR_SIZE);
+        putScanPixelRecord(scanPixel, 0, 1000, 43200, 500000, 1000, new int[]{0, 1, 2}, new int[]{0, -1, -2});
+        putScanPixelRecord(scanPixel, 1, -100, (int) 3000000000L, 0, 1032, new int[]{100, 101, 102}, new int[]{-200, -201, -202});
+        datasets.put("SCAN_PIXEL_X_AND_Y_ADS", scanPixel.array());
+
+        ByteBuffer geolocation = ByteBuffer.allocate(RECORDS * GEOLOCATION_DSR_SIZE);
+        for (int record = 0; record < RECORDS; record++) {
+            int position = record * GEOLOCATION_DSR_SIZE;
+            geolocation.putInt(position + 13, 32000 * record);
+            for (int field = 0; field < 6; field++) {
+                for (int jg = 0; jg < 23; jg++) {
+                    geolocation.putInt(position + 17 + 4 * (23 * field + jg), geolocationValue(record, field, jg));
+                }
+            }
+        }
+        datasets.put("GEOLOCATION_ADS", geolocation.array());
+        return datasets;
+    }
+
+    private static void putViewRecord(ByteBuffer buffer, int record, int[] scanNumbers, short[] pixelNumbers) {
+        int position = record * VIEW_DSR_SIZE + 13;
+        for (int j = 0; j < COLUMNS; j++) {
+            buffer.putShort(position + 2 * j, (short) scanNumbers[j]);
+            buffer.putShort(position + 2 * COLUMNS + 2 * j, pixelNumbers[j]);
+        }
+    }
+
+    private static void putScanPixelRecord(ByteBuffer buffer, int record, int days, int seconds, int microseconds, int scanNumber, int[] x, int[] y) {
+        int position = record * SCAN_PIXEL_DSR_SIZE;
+        buffer.putInt(position, days);
+        buffer.putInt(position + 4, seconds);
+        buffer.putInt(position + 8, microseconds);
+        buffer.putInt(position + 13, scanNumber);
+        for (int k = 0; k < TIE_POINTS; k++) {
+            buffer.putInt(position + 17 + 4 * k, x[k]);
+            buffer.putInt(position + 17 + 4 * TIE_POINTS + 4 * k, y[k]);
+        }
+    }
+
+    private File writeProduct(Map<String, byte[]> datasets) throws IOException {
+        return writeProduct(datasets, VIEW_DSR_SIZE);
+    }
+
+    private File writeProduct(Map<String, byte[]> datasets, int viewDSRSize) throws IOException {
+        // The datasets follow the SPH in a fixed order, a spare DSD (no name) comes first
+        String[] names = {"NADIR_VIEW_SCAN_PIX_NUM_ADS", "FWARD_VIEW_SCAN_PIX_NUM_ADS", "SCAN_PIXEL_X_AND_Y_ADS", "GEOLOCATION_ADS"};
+        int[] dsrSizes = {viewDSRSize, viewDSRSize, SCAN_PIXEL_DSR_SIZE, GEOLOCATION_DSR_SIZE};
+        List<String> dsds = new ArrayList<>();
+        dsds.add(pad("DS_NAME=\"                            \"\nDS_TYPE= \n", DSD_SIZE));
+        int numberOfDSDs = 1;
+        for (String name : names) {
+            if (datasets.containsKey(name)) {
+                numberOfDSDs++;
+            }
+        }
+        int sphSize = SPH_HEADER_SIZE + numberOfDSDs * DSD_SIZE;
+        long offset = MPH_SIZE + sphSize;
+        for (int k = 0; k < names.length; k++) {
+            byte[] dataset = datasets.get(names[k]);
+            if (dataset == null) {
+                continue;
+            }
+            dsds.add(pad("DS_NAME=\"" + names[k] + "\"\nDS_TYPE=A\nFILENAME=\"\"\nDS_OFFSET=" + String.format("%+021d", offset) + "<bytes>\n"
+                    + "DS_SIZE=" + String.format("%+021d", dataset.length) + "<bytes>\nNUM_DSR=" + String.format("%+011d", dataset.length / dsrSizes[k])
+                    + "\nDSR_SIZE=" + String.format("%+011d", dsrSizes[k]) + "<bytes>\n", DSD_SIZE));
+            offset += dataset.length;
+        }
+
+        File product = folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(product)) {
+            out.write(ascii(pad("PRODUCT=\"ATS_TOA_1PTEST.N1\"\nSPH_SIZE=" + String.format("%+011d", sphSize) + "<bytes>\nNUM_DSD="
+                    + String.format("%+011d", numberOfDSDs) + "\nDSD_SIZE=" + String.format("%+011d", DSD_SIZE) + "<bytes>\n", MPH_SIZE)));
+            out.write(ascii(pad("SPH_DESCRIPTOR=\"AATSR GBTR TEST\"\n", SPH_HEADER_SIZE)));
+            for (String dsd : dsds) {
+                out.write(ascii(dsd));
+            }
+            for (String name : names) {
+                if (datasets.containsKey(name)) {
+                    out.write(datasets.get(name));
+                }
+            }
+        }
+        return product;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(length);
+        }
+    }
+
+    private static String pad(String header, int size) {
+        StringBuilder padded = new StringBuilder(header);
+        while (padded.length() < size) {
+            padded.append(' ');
+        }
+        return padded.toString();
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
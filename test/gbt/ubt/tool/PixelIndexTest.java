@@ -0,0 +1,151 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+public class PixelIndexTest {
+    /* A nadir view of ROWS x COLUMNS pixels on a regular lat/lon grid (about 1.1 km north & 0.85 km east apart) with
+     * 1 km footprints, in a window starting at image pixel (MIN_X, MIN_Y), indexed in two row blocks
+     */
+
+    private static final int ROWS = 40;
+    private static final int COLUMNS = 30;
+    private static final int MIN_X = 100;
+    private static final int MIN_Y = 2000;
+    private static final double STEP = 0.01;
+    private static final int FILL_ROW = 17;
+    private static final int FILL_COLUMN = 9;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PixelIndex index;
+
+    @Before
+    public void buildIndex() throws IOException {
+        ResultArena results = ResultArena.allocate(EnumSet.of(ResultVariable.NADIR_LATITUDE, ResultVariable.NADIR_LONGITUDE, ResultVariable.NADIR_ALONG_TRACK,
+                ResultVariable.NADIR_ACROSS_TRACK), EnumSet.noneOf(ResultVariable.class), 0, ROWS, COLUMNS, ResultArena.Storage.HEAP, null);
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                results.put(ResultVariable.NADIR_LATITUDE, row, column, latitude(row));
+                results.put(ResultVariable.NADIR_LONGITUDE, row, column, longitude(column));
+                results.put(ResultVariable.NADIR_ALONG_TRACK, row, column, 1.0);
+                results.put(ResultVariable.NADIR_ACROSS_TRACK, row, column, 1.0);
+            }
+        }
+        results.put(ResultVariable.NADIR_LATITUDE, FILL_ROW, FILL_COLUMN, -999999.0);
+        results.put(ResultVariable.NADIR_LONGITUDE, FILL_ROW, FILL_COLUMN, -999999.0);
+
+        File file = PixelIndex.indexFile(new File(folder.getRoot(), "output.h5").getPath());
+        PixelIndex.Builder builder = new PixelIndex.Builder(file, ROWS, COLUMNS, MIN_X, MIN_Y, null);
+        builder.addRows(results, 20, 20);
+        builder.addRows(results, 0, 20);
+        builder.close();
+        assertFalse(new File(file.getPath() + ".partial").exists());
+        index = PixelIndex.open(file);
+    }
+
+    @Test
+    public void findsTheNearestPixelCentre() {
+        assertArrayEquals(new int[]{MIN_X + 3, MIN_Y + 5}, index.nearest(PixelIndex.NADIR, latitude(5) + 0.3 * STEP, longitude(3) - 0.3 * STEP));
+        assertArrayEquals(new int[]{MIN_X, MIN_Y}, index.nearest(PixelIndex.NADIR, latitude(0) - 1.0, longitude(0) - 1.0));
+        Random random = new Random(1);
+        for (int k = 0; k < 200; k++) {
+            double latitude = latitude(0) + (random.nextDouble() * 1.2 - 0.1) * ROWS * STEP;
+            double longitude = longitude(0) + (random.nextDouble() * 1.2 - 0.1) * COLUMNS * STEP;
+            assertArrayEquals(bruteForceNearest(latitude, longitude), index.nearest(PixelIndex.NADIR, latitude, longitude));
+        }
+    }
+
+    @Test
+    public void fillPixelsAreNotIndexed() {
+        int[] nearest = index.nearest(PixelIndex.NADIR, latitude(FILL_ROW), longitude(FILL_COLUMN));
+        assertFalse(nearest[0] == MIN_X + FILL_COLUMN && nearest[1] == MIN_Y + FILL_ROW);
+        assertTrue(index.containing(PixelIndex.NADIR, latitude(FILL_ROW), longitude(FILL_COLUMN)).isEmpty());
+    }
+
+    @Test
+    public void findsThePixelsWhoseFootprintContainsTheLocation() {
+        List<int[]> found = index.containing(PixelIndex.NADIR, latitude(30) + 0.2 * STEP, longitude(25));
+        assertEquals(1, found.size());
+        assertArrayEquals(new int[]{MIN_X + 25, MIN_Y + 30}, found.get(0));
+        // Half way between two rows is outside both 1 km footprints
+        assertTrue(index.containing(PixelIndex.NADIR, latitude(30) + 0.5 * STEP, longitude(25)).isEmpty());
+        assertTrue(index.containing(PixelIndex.NADIR, latitude(0) - 1.0, longitude(0)).isEmpty());
+    }
+
+    @Test
+    public void aViewNotComputedHasNoPixels() {
+        assertNull(index.nearest(PixelIndex.FORWARD, latitude(5), longitude(5)));
+        assertTrue(index.containing(PixelIndex.FORWARD, latitude(5), longitude(5)).isEmpty());
+    }
+
+    private static double latitude(int row) {
+        return 40.0 + row * STEP;
+    }
+
+    private static double longitude(int column) {
+        return 10.0 + column * STEP;
+    }
+
+    private static int[] bruteForceNearest(double latitude, double longitude) {
+        // Same distance as the index on the float values stored in the index file
+        int[] nearest = null;
+        double best = Double.MAX_VALUE;
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                if (row == FILL_ROW && column == FILL_COLUMN) {
+                    continue;
+                }
+                double pixelLatitude = (float) latitude(row);
+                double pixelLongitude = (float) longitude(column);
+                double x = Math.toRadians(longitude - pixelLongitude) * Math.cos(Math.toRadians((latitude + pixelLatitude) / 2.0));
+                double y = Math.toRadians(latitude - pixelLatitude);
+                double distance = x * x + y * y;
+                if (distance < best) {
+                    best = distance;
+                    nearest = new int[]{MIN_X + column, MIN_Y + row};
+                }
+            }
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,99 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+public class ProjectionCacheTest {
+    /* The buckets of a cache without an orbit, the altitude & radius given directly (the orbit lookup needs the Orekit
+     * data and the projections the GeoTools contouring, neither is used here)
+     */
+
+    private ProjectionCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new ProjectionCache(null, 0, new InputParameters(), null, null, null, null);
+    }
+
+    @Test
+    public void altitudeAndRadiusAreRoundedToBuckets() {
+        AtomicReferenceArray<double[]> bucket = cache.getBucket(800.3, 6371.4);
+        assertSame(bucket, cache.getBucket(799.6, 6370.6));
+        assertNotSame(bucket, cache.getBucket(801.6, 6371.4));
+        assertNotSame(bucket, cache.getBucket(800.3, 6372.6));
+        assertEquals(3, cache.getBucketCount());
+        assertArrayEquals(new double[]{800.0, 6371.0}, bucket.get(0), 0.0);
+    }
+
+    @Test
+    public void projectionsAreComputedOncePerBucket() {
+        AtomicReferenceArray<double[]> bucket = cache.getBucket(806.4, 6357.2);
+        double[] projection = {1.1, 1.2};
+        bucket.set(1500, projection);
+        assertSame(projection, cache.getProjection(cache.getBucket(806.0, 6357.0), 1500));
+        assertNotSame(bucket, cache.getBucket(820.0, 6357.0));
+        assertNull(cache.getBucket(820.0, 6357.0).get(1500));
+    }
+
+    @Test
+    public void threadsShareTheBuckets() throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(4);
+        List<Future<AtomicReferenceArray<double[]>>> buckets = new ArrayList<>();
+        try {
+            for (int k = 0; k < 64; k++) {
+                final double altitude = 790.0 + (k % 4) * 0.1;
+                buckets.add(threadPool.submit(new Callable<AtomicReferenceArray<double[]>>() {
+                    @Override
+                    public AtomicReferenceArray<double[]> call() {
+                        return cache.getBucket(altitude, 6371.0);
+                    }
+                }));
+            }
+            AtomicReferenceArray<double[]> first = buckets.get(0).get();
+            for (Future<AtomicReferenceArray<double[]>> bucket : buckets) {
+                assertSame(first, bucket.get());
+            }
+            assertEquals(1, cache.getBucketCount());
+        } finally {
+            threadPool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Set;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+public class ResultArenaTest {
+
+    private static final int FIRST_ROW = 64;
+    private static final int ROWS = 3;
+    private static final int COLUMNS = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void storesEveryElementTypeInEveryStorage() throws IOException {
+        Set<ResultVariable> variables = EnumSet.of(ResultVariable.NADIR_LATITUDE, ResultVariable.NADIR_ACQUISITION_TIME,
+                ResultVariable.NADIR_SCAN_NUMBER, ResultVariable.NADIR_PIXEL_NUMBER);
+        for (ResultArena.Storage storage : ResultArena.Storage.values()) {
+            ResultArena arena = ResultArena.allocate(variables, EnumSet.noneOf(ResultVariable.class), FIRST_ROW, ROWS, COLUMNS, storage, folder.getRoot());
+            arena.put(ResultVariable.NADIR_LATITUDE, FIRST_ROW + 2, 3, 51.25);
+            arena.put(ResultVariable.NADIR_ACQUISITION_TIME, FIRST_ROW, 0, 3456.789012345678);
+            arena.put(ResultVariable.NADIR_SCAN_NUMBER, FIRST_ROW + 1, 1, 123456);
+            arena.put(ResultVariable.NADIR_PIXEL_NUMBER, FIRST_ROW + 1, 2, -1);
+
+            assertEquals(storage.name(), 51.25, arena.get(ResultVariable.NADIR_LATITUDE, FIRST_ROW + 2, 3), 0.0);
+            assertEquals(storage.name(), 3456.789012345678, arena.get(ResultVariable.NADIR_ACQUISITION_TIME, FIRST_ROW, 0), 0.0);
+            assertEquals(storage.name(), 123456, arena.get(ResultVariable.NADIR_SCAN_NUMBER, FIRST_ROW + 1, 1), 0.0);
+            assertEquals(storage.name(), -1, arena.get(ResultVariable.NADIR_PIXEL_NUMBER, FIRST_ROW + 1, 2), 0.0);
+            assertEquals(storage.name(), 0, arena.get(ResultVariable.NADIR_LATITUDE, FIRST_ROW + 2, 2), 0.0);
+
+            short[] pixelNumbers = (short[]) arena.readRows(ResultVariable.NADIR_PIXEL_NUMBER, FIRST_ROW + 1, 1);
+            assertArrayEquals(new short[]{0, 0, -1, 0}, pixelNumbers);
+        }
+    }
+
+    @Test
+    public void spillFilesAreDeletedOnceMapped() throws IOException {
+        ResultArena arena = ResultArena.allocate(EnumSet.of(ResultVariable.NADIR_LATITUDE), EnumSet.noneOf(ResultVariable.class), FIRST_ROW, ROWS, COLUMNS,
+                ResultArena.Storage.MAPPED, folder.getRoot());
+        arena.put(ResultVariable.NADIR_LATITUDE, FIRST_ROW, 0, 1.5);
+        assertEquals(0, folder.getRoot().list().length);
+        assertEquals(1.5, arena.get(ResultVariable.NADIR_LATITUDE, FIRST_ROW, 0), 0.0);
+    }
+
+    @Test
+    public void packsLatitudesAndLongitudesAsMicroDegrees() throws IOException {
+        Set<ResultVariable> variables = EnumSet.of(ResultVariable.NADIR_LATITUDE, ResultVariable.NADIR_LONGITUDE);
+        // Packed variables the arena does not hold are ignored
+        Set<ResultVariable> packed = EnumSet.of(ResultVariable.NADIR_LATITUDE, ResultVariable.FORWARD_LATITUDE);
+        ResultArena arena = ResultArena.allocate(variables, packed, FIRST_ROW, ROWS, COLUMNS, ResultArena.Storage.HEAP, null);
+        assertEquals(EnumSet.of(ResultVariable.NADIR_LATITUDE), arena.getPackedVariables());
+        assertEquals(ResultVariable.ElementType.INT32, arena.getType(ResultVariable.NADIR_LATITUDE));
+        assertEquals(ResultVariable.ElementType.FLOAT32, arena.getType(ResultVariable.NADIR_LONGITUDE));
+
+        arena.put(ResultVariable.NADIR_LATITUDE, FIRST_ROW, 0, -45.1234567);
+        arena.put(ResultVariable.NADIR_LATITUDE, FIRST_ROW, 1, -999999.0);
+        arena.put(ResultVariable.NADIR_LATITUDE, FIRST_ROW, 2, -888888.0);
+        arena.put(ResultVariable.NADIR_LATITUDE, FIRST_ROW, 3, 89.9999996);
+
+        assertEquals(-45.123457, arena.get(ResultVariable.NADIR_LATITUDE, FIRST_ROW, 0), 1.0e-12);
+        assertEquals(-999999.0, arena.get(ResultVariable.NADIR_LATITUDE, FIRST_ROW, 1), 0.0);
+        assertEquals(-888888.0, arena.get(ResultVariable.NADIR_LATITUDE, FIRST_ROW, 2), 0.0);
+        int[] codes = (int[]) arena.readRows(ResultVariable.NADIR_LATITUDE, FIRST_ROW, 1);
+        assertArrayEquals(new int[]{-45123457, ResultArena.PACKED_FILL_VALUE, ResultArena.PACKED_MISSING_VALUE, 90000000}, codes);
+    }
+
+    @Test
+    public void packingKeepsTheFillValuesDistinctFromLocations() {
+        assertEquals(ResultArena.PACKED_FILL_VALUE, ResultArena.pack(-999999.0));
+        assertEquals(ResultArena.PACKED_MISSING_VALUE, ResultArena.pack(-888888.0));
+        assertTrue(Math.abs(ResultArena.pack(-180.0)) < Math.abs(ResultArena.PACKED_MISSING_VALUE));
+        assertEquals(-180.0, ResultArena.unpack(ResultArena.pack(-180.0)), 1.0e-12);
+        assertEquals(179.999999, ResultArena.unpack(ResultArena.pack(179.999999)), 1.0e-12);
+    }
+
+    @Test
+    public void copiedRowsCanBePutBack() throws IOException {
+        Set<ResultVariable> variables = EnumSet.of(ResultVariable.NADIR_ALONG_TRACK);
+        ResultArena source = ResultArena.allocate(variables, EnumSet.noneOf(ResultVariable.class), FIRST_ROW, ROWS, COLUMNS, ResultArena.Storage.DIRECT, null);
+        for (int row = FIRST_ROW; row < FIRST_ROW + ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                source.put(ResultVariable.NADIR_ALONG_TRACK, row, column, row + column / 8.0);
+            }
+        }
+        ByteBuffer rows = ByteBuffer.allocate(2 * COLUMNS * 4);
+        source.copyRows(ResultVariable.NADIR_ALONG_TRACK, FIRST_ROW + 1, 2, rows);
+        assertEquals(0, rows.remaining());
+        rows.flip();
+
+        ResultArena target = ResultArena.allocate(variables, EnumSet.noneOf(ResultVariable.class), 0, ROWS, COLUMNS, ResultArena.Storage.HEAP, null);
+        target.putRows(ResultVariable.NADIR_ALONG_TRACK, 0, 2, rows);
+        float[] values = new float[2 * COLUMNS];
+        target.readRows(ResultVariable.NADIR_ALONG_TRACK, 0, 2, values);
+        float[] expected = new float[2 * COLUMNS];
+        for (int k = 0; k < expected.length; k++) {
+            expected[k] = (float) (FIRST_ROW + 1 + k / COLUMNS + (k % COLUMNS) / 8.0);
+        }
+        assertArrayEquals(expected, values, 0.0f);
+        assertEquals(0, target.get(ResultVariable.NADIR_ALONG_TRACK, 2, 0), 0.0);
+    }
+}
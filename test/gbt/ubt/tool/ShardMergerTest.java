@@ -0,0 +1,91 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+public class ShardMergerTest {
+
+    @Test
+    public void slicesCoverTheRowsOnceAtGranuleBoundaries() {
+        int[][] cases = {{0, 43008, 4}, {0, 43008, 7}, {100, 1000, 3}, {5, 37, 2}, {0, 512, 16}};
+        for (int[] rows : cases) {
+            int minY = rows[0];
+            int maxY = rows[1];
+            int count = rows[2];
+            int next = minY;
+            for (int index = 1; index <= count; index++) {
+                int[] slice = ShardMerger.sliceRows(minY, maxY, index, count);
+                if (slice[0] >= slice[1]) {
+                    continue;
+                }
+                assertEquals("first row of shard " + index + "/" + count, next, slice[0]);
+                if (slice[1] != maxY) {
+                    assertEquals("end of shard " + index + "/" + count + " inside a granule", 0, slice[1] % 32);
+                }
+                next = slice[1];
+            }
+            assertEquals("rows " + minY + " to " + maxY + " in " + count + " shards", maxY, next);
+        }
+    }
+
+    @Test
+    public void slicesAreBalancedInGranules() {
+        // 43008 rows are 1344 granules, 4 shards take 336 granules each
+        assertArrayEquals(new int[]{0, 10752}, ShardMerger.sliceRows(0, 43008, 1, 4));
+        assertArrayEquals(new int[]{32256, 43008}, ShardMerger.sliceRows(0, 43008, 4, 4));
+        // A subset starting inside a granule keeps its first row
+        assertArrayEquals(new int[]{100, 384}, ShardMerger.sliceRows(100, 1000, 1, 3));
+        assertArrayEquals(new int[]{704, 1000}, ShardMerger.sliceRows(100, 1000, 3, 3));
+    }
+
+    @Test
+    public void shardsBeyondTheGranulesCoverNoRows() {
+        // 2 granules cannot be split between 4 shards
+        int covered = 0;
+        for (int index = 1; index <= 4; index++) {
+            int[] slice = ShardMerger.sliceRows(0, 64, index, 4);
+            if (slice[0] < slice[1]) {
+                covered++;
+                assertEquals(32, slice[1] - slice[0]);
+            }
+        }
+        assertEquals(2, covered);
+    }
+
+    @Test
+    public void shardAttributesAreRecognised() {
+        assertTrue(ShardMerger.isShardAttribute(ShardMerger.SHARD));
+        assertTrue(ShardMerger.isShardAttribute(ShardMerger.SHARD_FIRST_ROW));
+        assertTrue(ShardMerger.isShardAttribute(ShardMerger.SHARD_OUTPUT_ROWS));
+        assertFalse(ShardMerger.isShardAttribute("title"));
+    }
+}
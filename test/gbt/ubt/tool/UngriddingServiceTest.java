@@ -0,0 +1,90 @@
+/* AATSR GBT-UBT-Tool - Ungrids AATSR L1B products and extracts geolocation data and field of view extent
+ *
+ * Copyright (C) 2015 Telespazio VEGA UK Ltd
+ *
+ * This file is part of the AATSR GBT-UBT-Tool.
+ *
+ * AATSR GBT-UBT-Tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AATSR GBT-UBT-Tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AATSR GBT-UBT-Tool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package gbt.ubt.tool;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Telespazio VEGA UK Ltd
+ *
+ */
+public class UngriddingServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path outputDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        // As the service does, the --serve-output directory is resolved to its real path
+        outputDirectory = folder.newFolder("output").toPath().toRealPath();
+        Files.createDirectory(outputDirectory.resolve("sub"));
+    }
+
+    @Test
+    public void requestsAreSplitOnSpacesOutsideQuotes() {
+        assertEquals(Arrays.asList("PIXEL", "/data/ATS_TOA_1P.N1", "100", "200"), UngriddingService.tokenize("PIXEL /data/ATS_TOA_1P.N1 100  200"));
+        assertEquals(Arrays.asList("PIXEL", "/data/my products/a.N1", "1", "2"), UngriddingService.tokenize("  PIXEL \"/data/my products/a.N1\"\t1 2 "));
+        assertEquals(Arrays.asList("ROW", "ab cd", ""), UngriddingService.tokenize("ROW a\"b c\"d \"\""));
+        assertEquals(Collections.<String>emptyList(), UngriddingService.tokenize("   "));
+    }
+
+    @Test
+    public void outputFilesInsideTheDirectoryAreAccepted() throws IOException {
+        assertEquals(outputDirectory.resolve("window.nc").toString(), UngriddingService.outputLocation(outputDirectory, "window.nc"));
+        assertEquals(outputDirectory.resolve("sub/window.h5").toString(), UngriddingService.outputLocation(outputDirectory, "sub/./window.h5"));
+        assertEquals(outputDirectory.resolve("window.nc").toString(), UngriddingService.outputLocation(outputDirectory, "sub/../window.nc"));
+    }
+
+    @Test
+    public void outputFilesOutsideTheDirectoryAreRefused() throws IOException {
+        Path outside = folder.newFolder("outside").toPath();
+        Files.createSymbolicLink(outputDirectory.resolve("link"), outside);
+        Files.createSymbolicLink(outputDirectory.resolve("file.nc"), outside.resolve("file.nc"));
+        String[] refused = {"../window.nc", outside.resolve("window.nc").toString(), "missing/window.nc", "link/window.nc", "file.nc", "sub/../../window.nc"};
+        for (String output : refused) {
+            try {
+                UngriddingService.outputLocation(outputDirectory, output);
+                fail(output + " is outside the output directory");
+            } catch (IllegalArgumentException ex) {
+                // Refused
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outputFilesNeedAnOutputDirectory() throws IOException {
+        UngriddingService.outputLocation(null, "window.nc");
+    }
+}